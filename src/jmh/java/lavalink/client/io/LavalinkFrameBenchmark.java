@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2016-2021 David Rubio Escares / Kodehawa
+ *
+ *  Mantaro is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  Mantaro is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Mantaro. If not, see http://www.gnu.org/licenses/
+ */
+
+package lavalink.client.io;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares how LessAnnoyingLavalinkSocket used to route frames (parse to read the op, then let LavalinkSocket parse again)
+ * with reading the header first and parsing once. Run with ./gradlew jmh, allocations per frame are on gc.alloc.rate.norm.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LavalinkFrameBenchmark {
+    private static final Set<String> KNOWN_EVENTS = Set.of(
+            "TrackEndEvent",
+            "TrackExceptionEvent",
+            "TrackStuckEvent",
+            "WebSocketClosedEvent"
+    );
+    // Frames recorded from a Lavalink node, ids changed.
+    private static final Map<String, String> FRAMES = Map.of(
+            "playerUpdate", """
+                    {"op":"playerUpdate","state":{"connected":true,"time":1625764362119,"position":84120},"guildId":"213468583252983809"}""",
+            "stats", """
+                    {"playingPlayers":412,"op":"stats","memory":{"reservable":4294967296,"used":1017398472,"free":1290617144,"allocated":2308015616},\
+                    "frameStats":{"sent":2994,"deficit":6,"nulled":0},"players":498,"cpu":{"cores":8,"systemLoad":0.3410868924684416,\
+                    "lavalinkLoad":0.19112405237079255},"uptime":864012551}""",
+            "trackStart", """
+                    {"op":"event","type":"TrackStartEvent","guildId":"213468583252983809",\
+                    "track":"QAAAjQIAJVJpY2sgQXN0bGV5IC0gTmV2ZXIgR29ubmEgR2l2ZSBZb3UgVXAADlJpY2tBc3RsZXlWRVZPAAAAAAADPCAAC2RRdzR3OVdnWGNRAAEAK2h0dHBzOi8vd3d3LnlvdXR1YmUuY29tL3dhdGNoP3Y9ZFF3NHc5V2dYY1EAB3lvdXR1YmUAAAAAAAAAAA=="}""",
+            "trackEnd", """
+                    {"op":"event","reason":"FINISHED","type":"TrackEndEvent","guildId":"213468583252983809",\
+                    "track":"QAAAjQIAJVJpY2sgQXN0bGV5IC0gTmV2ZXIgR29ubmEgR2l2ZSBZb3UgVXAADlJpY2tBc3RsZXlWRVZPAAAAAAADPCAAC2RRdzR3OVdnWGNRAAEAK2h0dHBzOi8vd3d3LnlvdXR1YmUuY29tL3dhdGNoP3Y9ZFF3NHc5V2dYY1EAB3lvdXR1YmUAAAAAAAAAAA=="}"""
+    );
+
+    @Param({"playerUpdate", "stats", "trackStart", "trackEnd"})
+    public String frameName;
+    private String frame;
+
+    @Setup
+    public void setup() {
+        frame = FRAMES.get(frameName);
+    }
+
+    @Benchmark
+    public void parseTwice(Blackhole blackhole) {
+        var json = new JSONObject(frame);
+        if ("event".equals(json.optString("op")) && !KNOWN_EVENTS.contains(json.optString("type"))) {
+            return;
+        }
+
+        // What LavalinkSocket did with it.
+        blackhole.consume(new JSONObject(frame));
+    }
+
+    @Benchmark
+    public void readHeaderThenParse(Blackhole blackhole) {
+        var header = LavalinkFrameHeader.read(frame);
+        if ("event".equals(header.getOp()) && !KNOWN_EVENTS.contains(header.getType())) {
+            return;
+        }
+
+        blackhole.consume(new JSONObject(frame));
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2016-2021 David Rubio Escares / Kodehawa
+ *
+ *  Mantaro is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  Mantaro is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Mantaro. If not, see http://www.gnu.org/licenses/
+ */
+
+package net.kodehawa.mantarobot.core;
+
+import net.dv8tion.jda.api.entities.Guild;
+import net.dv8tion.jda.api.entities.Member;
+import net.dv8tion.jda.api.entities.Role;
+import net.kodehawa.mantarobot.core.CommandRegistry.CommandDisableLevel;
+import net.kodehawa.mantarobot.core.modules.commands.base.CommandCategory;
+import net.kodehawa.mantarobot.db.entities.helpers.GuildData;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the disable checks CommandRegistry used to do on the guild data with {@link CommandPolicy}, for a command
+ * that ends up running (so every check is done). Run with ./gradlew jmh, allocations per check are on gc.alloc.rate.norm.
+ * <br>The member and its roles are proxies, so reading them costs a bit more than on JDA. Both sides read them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandPolicyBenchmark {
+    private static final String COMMAND = "profile";
+    private static final CommandCategory CATEGORY = CommandCategory.CURRENCY;
+
+    // How many things the guild has disabled, on every list.
+    @Param({"0", "20", "200"})
+    public int disabled;
+    // How many roles the member running the command has.
+    @Param({"5", "30"})
+    public int roles;
+
+    private GuildData data;
+    private CommandPolicy policy;
+    private Member member;
+    private long channelId;
+
+    @Setup
+    public void setup() {
+        var random = new Random(42);
+        data = new GuildData();
+        for (var i = 0; i < disabled; i++) {
+            data.getDisabledCommands().add("command" + i);
+            data.getDisabledChannels().add(snowflake(random));
+            data.getDisabledUsers().add(snowflake(random));
+            data.getDisabledRoles().add(snowflake(random));
+            data.getChannelSpecificDisabledCommands().put(snowflake(random), List.of(COMMAND));
+            data.getChannelSpecificDisabledCategories().put(snowflake(random), List.of(CATEGORY));
+            data.getRoleSpecificDisabledCommands().put(snowflake(random), List.of(COMMAND));
+            data.getRoleSpecificDisabledCategories().put(snowflake(random), List.of(CATEGORY));
+        }
+
+        List<Role> memberRoles = new ArrayList<>();
+        for (var i = 0; i < roles; i++) {
+            memberRoles.add(role(random.nextLong() & Long.MAX_VALUE));
+        }
+
+        member = member(random.nextLong() & Long.MAX_VALUE, Collections.unmodifiableList(memberRoles));
+        channelId = random.nextLong() & Long.MAX_VALUE;
+        policy = new CommandPolicy(data);
+    }
+
+    @Benchmark
+    public CommandDisableLevel guildData() {
+        var channel = Long.toUnsignedString(channelId);
+        var memberRoles = member.getRoles();
+        if (data.getDisabledCommands().contains(COMMAND)) {
+            return CommandDisableLevel.COMMAND;
+        }
+
+        var channelDisabledCommands = data.getChannelSpecificDisabledCommands().get(channel);
+        if (channelDisabledCommands != null && channelDisabledCommands.contains(COMMAND)) {
+            return CommandDisableLevel.COMMAND_SPECIFIC;
+        }
+
+        // The member is never disabled or on a disabled role here, so the admin checks are never reached.
+        if (data.getDisabledUsers().contains(member.getId())) {
+            return CommandDisableLevel.USER;
+        }
+
+        if (data.getDisabledChannels().contains(channel)) {
+            return CommandDisableLevel.CHANNEL;
+        }
+
+        if (data.getDisabledCategories().contains(CATEGORY)) {
+            return CommandDisableLevel.CATEGORY;
+        }
+
+        if (data.getChannelSpecificDisabledCategories().getOrDefault(channel, Collections.emptyList()).contains(CATEGORY)) {
+            return CommandDisableLevel.SPECIFIC_CATEGORY;
+        }
+
+        if (!data.getDisabledRoles().isEmpty() && memberRoles.stream().anyMatch(r -> data.getDisabledRoles().contains(r.getId()))) {
+            return CommandDisableLevel.ROLE;
+        }
+
+        var roleSpecificDisabledCommands = data.getRoleSpecificDisabledCommands();
+        if (memberRoles.stream().anyMatch(r -> roleSpecificDisabledCommands.getOrDefault(r.getId(), Collections.emptyList()).contains(COMMAND))) {
+            return CommandDisableLevel.SPECIFIC_ROLE;
+        }
+
+        var roleSpecificDisabledCategories = data.getRoleSpecificDisabledCategories();
+        if (memberRoles.stream().anyMatch(r -> roleSpecificDisabledCategories.getOrDefault(r.getId(), Collections.emptyList()).contains(CATEGORY))) {
+            return CommandDisableLevel.SPECIFIC_ROLE_CATEGORY;
+        }
+
+        return null;
+    }
+
+    @Benchmark
+    public CommandDisableLevel commandPolicy() {
+        return policy.check(member, channelId, COMMAND, CATEGORY, false);
+    }
+
+    private static String snowflake(Random random) {
+        return Long.toUnsignedString(random.nextLong() & Long.MAX_VALUE);
+    }
+
+    // Only what the checks use is there, anything else throws.
+    private static Member member(long id, List<Role> roles) {
+        var guild = (Guild) Proxy.newProxyInstance(Guild.class.getClassLoader(), new Class<?>[] { Guild.class }, (proxy, method, args) -> {
+            throw new UnsupportedOperationException(method.getName());
+        });
+
+        return (Member) Proxy.newProxyInstance(Member.class.getClassLoader(), new Class<?>[] { Member.class }, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getIdLong":
+                    return id;
+                case "getId":
+                    return Long.toUnsignedString(id);
+                case "getRoles":
+                    return roles;
+                case "getGuild":
+                    return guild;
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    private static Role role(long id) {
+        var idString = Long.toUnsignedString(id);
+        return (Role) Proxy.newProxyInstance(Role.class.getClassLoader(), new Class<?>[] { Role.class }, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getIdLong":
+                    return id;
+                case "getId":
+                    return idString;
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2016-2021 David Rubio Escares / Kodehawa
+ *
+ *  Mantaro is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  Mantaro is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Mantaro. If not, see http://www.gnu.org/licenses/
+ */
+
+package net.kodehawa.mantarobot.core.command.processor;
+
+import net.kodehawa.mantarobot.data.Config;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link PrefixMatcher} with how CommandProcessor used to find the prefix (lower-casing the whole message,
+ * then checking every prefix on it), over a corpus that looks like what a guild sends: mostly chatter,
+ * with a command every now and then. Run with ./gradlew jmh, allocations per message are on gc.alloc.rate.norm.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PrefixMatcherBenchmark {
+    private static final int MESSAGES = 1024;
+    private static final String CLIENT_ID = "213466096718708737";
+    private static final String CUSTOM_PREFIX = "M!";
+    private static final String[] WORDS = {
+            "hey", "lol", "what", "is", "going", "on", "in", "here", "GG", "anyone", "wanna", "play", "later", "tonight",
+            "that's", "so", "funny", "I", "can't", "believe", "it", "ok", "brb", "xd", "nice", "thanks", "for", "the",
+            "help", "did", "you", "see", "new", "episode", "yeah", "no", "maybe", "tomorrow", "😂", "👀", "<:pepe:1234>"
+    };
+    private static final String[] COMMANDS = { "daily", "loot", "profile", "mine", "fish", "rep @someone", "ping", "play never gonna give you up" };
+
+    private Config config;
+    private PrefixMatcher matcher;
+    private String[] messages;
+
+    @Setup
+    public void setup() {
+        config = new Config();
+        config.clientId = CLIENT_ID;
+        matcher = PrefixMatcher.of(config, CUSTOM_PREFIX);
+
+        var random = new Random(42);
+        messages = new String[MESSAGES];
+        for (var i = 0; i < MESSAGES; i++) {
+            messages[i] = message(random);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void prefixMatcher(Blackhole blackhole) {
+        for (var message : messages) {
+            blackhole.consume(matcher.match(message));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void lowerCase(Blackhole blackhole) {
+        for (var message : messages) {
+            blackhole.consume(usedPrefix(message));
+        }
+    }
+
+    // What CommandProcessor#run did to find the prefix.
+    private String usedPrefix(String rawCmd) {
+        final var lowerRawCmd = rawCmd.toLowerCase();
+        String[] prefix = config.prefix;
+        String[] mentionPrefixes = {
+                "<@%s> ".formatted(config.getClientId()),
+                "<@!%s> ".formatted(config.getClientId())
+        };
+
+        String usedPrefix = null;
+        for (String mention : mentionPrefixes) {
+            if (lowerRawCmd.startsWith(mention)) {
+                usedPrefix = mention;
+            }
+        }
+
+        for (String s : prefix) {
+            if (lowerRawCmd.startsWith(s)) {
+                usedPrefix = s;
+            }
+        }
+
+        if (usedPrefix == null && lowerRawCmd.startsWith(CUSTOM_PREFIX.toLowerCase())) {
+            usedPrefix = CUSTOM_PREFIX;
+        }
+
+        return usedPrefix;
+    }
+
+    // About one message in 20 is a command, with any of the prefixes.
+    private static String message(Random random) {
+        if (random.nextInt(20) == 0) {
+            var command = COMMANDS[random.nextInt(COMMANDS.length)];
+            switch (random.nextInt(4)) {
+                case 0:
+                    return "~>" + command;
+                case 1:
+                    return "->" + command;
+                case 2:
+                    return CUSTOM_PREFIX.toLowerCase() + command;
+                default:
+                    return "<@!" + CLIENT_ID + "> " + command;
+            }
+        }
+
+        var builder = new StringBuilder();
+        var words = 1 + random.nextInt(15);
+        for (var i = 0; i < words; i++) {
+            if (i > 0) {
+                builder.append(' ');
+            }
+
+            builder.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+
+        return builder.toString();
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2016-2021 David Rubio Escares / Kodehawa
+ *
+ *  Mantaro is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  Mantaro is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Mantaro. If not, see http://www.gnu.org/licenses/
+ */
+
+package net.kodehawa.mantarobot.core.shard;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import net.kodehawa.mantarobot.core.listeners.entities.CachedMessage;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How much memory it takes to keep the same messages on the old per-shard Guava cache and on {@link MessageStore}.
+ * Run with ./gradlew jmh, the bytes per message (heap and direct memory, after a GC) are on the bytesPerMessage counter.
+ * The time it takes to fill each one is reported too, but it includes the GCs, so don't read much into it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-XX:+UseSerialGC")
+public class MessageStoreBenchmark {
+    // What the old cache held, per shard.
+    private static final int MESSAGES = 2500;
+    private static final int GUILDS = 25;
+    private static final long FIRST_ID = 860_000_000_000_000_000L;
+
+    // Kept as UTF-8 and turned into a new String on every message, like JDA gives us a new one for every message.
+    private byte[][] contents;
+    // So what we filled can't be collected before we measure it.
+    private Object retained;
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Footprint {
+        public long bytesPerMessage;
+        public long messagesKept;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytesPerMessage = 0;
+            messagesKept = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+        var random = new Random(42);
+        contents = new byte[MESSAGES][];
+        for (var i = 0; i < MESSAGES; i++) {
+            // Mostly short messages, some long ones, some that aren't ASCII.
+            var length = random.nextInt(10) < 8 ? 1 + random.nextInt(120) : 120 + random.nextInt(480);
+            var content = new StringBuilder(length);
+            for (var j = 0; j < length; j++) {
+                content.append(random.nextInt(20) == 0 ? 'あ' : (char) ('a' + random.nextInt(26)));
+            }
+
+            contents[i] = content.toString().getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void release() {
+        retained = null;
+    }
+
+    @Benchmark
+    public void guavaCache(Footprint footprint) {
+        var before = usedMemory();
+        Cache<Long, Optional<CachedMessage>> cache = CacheBuilder.newBuilder().concurrencyLevel(5).maximumSize(MESSAGES).build();
+        for (var i = 0; i < MESSAGES; i++) {
+            cache.put(FIRST_ID + i, Optional.of(new CachedMessage(guild(i), author(i), content(i))));
+        }
+
+        retained = cache;
+        footprint.bytesPerMessage = (usedMemory() - before) / MESSAGES;
+        footprint.messagesKept = cache.size();
+    }
+
+    @Benchmark
+    public void messageStore(Footprint footprint) {
+        var before = usedMemory();
+        var store = new MessageStore(64 * 1024, 8 * 1024 * 1024);
+        for (var i = 0; i < GUILDS; i++) {
+            store.setTracking(guild(i), true);
+        }
+
+        for (var i = 0; i < MESSAGES; i++) {
+            store.put(guild(i), FIRST_ID + i, author(i), content(i));
+        }
+
+        retained = store;
+        footprint.bytesPerMessage = (usedMemory() - before) / MESSAGES;
+        footprint.messagesKept = store.getCount();
+    }
+
+    private String content(int message) {
+        return new String(contents[message], StandardCharsets.UTF_8);
+    }
+
+    private static long guild(int message) {
+        return FIRST_ID - 1 - message % GUILDS;
+    }
+
+    private static long author(int message) {
+        return FIRST_ID - 1000 - message % 300;
+    }
+
+    // Heap and direct memory in use, after letting the GC collect what it can.
+    private static long usedMemory() {
+        for (var i = 0; i < 3; i++) {
+            System.gc();
+        }
+
+        var heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        var direct = ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class).stream()
+                .filter(pool -> pool.getName().equals("direct"))
+                .mapToLong(BufferPoolMXBean::getMemoryUsed)
+                .sum();
+        return heap + direct;
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2016-2021 David Rubio Escares / Kodehawa
+ *
+ *  Mantaro is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  Mantaro is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Mantaro. If not, see http://www.gnu.org/licenses/
+ */
+
+package net.kodehawa.mantarobot.data;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import net.kodehawa.mantarobot.utils.LanguageKeyNotFoundException;
+import net.kodehawa.mantarobot.utils.Utils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares looking keys up on the flat tables {@link I18n} compiles the language files into with walking the nested
+ * maps of the file, like it used to, over the keys commands use the most. Run with ./gradlew jmh, allocations
+ * per lookup are on gc.alloc.rate.norm.
+ * <br>Keys the language doesn't have (and en_US does) are part of the set too, as those used to take a second walk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class I18nBenchmark {
+    // What gets rendered the most: embed footers, cooldowns, currency and profile strings, and a random quote.
+    private static final String[] COMMON_KEYS = {
+            "general.requested_by", "commands.profile.stats.times", "general.days", "general.sellout",
+            "general.reaction_timeout", "general.none", "general.mod_quotes", "commands.waifu.credits_format",
+            "commands.rep.cooldown.waiting", "commands.gamble.credits", "commands.anime.information_footer",
+            "general.invalid_syntax"
+    };
+    private static final int KEYS = 16;
+
+    @Param({"en_US", "es_ES"})
+    public String language;
+
+    private String[] keys;
+    private I18n i18n;
+    private Map<String, ?> map;
+    private Map<String, ?> fallback;
+
+    @Setup
+    public void setup() throws IOException {
+        map = load(language);
+        fallback = load("en_US");
+        i18n = I18n.getForLanguage(language);
+
+        List<String> keyList = new ArrayList<>(List.of(COMMON_KEYS));
+        for (var key : missing(fallback, map, null)) {
+            if (keyList.size() == KEYS) {
+                break;
+            }
+
+            keyList.add(key);
+        }
+
+        // Fill up with the common keys if nothing is missing, so every run does the same amount of lookups.
+        for (var i = 0; keyList.size() < KEYS; i++) {
+            keyList.add(COMMON_KEYS[i]);
+        }
+
+        keys = keyList.toArray(String[]::new);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(KEYS)
+    public void flatTable(Blackhole blackhole) {
+        for (var key : keys) {
+            blackhole.consume(i18n.get(key));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(KEYS)
+    public void nestedMaps(Blackhole blackhole) {
+        for (var key : keys) {
+            blackhole.consume(Utils.fixInlineCodeblockDirection(get(map, key.split("\\."), false)));
+        }
+    }
+
+    // What I18n#get did before the files were compiled.
+    @SuppressWarnings("unchecked")
+    private String get(Map<String, ?> map, String[] parts, boolean recursion) {
+        var index = 0;
+        while (index != parts.length - 1) {
+            Object maybeMap = map.get(parts[index]);
+            if (maybeMap instanceof Map) {
+                map = (Map<String, ?>) maybeMap;
+                index++;
+            } else {
+                if (language.equals("en_US") || recursion) {
+                    throw new LanguageKeyNotFoundException("Missing i18n key " + String.join(".", parts));
+                }
+
+                return get(fallback, parts, true);
+            }
+        }
+
+        Object maybeString = map.get(parts[index]);
+        if (maybeString instanceof String) {
+            return (String) maybeString;
+        }
+
+        if (maybeString instanceof Collection) {
+            Collection<String> c = ((Collection<String>) maybeString);
+            return c.stream()
+                    .skip(ThreadLocalRandom.current().nextInt(c.size()))
+                    .findFirst()
+                    .orElseThrow(AssertionError::new);
+        }
+
+        if (language.equals("en_US") || recursion) {
+            throw new LanguageKeyNotFoundException("Missing i18n key " + String.join(".", parts));
+        }
+
+        return get(fallback, parts, true);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, ?> load(String language) throws IOException {
+        try (var is = I18nBenchmark.class.getResourceAsStream("/assets/languages/" + language + ".json")) {
+            return (Map<String, ?>) new ObjectMapper().readValue(is, Map.class);
+        }
+    }
+
+    // Keys on en_US that the language doesn't have.
+    @SuppressWarnings("unchecked")
+    private static List<String> missing(Map<String, ?> fallback, Map<String, ?> map, String prefix) {
+        List<String> missing = new ArrayList<>();
+        for (var entry : fallback.entrySet()) {
+            var key = prefix == null ? entry.getKey() : prefix + "." + entry.getKey();
+            var value = map == null ? null : map.get(entry.getKey());
+            if (entry.getValue() instanceof Map) {
+                missing.addAll(missing((Map<String, ?>) entry.getValue(), value instanceof Map ? (Map<String, ?>) value : null, key));
+            } else if (value == null) {
+                missing.add(key);
+            }
+        }
+
+        return missing;
+    }
+}
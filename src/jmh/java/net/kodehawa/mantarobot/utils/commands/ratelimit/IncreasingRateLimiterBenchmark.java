@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2016-2021 David Rubio Escares / Kodehawa
+ *
+ *  Mantaro is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  Mantaro is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Mantaro. If not, see http://www.gnu.org/licenses/
+ */
+
+package net.kodehawa.mantarobot.utils.commands.ratelimit;
+
+import net.kodehawa.mantarobot.data.MantaroData;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What a call to a currency command ratelimit (limit of 1, like mine or loot) costs on every backend, with people
+ * spamming it: after their first call, every call is turned down. Run with ./gradlew jmh.
+ * <br>Needs the same config.json the bot uses, and the Redis it points to: the Redis backend runs the script there,
+ * and the synced local backend lets Redis decide the calls that go through.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+@Fork(1)
+public class IncreasingRateLimiterBenchmark {
+    private static final int USERS = 1000;
+
+    @Param({"redis", "local", "localSynced"})
+    public String backend;
+
+    private String prefix;
+    private String[] users;
+    private IncreasingRateLimiter rateLimiter;
+
+    @State(Scope.Thread)
+    public static class Caller {
+        private final Random random = new Random();
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+        // So it doesn't touch the limits of anyone real.
+        prefix = "jmh-" + UUID.randomUUID();
+        users = new String[USERS];
+        var random = new Random(42);
+        for (var i = 0; i < USERS; i++) {
+            users[i] = Long.toUnsignedString(random.nextLong() & Long.MAX_VALUE);
+        }
+
+        rateLimiter = new IncreasingRateLimiter.Builder()
+                .pool(MantaroData.getDefaultJedisPool())
+                .prefix(prefix)
+                .limit(1)
+                .spamTolerance(2)
+                .cooldown(5, TimeUnit.MINUTES)
+                .cooldownPenaltyIncrease(5, TimeUnit.SECONDS)
+                .maxCooldown(10, TimeUnit.MINUTES)
+                .local(!backend.equals("redis"))
+                .redisSync(!backend.equals("local"))
+                .build();
+    }
+
+    @TearDown(Level.Trial)
+    public void cleanup() {
+        try (var jedis = MantaroData.getDefaultJedisPool().getResource()) {
+            for (var user : users) {
+                jedis.del(prefix + ":" + user);
+            }
+        }
+    }
+
+    @Benchmark
+    public RateLimit limit(Caller caller) {
+        return rateLimiter.limit(users[caller.random.nextInt(USERS)]);
+    }
+}
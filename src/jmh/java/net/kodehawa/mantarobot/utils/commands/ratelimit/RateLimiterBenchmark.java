@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2016-2021 David Rubio Escares / Kodehawa
+ *
+ *  Mantaro is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  Mantaro is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Mantaro. If not, see http://www.gnu.org/licenses/
+ */
+
+package net.kodehawa.mantarobot.utils.commands.ratelimit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compares {@link RateLimiter} with what it used to be (a map of string keys, and a task scheduled for every call
+ * that went through), on the message path: lots of people talking, most of them only once in a while.
+ * Run with ./gradlew jmh, allocations per call are on gc.alloc.rate.norm, and how many tasks the old one
+ * scheduled (each waits 18 seconds on the scheduler) are on scheduledTasks.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+@Fork(1)
+public class RateLimiterBenchmark {
+    // How many different people are sending messages.
+    @Param({"1000", "100000"})
+    public int users;
+
+    private long[] ids;
+    private String[] keys;
+    private RateLimiter rateLimiter;
+    private ScheduledThreadPoolExecutor scheduler;
+    private ScheduledRateLimiter scheduledRateLimiter;
+
+    @State(Scope.Thread)
+    public static class Caller {
+        private final Random random = new Random();
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Counters {
+        public long scheduledTasks;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            scheduledTasks = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+        var random = new Random(42);
+        ids = new long[users];
+        keys = new String[users];
+        for (var i = 0; i < users; i++) {
+            ids[i] = random.nextLong() & Long.MAX_VALUE;
+            keys[i] = Long.toUnsignedString(ids[i]);
+        }
+
+        // Same as the experience ratelimiter on CommandListener.
+        rateLimiter = new RateLimiter(TimeUnit.SECONDS, 18);
+        scheduler = new ScheduledThreadPoolExecutor(1);
+        scheduledRateLimiter = new ScheduledRateLimiter(scheduler, 1, TimeUnit.SECONDS.toMillis(18));
+    }
+
+    @TearDown(Level.Trial)
+    public void cleanup() {
+        scheduler.shutdownNow();
+    }
+
+    @Benchmark
+    public boolean timestamps(Caller caller) {
+        return rateLimiter.process(ids[caller.random.nextInt(users)]);
+    }
+
+    @Benchmark
+    public boolean scheduled(Caller caller, Counters counters) {
+        var allowed = scheduledRateLimiter.process(keys[caller.random.nextInt(users)]);
+        if (allowed) {
+            counters.scheduledTasks++;
+        }
+
+        return allowed;
+    }
+
+    // RateLimiter#process before it was rebuilt, minus the premium lookup.
+    private static class ScheduledRateLimiter {
+        private final ScheduledThreadPoolExecutor ses;
+        private final long max;
+        private final long timeout;
+        private final ConcurrentHashMap<String, Pair<AtomicInteger, Long>> usersRateLimited = new ConcurrentHashMap<>();
+
+        private ScheduledRateLimiter(ScheduledThreadPoolExecutor ses, long max, long timeout) {
+            this.ses = ses;
+            this.max = max;
+            this.timeout = timeout;
+        }
+
+        private boolean process(String key) {
+            Pair<AtomicInteger, Long> p = usersRateLimited.get(key);
+            if (p == null) {
+                usersRateLimited.put(key, p = new Pair<>());
+                p.first = new AtomicInteger();
+            }
+
+            AtomicInteger a = p.first;
+            long i = a.get();
+            if (i >= max) return false;
+
+            a.incrementAndGet();
+            long now = System.currentTimeMillis();
+
+            Long tryAgain = p.second;
+            if (tryAgain == null || tryAgain < now) {
+                p.second = now + timeout;
+            }
+
+            ses.schedule(a::decrementAndGet, timeout, TimeUnit.MILLISECONDS);
+            return true;
+        }
+    }
+
+    private static class Pair<F, S> {
+        F first;
+        S second;
+    }
+}
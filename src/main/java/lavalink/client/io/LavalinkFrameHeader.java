@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2016-2021 David Rubio Escares / Kodehawa
+ *
+ *  Mantaro is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  Mantaro is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Mantaro. If not, see http://www.gnu.org/licenses/
+ */
+
+package lavalink.client.io;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonToken;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+
+/**
+ * The op (and event type, for events) of a Lavalink frame, read without parsing the whole frame.
+ * <br>We walk the tokens of the top-level object and stop as soon as we know both, skipping over anything nested
+ * (player states, stats, etc) without building anything out of it.
+ */
+final class LavalinkFrameHeader {
+    private static final JsonFactory JSON = new JsonFactory();
+
+    private final String op;
+    private final String type;
+
+    private LavalinkFrameHeader(String op, String type) {
+        this.op = op;
+        this.type = type;
+    }
+
+    /**
+     * @return The header of a frame, or null if it isn't a JSON object with an op.
+     */
+    @Nullable
+    static LavalinkFrameHeader read(String frame) {
+        String op = null;
+        String type = null;
+        try (var parser = JSON.createParser(frame)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return null;
+            }
+
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                var name = parser.getCurrentName();
+                var value = parser.nextToken();
+                if (value == JsonToken.VALUE_STRING && "op".equals(name)) {
+                    op = parser.getText();
+                } else if (value == JsonToken.VALUE_STRING && "type".equals(name)) {
+                    type = parser.getText();
+                } else {
+                    parser.skipChildren();
+                }
+
+                // Only events have a type we care about.
+                if (op != null && (type != null || !"event".equals(op))) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            return null;
+        }
+
+        return op == null ? null : new LavalinkFrameHeader(op, type);
+    }
+
+    String getOp() {
+        return op;
+    }
+
+    /**
+     * @return The event type, or null if this isn't an event (or we stopped reading before it).
+     */
+    @Nullable
+    String getType() {
+        return type;
+    }
+}
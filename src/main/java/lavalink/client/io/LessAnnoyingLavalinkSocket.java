@@ -18,36 +18,102 @@ package lavalink.client.io;
 
 import org.java_websocket.drafts.Draft;
 import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.net.URI;
 import java.util.Map;
 import java.util.Set;
 
+/**
+ * Drops events we don't handle before they get to Lavalink-Client, and parses every frame only once.
+ * <br>The op and event type are read with {@link LavalinkFrameHeader}, which doesn't parse the whole frame. Frames we keep
+ * are then parsed once, and handled the same way {@link LavalinkSocket} would, instead of handing it the string to parse again.
+ * That needs a couple of private members of it: if they aren't there, frames are just handed over as they were before.
+ */
 public class LessAnnoyingLavalinkSocket extends LavalinkSocket {
+    private static final Logger log = LoggerFactory.getLogger(LessAnnoyingLavalinkSocket.class);
     private static final Set<String> KNOWN_EVENTS = Set.of(
             "TrackEndEvent",
             "TrackExceptionEvent",
             "TrackStuckEvent",
             "WebSocketClosedEvent"
     );
+    private static final Field STATS_FIELD;
+    private static final Method HANDLE_EVENT_METHOD;
+
+    static {
+        Field stats = null;
+        Method handleEvent = null;
+        try {
+            stats = LavalinkSocket.class.getDeclaredField("stats");
+            stats.setAccessible(true);
+            handleEvent = LavalinkSocket.class.getDeclaredMethod("handleEvent", JSONObject.class);
+            handleEvent.setAccessible(true);
+        } catch (Exception e) {
+            log.warn("Couldn't find LavalinkSocket internals, frames will be parsed twice", e);
+            stats = null;
+            handleEvent = null;
+        }
+
+        STATS_FIELD = stats;
+        HANDLE_EVENT_METHOD = handleEvent;
+    }
+
+    private final Lavalink<?> lavalink;
 
     LessAnnoyingLavalinkSocket(String name, Lavalink<?> lavalink, URI serverUri,
                                Draft protocolDraft, Map<String, String> headers) {
         super(name, lavalink, serverUri, protocolDraft, headers);
+        this.lavalink = lavalink;
     }
 
     @Override
     public void onMessage(String message) {
-        var json = new JSONObject(message);
+        var header = LavalinkFrameHeader.read(message);
+        // Not something we understand, let it fail the way it always did.
+        if (header == null) {
+            super.onMessage(message);
+            return;
+        }
 
-        if ("event".equals(json.optString("op"))) {
-            var name = json.optString("type");
+        if ("event".equals(header.getOp())) {
+            // No type at all: not something we can skip, so let it fail the way it always did too.
+            // (Set.of doesn't take nulls, not even to look them up.)
+            if (header.getType() == null) {
+                super.onMessage(message);
+                return;
+            }
 
-            if (!KNOWN_EVENTS.contains(name)) {
+            if (!KNOWN_EVENTS.contains(header.getType())) {
                 return;
             }
         }
 
-        super.onMessage(message);
+        if (HANDLE_EVENT_METHOD == null) {
+            super.onMessage(message);
+            return;
+        }
+
+        var json = new JSONObject(message);
+        try {
+            switch (header.getOp()) {
+                case "playerUpdate" -> lavalink.getLink(json.getString("guildId"))
+                        .getPlayer()
+                        .provideState(json.getJSONObject("state"));
+                case "stats" -> STATS_FIELD.set(this, new RemoteStats(json));
+                case "event" -> HANDLE_EVENT_METHOD.invoke(this, json);
+                // Whatever this is, it only gets a warning there.
+                default -> super.onMessage(message);
+            }
+        } catch (InvocationTargetException e) {
+            // Same as LavalinkSocket: an event that fails to be handled shouldn't take anything else with it.
+            log.error("Exception while handling event", e.getCause());
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
     }
 }
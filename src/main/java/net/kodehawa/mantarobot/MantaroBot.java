@@ -174,12 +174,20 @@ public class MantaroBot {
         // Work around it by just killing/destroying all players before shutdown ends.
         var thread = new ThreadFactoryBuilder().setNameFormat("Mantaro Shutdown Hook").build();
         Runtime.getRuntime().addShutdownHook(thread.newThread(() -> {
+            // Before destroying them, so queues can be picked up after starting again.
+            log.info("Saving music queues...");
+            audioManager.saveQueues();
+
             log.info("Destroying all active players...");
             for (var players : audioManager.getMusicManagers().entrySet()) {
                 players.getValue().getLavaLink().destroy();
             }
 
-            log.info("Destroyed all players. Not aware of anything holding off shutdown now");
+            log.info("Destroyed all players.");
+
+            log.info("Flushing pending database saves...");
+            MantaroData.db().flush();
+            log.info("Flushed pending saves. Not aware of anything holding off shutdown now");
         }));
     }
 
@@ -269,19 +277,19 @@ public class MantaroBot {
 
     private void startExecutors() {
         log.info("Starting executors...");
-        // Handle the delivery of reminders, assuming this is the master node (Node 0).
+        // Handle the delivery of reminders. Every node looks at all of them, whoever claims one first delivers it.
         if (isMasterNode()) {
-            ScheduledExecutorService reminderExecutor = Executors.newSingleThreadScheduledExecutor(
-                    new ThreadFactoryBuilder().setNameFormat("Mantaro Reminder Handler").build()
-            );
-            reminderExecutor.scheduleAtFixedRate(ReminderTask::handle, 0, 30, TimeUnit.SECONDS);
+            ReminderTask.migrateLegacy();
+            ReminderTask.migrateShards();
         }
 
-        // Handle the removal of mutes.
-        ScheduledExecutorService muteExecutor = Executors.newSingleThreadScheduledExecutor(
-                new ThreadFactoryBuilder().setNameFormat("Mantaro Mute Task").build()
-        );
-        muteExecutor.scheduleAtFixedRate(MuteTask::handle, 0, 1, TimeUnit.MINUTES);
+        ReminderTask.start();
+
+        // Handle the removal of mutes. Every node removes the ones on its own shards, once they're ready (see MantaroCore).
+        if (isMasterNode()) {
+            MuteTask.migrateLegacy();
+            MuteTask.rehome();
+        }
 
         // Yes, this is needed.
         ScheduledExecutorService ratelimitMapExecutor = Executors.newSingleThreadScheduledExecutor(
@@ -327,9 +335,6 @@ public class MantaroBot {
             executorService.scheduleWithFixedDelay(() -> BirthdayTask.handle(shard.getId()),
                     millisecondsUntilTomorrow + randomBackoff, TimeUnit.DAYS.toMillis(1) + randomBackoff, TimeUnit.MILLISECONDS);
         }
-
-        // Start the birthday cacher.
-        executorService.scheduleWithFixedDelay(birthdayCacher::cache, 22, 23, TimeUnit.HOURS);
     }
 
     private void postStats(ShardManager manager) {
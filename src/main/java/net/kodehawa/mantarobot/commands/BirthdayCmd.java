@@ -16,8 +16,6 @@
 
 package net.kodehawa.mantarobot.commands;
 
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
 import com.google.common.eventbus.Subscribe;
 import net.dv8tion.jda.api.entities.Member;
 import net.kodehawa.mantarobot.MantaroBot;
@@ -42,20 +40,12 @@ import org.slf4j.LoggerFactory;
 import java.time.MonthDay;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 @Module
 public class BirthdayCmd {
     private static final Logger log = LoggerFactory.getLogger(BirthdayCmd.class);
 
-    // This will get invalidated as a whole every 23 hours, we don't really *need* to expire entries here
-    // because BirthdayCacher will make it so it refreshes at the same period as the BirthdayCacher gets refreshed.
-    // Therefore the birthday list here can be kept up-to-date.
-    private static final Cache<Long, ConcurrentHashMap<Long, BirthdayCacher.BirthdayData>> guildBirthdayCache = CacheBuilder.newBuilder()
-            .maximumSize(2500)
-            .build();
-
     @Subscribe
     public void birthday(CommandRegistry registry) {
         TreeCommand birthdayCommand = registry.register("birthday", new TreeCommand(CommandCategory.UTILS) {
@@ -149,12 +139,6 @@ public class BirthdayCmd {
                 guildData.getAllowedBirthdays().add(ctx.getAuthor().getId());
                 dbGuild.save();
 
-                var cached = guildBirthdayCache.getIfPresent(ctx.getGuild().getIdLong());
-                var cachedBirthday = ctx.getBot().getBirthdayCacher().getCachedBirthdays().get(ctx.getUser().getIdLong());
-                if (cached != null && cachedBirthday != null) {
-                    cached.put(ctx.getUser().getIdLong(), cachedBirthday);
-                }
-
                 ctx.sendLocalized("commands.birthday.allowed_server", EmoteReference.CORRECT);
             }
         });
@@ -177,11 +161,6 @@ public class BirthdayCmd {
                 guildData.getAllowedBirthdays().remove(ctx.getAuthor().getId());
                 dbGuild.save();
 
-                var cached = guildBirthdayCache.getIfPresent(ctx.getGuild().getIdLong());
-                if (cached != null) {
-                    cached.remove(ctx.getUser().getIdLong());
-                }
-
                 ctx.sendLocalized("commands.birthday.denied", EmoteReference.CORRECT);
             }
         });
@@ -214,8 +193,7 @@ public class BirthdayCmd {
 
                 try {
                     if (cacher != null) {
-                        var globalBirthdays = cacher.getCachedBirthdays();
-                        if (globalBirthdays.isEmpty()) {
+                        if (cacher.size() == 0) {
                             ctx.sendLocalized("commands.birthday.no_global_birthdays", EmoteReference.SAD);
                             return;
                         }
@@ -229,7 +207,7 @@ public class BirthdayCmd {
                             return;
                         }
 
-                        var guildCurrentBirthdays = getBirthdayMap(ctx.getGuild().getIdLong(), ids);
+                        var guildCurrentBirthdays = getBirthdayMap(cacher, ids);
                         if (guildCurrentBirthdays.isEmpty()) {
                             ctx.sendLocalized("commands.birthday.no_guild_birthdays", EmoteReference.ERROR);
                             return;
@@ -294,15 +272,14 @@ public class BirthdayCmd {
 
                 try {
                     if (cacher != null) {
-                        final var cachedBirthdays = cacher.getCachedBirthdays();
-                        if (cachedBirthdays.isEmpty()) {
+                        if (cacher.size() == 0) {
                             ctx.sendLocalized("commands.birthday.no_global_birthdays", EmoteReference.SAD);
                             return;
                         }
 
                         var data = ctx.getDBGuild().getData();
                         var ids = data.getAllowedBirthdays().stream().map(Long::parseUnsignedLong).collect(Collectors.toList());
-                        var guildCurrentBirthdays = getBirthdayMap(ctx.getGuild().getIdLong(), ids);
+                        var guildCurrentBirthdays = getBirthdayMap(cacher, ids);
 
                         if (ids.isEmpty()) {
                             ctx.sendLocalized("commands.birthday.no_guild_birthdays", EmoteReference.ERROR);
@@ -392,27 +369,12 @@ public class BirthdayCmd {
         }
     }
 
-    public static Cache<Long, ConcurrentHashMap<Long, BirthdayCacher.BirthdayData>> getGuildBirthdayCache() {
-        return guildBirthdayCache;
-    }
-
-    private ConcurrentHashMap<Long, BirthdayCacher.BirthdayData> getBirthdayMap(long guildId, List<Long> allowed) {
-        ConcurrentHashMap<Long, BirthdayCacher.BirthdayData> guildCurrentBirthdays = new ConcurrentHashMap<>();
-        final var cachedBirthdays = MantaroBot.getInstance().getBirthdayCacher().getCachedBirthdays();
-
-        var cached = guildBirthdayCache.getIfPresent(guildId);
-        if (cached != null && cached.size() >= 1) {
-            guildCurrentBirthdays = cached;
-        } else {
-            for (var birthdays : cachedBirthdays.entrySet()) {
-                if (allowed.contains(birthdays.getKey())) {
-                    guildCurrentBirthdays.put(birthdays.getKey(), birthdays.getValue());
-                }
-            }
-
-            // Populate guild cache
-            if (guildCurrentBirthdays.size() >= 1) {
-                guildBirthdayCache.put(guildId, guildCurrentBirthdays);
+    private Map<Long, BirthdayCacher.BirthdayData> getBirthdayMap(BirthdayCacher cacher, List<Long> allowed) {
+        Map<Long, BirthdayCacher.BirthdayData> guildCurrentBirthdays = new HashMap<>();
+        for (var id : allowed) {
+            var birthday = cacher.getBirthday(id);
+            if (birthday != null) {
+                guildCurrentBirthdays.put(id, birthday);
             }
         }
 
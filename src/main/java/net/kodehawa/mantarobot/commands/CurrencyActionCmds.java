@@ -69,6 +69,7 @@ public class CurrencyActionCmds {
                     .premiumAware(true)
                     .pool(MantaroData.getDefaultJedisPool())
                     .prefix("mine")
+                    .local(true)
                     .build();
 
             @Override
@@ -342,6 +343,7 @@ public class CurrencyActionCmds {
                 .incrementDivider(10)
                 .pool(MantaroData.getDefaultJedisPool())
                 .prefix("fish")
+                .local(true)
                 .premiumAware(true)
                 .build();
 
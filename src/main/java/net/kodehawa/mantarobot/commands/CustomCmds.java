@@ -55,7 +55,6 @@ import org.slf4j.LoggerFactory;
 
 import java.security.SecureRandom;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Predicate;
@@ -70,7 +69,6 @@ public class CustomCmds {
                                 INVALID_CHARACTERS_PATTERN = Pattern.compile("[^a-zA-Z0-9_]"),
                                 NAME_WILDCARD_PATTERN = Pattern.compile("[a-zA-Z0-9_*]+");
 
-    private static final Map<String, CustomCommand> customCommands = new ConcurrentHashMap<>();
     private static final Logger log = LoggerFactory.getLogger(CustomCmds.class);
     private static final SecureRandom random = new SecureRandom();
 
@@ -115,7 +113,7 @@ public class CustomCmds {
 
         String response = values.get(random.nextInt(values.size()));
         try {
-            new CustomCommandHandler(prefix, ctx, response, args).handle();
+            new CustomCommandHandler(prefix, ctx, customCommand, response, args).handle();
         } catch (SyntaxException e) {
             ctx.sendStrippedLocalized("commands.custom.error_running_new", EmoteReference.ERROR, e.getMessage());
         } catch (Exception e) {
@@ -125,17 +123,14 @@ public class CustomCmds {
 
     }
 
-    //Lazy-load custom commands into cache.
+    //Lazy-load custom commands.
     public static CustomCommand getCustomCommand(String id, String name) {
         //lol
         if (CommandProcessor.REGISTRY.commands().containsKey(name)) {
             return null;
         }
 
-        if (customCommands.containsKey(id + ":" + name)) {
-            return customCommands.get(id + ":" + name);
-        }
-
+        // Cached by the database, which also knows when this guild doesn't have a command with this name.
         CustomCommand custom = db().getCustomCommand(id, name);
         if (custom == null)
             return null;
@@ -155,9 +150,6 @@ public class CustomCmds {
             custom.save();
         }
 
-        //add to registry
-        customCommands.put(custom.getId(), custom);
-
         return custom;
     }
 
@@ -358,7 +350,6 @@ public class CustomCmds {
 
                 int size = customCommands.size();
                 customCommands.stream().filter(cmd -> !cmd.getData().isLocked()).forEach(CustomCommand::deleteAsync);
-                customCommands.forEach(c -> CustomCmds.customCommands.remove(c.getId()));
                 ctx.sendLocalized("commands.custom.clear.success", EmoteReference.PENCIL, size);
             }
         }).createSubCommandAlias("clear", "clr");
@@ -439,14 +430,6 @@ public class CustomCmds {
                 //delete at DB
                 custom.deleteAsync();
 
-                //reflect at local
-                customCommands.remove(custom.getId());
-
-                //clear commands if none
-                if (customCommands.keySet().stream().noneMatch(s -> s.endsWith(":" + content))) {
-                    customCommands.remove(content);
-                }
-
                 ctx.sendLocalized("commands.custom.remove.success", EmoteReference.PENCIL, content);
             }
         }).createSubCommandAlias("remove", "rm");
@@ -506,9 +489,6 @@ public class CustomCmds {
                             //save at DB
                             custom.saveAsync();
 
-                            //reflect at local
-                            customCommands.put(custom.getId(), custom);
-
                             ctx.sendLocalized("commands.custom.import.success", custom.getName(), pair.getKey().getName(), custom.getValues().size());
                             //easter egg :D
                             TextChannelGround.of(ctx.getEvent()).dropItemWithChance(8, 2);
@@ -624,7 +604,6 @@ public class CustomCmds {
                 custom.getValues().set(where - 1, commandContent);
 
                 custom.saveAsync();
-                customCommands.put(custom.getId(), custom);
 
                 ctx.sendLocalized("commands.custom.edit.success", EmoteReference.CORRECT, where, custom.getName());
             }
@@ -688,7 +667,6 @@ public class CustomCmds {
                 }
 
                 custom.saveAsync();
-                customCommands.put(custom.getId(), custom);
 
                 ctx.sendLocalized("commands.custom.deleteresponse.success", EmoteReference.CORRECT, where, custom.getName());
             }
@@ -816,14 +794,6 @@ public class CustomCmds {
                 oldCustom.deleteAsync();
                 newCustom.saveAsync();
 
-                //reflect at local
-                customCommands.remove(oldCustom.getId());
-                customCommands.put(newCustom.getId(), newCustom);
-
-                //clear commands if none
-                if (customCommands.keySet().stream().noneMatch(s -> s.endsWith(":" + cmd)))
-                    customCommands.remove(cmd);
-
                 ctx.sendLocalized("commands.custom.rename.success", EmoteReference.CORRECT, cmd, value);
 
                 //easter egg :D
@@ -930,8 +900,6 @@ public class CustomCmds {
 
                 //save at DB
                 custom.saveAsync();
-                //reflect at local
-                customCommands.put(custom.getId(), custom);
 
                 ctx.sendLocalized("commands.custom.add.success", EmoteReference.CORRECT, cmd);
 
@@ -18,10 +18,6 @@ package net.kodehawa.mantarobot.commands;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.google.common.eventbus.Subscribe;
-import com.rethinkdb.gen.ast.ReqlFunction1;
-import com.rethinkdb.model.OptArgs;
-import com.rethinkdb.net.Connection;
-import com.rethinkdb.utils.Types;
 import net.dv8tion.jda.api.EmbedBuilder;
 import net.dv8tion.jda.api.Permission;
 import net.kodehawa.mantarobot.commands.currency.profile.Badge;
@@ -37,28 +33,26 @@ import net.kodehawa.mantarobot.core.modules.commands.help.HelpContent;
 import net.kodehawa.mantarobot.core.modules.commands.i18n.I18nContext;
 import net.kodehawa.mantarobot.data.Config;
 import net.kodehawa.mantarobot.data.MantaroData;
-import net.kodehawa.mantarobot.utils.Utils;
+import net.kodehawa.mantarobot.db.Leaderboards;
 import net.kodehawa.mantarobot.utils.commands.EmoteReference;
 import net.kodehawa.mantarobot.utils.commands.ratelimit.IncreasingRateLimiter;
 import net.kodehawa.mantarobot.utils.commands.ratelimit.RatelimitUtils;
 import net.kodehawa.mantarobot.utils.data.JsonDataManager;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.tuple.Pair;
-import redis.clients.jedis.Jedis;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
-import java.util.Objects;
 import java.util.concurrent.TimeUnit;
-import java.util.function.Function;
+import java.util.function.LongFunction;
 import java.util.stream.Collectors;
 
-import static com.rethinkdb.RethinkDB.r;
-
 @Module
 public class LeaderboardCmd {
+    private static final Logger log = LoggerFactory.getLogger(LeaderboardCmd.class);
     private final Config config = MantaroData.config().get();
-    private final Connection leaderboardConnection = Utils.newDbConnection();
 
     @Subscribe
     public void richest(CommandRegistry cr) {
@@ -104,16 +98,9 @@ public class LeaderboardCmd {
 
             @Override
             protected void call(Context ctx, I18nContext languageContext, String content) {
-                var gambleLeaderboard = getLeaderboard("playerstats", "gambleWins",
-                        player -> player.pluck("id", "gambleWins"));
-
-                ctx.send(
-                        generateLeaderboardEmbed(ctx,
-                                languageContext.get("commands.leaderboard.inner.gamble").formatted(EmoteReference.MONEY),
-                                "commands.leaderboard.gamble", gambleLeaderboard,
-                                map -> Pair.of(getMember(ctx, map.get("id").toString().split(":")[0]),
-                                        map.get("gambleWins").toString()), "%s**%s#%s** - %,d", false
-                        ).build()
+                sendLeaderboard(ctx, Leaderboards.Board.GAMBLE, false,
+                        languageContext.get("commands.leaderboard.inner.gamble").formatted(EmoteReference.MONEY),
+                        "commands.leaderboard.gamble", String::valueOf, "%s**%s#%s** - %,d"
                 );
             }
         });
@@ -126,16 +113,9 @@ public class LeaderboardCmd {
 
             @Override
             protected void call(Context ctx, I18nContext languageContext, String content) {
-                var slotsLeaderboard = getLeaderboard("playerstats", "slotsWins",
-                        player -> player.pluck("id", "slotsWins"));
-
-                ctx.send(
-                        generateLeaderboardEmbed(ctx,
-                                languageContext.get("commands.leaderboard.inner.slots").formatted(EmoteReference.MONEY),
-                                "commands.leaderboard.slots", slotsLeaderboard,
-                                map -> Pair.of(getMember(ctx, map.get("id").toString().split(":")[0]),
-                                        map.get("slotsWins").toString()), "%s**%s#%s** - %,d", false
-                        ).build()
+                sendLeaderboard(ctx, Leaderboards.Board.SLOTS, false,
+                        languageContext.get("commands.leaderboard.inner.slots").formatted(EmoteReference.MONEY),
+                        "commands.leaderboard.slots", String::valueOf, "%s**%s#%s** - %,d"
                 );
             }
         });
@@ -148,45 +128,13 @@ public class LeaderboardCmd {
                 }
 
                 @Override
-                @SuppressWarnings("unchecked")
                 protected void call(Context ctx, I18nContext languageContext, String content) {
                     var seasonal = ctx.isSeasonal();
-                    var tableName = seasonal ? "seasonalplayers" : "players";
-                    var indexName = seasonal ? "money" : "newMoney";
-                    var moneyLeaderboard = getLeaderboard(tableName, indexName,
-                            player -> player.g("id"),
-                            player ->
-                            {
-                                if (seasonal) {
-                                    return player.pluck("id", "money");
-                                } else {
-                                    return player.pluck("id", "newMoney", r.hashMap("data", "newMoney"));
-                                }
-                            });
-
-                    ctx.send(
-                            generateLeaderboardEmbed(
-                                    ctx,
-                                    seasonal ?
-                                            languageContext.get("commands.leaderboard.inner.seasonal_money").formatted(EmoteReference.MONEY) :
-                                            languageContext.get("commands.leaderboard.inner.money").formatted(EmoteReference.MONEY),
-                                    "commands.leaderboard.money", moneyLeaderboard,
-                                    map -> {
-                                        Object money;
-                                        if (seasonal) {
-                                            money = map.get("money");
-                                        } else {
-                                            money = ((Map<String, Object>) map.get("data")).get("newMoney");
-                                        }
-
-                                        return Pair.of(
-                                                getMember(
-                                                        ctx,
-                                                        map.get("id").toString().split(":")[0]
-                                                ), money.toString()
-                                        );
-                                    }, "%s**%s#%s** - $%,d", seasonal
-                            ).build()
+                    sendLeaderboard(ctx, seasonal ? Leaderboards.Board.SEASONAL_MONEY : Leaderboards.Board.MONEY, seasonal,
+                            seasonal ?
+                                    languageContext.get("commands.leaderboard.inner.seasonal_money").formatted(EmoteReference.MONEY) :
+                                    languageContext.get("commands.leaderboard.inner.money").formatted(EmoteReference.MONEY),
+                            "commands.leaderboard.money", String::valueOf, "%s**%s#%s** - $%,d"
                     );
                 }
             });
@@ -204,18 +152,9 @@ public class LeaderboardCmd {
 
             @Override
             protected void call(Context ctx, I18nContext languageContext, String content) {
-                var tableName = "players";
-                var moneyLeaderboard = getLeaderboard(tableName, "money",
-                        player -> player.g("id"),
-                        player -> player.pluck("id", "money"));
-
-                ctx.send(
-                        generateLeaderboardEmbed(ctx,
-                                languageContext.get("commands.leaderboard.inner.money_old").formatted(EmoteReference.MONEY),
-                                "commands.leaderboard.money", moneyLeaderboard,
-                                map -> Pair.of(getMember(ctx, map.get("id").toString().split(":")[0]),
-                                map.get("money").toString()), "%s**%s#%s** - $%,d", false
-                        ).build()
+                sendLeaderboard(ctx, Leaderboards.Board.OLD_MONEY, false,
+                        languageContext.get("commands.leaderboard.inner.money_old").formatted(EmoteReference.MONEY),
+                        "commands.leaderboard.money", String::valueOf, "%s**%s#%s** - $%,d"
                 );
             }
         });
@@ -229,23 +168,13 @@ public class LeaderboardCmd {
 
             @Override
             protected void call(Context ctx, I18nContext languageContext, String content) {
-                var levelLeaderboard = getLeaderboard("players", "level",
-                        player -> player.g("id"),
-                        player -> player.pluck("id", "level", r.hashMap("data", "experience")));
-
-                ctx.send(
-                        generateLeaderboardEmbed(ctx,
+                sendLeaderboard(ctx, Leaderboards.Board.LEVEL, false,
                         languageContext.get("commands.leaderboard.inner.lvl").formatted(EmoteReference.ZAP),
-                                "commands.leaderboard.level", levelLeaderboard,
-                        map -> {
-                            @SuppressWarnings("unchecked")
-                            var experience = ((Map<String, Object>) map.get("data")).get("experience");
-                            return Pair.of(
-                                    getMember(ctx, map.get("id").toString().split(":")[0]),
-                                    map.get("level").toString() + "\n -" +
-                                            languageContext.get("commands.leaderboard.inner.experience") + ":** " +
-                                            experience + "**");
-                        }, "%s**%s#%s** - %s", false).build()
+                        "commands.leaderboard.level",
+                        score -> Leaderboards.levelFromScore(score) + "\n -" +
+                                languageContext.get("commands.leaderboard.inner.experience") + ":** " +
+                                Leaderboards.experienceFromScore(score) + "**",
+                        "%s**%s#%s** - %s"
                 );
             }
         });
@@ -259,22 +188,9 @@ public class LeaderboardCmd {
             @Override
             protected void call(Context ctx, I18nContext languageContext, String content) {
                 var seasonal = ctx.isSeasonal();
-                var tableName = seasonal ? "seasonalplayers" : "players";
-                var reputationLeaderboard = getLeaderboard(tableName, "reputation",
-                        player -> player.g("id"),
-                        player -> player.pluck("id", "reputation"));
-
-                ctx.send(
-                        generateLeaderboardEmbed(ctx,
+                sendLeaderboard(ctx, seasonal ? Leaderboards.Board.SEASONAL_REPUTATION : Leaderboards.Board.REPUTATION, seasonal,
                         languageContext.get("commands.leaderboard.inner.rep").formatted(EmoteReference.REP),
-                                "commands.leaderboard.reputation", reputationLeaderboard,
-                        map -> Pair.of(
-                                getMember(
-                                        ctx,
-                                        map.get("id").toString().split(":")[0]
-                                ), map.get("reputation").toString()
-                        ), "%s**%s#%s** - %,d", seasonal)
-                        .build()
+                        "commands.leaderboard.reputation", String::valueOf, "%s**%s#%s** - %,d"
                 );
             }
         });
@@ -287,23 +203,9 @@ public class LeaderboardCmd {
 
             @Override
             protected void call(Context ctx, I18nContext languageContext, String content) {
-                var dailyLeaderboard = getLeaderboard("players", "userDailyStreak",
-                        player -> player.g("id"),
-                        player -> player.pluck("id", r.hashMap("data", "dailyStrike")));
-
-                ctx.send(
-                        generateLeaderboardEmbed(ctx,
+                sendLeaderboard(ctx, Leaderboards.Board.STREAK, false,
                         languageContext.get("commands.leaderboard.inner.streak").formatted(EmoteReference.POPPER),
-                                "commands.leaderboard.daily", dailyLeaderboard,
-                        map -> {
-                            @SuppressWarnings("unchecked")
-                            var strike = ((Map<String, Object>) (map.get("data"))).get("dailyStrike").toString();
-                            return Pair.of(
-                                    getMember(ctx, map.get("id").toString().split(":")[0]),
-                                    strike
-                            );
-                        }, "%s**%s#%s** - %sx", false)
-                        .build()
+                        "commands.leaderboard.daily", String::valueOf, "%s**%s#%s** - %sx"
                 );
             }
         });
@@ -316,22 +218,9 @@ public class LeaderboardCmd {
 
             @Override
             protected void call(Context ctx, I18nContext languageContext, String content) {
-                List<Map<String, Object>> claimLeaderboard = getLeaderboard("users", "timesClaimed",
-                        player -> player.pluck("id", r.hashMap("data", "timesClaimed")));
-
-                ctx.send(
-                        generateLeaderboardEmbed(ctx,
+                sendLeaderboard(ctx, Leaderboards.Board.CLAIM, false,
                         languageContext.get("commands.leaderboard.inner.claim").formatted(EmoteReference.HEART),
-                                "commands.leaderboard.claim", claimLeaderboard,
-                        map -> {
-                            @SuppressWarnings("unchecked")
-                            var timesClaimed = ((Map<String, Object>) (map.get("data"))).get("timesClaimed").toString();
-                            return Pair.of(
-                                    getMember(ctx, map.get("id").toString().split(":")[0]),
-                                    timesClaimed
-                            );
-                        }, "%s**%s#%s** - %,d", false)
-                        .build()
+                        "commands.leaderboard.claim", String::valueOf, "%s**%s#%s** - %,d"
                 );
             }
         });
@@ -345,26 +234,9 @@ public class LeaderboardCmd {
             @Override
             protected void call(Context ctx, I18nContext languageContext, String content) {
                 var seasonal = ctx.isSeasonal();
-                var tableName = seasonal ? "seasonalplayers" : "players";
-
-                List<Map<String, Object>> gameLeaderboard = getLeaderboard(tableName, "gameWins",
-                        player -> player.g("id"),
-                        player -> player.pluck("id", r.hashMap("data", "gamesWon")));
-
-                ctx.send(
-                        generateLeaderboardEmbed(ctx,
+                sendLeaderboard(ctx, seasonal ? Leaderboards.Board.SEASONAL_GAMES : Leaderboards.Board.GAMES, seasonal,
                         languageContext.get("commands.leaderboard.inner.game").formatted(EmoteReference.ZAP),
-                                "commands.leaderboard.game", gameLeaderboard,
-                        map -> {
-                            @SuppressWarnings("unchecked")
-                            var gamesWon = ((Map<String, Object>) (map.get("data"))).get("gamesWon").toString();
-
-                            return Pair.of(
-                                    getMember(ctx, map.get("id").toString().split(":")[0]),
-                                    gamesWon
-                            );
-                        }, "%s**%s#%s** - %,d", seasonal)
-                        .build()
+                        "commands.leaderboard.game", String::valueOf, "%s**%s#%s** - %,d"
                 );
             }
         });
@@ -380,33 +252,28 @@ public class LeaderboardCmd {
 
     }
 
-    private List<Map<String, Object>> getLeaderboard(String table, String index, ReqlFunction1 mapFunction) {
-        return getLeaderboard(table, index, m -> true, mapFunction);
-    }
+    private void sendLeaderboard(Context ctx, Leaderboards.Board board, boolean seasonal, String description,
+                                 String leaderboardKey, LongFunction<String> value, String format) {
+        var leaderboards = MantaroData.db().getLeaderboards();
+        var season = seasonal ? config.getCurrentSeason() : null;
+        var top = leaderboards.top(board, season, 10);
+        var rank = leaderboards.rank(board, season, ctx.getAuthor().getId());
 
-    private List<Map<String, Object>> getLeaderboard(String table, String index, ReqlFunction1 filterFunction, ReqlFunction1 mapFunction) {
-        return r.table(table)
-                .orderBy()
-                .optArg("index", r.desc(index))
-                .filter(filterFunction)
-                .limit(10)
-                .map(mapFunction)
-                .run(leaderboardConnection,
-                        // This basically just means read from the available data
-                        // Instead of trying to get the latest data available.
-                        // For the purpose of leaderboards, this is actually pretty useful
-                        // and lead to quite a few improvements in query times.
-                        OptArgs.of("read_mode", "outdated"),
-                        Types.mapOf(String.class, Object.class)
-                )
-                .toList();
+        ctx.send(
+                generateLeaderboardEmbed(ctx, description, leaderboardKey, getMembers(ctx, top, value), format, seasonal, rank)
+                        .build()
+        );
     }
 
     private EmbedBuilder generateLeaderboardEmbed(Context ctx, String description, String leaderboardKey,
-                                                  List<Map<String, Object>> lb,
-                                                  Function<Map<?, ?>, Pair<CachedLeaderboardMember, String>> mapFunction,
-                                                  String format, boolean isSeasonal) {
+                                                  List<Pair<CachedLeaderboardMember, String>> lb,
+                                                  String format, boolean isSeasonal, long rank) {
         var languageContext = ctx.getLanguageContext();
+        var footer = languageContext.get("general.requested_by").formatted(ctx.getAuthor().getName());
+        if (rank > 0) {
+            footer += " | " + languageContext.get("commands.leaderboard.your_rank").formatted(rank);
+        }
+
         return new EmbedBuilder()
                 .setAuthor(isSeasonal ?
                                 languageContext.get("commands.leaderboard.header_seasonal")
@@ -418,8 +285,6 @@ public class LeaderboardCmd {
                 .addField(
                         languageContext.get(leaderboardKey),
                         lb.stream()
-                                .map(mapFunction)
-                                .filter(p -> Objects.nonNull(p.getKey()))
                                 .map(p -> {
                                     final var lbMember = p.getKey();
                                     //This is... an interesting place to do it lol
@@ -439,12 +304,61 @@ public class LeaderboardCmd {
                                 })
                                 .collect(Collectors.joining("\n")),
                         false
-                ).setFooter(
-                        languageContext.get("general.requested_by").formatted(ctx.getAuthor().getName()),
-                        null)
+                ).setFooter(footer, null)
                 .setThumbnail(ctx.getAuthor().getEffectiveAvatarUrl());
     }
 
+    /**
+     * Gets the cached member of every entry of a leaderboard, in order.
+     * Every cached member (and every known miss) is fetched from Redis in a single call, so we only go one by one
+     * for the ones we need to look up from Discord. Entries we couldn't find an user for are left out.
+     * No Redis connection is held while looking users up, as that can take a while.
+     */
+    private List<Pair<CachedLeaderboardMember, String>> getMembers(Context ctx, List<Leaderboards.Entry> entries,
+                                                                   LongFunction<String> value) {
+        List<Pair<CachedLeaderboardMember, String>> members = new ArrayList<>(entries.size());
+        if (entries.isEmpty()) {
+            return members;
+        }
+
+        var keys = new String[entries.size() * 2];
+        for (int i = 0; i < entries.size(); i++) {
+            var id = entries.get(i).getUserId();
+            keys[i * 2] = "cachedlbuser:" + id;
+            keys[i * 2 + 1] = "lbmiss:" + id;
+        }
+
+        List<String> values;
+        try (var jedis = MantaroData.getDefaultJedisPool().getResource()) {
+            values = jedis.mget(keys);
+        }
+
+        for (int i = 0; i < entries.size(); i++) {
+            var entry = entries.get(i);
+            var json = values.get(i * 2);
+            CachedLeaderboardMember member;
+            try {
+                if (json != null) {
+                    member = JsonDataManager.fromJson(json, CachedLeaderboardMember.class);
+                } else if (values.get(i * 2 + 1) != null) {
+                    // No need to keep trying missed entries for a while. Entry should have a TTL of 12 hours.
+                    continue;
+                } else {
+                    member = getMember(ctx, entry.getUserId());
+                }
+            } catch (JsonProcessingException e) { // This would be odd, really. Only skip this one.
+                log.error("Couldn't read or write cached leaderboard member {}", entry.getUserId(), e);
+                continue;
+            }
+
+            if (member != null) {
+                members.add(Pair.of(member, value.apply(entry.getScore())));
+            }
+        }
+
+        return members;
+    }
+
     /**
      * Caches an user in redis if they're in the leaderboard. This speeds up User lookup times tenfold.
      * The key will expire after 48 hours in the set, then we will just re-cache it as needed.
@@ -457,48 +371,37 @@ public class LeaderboardCmd {
      * since this might create hundreds of API requests in a few seconds, causing some nice 429s.
      *
      * @param id The id of the user.
-     * @return A instance of CachedLeaderboardMember.
-     * This can either be retrieved from Redis or cached on the spot if the cache didn't exist for it.
+     * @return A instance of CachedLeaderboardMember, or null if the user doesn't exist anymore.
      */
-    private CachedLeaderboardMember getMember(Context ctx, String id) {
-        try(Jedis jedis = MantaroData.getDefaultJedisPool().getResource()) {
-            var savedTo = "cachedlbuser:" + id;
-            var missed = "lbmiss:" + id;
-
-            var json = jedis.get(savedTo);
-            if (json == null) {
-                // No need to keep trying missed entries for a while. Entry should have a TTL of 12 hours.
-                if (jedis.get(missed) != null) {
-                    return null;
-                }
+    private CachedLeaderboardMember getMember(Context ctx, String id) throws JsonProcessingException {
+        var savedTo = "cachedlbuser:" + id;
+        var missed = "lbmiss:" + id;
+
+        // Sadly a .complete() call for an User won't fill the internal cache, as JDA has no way to TTL it, instead, we will add it
+        // to our own cache in Redis, and expire it in 48 hours to avoid it filling up endlessly.
+        // This is to avoid having to do calls to discord all the time a leaderboard is retrieved, and only do the calls whenever
+        // it's absolutely needed, or when we need to re-populate the cache.
+        var user = ctx.retrieveUserById(id);
+
+        // If no user was found, we need to return null. This is later handled on getMembers.
+        if (user == null) {
+            try (var jedis = MantaroData.getDefaultJedisPool().getResource()) {
+                jedis.setex(missed, (int) TimeUnit.HOURS.toSeconds(12), "1");
+            }
 
-                // Sadly a .complete() call for an User won't fill the internal cache, as JDA has no way to TTL it, instead, we will add it
-                // to our own cache in Redis, and expire it in 48 hours to avoid it filling up endlessly.
-                // This is to avoid having to do calls to discord all the time a leaderboard is retrieved, and only do the calls whenever
-                // it's absolutely needed, or when we need to re-populate the cache.
-                var user = ctx.retrieveUserById(id);
-
-                // If no user was found, we need to return null. This is later handled on generateLeaderboardEmbed.
-                if (user == null) {
-                    jedis.set(missed, "1");
-                    jedis.expire(missed, TimeUnit.HOURS.toSeconds(12));
-                    return null;
-                }
+            return null;
+        }
 
-                CachedLeaderboardMember cached = new CachedLeaderboardMember(
-                        user.getIdLong(), user.getName(), user.getDiscriminator(), System.currentTimeMillis()
-                );
-                jedis.set(savedTo, JsonDataManager.toJson(cached));
+        CachedLeaderboardMember cached = new CachedLeaderboardMember(
+                user.getIdLong(), user.getName(), user.getDiscriminator(), System.currentTimeMillis()
+        );
 
-                // Set the value to expire in 48 hours.
-                jedis.expire(savedTo, TimeUnit.HOURS.toSeconds(48));
-                return cached;
-            } else {
-                return JsonDataManager.fromJson(json, CachedLeaderboardMember.class);
-            }
-        } catch (JsonProcessingException e) { // This would be odd, really.
-            e.printStackTrace();
-            return null;
+        // Set the value to expire in 48 hours.
+        var json = JsonDataManager.toJson(cached);
+        try (var jedis = MantaroData.getDefaultJedisPool().getResource()) {
+            jedis.setex(savedTo, (int) TimeUnit.HOURS.toSeconds(48), json);
         }
+
+        return cached;
     }
 }
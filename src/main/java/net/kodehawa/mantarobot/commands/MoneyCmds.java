@@ -59,6 +59,7 @@ public class MoneyCmds {
                 .randomIncrement(false)
                 .pool(MantaroData.getDefaultJedisPool())
                 .prefix("daily")
+                .local(true)
                 .build();
 
         Random r = new Random();
@@ -319,6 +320,7 @@ public class MoneyCmds {
                 .premiumAware(true)
                 .pool(MantaroData.getDefaultJedisPool())
                 .prefix("loot")
+                .local(true)
                 .build();
 
         final ZoneId zoneId = ZoneId.systemDefault();
@@ -17,7 +17,6 @@
 package net.kodehawa.mantarobot.commands;
 
 import com.google.common.eventbus.Subscribe;
-import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
 import net.dv8tion.jda.api.entities.Guild;
 import net.dv8tion.jda.api.exceptions.PermissionException;
 import net.kodehawa.mantarobot.MantaroBot;
@@ -36,7 +35,6 @@ import net.kodehawa.mantarobot.utils.commands.ratelimit.IncreasingRateLimiter;
 import net.kodehawa.mantarobot.utils.commands.ratelimit.RatelimitUtils;
 
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
@@ -296,7 +294,7 @@ public class MusicUtilCmds {
                     return;
                 }
 
-                var queue = trackScheduler.getQueueAsList();
+                var queue = trackScheduler.getQueue();
                 HashSet<Integer> selected = new HashSet<>();
                 var last = Integer.toString(queue.size());
 
@@ -349,31 +347,10 @@ public class MusicUtilCmds {
                     }
                 }
 
-                // Iterators have no concept of index so just make it ourselves.
-                int itv = 0;
-                var initialSize = selected.size();
+                // Removes them all in one go, so positions don't shift while we remove them.
+                var removed = queue.removeAll(selected);
 
-                // Removing an element by index on a List causes the next element to be
-                // shifted by one, just use an iterator instead.
-                for (Iterator<AudioTrack> it = queue.iterator(); it.hasNext();) {
-                    // No need to loop if empty.
-                    if (selected.isEmpty()) {
-                        break;
-                    }
-
-                    AudioTrack element = it.next();
-                    if (selected.contains(itv)) {
-                        it.remove();
-                        selected.remove(itv);
-                    }
-
-                    itv++;
-                }
-
-                // Accept the changed queue instead of the old one.
-                trackScheduler.acceptNewQueue(queue);
-
-                ctx.sendLocalized("commands.removetrack.success", EmoteReference.CORRECT, initialSize);
+                ctx.sendLocalized("commands.removetrack.success", EmoteReference.CORRECT, removed);
                 TextChannelGround.of(ctx.getEvent()).dropItemWithChance(0, 10);
             }
 
@@ -20,18 +20,17 @@ import com.google.common.eventbus.Subscribe;
 import net.dv8tion.jda.api.Permission;
 import net.dv8tion.jda.api.entities.Role;
 import net.kodehawa.mantarobot.commands.moderation.ModLog;
+import net.kodehawa.mantarobot.commands.moderation.MuteTask;
 import net.kodehawa.mantarobot.core.CommandRegistry;
 import net.kodehawa.mantarobot.core.modules.Module;
 import net.kodehawa.mantarobot.core.modules.commands.SimpleCommand;
 import net.kodehawa.mantarobot.core.modules.commands.base.CommandCategory;
 import net.kodehawa.mantarobot.core.modules.commands.base.Context;
 import net.kodehawa.mantarobot.core.modules.commands.help.HelpContent;
-import net.kodehawa.mantarobot.data.MantaroData;
 import net.kodehawa.mantarobot.db.entities.DBGuild;
 import net.kodehawa.mantarobot.db.entities.helpers.GuildData;
 import net.kodehawa.mantarobot.options.core.Option;
 import net.kodehawa.mantarobot.options.core.OptionType;
-import net.kodehawa.mantarobot.utils.Pair;
 import net.kodehawa.mantarobot.utils.StringUtils;
 import net.kodehawa.mantarobot.utils.Utils;
 import net.kodehawa.mantarobot.utils.commands.CustomFinderUtil;
@@ -125,7 +124,6 @@ public class MuteCmds {
                     return;
                 }
 
-                var mantaroData = MantaroData.db().getMantaroData();
                 // This is funny at this point lol
                 final var finalReason = muteTimePattern.matcher(reason).replaceAll("").trim();
                 final var finalTime = time;
@@ -137,8 +135,7 @@ public class MuteCmds {
                         return;
 
                     var user = member.getUser();
-                    mantaroData.getMutes().put(user.getIdLong(), Pair.of(ctx.getGuild().getId(), timeMuted));
-                    mantaroData.saveUpdating();
+                    MuteTask.schedule(ctx.getGuild(), user.getIdLong(), timeMuted);
                     dbGuild.saveUpdating();
 
                     if (member.getRoles().contains(mutedRole)) {
@@ -332,6 +329,7 @@ public class MuteCmds {
                     var user = member.getUser();
 
                     guildData.getMutedTimelyUsers().remove(user.getIdLong());
+                    MuteTask.cancel(ctx.getGuild(), user.getIdLong());
                     if (!ctx.getSelfMember().canInteract(member)) {
                         ctx.sendLocalized("commands.mute.self_hierarchy_error", EmoteReference.ERROR);
                         return;
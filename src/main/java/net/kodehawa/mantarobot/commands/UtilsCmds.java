@@ -40,8 +40,8 @@ import net.kodehawa.mantarobot.utils.Utils;
 import net.kodehawa.mantarobot.utils.commands.DiscordUtils;
 import net.kodehawa.mantarobot.utils.commands.EmoteReference;
 import net.kodehawa.mantarobot.utils.data.JsonDataManager;
-import org.json.JSONObject;
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Response;
 
 import java.awt.Color;
 import java.net.URLEncoder;
@@ -51,6 +51,7 @@ import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
@@ -244,18 +245,24 @@ public class UtilsCmds {
 
     private List<ReminderObject> getReminders(List<String> reminders) {
         try (Jedis j = MantaroData.getDefaultJedisPool().getResource()) {
-            List<ReminderObject> rems = new ArrayList<>();
+            var pipeline = j.pipelined();
+            List<Response<Map<String, String>>> data = new ArrayList<>(reminders.size());
             for (String s : reminders) {
-                var rem = j.hget("reminder", s);
-                if (rem != null) {
-                    var json = new JSONObject(rem);
+                data.add(pipeline.hgetAll(Reminder.hash(s)));
+            }
+
+            pipeline.sync();
+            List<ReminderObject> rems = new ArrayList<>();
+            for (int i = 0; i < reminders.size(); i++) {
+                var rem = data.get(i).get();
+                if (!rem.isEmpty()) {
                     rems.add(ReminderObject.builder()
-                            .id(s.split(":")[0])
-                            .userId(json.getString("user"))
-                            .guildId(json.getString("guild"))
-                            .scheduledAtMillis(json.getLong("scheduledAt"))
-                            .time(json.getLong("at"))
-                            .reminder(json.getString("reminder"))
+                            .id(reminders.get(i).split(":")[0])
+                            .userId(rem.get("user"))
+                            .guildId(rem.get("guild"))
+                            .scheduledAtMillis(Long.parseLong(rem.get("scheduledAt")))
+                            .time(Long.parseLong(rem.get("at")))
+                            .reminder(rem.get("reminder"))
                             .build());
                 }
             }
@@ -24,8 +24,9 @@ import net.kodehawa.mantarobot.commands.MiscCmds;
 import net.kodehawa.mantarobot.commands.custom.legacy.ConditionalCustoms;
 import net.kodehawa.mantarobot.commands.custom.legacy.DynamicModifiers;
 import net.kodehawa.mantarobot.commands.custom.v3.CCv3;
-import net.kodehawa.mantarobot.commands.custom.v3.Parser;
+import net.kodehawa.mantarobot.commands.custom.v3.CompiledScript;
 import net.kodehawa.mantarobot.core.modules.commands.base.Context;
+import net.kodehawa.mantarobot.db.entities.CustomCommand;
 import net.kodehawa.mantarobot.db.entities.helpers.GuildData;
 import net.kodehawa.mantarobot.utils.StringUtils;
 import net.kodehawa.mantarobot.utils.commands.EmoteReference;
@@ -45,6 +46,8 @@ public class CustomCommandHandler {
     private static final Pattern escape = Pattern.compile("\\\\");
     private final String args;
     private final Context ctx;
+    // The command this response comes from, if any. Used to cache the parsed script.
+    private final CustomCommand command;
     private String response;
     private String prefixUsed;
 
@@ -133,7 +136,12 @@ public class CustomCommandHandler {
     }
 
     public CustomCommandHandler(String prefixUsed, Context ctx, String response, String args) {
+        this(prefixUsed, ctx, null, response, args);
+    }
+
+    public CustomCommandHandler(String prefixUsed, Context ctx, CustomCommand command, String response, String args) {
         this.ctx = ctx;
+        this.command = command;
         this.response = response;
         this.args = args;
         this.prefixUsed = prefixUsed;
@@ -146,7 +154,9 @@ public class CustomCommandHandler {
             return;
 
         if (response.startsWith("v3:")) {
-            CCv3.process(prefixUsed, ctx, new Parser(response.substring(3)).parse(), preview);
+            var source = response.substring(3);
+            var script = command == null ? CompiledScript.compile(source) : command.getCompiledScript(source);
+            CCv3.process(prefixUsed, ctx, script, preview);
             return;
         }
 
@@ -187,7 +197,7 @@ public class CustomCommandHandler {
 
     private String processText(String text) {
         if (text.contains("$(")) {
-            text = new DynamicModifiers()
+            text = new DynamicModifiers(DynamicModifiers.variablesIn(text))
                     .mapEvent(prefixUsed, "event", ctx)
                     .resolve(text);
         }
@@ -36,6 +36,34 @@ public class DynamicModifiers extends LinkedHashMap<String, String> {
     private static final long serialVersionUID = 1;
     private static final Pattern GETTER_MODIFIER = Pattern.compile("\\$\\([A-Za-z0-9.]+?\\)");
 
+    // The only keys anyone will ask for. Null means we don't know, so everything is mapped.
+    private final transient Set<String> wanted;
+
+    public DynamicModifiers() {
+        this(null);
+    }
+
+    /**
+     * @param wanted The only keys that will be requested, see {@link #variablesIn(String)}.
+     *               Modifiers outside of these won't be resolved, which avoids requests like getting the guild owner.
+     *               Null to map everything.
+     */
+    public DynamicModifiers(Set<String> wanted) {
+        this.wanted = wanted;
+    }
+
+    /**
+     * @return Every modifier referenced on a legacy ($(key)) string.
+     */
+    public static Set<String> variablesIn(String string) {
+        Set<String> variables = new HashSet<>();
+        for (String key : iterate(GETTER_MODIFIER, string)) {
+            variables.add(key.substring(2, key.length() - 1));
+        }
+
+        return variables;
+    }
+
     private static String k(String... parts) {
         return String.join(".", parts);
     }
@@ -66,15 +94,27 @@ public class DynamicModifiers extends LinkedHashMap<String, String> {
     }
 
     public DynamicModifiers mapGuild(String prefix, Guild guild) {
+        if (!needs(prefix)) {
+            return this;
+        }
+
+        // Getting the owner might need a request, only do it if someone's going to use it.
+        if (needs(k(prefix, "owner"))) {
+            mapMember(k(prefix, "owner"), guild.retrieveOwner(false).complete());
+        }
+
         return this.set(prefix, guild.getName())
                 .set(prefix, "name", guild.getName())
-                .mapMember(k(prefix, "owner"), guild.retrieveOwner(false).complete())
                 .set(prefix, "region", guild.getRegion().getName())
                 .set(prefix, "totalusers", String.valueOf(guild.getMemberCount()))
                 .set(prefix, "icon", guild.getIconUrl() == null ? "https://i.imgur.com/k0V7Vnu.png" : guild.getIconUrl());
     }
 
     public DynamicModifiers mapUser(String prefix, User member) {
+        if (!needs(prefix)) {
+            return this;
+        }
+
         return this.set(prefix, member.getAsMention())
                 .set(prefix, "tag", member.getAsTag())
                 .set(prefix, "username", member.getName())
@@ -123,6 +163,10 @@ public class DynamicModifiers extends LinkedHashMap<String, String> {
     }
 
     public DynamicModifiers mapMessage(String prefix, CustomMessage message) {
+        if (!needs(prefix)) {
+            return this;
+        }
+
         return this.set(prefix, message.getContentRaw())
                 .set(prefix, "raw", message.getContentRaw())
                 // textual and stripped are deprecated!
@@ -134,6 +178,10 @@ public class DynamicModifiers extends LinkedHashMap<String, String> {
     }
 
     public DynamicModifiers mapChannel(String prefix, TextChannel channel) {
+        if (!needs(prefix)) {
+            return this;
+        }
+
         return this.set(prefix, channel.getAsMention())
                 .set(prefix, "topic", channel.getTopic())
                 .set(prefix, "name", channel.getName())
@@ -150,12 +198,27 @@ public class DynamicModifiers extends LinkedHashMap<String, String> {
     }
 
     public DynamicModifiers set(String key, String value) {
-        if (!containsKey(key))
+        if (!containsKey(key) && (wanted == null || wanted.contains(key)))
             put(key, value);
 
         return this;
     }
 
+    // Whether a key, or anything under it, will be requested.
+    private boolean needs(String prefix) {
+        if (wanted == null) {
+            return true;
+        }
+
+        for (String key : wanted) {
+            if (key.startsWith(prefix) && (key.length() == prefix.length() || key.charAt(prefix.length()) == '.')) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
     public DynamicModifiers set(String prefix, String key, String value) {
         return set(k(prefix, key), value);
     }
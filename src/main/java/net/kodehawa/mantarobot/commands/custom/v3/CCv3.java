@@ -22,7 +22,6 @@ import net.dv8tion.jda.api.events.message.guild.GuildMessageReceivedEvent;
 import net.kodehawa.mantarobot.commands.MiscCmds;
 import net.kodehawa.mantarobot.commands.custom.EmbedJSON;
 import net.kodehawa.mantarobot.commands.custom.legacy.DynamicModifiers;
-import net.kodehawa.mantarobot.commands.custom.v3.ast.Node;
 import net.kodehawa.mantarobot.commands.custom.v3.interpreter.InterpreterContext;
 import net.kodehawa.mantarobot.commands.custom.v3.interpreter.InterpreterVisitor;
 import net.kodehawa.mantarobot.commands.custom.v3.interpreter.Operation;
@@ -341,11 +340,12 @@ public class CCv3 {
         });
     }
 
-    public static void process(String prefix, Context ctx, Node ast, boolean preview) {
-        InterpreterContext context = new InterpreterContext(new DynamicModifiers()
+    public static void process(String prefix, Context ctx, CompiledScript script, boolean preview) {
+        // Only resolve the modifiers the script can actually use.
+        InterpreterContext context = new InterpreterContext(new DynamicModifiers(script.getVariables())
                 .mapEvent(prefix, "event", ctx), DEFAULT_OPERATIONS, ctx);
 
-        String result = ast.accept(new InterpreterVisitor(), context);
+        String result = script.getAst().accept(new InterpreterVisitor(), context);
         EmbedJSON embed = context.get("embed");
 
         if (embed == null && result.isEmpty()) {
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2016-2021 David Rubio Escares / Kodehawa
+ *
+ *  Mantaro is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  Mantaro is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Mantaro. If not, see http://www.gnu.org/licenses/
+ */
+
+package net.kodehawa.mantarobot.commands.custom.v3;
+
+import net.kodehawa.mantarobot.commands.custom.v3.ast.*;
+
+import javax.annotation.Nullable;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A parsed CCv3 script, along with the variables it references.
+ * <br>Nodes are immutable, so a compiled script can be ran any amount of times, from any thread.
+ * Knowing the variables lets us skip resolving modifiers nobody asked for (some of them, like the guild owner, need a request to Discord).
+ */
+public class CompiledScript {
+    private final Node ast;
+    private final Set<String> variables;
+
+    private CompiledScript(Node ast, Set<String> variables) {
+        this.ast = ast;
+        this.variables = variables;
+    }
+
+    /**
+     * Parses a script (without the v3: prefix).
+     *
+     * @throws SyntaxException If the script is invalid.
+     */
+    public static CompiledScript compile(String source) {
+        var ast = new Parser(source).parse();
+        var variables = new HashSet<String>();
+        var dynamic = ast.accept(new VariableCollector(), variables);
+
+        return new CompiledScript(ast, dynamic ? null : Collections.unmodifiableSet(variables));
+    }
+
+    public Node getAst() {
+        return ast;
+    }
+
+    /**
+     * @return Every variable this script can reference, or null if there's no way to know
+     * (ie, a variable whose name is built from another variable or an operation).
+     */
+    @Nullable
+    public Set<String> getVariables() {
+        return variables;
+    }
+
+    // Returns whether there's a variable we can't know the name of.
+    private static class VariableCollector implements NodeVisitor<Boolean, Set<String>> {
+        @Override
+        public Boolean visitLiteral(LiteralNode node, Set<String> variables) {
+            return false;
+        }
+
+        @Override
+        public Boolean visitVariable(VariableNode node, Set<String> variables) {
+            var name = staticValue(node.name());
+            if (name == null) {
+                return true;
+            }
+
+            variables.add(name);
+            return false;
+        }
+
+        @Override
+        public Boolean visitOperation(OperationNode node, Set<String> variables) {
+            var dynamic = node.name().accept(this, variables);
+            for (var arg : node.args()) {
+                dynamic |= arg.accept(this, variables);
+            }
+
+            return dynamic;
+        }
+
+        @Override
+        public Boolean visitMulti(MultiNode node, Set<String> variables) {
+            var dynamic = false;
+            for (var child : node.children()) {
+                dynamic |= child.accept(this, variables);
+            }
+
+            return dynamic;
+        }
+
+        // The value of a node that's only made of literals, or null if it depends on something else.
+        @Nullable
+        private static String staticValue(Node node) {
+            if (node instanceof LiteralNode) {
+                return ((LiteralNode) node).value();
+            }
+
+            if (node instanceof MultiNode) {
+                var sb = new StringBuilder();
+                for (var child : ((MultiNode) node).children()) {
+                    var value = staticValue(child);
+                    if (value == null) {
+                        return null;
+                    }
+
+                    sb.append(value);
+                }
+
+                return sb.toString();
+            }
+
+            return null;
+        }
+    }
+}
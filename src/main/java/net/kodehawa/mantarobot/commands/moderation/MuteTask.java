@@ -16,87 +16,357 @@
 
 package net.kodehawa.mantarobot.commands.moderation;
 
+import gnu.trove.list.array.TLongArrayList;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Histogram;
+import net.dv8tion.jda.api.JDA;
+import net.dv8tion.jda.api.entities.Guild;
 import net.dv8tion.jda.api.entities.Member;
+import net.dv8tion.jda.api.entities.Role;
 import net.kodehawa.mantarobot.MantaroBot;
 import net.kodehawa.mantarobot.data.MantaroData;
-import net.kodehawa.mantarobot.db.entities.MantaroObj;
-import net.kodehawa.mantarobot.utils.Pair;
+import net.kodehawa.mantarobot.db.DueTimeScheduler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.Tuple;
+import redis.clients.jedis.params.ZAddParams;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
+/**
+ * Removes timed mutes once they expire.
+ * <br>Mutes are kept on one sorted set per shard (the shard of the guild they're on), with guildId:userId as members,
+ * scored by when they expire. Every node only looks at the sets of the shards it runs, through a {@link DueTimeScheduler}.
+ * Expired mutes are handled per guild: the guild is only read once, and members are looked up all at once.
+ * <br>Claimed mutes are gone from the set, so if the guild is unavailable or the members can't be looked up, they're put
+ * back to be tried again a bit later. They're only dropped for good once we know we left the guild.
+ * <br>Which shard a guild is on depends on the shard count, so after re-sharding some mutes are on the wrong set (or on
+ * one nobody reads anymore). The master node moves those to the right set on startup (see {@link #rehome()}), and if
+ * we still claim a mute of a guild on a shard some other node runs, it's moved to that shard's set.
+ */
 public class MuteTask {
     private static final Logger log = LoggerFactory.getLogger(MuteTask.class);
+    private static final String KEY_PREFIX = "zmute:";
+    // Mutes are claimed this many at a time.
+    private static final int BATCH = 100;
+    // We look at the sets at least this often, in case something was added without waking us up.
+    private static final long MAX_WAIT = TimeUnit.MINUTES.toMillis(1);
+    // How long to wait before trying a mute again, if we couldn't do it when it expired.
+    private static final long RETRY_DELAY = TimeUnit.MINUTES.toMillis(1);
+    private static final Counter expired = Counter.build()
+            .name("mutes_expired").help("Expired mutes, by result (unmuted/no_role/no_guild/no_member/retried/moved)")
+            .labelNames("result")
+            .register();
+    private static final Histogram lag = Histogram.build()
+            .name("mute_expiry_lag").help("Time between a mute expiring and it being claimed, in seconds")
+            .buckets(0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 300)
+            .register();
+    // Moves ARGV[1] from KEYS[1] to KEYS[2], unless it was claimed (or cancelled) in the meantime.
+    // Doesn't replace a mute that was scheduled again on the new set.
+    private static final String MOVE = """
+            local score = redis.call('ZSCORE', KEYS[1], ARGV[1])
+            if score then
+                redis.call('ZREM', KEYS[1], ARGV[1])
+                redis.call('ZADD', KEYS[2], 'NX', score, ARGV[1])
+                return 1
+            end
+            return 0
+            """;
 
-    public static void handle() {
-        try {
-            MantaroObj data = MantaroData.db().getMantaroData();
-            Map<Long, Pair<String, Long>> mutes = data.getMutes();
-            log.debug("Checking mutes... data size {}", mutes.size());
-            for (var entry : mutes.entrySet()) {
+    private static volatile DueTimeScheduler scheduler;
+
+    /**
+     * Starts removing the expired mutes of the given shards. Should only be called once, after the shards are ready:
+     * otherwise every guild looks unavailable.
+     */
+    public static void start(Collection<Integer> shards) {
+        var keys = shards.stream().map(MuteTask::key).collect(Collectors.toList());
+        scheduler = new DueTimeScheduler("Mantaro Mute Task", keys, BATCH, MAX_WAIT, MuteTask::handle);
+        scheduler.start();
+    }
+
+    /**
+     * Removes the muted role from an user once the given time passes. Replaces any other timed mute they had on the guild.
+     */
+    public static void schedule(Guild guild, long userId, long expiresAt) {
+        var shard = MantaroBot.getInstance().getShardIdForGuild(guild.getIdLong());
+        try (var jedis = MantaroData.getDefaultJedisPool().getResource()) {
+            jedis.zadd(key(shard), expiresAt, guild.getId() + ":" + userId);
+        }
+
+        var current = scheduler;
+        if (current != null) {
+            current.wake(expiresAt);
+        }
+    }
+
+    /**
+     * Forgets about the timed mute of an user, if any.
+     */
+    public static void cancel(Guild guild, long userId) {
+        var shard = MantaroBot.getInstance().getShardIdForGuild(guild.getIdLong());
+        try (var jedis = MantaroData.getDefaultJedisPool().getResource()) {
+            jedis.zrem(key(shard), guild.getId() + ":" + userId);
+        }
+    }
+
+    /**
+     * Forgets about every timed mute on a guild. Called when we leave it.
+     */
+    public static void cancelAll(Guild guild) {
+        var key = key(MantaroBot.getInstance().getShardIdForGuild(guild.getIdLong()));
+        var params = new ScanParams().match(guild.getId() + ":*").count(1000);
+        try (var jedis = MantaroData.getDefaultJedisPool().getResource()) {
+            var cursor = ScanParams.SCAN_POINTER_START;
+            do {
+                var result = jedis.zscan(key, cursor, params);
+                var members = result.getResult().stream().map(Tuple::getElement).toArray(String[]::new);
+                if (members.length > 0) {
+                    jedis.zrem(key, members);
+                }
+
+                cursor = result.getCursor();
+            } while (!cursor.equals(ScanParams.SCAN_POINTER_START));
+        }
+    }
+
+    private static String key(int shard) {
+        return KEY_PREFIX + shard;
+    }
+
+    // Puts claimed mutes back, to be tried again later. Doesn't replace a mute that was scheduled again in the meantime.
+    private static void retry(long guildId, long[] userIds, long dueAt) {
+        expired.labels("retried").inc(userIds.length);
+        var shard = MantaroBot.getInstance().getShardIdForGuild(guildId);
+        var retryAt = Math.max(dueAt, System.currentTimeMillis() + RETRY_DELAY);
+        try (var jedis = MantaroData.getDefaultJedisPool().getResource()) {
+            var pipeline = jedis.pipelined();
+            for (var userId : userIds) {
+                pipeline.zadd(key(shard), retryAt, guildId + ":" + userId, ZAddParams.zAddParams().nx());
+            }
+
+            pipeline.sync();
+        } catch (Exception e) {
+            log.error("Couldn't put back {} expired mutes on guild {}, they won't be removed", userIds.length, guildId, e);
+        }
+    }
+
+    private static void handle(List<DueTimeScheduler.Due> due) {
+        Map<Long, TLongArrayList> byGuild = new LinkedHashMap<>();
+        // Latest due time per guild. Used if they have to be tried again, so it's never earlier than it was.
+        Map<Long, Long> dueAt = new HashMap<>();
+        for (var mute : due) {
+            lag.observe(mute.getLag() / 1000D);
+            var member = mute.getMember();
+            var separator = member.indexOf(':');
+            var guildId = Long.parseLong(member.substring(0, separator));
+            byGuild.computeIfAbsent(guildId, id -> new TLongArrayList())
+                    .add(Long.parseLong(member.substring(separator + 1)));
+            dueAt.merge(guildId, mute.getDueAt(), Math::max);
+        }
+
+        for (var entry : byGuild.entrySet()) {
+            var guildId = entry.getKey();
+            var userIds = entry.getValue().toArray();
+            try {
+                unmute(guildId, userIds, dueAt.get(guildId));
+            } catch (Exception e) {
+                log.error("Error removing expired mutes on guild {}", guildId, e);
+                retry(guildId, userIds, dueAt.get(guildId));
+            }
+        }
+    }
+
+    private static void unmute(long guildId, long[] userIds, long dueAt) {
+        var bot = MantaroBot.getInstance();
+        var guild = bot.getShardManager().getGuildById(guildId);
+        if (guild == null) {
+            var shard = bot.getShardGuild(guildId);
+            if (shard == null) {
+                // Not one of our shards (anymore), so it was on the wrong set. Leave it to whoever runs it.
+                move(guildId, userIds, dueAt);
+                return;
+            }
+
+            if (shard.getStatus() == JDA.Status.CONNECTED && !shard.isUnavailable(guildId)) {
+                // The shard is up and doesn't know about the guild, so we left it while we weren't looking.
+                expired.labels("no_guild").inc(userIds.length);
+                return;
+            }
+
+            // Unavailable, or the shard is reconnecting.
+            retry(guildId, userIds, dueAt);
+            return;
+        }
+
+        var guildData = MantaroData.db().getGuild(guild).getData();
+
+        //I spent an entire month trying to figure out why this didn't work to then come to the conclusion that I'm completely stupid.
+        //I was checking against `id` instead of against the mute role id because I probably was high or something when I did this
+        //It literally took me a fucking month to figure this shit out
+        //What in the name of real fuck.
+        //Please hold me.
+        var mutedRole = guildData.getMutedRole() == null ? null : guild.getRoleById(guildData.getMutedRole());
+        if (mutedRole == null) {
+            log.debug("Removed {} expired mutes on {} because role == null", userIds.length, guildId);
+            expired.labels("no_role").inc(userIds.length);
+            return;
+        }
+
+        // Lookups are done in batches, and their callbacks can run at the same time, so we only touch the guild
+        // once all of them are done.
+        List<Member> found = Collections.synchronizedList(new ArrayList<>());
+        var pending = new AtomicInteger((userIds.length + BATCH - 1) / BATCH);
+        Runnable done = () -> {
+            if (pending.decrementAndGet() == 0) {
+                unmute(guild, mutedRole, found);
+            }
+        };
+
+        for (int i = 0; i < userIds.length; i += BATCH) {
+            var batch = Arrays.copyOfRange(userIds, i, Math.min(userIds.length, i + BATCH));
+            guild.retrieveMembersByIds(false, batch).onSuccess(members -> {
+                expired.labels("no_member").inc(batch.length - members.size());
+                found.addAll(members);
+                done.run();
+            }).onError(error -> {
+                log.error("Couldn't look up members to unmute on guild {}", guildId, error);
+                retry(guildId, batch, dueAt);
+                done.run();
+            });
+        }
+    }
+
+    private static void unmute(Guild guild, Role mutedRole, List<Member> members) {
+        if (members.isEmpty()) {
+            return;
+        }
+
+        // Read again, as it may have changed while we looked the members up.
+        var dbGuild = MantaroData.db().getGuild(guild);
+        var guildData = dbGuild.getData();
+        for (var member : members) {
+            log.debug("Unmuted {} because time ran out", member.getId());
+            guild.removeRoleFromMember(member, mutedRole).queue();
+            guildData.setCases(guildData.getCases() + 1);
+            ModLog.log(guild.getSelfMember(),
+                    member.getUser(),
+                    "Mute timeout expired", "none",
+                    ModLog.ModAction.UNMUTE,
+                    guildData.getCases()
+            );
+        }
+
+        expired.labels("unmuted").inc(members.size());
+        dbGuild.saveAsync();
+    }
+
+    // Puts claimed mutes on the set of the shard their guild is on now, keeping when they're due.
+    private static void move(long guildId, long[] userIds, long dueAt) {
+        expired.labels("moved").inc(userIds.length);
+        var shard = MantaroBot.getInstance().getShardIdForGuild(guildId);
+        try (var jedis = MantaroData.getDefaultJedisPool().getResource()) {
+            var pipeline = jedis.pipelined();
+            for (var userId : userIds) {
+                pipeline.zadd(key(shard), dueAt, guildId + ":" + userId, ZAddParams.zAddParams().nx());
+            }
+
+            pipeline.sync();
+        } catch (Exception e) {
+            log.error("Couldn't move {} expired mutes on guild {} to shard {}, they won't be removed", userIds.length, guildId, shard, e);
+        }
+
+        var current = scheduler;
+        if (current != null) {
+            current.wake(dueAt);
+        }
+    }
+
+    /**
+     * Moves the timed mutes that are on the set of a shard their guild isn't on anymore (because we re-sharded) to the
+     * right one. Only needs to run on one node.
+     */
+    public static void rehome() {
+        var bot = MantaroBot.getInstance();
+        try (var jedis = MantaroData.getDefaultJedisPool().getResource()) {
+            List<String> keys = new ArrayList<>();
+            var params = new ScanParams().match(KEY_PREFIX + "*").count(100);
+            var cursor = ScanParams.SCAN_POINTER_START;
+            do {
+                var result = jedis.scan(cursor, params);
+                keys.addAll(result.getResult());
+                cursor = result.getCursor();
+            } while (!cursor.equals(ScanParams.SCAN_POINTER_START));
+
+            var moved = 0;
+            for (var key : keys) {
+                int setShard;
                 try {
-                    log.trace("Iteration: Mute check");
-                    var id = entry.getKey();
-                    var pair = entry.getValue();
-                    var guildId = pair.getLeft();
-                    var maxTime = pair.getRight();
-
-                    var guild = MantaroBot.getInstance().getShardManager().getGuildById(guildId);
-                    if (guild == null) {
-                        //Might be in another instance, or the guild left, either way we can't check properly.
-                        continue;
-                    }
+                    setShard = Integer.parseInt(key.substring(KEY_PREFIX.length()));
+                } catch (NumberFormatException e) {
+                    continue;
+                }
 
-                    var dbGuild = MantaroData.db().getGuild(guildId);
-                    var guildData = dbGuild.getData();
-
-                    //I spent an entire month trying to figure out why this didn't work to then come to the conclusion that I'm completely stupid.
-                    //I was checking against `id` instead of against the mute role id because I probably was high or something when I did this
-                    //It literally took me a fucking month to figure this shit out
-                    //What in the name of real fuck.
-                    //Please hold me.
-                    if (guild.getRoleById(guildData.getMutedRole()) == null) {
-                        data.getMutes().remove(id);
-                        data.saveAsync();
-                        log.debug("Removed {} because role == null", id);
-                    } else {
-                        if (System.currentTimeMillis() > maxTime) {
-                            log.debug("Unmuted {} because time ran out", id);
-                            data.getMutes().remove(id);
-                            data.save();
-                            var roleById = guild.getRoleById(guildData.getMutedRole());
-
-                            Member member = null;
-                            try {
-                                member = guild.retrieveMemberById(id, false).complete();
-                            } catch (Exception ignored) { }
-
-                            if (member == null) {
-                                data.getMutes().remove(id);
-                                data.saveAsync();
-                                log.debug("Removed {} because member == null", id);
-                                continue;
-                            }
-
-                            if (roleById != null) {
-                                guild.removeRoleFromMember(member, roleById).queue();
-                            }
-
-                            guildData.setCases(guildData.getCases() + 1);
-                            dbGuild.saveAsync();
-                            ModLog.log(guild.getSelfMember(),
-                                    member.getUser(),
-                                    "Mute timeout expired", "none",
-                                    ModLog.ModAction.UNMUTE,
-                                    guildData.getCases()
-                            );
+                cursor = ScanParams.SCAN_POINTER_START;
+                do {
+                    var result = jedis.zscan(key, cursor, new ScanParams().count(1000));
+                    var pipeline = jedis.pipelined();
+                    for (var mute : result.getResult()) {
+                        var member = mute.getElement();
+                        var guildId = Long.parseLong(member.substring(0, member.indexOf(':')));
+                        var shard = bot.getShardIdForGuild(guildId);
+                        if (shard != setShard) {
+                            pipeline.eval(MOVE, List.of(key, key(shard)), List.of(member));
+                            moved++;
                         }
                     }
-                } catch (Exception ignored) {
-                }
+
+                    pipeline.sync();
+                    cursor = result.getCursor();
+                } while (!cursor.equals(ScanParams.SCAN_POINTER_START));
+            }
+
+            if (moved > 0) {
+                log.info("Moved {} timed mutes to the set of the shard their guild is on now", moved);
             }
-        } catch (Exception ignored) {
         }
     }
+
+    /**
+     * Moves timed mutes saved on the old format (a map on MantaroObj) to the current one. Only needs to run on one node.
+     */
+    public static void migrateLegacy() {
+        var data = MantaroData.db().getMantaroData();
+        var mutes = data.getMutes();
+        if (mutes.isEmpty()) {
+            return;
+        }
+
+        var bot = MantaroBot.getInstance();
+        try (var jedis = MantaroData.getDefaultJedisPool().getResource()) {
+            var pipeline = jedis.pipelined();
+            for (var entry : mutes.entrySet()) {
+                var guildId = entry.getValue().getLeft();
+                var shard = bot.getShardIdForGuild(Long.parseLong(guildId));
+                pipeline.zadd(key(shard), entry.getValue().getRight(), guildId + ":" + entry.getKey());
+            }
+
+            pipeline.sync();
+        }
+
+        log.info("Migrated {} timed mutes to the new format", mutes.size());
+        mutes.clear();
+        data.save();
+    }
 }
@@ -16,15 +16,21 @@
 
 package net.kodehawa.mantarobot.commands.music;
 
+import com.sedmelluq.discord.lavaplayer.player.AudioPlayerManager;
 import lavalink.client.io.jda.JdaLink;
 import net.kodehawa.mantarobot.MantaroBot;
+import net.kodehawa.mantarobot.commands.music.requester.QueueSnapshots;
+import net.kodehawa.mantarobot.commands.music.requester.TrackQueue;
 import net.kodehawa.mantarobot.commands.music.requester.TrackScheduler;
 import net.kodehawa.mantarobot.utils.commands.EmoteReference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
 public class GuildMusicManager {
+    private static final Logger log = LoggerFactory.getLogger(GuildMusicManager.class);
     private final String guildId;
 
     private final TrackScheduler trackScheduler;
@@ -32,13 +38,27 @@ public class GuildMusicManager {
 
     private ScheduledFuture<?> leaveTask = null;
 
-    public GuildMusicManager(String guildId) {
+    public GuildMusicManager(String guildId, AudioPlayerManager playerManager, QueueSnapshots snapshots) {
         this.guildId = guildId;
 
         var lavaLink = MantaroBot.getInstance().getLavaLink().getLink(guildId);
-        trackScheduler = new TrackScheduler(lavaLink, guildId);
+        trackScheduler = new TrackScheduler(lavaLink, guildId, new TrackQueue(playerManager), snapshots);
 
         lavaLink.getPlayer().addListener(trackScheduler);
+        restore(snapshots);
+    }
+
+    // Picks up the queue we had before restarting, if any.
+    private void restore(QueueSnapshots snapshots) {
+        try {
+            var snapshot = snapshots.load(guildId);
+            if (snapshot != null && trackScheduler.restore(snapshot)) {
+                log.debug("Restored queue of {} tracks for guild {}", trackScheduler.getQueue().size(), guildId);
+            }
+        } catch (Exception e) {
+            log.warn("Couldn't restore queue for guild {}, dropping it", guildId, e);
+            snapshots.delete(guildId);
+        }
     }
 
     private void leave() {
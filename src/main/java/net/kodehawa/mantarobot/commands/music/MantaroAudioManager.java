@@ -33,10 +33,13 @@ import com.sedmelluq.lava.extensions.youtuberotator.tools.ip.Ipv6Block;
 import net.dv8tion.jda.api.entities.Guild;
 import net.dv8tion.jda.api.events.message.guild.GuildMessageReceivedEvent;
 import net.kodehawa.mantarobot.commands.music.requester.AudioLoader;
+import net.kodehawa.mantarobot.commands.music.requester.QueueSnapshots;
+import net.kodehawa.mantarobot.commands.music.requester.TrackLoadCache;
 import net.kodehawa.mantarobot.commands.music.utils.AudioCmdUtils;
 import net.kodehawa.mantarobot.core.modules.commands.i18n.I18nContext;
 import net.kodehawa.mantarobot.data.MantaroData;
 import net.kodehawa.mantarobot.utils.Lazy;
+import net.kodehawa.mantarobot.utils.exporters.Metrics;
 
 import java.net.InetAddress;
 import java.util.Collections;
@@ -45,6 +48,7 @@ import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 public class MantaroAudioManager {
     private static final Lazy<Executor> LOAD_EXECUTOR = new Lazy<>(() -> Executors.newCachedThreadPool(
@@ -53,20 +57,38 @@ public class MantaroAudioManager {
                     .setDaemon(true)
                     .build()
     ));
+    // How long to wait after a queue changes before writing its snapshot, in milliseconds.
+    private static final long SNAPSHOT_DEBOUNCE = 2000;
+    // For how long to keep a queue snapshot, in seconds.
+    private static final int SNAPSHOT_TTL = (int) TimeUnit.DAYS.toSeconds(1);
 
     private final Map<String, GuildMusicManager> musicManagers;
     private final AudioPlayerManager playerManager;
+    private final QueueSnapshots queueSnapshots;
+    private final TrackLoadCache trackLoadCache;
 
     @SuppressWarnings("rawtypes")
     public MantaroAudioManager() {
         this.musicManagers = new ConcurrentHashMap<>();
         this.playerManager = new DefaultAudioPlayerManager();
 
+        var snapshotExecutor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("Mantaro Queue Snapshots").setDaemon(true).build()
+        );
+        Metrics.THREAD_POOL_COLLECTOR.add("queue-snapshots", snapshotExecutor);
+        this.queueSnapshots = new QueueSnapshots(
+                MantaroData.getDefaultJedisPool()::getResource, snapshotExecutor, SNAPSHOT_DEBOUNCE, SNAPSHOT_TTL
+        );
+
+        var config = MantaroData.config().get();
+        this.trackLoadCache = new TrackLoadCache(
+                playerManager, LOAD_EXECUTOR.get(), config.getTrackCacheSize(), config.getTrackCacheTtl()
+        );
+
         //Youtube is special because rotation stuff.
         var youtubeAudioSourceManager = new YoutubeAudioSourceManager(true);
 
         //IPv6 rotation config start
-        var config = MantaroData.config().get();
         if (!config.getIpv6Block().isEmpty()) {
             AbstractRoutePlanner planner;
             var block = config.getIpv6Block();
@@ -104,7 +126,7 @@ public class MantaroAudioManager {
     }
 
     public GuildMusicManager getMusicManager(Guild guild) {
-        return musicManagers.computeIfAbsent(guild.getId(), id -> new GuildMusicManager(guild.getId()));
+        return musicManagers.computeIfAbsent(guild.getId(), id -> new GuildMusicManager(guild.getId(), playerManager, queueSnapshots));
     }
 
     public void resetMusicManagerFor(String id) {
@@ -114,6 +136,17 @@ public class MantaroAudioManager {
         musicManagers.remove(id);
     }
 
+    /**
+     * Writes a snapshot of every queue right now, with the current position of the tracks that are playing.
+     */
+    public void saveQueues() {
+        for (var entry : musicManagers.entrySet()) {
+            queueSnapshots.changed(entry.getKey(), entry.getValue().getTrackScheduler()::snapshot);
+        }
+
+        queueSnapshots.flush();
+    }
+
     public long getTotalQueueSize() {
         return musicManagers.values().stream().map(m -> m.getTrackScheduler().getQueue().size()).mapToInt(Integer::intValue).sum();
     }
@@ -132,7 +165,7 @@ public class MantaroAudioManager {
                 }
 
                 var loader = new AudioLoader(musicManager, event, skipSelection, addFirst);
-                playerManager.loadItemOrdered(musicManager, trackUrl, loader);
+                trackLoadCache.load(musicManager, trackUrl, loader);
             }
         }, LOAD_EXECUTOR.get());
     }
@@ -144,4 +177,8 @@ public class MantaroAudioManager {
     public AudioPlayerManager getPlayerManager() {
         return this.playerManager;
     }
+
+    public QueueSnapshots getQueueSnapshots() {
+        return this.queueSnapshots;
+    }
 }
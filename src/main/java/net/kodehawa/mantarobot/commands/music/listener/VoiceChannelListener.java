@@ -136,7 +136,7 @@ public class VoiceChannelListener implements EventListener {
             if (musicManager.isAwaitingDeath()) {
                 if (scheduler.getCurrentTrack() != null) {
                     var channel = scheduler.getRequestedTextChannel();
-                    if (channel.canTalk() && vcRatelimiter.process(vc.getGuild().getId())) {
+                    if (channel.canTalk() && vcRatelimiter.process(vc.getGuild().getIdLong())) {
                         if (scheduler.isPausedManually()) {
                             channel.sendMessageFormat(
                                     scheduler.getLanguage().get("commands.music_general.listener.not_resumed"),
@@ -180,7 +180,7 @@ public class VoiceChannelListener implements EventListener {
             var player = musicManager.getLavaLink().getPlayer();
             if (scheduler != null && scheduler.getCurrentTrack() != null && scheduler.getRequestedTextChannel() != null) {
                 var textChannel = scheduler.getRequestedTextChannel();
-                if (textChannel.canTalk() && vcRatelimiter.process(vc.getGuild().getId())) {
+                if (textChannel.canTalk() && vcRatelimiter.process(vc.getGuild().getIdLong())) {
                     textChannel.sendMessageFormat(scheduler.getLanguage().get(
                             "commands.music_general.listener.left_alone"),
                             EmoteReference.THINKING, vc.getName()
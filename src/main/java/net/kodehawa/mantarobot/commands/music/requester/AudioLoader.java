@@ -38,7 +38,6 @@ import net.kodehawa.mantarobot.utils.commands.EmoteReference;
 import net.kodehawa.mantarobot.utils.exporters.Metrics;
 
 import java.awt.Color;
-import java.util.concurrent.ConcurrentLinkedDeque;
 import java.util.concurrent.TimeUnit;
 
 public class AudioLoader implements AudioLoadResultHandler {
@@ -164,7 +163,7 @@ public class AudioLoader implements AudioLoadResultHandler {
         }
 
         var fqSize = guildData.getMaxFairQueue();
-        ConcurrentLinkedDeque<AudioTrack> queue = trackScheduler.getQueue();
+        var queue = trackScheduler.getQueue();
 
         if (queue.size() > queueLimit && !dbUser.isPremium() && !dbGuild.isPremium()) {
             if (!silent) {
@@ -185,7 +184,7 @@ public class AudioLoader implements AudioLoadResultHandler {
         }
 
         // Comparing if the URLs are the same to be 100% sure they're just not spamming the same url over and over again.
-        if (queue.stream().filter(track -> trackInfo.uri.equals(track.getInfo().uri)).count() > fqSize && !silent) {
+        if (queue.count(trackInfo.uri) > fqSize && !silent) {
             event.getChannel().sendMessageFormat(
                     language.get("commands.music_general.loader.fair_queue_limit_reached"),
                     EmoteReference.ERROR, fqSize + 1
@@ -194,9 +193,17 @@ public class AudioLoader implements AudioLoadResultHandler {
             return;
         }
 
+        var resumed = trackScheduler.isResumingQueue() ? queue.size() : 0;
         trackScheduler.queue(audioTrack, insertFirst);
         trackScheduler.setRequestedChannel(event.getChannel().getIdLong());
 
+        // There was a queue here before we restarted, so tell them why there's more on it than what they asked for.
+        if (resumed > 0) {
+            event.getChannel().sendMessageFormat(
+                    language.get("commands.music_general.loader.restored_queue"), EmoteReference.WARNING, resumed
+            ).queue();
+        }
+
         if (!silent) {
             var player = db.getPlayer(event.getAuthor());
             var badge = APIUtils.getHushBadge(audioTrack.getIdentifier(), Utils.HushType.MUSIC);
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2016-2021 David Rubio Escares / Kodehawa
+ *
+ *  Mantaro is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  Mantaro is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Mantaro. If not, see http://www.gnu.org/licenses/
+ */
+
+package net.kodehawa.mantarobot.commands.music.requester;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import redis.clients.jedis.Jedis;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Keeps a snapshot of every music queue on Redis, so they can be picked up again after a restart.
+ * <br>Queues change a lot (a playlist adds hundreds of tracks one by one), so writes are debounced: the first change
+ * schedules a write, and the snapshot is taken when it runs, with every change done until then.
+ */
+public class QueueSnapshots {
+    private static final Logger log = LoggerFactory.getLogger(QueueSnapshots.class);
+    private static final String KEY_PREFIX = "music-queue:";
+
+    private final Supplier<Jedis> connections;
+    private final ScheduledExecutorService executor;
+    private final long debounce;
+    private final int ttl;
+    // Guild ID -> How to take the snapshot, for guilds with a write scheduled.
+    private final Map<String, Supplier<byte[]>> dirty = new ConcurrentHashMap<>();
+
+    /**
+     * @param connections Where to get Redis connections from. They're closed after being used.
+     * @param executor What to run writes on.
+     * @param debounce How long to wait after a change before writing, in milliseconds.
+     * @param ttl For how long to keep snapshots, in seconds. Queues left alone for longer than this are forgotten.
+     */
+    public QueueSnapshots(@Nonnull Supplier<Jedis> connections, @Nonnull ScheduledExecutorService executor, long debounce, int ttl) {
+        this.connections = connections;
+        this.executor = executor;
+        this.debounce = debounce;
+        this.ttl = ttl;
+    }
+
+    /**
+     * Schedules a write of the queue of a guild, unless one is already scheduled.
+     *
+     * @param snapshot Takes the snapshot. Returning null means there's nothing to keep.
+     */
+    public void changed(@Nonnull String guildId, @Nonnull Supplier<byte[]> snapshot) {
+        if (dirty.put(guildId, snapshot) == null) {
+            executor.schedule(() -> write(guildId), debounce, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * @return The last snapshot of the queue of a guild, or null if there's none.
+     */
+    @Nullable
+    public byte[] load(@Nonnull String guildId) {
+        try (var jedis = connections.get()) {
+            return jedis.get(key(guildId));
+        }
+    }
+
+    /**
+     * Forgets the queue of a guild, along with any write of it we had scheduled.
+     */
+    public void delete(@Nonnull String guildId) {
+        dirty.remove(guildId);
+        try (var jedis = connections.get()) {
+            jedis.del(key(guildId));
+        }
+    }
+
+    /**
+     * Does every scheduled write now. Used before shutting down.
+     */
+    public void flush() {
+        for (var guildId : dirty.keySet()) {
+            write(guildId);
+        }
+    }
+
+    private void write(String guildId) {
+        var snapshot = dirty.remove(guildId);
+        // Deleted (or already written by a flush) in the meantime.
+        if (snapshot == null) {
+            return;
+        }
+
+        try {
+            var data = snapshot.get();
+            try (var jedis = connections.get()) {
+                if (data == null) {
+                    jedis.del(key(guildId));
+                } else {
+                    jedis.setex(key(guildId), ttl, data);
+                }
+            }
+        } catch (Exception e) {
+            log.warn("Couldn't write queue snapshot for guild {}", guildId, e);
+        }
+    }
+
+    private static byte[] key(String guildId) {
+        return (KEY_PREFIX + guildId).getBytes(StandardCharsets.UTF_8);
+    }
+}
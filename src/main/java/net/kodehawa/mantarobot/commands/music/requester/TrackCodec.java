@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2016-2021 David Rubio Escares / Kodehawa
+ *
+ *  Mantaro is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  Mantaro is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Mantaro. If not, see http://www.gnu.org/licenses/
+ */
+
+package net.kodehawa.mantarobot.commands.music.requester;
+
+import com.sedmelluq.discord.lavaplayer.player.AudioPlayerManager;
+import com.sedmelluq.discord.lavaplayer.tools.io.MessageInput;
+import com.sedmelluq.discord.lavaplayer.tools.io.MessageOutput;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Turns tracks into bytes and back, the same way lavaplayer does it to send them to Lavalink.
+ * User data isn't part of it, so whoever keeps the bytes needs to keep that too.
+ */
+final class TrackCodec {
+    private TrackCodec() { }
+
+    static byte[] encode(AudioPlayerManager manager, AudioTrack track) {
+        var bytes = new ByteArrayOutputStream(256);
+        try {
+            manager.encodeTrack(new MessageOutput(bytes), track);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    static AudioTrack decode(AudioPlayerManager manager, byte[] encoded) {
+        try {
+            var holder = manager.decodeTrack(new MessageInput(new ByteArrayInputStream(encoded)));
+            if (holder == null || holder.decodedTrack == null) {
+                throw new IllegalStateException("Couldn't decode a track, is its source registered?");
+            }
+
+            return holder.decodedTrack;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
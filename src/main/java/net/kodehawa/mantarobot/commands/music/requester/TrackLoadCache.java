@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2016-2021 David Rubio Escares / Kodehawa
+ *
+ *  Mantaro is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  Mantaro is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Mantaro. If not, see http://www.gnu.org/licenses/
+ */
+
+package net.kodehawa.mantarobot.commands.music.requester;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.sedmelluq.discord.lavaplayer.player.AudioLoadResultHandler;
+import com.sedmelluq.discord.lavaplayer.player.AudioPlayerManager;
+import com.sedmelluq.discord.lavaplayer.tools.FriendlyException;
+import com.sedmelluq.discord.lavaplayer.track.AudioPlaylist;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
+import com.sedmelluq.discord.lavaplayer.track.BasicAudioPlaylist;
+import net.kodehawa.mantarobot.utils.exporters.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Sits in front of {@link AudioPlayerManager#loadItemOrdered(Object, String, AudioLoadResultHandler)}, so the same
+ * search or link asked for by a bunch of people (or by the same person a bunch of times) is only looked up once.
+ * <br>Results are kept encoded, and weighted by how many bytes they take, so a few huge playlists can't take over the
+ * cache. Every handler gets its own freshly decoded tracks, as {@link AudioLoader} sets who asked for them on each one.
+ * <br>Concurrent loads of the same thing are collapsed into a single one, and its result is handed to everyone waiting
+ * for it. Failures and searches without results are handed out too, but aren't kept.
+ * <br>Like with loadItemOrdered, results for the same ordering key (the guild's music manager) are handed out in the
+ * same order they were asked for.
+ */
+public class TrackLoadCache {
+    private static final Logger log = LoggerFactory.getLogger(TrackLoadCache.class);
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+    // Rough size of an entry without its tracks, in bytes.
+    private static final int ENTRY_OVERHEAD = 64;
+
+    private final AudioPlayerManager manager;
+    private final Executor executor;
+    private final Cache<String, LoadResult> cache;
+    // Normalized identifier -> Load that's running right now.
+    private final Map<String, CompletableFuture<LoadResult>> inFlight = new ConcurrentHashMap<>();
+    // Ordering key -> Last result we have to hand out for it.
+    private final Map<Object, CompletableFuture<Void>> deliveries = new ConcurrentHashMap<>();
+
+    /**
+     * @param manager What to load (and encode, and decode) tracks with.
+     * @param executor What to hand results to the handlers on.
+     * @param maxBytes How many bytes of encoded tracks to keep, at most. 0 to only collapse concurrent loads.
+     * @param ttlSeconds For how long to keep a result.
+     */
+    public TrackLoadCache(@Nonnull AudioPlayerManager manager, @Nonnull Executor executor, long maxBytes, long ttlSeconds) {
+        this.manager = manager;
+        this.executor = executor;
+        this.cache = CacheBuilder.newBuilder()
+                .maximumWeight(maxBytes)
+                .weigher((String key, LoadResult result) -> result.weight)
+                .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                .build();
+    }
+
+    /**
+     * Loads something and hands the result to the handler, from the cache if we have it.
+     *
+     * @param orderingKey Results for the same key are handed out in the order they were asked for.
+     * @param identifier What to load: a link, or a search (ytsearch: and such).
+     * @param handler What to hand the result to.
+     */
+    public void load(@Nonnull Object orderingKey, @Nonnull String identifier, @Nonnull AudioLoadResultHandler handler) {
+        var key = normalize(identifier);
+        var result = fetch(key);
+
+        // Chain it after whatever we still have to hand out for this key, failed or not.
+        var delivery = deliveries.compute(orderingKey, (k, previous) -> {
+            var after = previous == null ? result : previous.handle((ignored, e) -> null).thenCompose(ignored -> result);
+            return after.handleAsync((loaded, e) -> {
+                deliver(loaded, e, handler);
+                return null;
+            }, executor);
+        });
+
+        delivery.whenComplete((ignored, e) -> deliveries.remove(orderingKey, delivery));
+    }
+
+    private CompletableFuture<LoadResult> fetch(String key) {
+        var cached = cache.getIfPresent(key);
+        if (cached != null) {
+            Metrics.TRACK_LOAD_CACHE.labels("hit").inc();
+            return CompletableFuture.completedFuture(cached);
+        }
+
+        var future = new CompletableFuture<LoadResult>();
+        var running = inFlight.putIfAbsent(key, future);
+        if (running != null) {
+            Metrics.TRACK_LOAD_CACHE.labels("coalesced").inc();
+            return running;
+        }
+
+        Metrics.TRACK_LOAD_CACHE.labels("miss").inc();
+        future.whenComplete((loaded, e) -> {
+            // Cache it before letting go of the load, so nobody sneaks in between and loads it again.
+            if (loaded != null && loaded.type != LoadResult.Type.NO_MATCHES) {
+                cache.put(key, loaded);
+            }
+
+            inFlight.remove(key, future);
+        });
+
+        try {
+            manager.loadItem(key, new AudioLoadResultHandler() {
+                @Override
+                public void trackLoaded(AudioTrack track) {
+                    complete(() -> LoadResult.track(TrackCodec.encode(manager, track)));
+                }
+
+                @Override
+                public void playlistLoaded(AudioPlaylist playlist) {
+                    complete(() -> LoadResult.playlist(manager, playlist));
+                }
+
+                @Override
+                public void noMatches() {
+                    future.complete(LoadResult.NO_MATCHES);
+                }
+
+                @Override
+                public void loadFailed(FriendlyException exception) {
+                    future.completeExceptionally(exception);
+                }
+
+                private void complete(ResultSupplier supplier) {
+                    try {
+                        future.complete(supplier.get());
+                    } catch (Exception e) {
+                        future.completeExceptionally(e);
+                    }
+                }
+            });
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+        }
+
+        return future;
+    }
+
+    private void deliver(LoadResult loaded, Throwable error, AudioLoadResultHandler handler) {
+        try {
+            if (error != null) {
+                handler.loadFailed(asFriendly(error));
+                return;
+            }
+
+            switch (loaded.type) {
+                case TRACK -> handler.trackLoaded(TrackCodec.decode(manager, loaded.tracks[0]));
+                case PLAYLIST -> {
+                    List<AudioTrack> tracks = new ArrayList<>(loaded.tracks.length);
+                    for (var track : loaded.tracks) {
+                        tracks.add(TrackCodec.decode(manager, track));
+                    }
+
+                    var selected = loaded.selected < 0 ? null : tracks.get(loaded.selected);
+                    handler.playlistLoaded(new BasicAudioPlaylist(loaded.name, tracks, selected, loaded.searchResult));
+                }
+                case NO_MATCHES -> handler.noMatches();
+            }
+        } catch (Exception e) {
+            log.error("Error handing a track load result to {}", handler, e);
+        }
+    }
+
+    private static FriendlyException asFriendly(Throwable error) {
+        if (error instanceof CompletionException && error.getCause() != null) {
+            error = error.getCause();
+        }
+
+        if (error instanceof FriendlyException) {
+            return (FriendlyException) error;
+        }
+
+        return new FriendlyException("Something broke when loading the track.", FriendlyException.Severity.FAULT, error);
+    }
+
+    /**
+     * Makes identifiers that mean the same thing look the same. Searches don't care about case or extra spaces, links
+     * are left as they are (other than trimming them), as some sources care about case.
+     */
+    static String normalize(String identifier) {
+        var trimmed = identifier.trim();
+        var colon = trimmed.indexOf(':');
+        if (colon > 0) {
+            var prefix = trimmed.substring(0, colon).toLowerCase(Locale.ROOT);
+            if (prefix.endsWith("search")) {
+                var query = WHITESPACE.matcher(trimmed.substring(colon + 1).trim()).replaceAll(" ");
+                return prefix + ":" + query.toLowerCase(Locale.ROOT);
+            }
+        }
+
+        return trimmed;
+    }
+
+    private interface ResultSupplier {
+        LoadResult get() throws Exception;
+    }
+
+    private static final class LoadResult {
+        private static final LoadResult NO_MATCHES = new LoadResult(Type.NO_MATCHES, null, false, -1, new byte[0][]);
+
+        private final Type type;
+        private final String name;
+        private final boolean searchResult;
+        private final int selected;
+        private final byte[][] tracks;
+        private final int weight;
+
+        private LoadResult(Type type, String name, boolean searchResult, int selected, byte[][] tracks) {
+            this.type = type;
+            this.name = name;
+            this.searchResult = searchResult;
+            this.selected = selected;
+            this.tracks = tracks;
+
+            var weight = ENTRY_OVERHEAD + (name == null ? 0 : name.length() * 2);
+            for (var track : tracks) {
+                weight += track.length;
+            }
+
+            this.weight = weight;
+        }
+
+        static LoadResult track(byte[] track) {
+            return new LoadResult(Type.TRACK, null, false, -1, new byte[][] { track });
+        }
+
+        static LoadResult playlist(AudioPlayerManager manager, AudioPlaylist playlist) {
+            var tracks = playlist.getTracks();
+            var encoded = new byte[tracks.size()][];
+            for (var i = 0; i < encoded.length; i++) {
+                encoded[i] = TrackCodec.encode(manager, tracks.get(i));
+            }
+
+            var selected = playlist.getSelectedTrack() == null ? -1 : tracks.indexOf(playlist.getSelectedTrack());
+            return new LoadResult(Type.PLAYLIST, playlist.getName(), playlist.isSearchResult(), selected, encoded);
+        }
+
+        private enum Type {
+            TRACK, PLAYLIST, NO_MATCHES
+        }
+    }
+}
@@ -0,0 +1,457 @@
+/*
+ * Copyright (C) 2016-2021 David Rubio Escares / Kodehawa
+ *
+ *  Mantaro is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  Mantaro is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Mantaro. If not, see http://www.gnu.org/licenses/
+ */
+
+package net.kodehawa.mantarobot.commands.music.requester;
+
+import com.sedmelluq.discord.lavaplayer.player.AudioPlayerManager;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+import java.util.Random;
+
+/**
+ * A music queue that keeps its tracks encoded (the same way lavaplayer does it to send them to Lavalink), so a queue
+ * costs a few hundred bytes per track instead of a whole AudioTrack, and can be written somewhere as it is.
+ * <br>Tracks are kept on a ring buffer, so both ends and any position can be reached straight away, and shuffling or
+ * removing tracks moves them around in place. Tracks are decoded again whenever they're read.
+ * <br>Along with every track we keep who asked for it, its length and a hash of its URI, so we can answer the usual
+ * questions about the queue (how long it is, how many times something is on it) without decoding every track.
+ */
+public class TrackQueue {
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final int INITIAL_CAPACITY = 16;
+    // The smallest a track can take on a snapshot: requester, length, URI hash and the length of the encoded track.
+    private static final int MIN_ENTRY_SIZE = Long.BYTES + Long.BYTES + Integer.BYTES + Integer.BYTES;
+
+    private final AudioPlayerManager manager;
+    private byte[][] tracks = new byte[INITIAL_CAPACITY][];
+    private long[] requesters = new long[INITIAL_CAPACITY];
+    private long[] lengths = new long[INITIAL_CAPACITY];
+    private int[] uriHashes = new int[INITIAL_CAPACITY];
+    // Where the first track is, and how many there are.
+    private int head;
+    private int size;
+    private Runnable onChange = () -> { };
+
+    /**
+     * @param manager What to encode and decode tracks with. Needs to know about the sources of every track we'll get.
+     */
+    public TrackQueue(@Nonnull AudioPlayerManager manager) {
+        this.manager = manager;
+    }
+
+    /**
+     * Sets what to call every time the queue changes. Called while holding the queue lock, so it should be quick.
+     */
+    public void setOnChange(@Nonnull Runnable onChange) {
+        this.onChange = onChange;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized boolean isEmpty() {
+        return size == 0;
+    }
+
+    public synchronized void addLast(@Nonnull AudioTrack track) {
+        ensureCapacity(size + 1);
+        set(index(size), track);
+        size++;
+        onChange.run();
+    }
+
+    public synchronized void addFirst(@Nonnull AudioTrack track) {
+        ensureCapacity(size + 1);
+        head = index(tracks.length - 1);
+        set(head, track);
+        size++;
+        onChange.run();
+    }
+
+    /**
+     * @return The first track, without removing it, or null if the queue is empty.
+     */
+    @Nullable
+    public synchronized AudioTrack peek() {
+        return size == 0 ? null : decode(head);
+    }
+
+    /**
+     * @return The first track, which is removed from the queue, or null if the queue is empty.
+     */
+    @Nullable
+    public synchronized AudioTrack poll() {
+        if (size == 0) {
+            return null;
+        }
+
+        var track = decode(head);
+        tracks[head] = null;
+        head = index(1);
+        size--;
+        onChange.run();
+        return track;
+    }
+
+    /**
+     * @return The track at the given position, starting from 0.
+     */
+    @Nonnull
+    public synchronized AudioTrack get(int position) {
+        return decode(index(checkPosition(position)));
+    }
+
+    /**
+     * Removes the track at the given position, starting from 0.
+     *
+     * @return The removed track.
+     */
+    @Nonnull
+    public synchronized AudioTrack remove(int position) {
+        var track = get(position);
+        removeAll(List.of(position));
+        return track;
+    }
+
+    /**
+     * Removes the tracks at the given positions, starting from 0. Positions outside of the queue are ignored.
+     *
+     * @return How many tracks were removed.
+     */
+    public synchronized int removeAll(@Nonnull Collection<Integer> positions) {
+        var remove = new boolean[size];
+        for (var position : positions) {
+            if (position != null && position >= 0 && position < size) {
+                remove[position] = true;
+            }
+        }
+
+        // Move every track we keep back over the ones we remove, in a single pass.
+        var kept = 0;
+        for (var position = 0; position < size; position++) {
+            if (remove[position]) {
+                continue;
+            }
+
+            if (kept != position) {
+                move(index(position), index(kept));
+            }
+
+            kept++;
+        }
+
+        var removed = size - kept;
+        for (var position = kept; position < size; position++) {
+            tracks[index(position)] = null;
+        }
+
+        size = kept;
+        if (removed > 0) {
+            onChange.run();
+        }
+
+        return removed;
+    }
+
+    /**
+     * Shuffles the queue in place (Fisher-Yates).
+     */
+    public synchronized void shuffle(@Nonnull Random random) {
+        for (var position = size - 1; position > 0; position--) {
+            swap(index(position), index(random.nextInt(position + 1)));
+        }
+
+        onChange.run();
+    }
+
+    public synchronized void clear() {
+        Arrays.fill(tracks, null);
+        head = 0;
+        size = 0;
+        onChange.run();
+    }
+
+    /**
+     * Replaces every track on the queue.
+     */
+    public synchronized void replace(@Nonnull Collection<AudioTrack> newQueue) {
+        var runnable = onChange;
+        onChange = () -> { };
+        try {
+            clear();
+            newQueue.forEach(this::addLast);
+        } finally {
+            onChange = runnable;
+        }
+
+        onChange.run();
+    }
+
+    /**
+     * @return Every track on the queue, in order. Changes to the list don't change the queue.
+     */
+    @Nonnull
+    public synchronized List<AudioTrack> toList() {
+        List<AudioTrack> list = new ArrayList<>(size);
+        for (var position = 0; position < size; position++) {
+            list.add(decode(index(position)));
+        }
+
+        return list;
+    }
+
+    /**
+     * @return The sum of the length of every track, leaving streams out.
+     */
+    public synchronized long getTotalLength() {
+        var total = 0L;
+        for (var position = 0; position < size; position++) {
+            var length = lengths[index(position)];
+            if (length != Long.MAX_VALUE) {
+                total += length;
+            }
+        }
+
+        return total;
+    }
+
+    /**
+     * @return How many tracks on the queue have the given URI.
+     */
+    public synchronized int count(@Nonnull String uri) {
+        var hash = uri.hashCode();
+        var count = 0;
+        for (var position = 0; position < size; position++) {
+            var index = index(position);
+            // Only decode on a hash match, to make sure it wasn't a collision.
+            if (uriHashes[index] == hash && uri.equals(decode(index).getInfo().uri)) {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Writes the queue (and, optionally, the track that's playing right now) in a form {@link #restore(byte[])} can read.
+     *
+     * @param current The track that's playing, if any. Its position is kept.
+     */
+    @Nonnull
+    public synchronized byte[] snapshot(@Nullable AudioTrack current) {
+        var bytes = new ByteArrayOutputStream();
+        try (var out = new DataOutputStream(bytes)) {
+            out.writeByte(SNAPSHOT_VERSION);
+            out.writeBoolean(current != null);
+            if (current != null) {
+                writeEntry(out, encode(current), requester(current), current.getInfo().length, hash(current));
+            }
+
+            out.writeInt(size);
+            for (var position = 0; position < size; position++) {
+                var index = index(position);
+                writeEntry(out, tracks[index], requesters[index], lengths[index], uriHashes[index]);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Replaces the queue with the one on a snapshot.
+     *
+     * @return The track that was playing when the snapshot was taken (on the position it was at), if any.
+     * @throws IOException If the snapshot isn't something we can read.
+     */
+    @Nullable
+    public synchronized AudioTrack restore(@Nonnull byte[] snapshot) throws IOException {
+        var in = new DataInputStream(new ByteArrayInputStream(snapshot));
+        var version = in.readUnsignedByte();
+        if (version != SNAPSHOT_VERSION) {
+            throw new IOException("Unknown queue snapshot version " + version);
+        }
+
+        AudioTrack current = null;
+        if (in.readBoolean()) {
+            var requester = in.readLong();
+            in.readLong();
+            in.readInt();
+            current = decode(readTrack(in), requester);
+        }
+
+        // Don't trust the sizes on the snapshot until we know there's enough left on it to back them.
+        var count = in.readInt();
+        if (count < 0 || count > in.available() / MIN_ENTRY_SIZE) {
+            throw new IOException("Invalid queue snapshot size " + count);
+        }
+
+        var restored = new TrackQueue(manager);
+        restored.ensureCapacity(count);
+        for (var position = 0; position < count; position++) {
+            restored.requesters[position] = in.readLong();
+            restored.lengths[position] = in.readLong();
+            restored.uriHashes[position] = in.readInt();
+            restored.tracks[position] = readTrack(in);
+        }
+
+        // Only swap it in once everything was read, so a broken snapshot doesn't leave us half restored.
+        tracks = restored.tracks;
+        requesters = restored.requesters;
+        lengths = restored.lengths;
+        uriHashes = restored.uriHashes;
+        head = 0;
+        size = count;
+        onChange.run();
+        return current;
+    }
+
+    private void set(int index, AudioTrack track) {
+        tracks[index] = encode(track);
+        requesters[index] = requester(track);
+        lengths[index] = track.getInfo().length;
+        uriHashes[index] = hash(track);
+    }
+
+    private void move(int from, int to) {
+        tracks[to] = tracks[from];
+        requesters[to] = requesters[from];
+        lengths[to] = lengths[from];
+        uriHashes[to] = uriHashes[from];
+    }
+
+    private void swap(int a, int b) {
+        var track = tracks[a];
+        tracks[a] = tracks[b];
+        tracks[b] = track;
+
+        var requester = requesters[a];
+        requesters[a] = requesters[b];
+        requesters[b] = requester;
+
+        var length = lengths[a];
+        lengths[a] = lengths[b];
+        lengths[b] = length;
+
+        var uriHash = uriHashes[a];
+        uriHashes[a] = uriHashes[b];
+        uriHashes[b] = uriHash;
+    }
+
+    // Grows the buffer, if needed. Tracks are moved so the first one is at the start again.
+    private void ensureCapacity(int capacity) {
+        if (capacity <= tracks.length) {
+            return;
+        }
+
+        var newCapacity = Math.max(capacity, tracks.length * 2);
+        var newTracks = new byte[newCapacity][];
+        var newRequesters = new long[newCapacity];
+        var newLengths = new long[newCapacity];
+        var newUriHashes = new int[newCapacity];
+        for (var position = 0; position < size; position++) {
+            var index = index(position);
+            newTracks[position] = tracks[index];
+            newRequesters[position] = requesters[index];
+            newLengths[position] = lengths[index];
+            newUriHashes[position] = uriHashes[index];
+        }
+
+        tracks = newTracks;
+        requesters = newRequesters;
+        lengths = newLengths;
+        uriHashes = newUriHashes;
+        head = 0;
+    }
+
+    private int index(int position) {
+        return (head + position) % tracks.length;
+    }
+
+    private int checkPosition(int position) {
+        return Objects.checkIndex(position, size);
+    }
+
+    private AudioTrack decode(int index) {
+        return decode(tracks[index], requesters[index]);
+    }
+
+    private AudioTrack decode(byte[] encoded, long requester) {
+        var track = TrackCodec.decode(manager, encoded);
+        if (requester != 0) {
+            track.setUserData(String.valueOf(requester));
+        }
+
+        return track;
+    }
+
+    private byte[] encode(AudioTrack track) {
+        return TrackCodec.encode(manager, track);
+    }
+
+    // The user data of our tracks is the ID of whoever asked for it.
+    private static long requester(AudioTrack track) {
+        var userData = track.getUserData();
+        if (userData == null) {
+            return 0;
+        }
+
+        try {
+            return Long.parseLong(String.valueOf(userData));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static int hash(AudioTrack track) {
+        var uri = track.getInfo().uri;
+        return uri == null ? 0 : uri.hashCode();
+    }
+
+    private static void writeEntry(DataOutputStream out, byte[] track, long requester, long length, int uriHash) throws IOException {
+        out.writeLong(requester);
+        out.writeLong(length);
+        out.writeInt(uriHash);
+        out.writeInt(track.length);
+        out.write(track);
+    }
+
+    private static byte[] readTrack(DataInputStream in) throws IOException {
+        var length = in.readInt();
+        if (length < 0 || length > in.available()) {
+            throw new IOException("Invalid track length " + length + " on queue snapshot");
+        }
+
+        var track = new byte[length];
+        in.readFully(track);
+        return track;
+    }
+}
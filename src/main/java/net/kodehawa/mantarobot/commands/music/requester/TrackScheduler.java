@@ -31,8 +31,9 @@ import net.kodehawa.mantarobot.data.I18n;
 import net.kodehawa.mantarobot.data.MantaroData;
 import net.kodehawa.mantarobot.utils.commands.EmoteReference;
 
+import javax.annotation.Nullable;
+import java.io.IOException;
 import java.util.*;
-import java.util.concurrent.ConcurrentLinkedDeque;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -41,28 +42,34 @@ public class TrackScheduler extends PlayerEventListenerAdapter {
     private static final Random random = new Random();
     private static final ScheduledExecutorService scheduledExecutor = Executors.newSingleThreadScheduledExecutor();
     private final String guildId;
-    private final ConcurrentLinkedDeque<AudioTrack> queue;
+    private final TrackQueue queue;
+    private final QueueSnapshots snapshots;
     private final List<String> voteSkips;
     private final List<String> voteStop;
     private final I18n language;
     private Link audioPlayer;
     private long lastMessageSentAt;
     private long lastErrorSentAt;
-    private AudioTrack previousTrack, currentTrack;
+    private AudioTrack previousTrack;
+    private volatile AudioTrack currentTrack;
     private Repeat repeatMode;
     private long requestedChannel;
     private long errorCount = 0;
     private boolean pausedManually = false;
+    // Whether the queue was restored from a snapshot, and nothing has been played from it yet.
+    private boolean resumingQueue = false;
 
-    public TrackScheduler(Link player, String guildId) {
+    public TrackScheduler(Link player, String guildId, TrackQueue queue, QueueSnapshots snapshots) {
         this.audioPlayer = player;
-        this.queue = new ConcurrentLinkedDeque<>();
+        this.queue = queue;
+        this.snapshots = snapshots;
         this.guildId = guildId;
         this.voteSkips = new ArrayList<>();
         this.voteStop = new ArrayList<>();
 
         //Only take guild language settings into consideration for announcement messages.
         this.language = I18n.of(guildId);
+        queue.setOnChange(this::changed);
     }
 
     public void queue(AudioTrack track, boolean addFirst) {
@@ -70,11 +77,15 @@ public class TrackScheduler extends PlayerEventListenerAdapter {
             if (addFirst) {
                 queue.addFirst(track);
             } else {
-                queue.offer(track);
+                queue.addLast(track);
             }
         } else {
+            // If the queue was restored from a snapshot, what was just asked for still goes first, and the restored
+            // queue plays after it. AudioLoader lets them know it's there.
+            resumingQueue = false;
             getMusicPlayer().playTrack(track);
             currentTrack = track;
+            changed();
         }
     }
 
@@ -99,6 +110,8 @@ public class TrackScheduler extends PlayerEventListenerAdapter {
                 getMusicPlayer().playTrack(currentTrack);
             }
 
+            changed();
+
             if (skip) {
                 onTrackStart();
             }
@@ -216,11 +229,7 @@ public class TrackScheduler extends PlayerEventListenerAdapter {
     }
 
     public void shuffle() {
-        List<AudioTrack> tempList = new ArrayList<>(getQueue());
-        Collections.shuffle(tempList);
-
-        queue.clear();
-        queue.addAll(tempList);
+        queue.shuffle(random);
     }
 
     public TextChannel getRequestedTextChannel() {
@@ -235,15 +244,6 @@ public class TrackScheduler extends PlayerEventListenerAdapter {
         onStop();
     }
 
-    public List<AudioTrack> getQueueAsList() {
-        return new LinkedList<>(getQueue());
-    }
-
-    public void acceptNewQueue(List<AudioTrack> newQueue) {
-        queue.clear();
-        queue.addAll(newQueue);
-    }
-
     private void onStop() {
         final var managedDatabase = MantaroData.db();
         final var lavalinkPlayer = getAudioPlayer().getPlayer();
@@ -287,14 +287,66 @@ public class TrackScheduler extends PlayerEventListenerAdapter {
         currentTrack = null;
         previousTrack = null;
 
+        // Nothing left to pick up after a restart.
+        snapshots.delete(guildId);
+
         // Disconnect this audio player.
         MantaroBot.getInstance().getAudioManager().resetMusicManagerFor(guildId);
     }
 
-    public ConcurrentLinkedDeque<AudioTrack> getQueue() {
+    /**
+     * Restores the queue from a snapshot. The track that was playing goes first, and starts where it was left.
+     * Playback picks up once something else is queued: that track plays first, and then the restored queue.
+     *
+     * @return Whether there was anything to restore.
+     * @throws IOException If the snapshot can't be read.
+     */
+    public boolean restore(byte[] snapshot) throws IOException {
+        var current = queue.restore(snapshot);
+        if (current != null) {
+            queue.addFirst(current);
+        }
+
+        resumingQueue = !queue.isEmpty();
+        return resumingQueue;
+    }
+
+    // Called whenever the queue or the current track changes.
+    private void changed() {
+        snapshots.changed(guildId, this::snapshot);
+    }
+
+    /**
+     * @return A snapshot of the queue, including the track that's playing and where it is, or null if there's nothing.
+     */
+    @Nullable
+    public byte[] snapshot() {
+        var current = currentTrack;
+        if (current == null && queue.isEmpty()) {
+            return null;
+        }
+
+        AudioTrack playing = null;
+        if (current != null) {
+            playing = current.makeClone();
+            playing.setUserData(current.getUserData());
+            playing.setPosition(getMusicPlayer().getTrackPosition());
+        }
+
+        return queue.snapshot(playing);
+    }
+
+    public TrackQueue getQueue() {
         return this.queue;
     }
 
+    /**
+     * @return Whether the queue was restored from a snapshot, and nothing has been played since.
+     */
+    public boolean isResumingQueue() {
+        return resumingQueue;
+    }
+
     public List<String> getVoteSkips() {
         return this.voteSkips;
     }
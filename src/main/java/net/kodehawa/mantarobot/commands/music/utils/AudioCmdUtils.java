@@ -39,9 +39,9 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.awt.Color;
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
-import java.util.concurrent.ConcurrentLinkedDeque;
 
 import static java.util.concurrent.CompletableFuture.completedFuture;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
@@ -62,7 +62,7 @@ public class AudioCmdUtils {
         }
 
         final var trackScheduler = musicManager.getTrackScheduler();
-        final var toSend = getQueueList(trackScheduler.getQueue());
+        final var toSend = getQueueList(trackScheduler.getQueue().toList());
         final var musicPlayer = trackScheduler.getMusicPlayer();
         final var playingTrack = musicPlayer.getPlayingTrack();
 
@@ -103,9 +103,7 @@ public class AudioCmdUtils {
             return;
         }
 
-        var length = trackScheduler.getQueue().stream()
-                .filter(track -> track.getDuration() != Long.MAX_VALUE)
-                .mapToLong(value -> value.getInfo().length).sum();
+        var length = trackScheduler.getQueue().getTotalLength();
         var voiceChannel = selfMember.getVoiceState().getChannel();
         var builder = new EmbedBuilder()
                 .setAuthor(String.format(lang.get("commands.music_general.queue.header"),
@@ -345,7 +343,7 @@ public class AudioCmdUtils {
         );
     }
 
-    public static String getQueueList(ConcurrentLinkedDeque<AudioTrack> queue) {
+    public static String getQueueList(List<AudioTrack> queue) {
         var sb = new StringBuilder();
         var num = 1;
 
@@ -16,125 +16,237 @@
 
 package net.kodehawa.mantarobot.commands.utils.birthday;
 
-import com.google.common.util.concurrent.ThreadFactoryBuilder;
-import com.rethinkdb.model.OptArgs;
-import com.rethinkdb.utils.Types;
-import net.kodehawa.mantarobot.commands.BirthdayCmd;
-import net.kodehawa.mantarobot.data.MantaroData;
-import net.kodehawa.mantarobot.utils.exporters.Metrics;
+import com.rethinkdb.net.Connection;
+import gnu.trove.map.hash.TLongIntHashMap;
+import gnu.trove.set.hash.TLongHashSet;
+import io.prometheus.client.Gauge;
+import net.kodehawa.mantarobot.db.entities.DBUser;
+import net.kodehawa.mantarobot.utils.Utils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.List;
+import javax.annotation.Nullable;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 import static com.rethinkdb.RethinkDB.r;
 
 /**
- * Caches the birthday date of all users seen on bot startup and adds them to a local ConcurrentHashMap.
- * This will later be used on {@link BirthdayTask}
+ * Keeps the birthday date of every user in memory. This is used on {@link BirthdayTask} and the birthday command.
+ * <br>Birthdays are streamed from a changefeed on the users table: it first sends every birthday we have
+ * (we only ask for the id and birthday of users that have one), and then every change to them, so birthdays set
+ * or removed at any point (on any node) are seen straight away, without having to re-read the whole table.
+ * <br>Birthdays are kept as packed dates (see {@link #slot(long, long)}), along with an inverted index of them by date.
  */
 public class BirthdayCacher {
     private static final Logger log = LoggerFactory.getLogger(BirthdayCacher.class);
-    private final ExecutorService executorService =
-            Executors.newFixedThreadPool(1, new ThreadFactoryBuilder().setNameFormat("Mantaro Birthday Assigner Executor").build());
-    private final Map<Long, BirthdayData> cachedBirthdays = new ConcurrentHashMap<>();
+    private static final Gauge size = Gauge.build()
+            .name("birthday_cache_size").help("Users with a birthday on the birthday cache")
+            .register();
+
+    private volatile Birthdays birthdays = new Birthdays();
     public volatile boolean isDone;
 
     public BirthdayCacher() {
-        Metrics.THREAD_POOL_COLLECTOR.add("birthday-cacher", executorService);
         log.info("Caching birthdays...");
-        cache();
+        var thread = new Thread(this::run, "Mantaro Birthday Cacher");
+        thread.setDaemon(true);
+        thread.start();
     }
 
-    public void cache() {
-        executorService.submit(() -> {
-            try {
-                List<Map<Object, Object>> m = r.table("users")
-                        .run(MantaroData.conn(), OptArgs.of("read_mode", "outdated"), Types.mapOf(Object.class, Object.class))
-                        .toList();
-                cachedBirthdays.clear();
+    /**
+     * @return The birthday of an user, or null if they don't have one set.
+     */
+    @Nullable
+    public BirthdayData getBirthday(long userId) {
+        return birthdays.get(userId);
+    }
+
+    /**
+     * @return The ids of every user whose birthday is on the given date.
+     */
+    public long[] getBirthdaysOn(int day, int month) {
+        return birthdays.on(slot(day, month));
+    }
+
+    /**
+     * @return How many users have their birthday on the given date.
+     */
+    public int countBirthdaysOn(int day, int month) {
+        return birthdays.count(slot(day, month));
+    }
 
-                for (Map<Object, Object> r : m) {
+    /**
+     * @return How many users have a birthday set.
+     */
+    public int size() {
+        return birthdays.size();
+    }
+
+    /**
+     * @return Where a date goes on the date index, or -1 if it's not a valid date.
+     * Every month takes 31 slots, so some slots are never used, but we don't need to care about month lengths.
+     */
+    public static int slot(long day, long month) {
+        if (day < 1 || day > 31 || month < 1 || month > 12) {
+            return -1;
+        }
+
+        return (int) ((month - 1) * 31 + (day - 1));
+    }
+
+    private void run() {
+        //noinspection InfiniteLoopStatement
+        while (true) {
+            Connection conn = null;
+            try {
+                conn = Utils.newDbConnection();
+                follow(conn);
+            } catch (Exception e) {
+                log.error("Birthday changefeed failed, restarting it in 5 seconds", e);
+            } finally {
+                if (conn != null) {
                     try {
-                        var id = Long.parseUnsignedLong(String.valueOf(r.get("id")));
-                        // Why?
-                        if (cachedBirthdays.containsKey(id))
-                            continue;
-
-                        //Blame rethinkdb for the casting hell thx
-                        @SuppressWarnings("unchecked")
-                        var birthday = ((Map<String, String>) r.get("data")).get("birthday");
-                        if (birthday != null && !birthday.isEmpty()) {
-                            log.debug("-> PROCESS: {}", r);
-                            var bd = birthday.split("-");
-                            cachedBirthdays.put(id, new BirthdayData(birthday, Long.parseLong(bd[0]), Long.parseLong(bd[1])));
-                        }
-                    } catch (Exception e) {
-                        log.error("Error inserting user to birthday cache?", e);
-                    }
+                        conn.close();
+                    } catch (Exception ignored) { }
                 }
+            }
 
-                log.debug("-> [CACHE] Birthdays: {}", cachedBirthdays);
-                // Else we just don't have anything to clear (first startup)
-                if (BirthdayCmd.getGuildBirthdayCache().size() > 0) {
-                    log.info("Clearing previous guild birthday cache...");
-                    BirthdayCmd.getGuildBirthdayCache().invalidateAll();
-                }
+            try {
+                Thread.sleep(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
 
+    @SuppressWarnings("unchecked")
+    private void follow(Connection conn) {
+        var feed = r.table(DBUser.DB_TABLE)
+                .filter(user -> user.g("data").hasFields("birthday"))
+                .pluck("id", r.hashMap("data", "birthday"))
+                .changes()
+                .optArg("include_initial", true)
+                .optArg("include_states", true)
+                .run(conn);
+
+        // Birthdays are loaded into a new index, and swapped in once everything is there. Changes after that go
+        // straight to it. That way, if we're restarting the feed, we keep answering with what we had until then.
+        var loading = new Birthdays();
+        for (var change : feed) {
+            var map = (Map<String, Object>) change;
+            if ("ready".equals(map.get("state"))) {
+                birthdays = loading;
                 isDone = true;
-                log.info("Cached all birthdays. Current size is {}", cachedBirthdays.size());
+                log.info("Cached all birthdays. Current size is {}", loading.size());
+                continue;
+            }
+
+            var old = (Map<String, Object>) map.get("old_val");
+            var updated = (Map<String, Object>) map.get("new_val");
+            try {
+                if (updated != null) {
+                    var id = Long.parseUnsignedLong(String.valueOf(updated.get("id")));
+                    var birthday = ((Map<String, String>) updated.get("data")).get("birthday");
+                    loading.put(id, parse(birthday));
+                } else if (old != null) {
+                    loading.remove(Long.parseUnsignedLong(String.valueOf(old.get("id"))));
+                }
             } catch (Exception e) {
-                e.printStackTrace();
+                log.error("Error inserting user to birthday cache?", e);
             }
-        });
+
+            size.set(loading.size());
+        }
     }
 
-    public Map<Long, BirthdayData> getCachedBirthdays() {
-        return cachedBirthdays;
+    // Birthdays are saved as dd-MM-yyyy.
+    private static int parse(String birthday) {
+        if (birthday == null || birthday.isEmpty()) {
+            return -1;
+        }
+
+        var bd = birthday.split("-");
+        return slot(Long.parseLong(bd[0]), Long.parseLong(bd[1]));
+    }
+
+    // Birthdays by user, and users by birthday. Trove collections, so we don't need an object for every user.
+    private static class Birthdays {
+        private final TLongIntHashMap users = new TLongIntHashMap();
+        private final TLongHashSet[] byDate = new TLongHashSet[12 * 31];
+
+        synchronized void put(long userId, int slot) {
+            remove(userId);
+            if (slot < 0) {
+                return;
+            }
+
+            users.put(userId, slot);
+            if (byDate[slot] == null) {
+                byDate[slot] = new TLongHashSet();
+            }
+
+            byDate[slot].add(userId);
+        }
+
+        synchronized void remove(long userId) {
+            if (!users.containsKey(userId)) {
+                return;
+            }
+
+            var slot = users.remove(userId);
+            byDate[slot].remove(userId);
+        }
+
+        synchronized BirthdayData get(long userId) {
+            if (!users.containsKey(userId)) {
+                return null;
+            }
+
+            var slot = users.get(userId);
+            return new BirthdayData(slot % 31 + 1, slot / 31 + 1);
+        }
+
+        synchronized long[] on(int slot) {
+            return slot < 0 || byDate[slot] == null ? new long[0] : byDate[slot].toArray();
+        }
+
+        synchronized int count(int slot) {
+            return slot < 0 || byDate[slot] == null ? 0 : byDate[slot].size();
+        }
+
+        synchronized int size() {
+            return users.size();
+        }
     }
 
     public static class BirthdayData {
-        public String birthday;
-        public long day;
-        public long month;
+        public final long day;
+        public final long month;
 
-        public BirthdayData(String birthday, long day, long month) {
-            this.birthday = birthday;
+        public BirthdayData(long day, long month) {
             this.day = day;
             this.month = month;
         }
 
+        /**
+         * @return The birthday, as dd-MM.
+         */
         public String getBirthday() {
-            return this.birthday;
-        }
-
-        public void setBirthday(String birthday) {
-            this.birthday = birthday;
+            return "%02d-%02d".formatted(day, month);
         }
 
         public long getDay() {
             return this.day;
         }
 
-        public void setDay(long day) {
-            this.day = day;
-        }
-
         public long getMonth() {
             return this.month;
         }
 
-        public void setMonth(long month) {
-            this.month = month;
-        }
-
         @Override
         public String toString() {
-            return birthday;
+            return getBirthday();
         }
     }
 }
@@ -17,29 +17,44 @@
 package net.kodehawa.mantarobot.commands.utils.birthday;
 
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import gnu.trove.map.hash.TLongIntHashMap;
+import gnu.trove.set.hash.TLongHashSet;
+import io.prometheus.client.Histogram;
 import net.dv8tion.jda.api.MessageBuilder;
 import net.dv8tion.jda.api.entities.Member;
 import net.dv8tion.jda.api.entities.Message;
 import net.dv8tion.jda.api.entities.Role;
 import net.kodehawa.mantarobot.MantaroBot;
 import net.kodehawa.mantarobot.data.MantaroData;
+import net.kodehawa.mantarobot.db.entities.DBGuild;
 import net.kodehawa.mantarobot.utils.commands.EmoteReference;
 import net.kodehawa.mantarobot.utils.exporters.Metrics;
-import org.apache.commons.lang3.time.FastDateFormat;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.time.LocalDate;
-import java.time.Year;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.stream.Collectors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 public class BirthdayTask {
     private static final Logger log = LoggerFactory.getLogger(BirthdayTask.class);
-    private static final FastDateFormat dateFormat = FastDateFormat.getInstance("dd-MM-yyyy");
-    private static final FastDateFormat monthFormat = FastDateFormat.getInstance("MM");
+    // Members looked up per request. Discord doesn't let us ask for more than 100 at once.
+    private static final int LOOKUP_BATCH = 100;
+    // How many member lookups a shard can have going on at the same time.
+    private static final int MAX_LOOKUPS = 4;
+    // How long to wait for a member lookup, in seconds.
+    private static final int LOOKUP_TIMEOUT = 60;
+    private static final int FEBRUARY_28 = BirthdayCacher.slot(28, 2);
+    private static final int FEBRUARY_29 = BirthdayCacher.slot(29, 2);
+    private static final Histogram taskTime = Histogram.build()
+            .name("birthday_task_time").help("Time it takes to check the birthdays of a shard, in seconds")
+            .labelNames("shard")
+            .buckets(0.1, 0.5, 1, 5, 10, 30, 60, 120, 300, 600)
+            .register();
 
     private static final String modLogMessage = "Birthday assigner." +
             " If you see this happening for every member of your server, or in unintended ways, please do ~>opts birthday disable";
@@ -78,18 +93,14 @@ public class BirthdayTask {
 
             log.info("Checking birthdays in shard {} to assign roles...", jda.getShardInfo().getShardId());
 
-            // Isn't Calendar old aswell? Maybe use Instant?
-            final var cal = Calendar.getInstance();
-            // Example: 25-02
-            final var now = dateFormat.format(cal.getTime()).substring(0, 5);
-            // Example: 02
-            final var month = monthFormat.format(cal.getTime());
-            // Example: 01
-            final var lastMonthCal = Calendar.getInstance();
-            lastMonthCal.add(Calendar.MONTH, -1);
-            final var lastMonth = monthFormat.format(lastMonthCal.getTime());
-
-            final var cached = cache.getCachedBirthdays();
+            final var today = LocalDate.now();
+            final var lastMonth = today.minusMonths(1).getMonthValue();
+            final var todaySlot = BirthdayCacher.slot(today.getDayOfMonth(), today.getMonthValue());
+            // Birthdays on February 29 get announced on the 28th if the current year is not a leap year.
+            final var leapSlot = !today.isLeapYear() && todaySlot == FEBRUARY_28;
+            // Every date we need to look at: today for new birthdays, and the rest of this month and the last one
+            // to remove the role from people whose birthday has passed.
+            final var window = new BirthdayWindow(cache, today.getMonthValue(), lastMonth);
             final var guilds = jda.getGuildCache();
 
             // Backoff sending: we need to backoff the birthday requests,
@@ -100,6 +111,10 @@ public class BirthdayTask {
             List<BirthdayRoleInfo> roleBackoffAdd = new ArrayList<>();
             List<BirthdayRoleInfo> roleBackoffRemove = new ArrayList<>();
 
+            // Member lookups are sent for every guild first (a few at a time), and handled once they're all done.
+            List<GuildBirthdays> pending = new ArrayList<>();
+            final var lookups = new Semaphore(MAX_LOOKUPS);
+
             // For all current -cached- guilds.
             for (final var guild : guilds) {
                 // This is quite a db spam, lol
@@ -107,119 +122,146 @@ public class BirthdayTask {
                 final var guildData = dbGuild.getData();
 
                 // If we have a birthday guild and channel here, continue
-                if (guildData.getBirthdayChannel() != null && guildData.getBirthdayRole() != null) {
-                    final var birthdayRole = guild.getRoleById(guildData.getBirthdayRole());
-                    final var channel = guild.getTextChannelById(guildData.getBirthdayChannel());
-
-                    if (channel != null && birthdayRole != null) {
-                        if (!guild.getSelfMember().canInteract(birthdayRole))
-                            continue; //Go to next guild...
-                        if (!channel.canTalk())
-                            continue; //cannot talk here...
-                        if (guildData.getGuildAutoRole() != null && birthdayRole.getId().equals(guildData.getGuildAutoRole()))
-                            continue; //Birthday role is autorole role
-                        if (birthdayRole.isPublicRole())
-                            continue; //Birthday role is public role
-                        if (birthdayRole.isManaged())
-                            continue; //This was meant to be a bot role?
-
-                        // Guild map is now created from allowed birthdays. This is a little hacky, but we don't really care.
-                        // The other solution would have been just disabling this completely, which would have been worse.
-                        // @formatter:off
-                        Map<Long, BirthdayCacher.BirthdayData> guildMap = cached.entrySet()
-                                .stream()
-                                .filter(map -> guildData.getAllowedBirthdays().contains(String.valueOf(map.getKey())))
-                                .filter(map ->
-                                        // Only check for current month or last month!
-                                        map.getValue().getBirthday().substring(3, 5).equals(month) ||
-                                        map.getValue().getBirthday().substring(3, 5).equals(lastMonth)
-                                ).collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
-                        // @formatter:on
-
-                        var birthdayAnnouncerText = new MessageBuilder();
-                        birthdayAnnouncerText.append("**New birthdays for today, wish them Happy Birthday!**").append("\n\n");
-                        int birthdayNumber = 0;
-
-                        List<Long> nullMembers = new ArrayList<>();
-                        for (var data : guildMap.entrySet()) {
-                            var birthday = data.getValue().getBirthday();
-                            if (guildData.getBirthdayBlockedIds().contains(String.valueOf(data.getKey()))) {
-                                continue;
-                            }
+                if (guildData.getBirthdayChannel() == null || guildData.getBirthdayRole() == null) {
+                    continue;
+                }
 
-                            if (birthday == null) {
-                                log.debug("Birthday is null? Continuing...");
-                                nullMembers.add(data.getKey());
-                                continue;
-                            }
+                final var birthdayRole = guild.getRoleById(guildData.getBirthdayRole());
+                final var channel = guild.getTextChannelById(guildData.getBirthdayChannel());
+
+                if (channel == null || birthdayRole == null)
+                    continue;
+                if (!guild.getSelfMember().canInteract(birthdayRole))
+                    continue; //Go to next guild...
+                if (!channel.canTalk())
+                    continue; //cannot talk here...
+                if (guildData.getGuildAutoRole() != null && birthdayRole.getId().equals(guildData.getGuildAutoRole()))
+                    continue; //Birthday role is autorole role
+                if (birthdayRole.isPublicRole())
+                    continue; //Birthday role is public role
+                if (birthdayRole.isManaged())
+                    continue; //This was meant to be a bot role?
+
+                // Allowed users with a birthday on this month or the last one.
+                final var candidates = window.intersect(guildData.getAllowedBirthdays());
+                for (var blocked : guildData.getBirthdayBlockedIds()) {
+                    try {
+                        candidates.remove(Long.parseUnsignedLong(blocked));
+                    } catch (NumberFormatException ignored) { }
+                }
 
-                            // This needs to be a retrieveMemberById call, sadly. This will get cached, though.
-                            Member member;
-                            try {
-                                // This is expensive!
-                                member = guild.retrieveMemberById(data.getKey(), false).complete();
-                            } catch (Exception ex) {
-                                nullMembers.add(data.getKey());
-                                continue;
-                            }
+                if (candidates.isEmpty()) {
+                    continue;
+                }
+
+                var info = new GuildBirthdays(guild.getIdLong(), dbGuild, birthdayRole, channel.getId(), candidates);
+                var ids = candidates.keys();
+                for (int i = 0; i < ids.length; i += LOOKUP_BATCH) {
+                    var batch = Arrays.copyOfRange(ids, i, Math.min(ids.length, i + LOOKUP_BATCH));
+                    var future = new CompletableFuture<List<Member>>();
+                    lookups.acquire();
+                    try {
+                        guild.retrieveMembersByIds(false, batch)
+                                .onSuccess(members -> {
+                                    lookups.release();
+                                    future.complete(members);
+                                })
+                                .onError(error -> {
+                                    lookups.release();
+                                    future.completeExceptionally(error);
+                                });
+                    } catch (Exception e) {
+                        lookups.release();
+                        future.completeExceptionally(e);
+                    }
+
+                    info.lookups.add(future);
+                }
+
+                pending.add(info);
+            }
 
-                            // Make sure we announce on March 1st for birthdays on February 29 if the current
-                            // year is not a leap year.
-                            var compare = birthday.substring(0, 5);
-                            if (compare.equals("29-02") && !Year.isLeap(LocalDate.now().getYear())) {
-                                compare = "28-02";
+            for (var info : pending) {
+                final var guild = jda.getGuildById(info.guildId);
+                if (guild == null) {
+                    continue;
+                }
+
+                final var guildData = info.dbGuild.getData();
+                final var birthdayRole = info.role;
+                final var found = new TLongHashSet();
+                var birthdayAnnouncerText = new MessageBuilder();
+                birthdayAnnouncerText.append("**New birthdays for today, wish them Happy Birthday!**").append("\n\n");
+                int birthdayNumber = 0;
+                var complete = true;
+
+                for (var lookup : info.lookups) {
+                    List<Member> members;
+                    try {
+                        members = lookup.get(LOOKUP_TIMEOUT, TimeUnit.SECONDS);
+                    } catch (Exception e) {
+                        // We don't know if the ones on this batch left, so don't remove anyone.
+                        log.debug("Couldn't look up birthday members on guild {}", info.guildId, e);
+                        complete = false;
+                        continue;
+                    }
+
+                    for (var member : members) {
+                        found.add(member.getIdLong());
+                        var slot = info.candidates.get(member.getIdLong());
+                        if (slot == todaySlot || (leapSlot && slot == FEBRUARY_29)) {
+                            log.debug("Assigning birthday role on guild {} (M: {})", guild.getId(), member.getEffectiveName());
+                            var birthdayMessage =
+                                    String.format(EmoteReference.POPPER + "**%s is a year older now! Wish them a happy birthday.** :tada:",
+                                    member.getEffectiveName());
+
+                            if (guildData.getBirthdayMessage() != null) {
+                                birthdayMessage = guildData.getBirthdayMessage()
+                                        .replace("$(user)", member.getEffectiveName())
+                                        .replace("$(usermention)", member.getAsMention())
+                                        .replace("$(tag)", member.getUser().getAsTag());
                             }
 
-                            if (compare.equals(now)) {
-                                log.debug("Assigning birthday role on guild {} (M: {})", guild.getId(), member.getEffectiveName());
-                                var tempBirthdayMessage =
-                                        String.format(EmoteReference.POPPER + "**%s is a year older now! Wish them a happy birthday.** :tada:",
-                                        member.getEffectiveName());
-
-                                if (guildData.getBirthdayMessage() != null) {
-                                    tempBirthdayMessage = guildData.getBirthdayMessage()
-                                            .replace("$(user)", member.getEffectiveName())
-                                            .replace("$(usermention)", member.getAsMention())
-                                            .replace("$(tag)", member.getUser().getAsTag());
-                                }
-
-                                // Variable used in lambda expression should be final or effectively final...
-                                final var birthdayMessage = tempBirthdayMessage;
-
-                                if (!member.getRoles().contains(birthdayRole)) {
-                                    log.debug("Backing off adding birthday role on guild {} (M: {})", guild.getId(), member.getEffectiveName());
-
-                                    // We can pretty much do all of this only based on the IDs
-                                    roleBackoffAdd.add(new BirthdayRoleInfo(guild.getId(), member.getId(), birthdayRole));
-                                    birthdayAnnouncerText.append(birthdayMessage).append("\n");
-                                    membersAssigned++;
-                                    birthdayNumber++;
-
-                                    Metrics.BIRTHDAY_COUNTER.inc();
-                                }
-                            } else {
-                                //day passed
-                                if (member.getRoles().contains(birthdayRole)) {
-                                    log.debug("Backing off removing birthday role on guild {} (M: {})", guild.getId(), member.getEffectiveName());
-                                    roleBackoffRemove.add(new BirthdayRoleInfo(guild.getId(), member.getId(), birthdayRole));
-                                    membersDivested++;
-                                }
+                            if (!member.getRoles().contains(birthdayRole)) {
+                                log.debug("Backing off adding birthday role on guild {} (M: {})", guild.getId(), member.getEffectiveName());
+
+                                // We can pretty much do all of this only based on the IDs
+                                roleBackoffAdd.add(new BirthdayRoleInfo(guild.getId(), member.getId(), birthdayRole));
+                                birthdayAnnouncerText.append(birthdayMessage).append("\n");
+                                membersAssigned++;
+                                birthdayNumber++;
+
+                                Metrics.BIRTHDAY_COUNTER.inc();
+                            }
+                        } else {
+                            //day passed
+                            if (member.getRoles().contains(birthdayRole)) {
+                                log.debug("Backing off removing birthday role on guild {} (M: {})", guild.getId(), member.getEffectiveName());
+                                roleBackoffRemove.add(new BirthdayRoleInfo(guild.getId(), member.getId(), birthdayRole));
+                                membersDivested++;
                             }
                         }
+                    }
+                }
 
-                        if (birthdayNumber != 0) {
-                            toSend.put(
-                                    new BirthdayGuildInfo(guild.getId(), channel.getId()),
-                                    birthdayAnnouncerText.buildAll(MessageBuilder.SplitPolicy.NEWLINE)
-                            );
-                        }
+                if (birthdayNumber != 0) {
+                    toSend.put(
+                            new BirthdayGuildInfo(guild.getId(), info.channelId),
+                            birthdayAnnouncerText.buildAll(MessageBuilder.SplitPolicy.NEWLINE)
+                    );
+                }
 
-                        // If any of the member lookups to discord returned null, remove them.
-                        if (!nullMembers.isEmpty()) {
-                            guildData.getAllowedBirthdays().removeAll(nullMembers.stream().map(String::valueOf).collect(Collectors.toList()));
-                            dbGuild.save();
+                // If any of the members we looked up aren't on the guild anymore, remove them.
+                if (complete && found.size() != info.candidates.size()) {
+                    var left = new HashSet<String>();
+                    for (var id : info.candidates.keys()) {
+                        if (!found.contains(id)) {
+                            left.add(String.valueOf(id));
                         }
                     }
+
+                    guildData.getAllowedBirthdays().removeAll(left);
+                    info.dbGuild.save();
                 }
             }
 
@@ -227,6 +269,7 @@ public class BirthdayTask {
             log.info("{} (birthdays): people assigned: {}, people divested: {}, took {}ms",
                     jda.getShardInfo(), membersAssigned, membersDivested, (end - start)
             );
+            taskTime.labels(String.valueOf(shardId)).observe((end - start) / 1000D);
 
             // A poll inside a pool?
             // Send the backoff sending comment above, this basically avoids hitting
@@ -332,6 +375,94 @@ public class BirthdayTask {
         }
     }
 
+    // Every birthday in a couple of months, taken from the date index of the cacher.
+    private static class BirthdayWindow {
+        private final BirthdayCacher cache;
+        private final boolean[] slots = new boolean[12 * 31];
+        private int size;
+
+        BirthdayWindow(BirthdayCacher cache, int... months) {
+            this.cache = cache;
+            for (var month : months) {
+                for (int day = 1; day <= 31; day++) {
+                    var slot = BirthdayCacher.slot(day, month);
+                    if (slots[slot]) {
+                        continue;
+                    }
+
+                    slots[slot] = true;
+                    size += cache.countBirthdaysOn(day, month);
+                }
+            }
+        }
+
+        /**
+         * @return Every allowed user with a birthday inside the window, with the date slot of their birthday.
+         * Goes through whichever side is smaller: the allowed users of the guild, or everyone on the window.
+         */
+        TLongIntHashMap intersect(List<String> allowed) {
+            var result = new TLongIntHashMap();
+            if (allowed.size() <= size) {
+                for (var id : allowed) {
+                    try {
+                        var userId = Long.parseUnsignedLong(id);
+                        var birthday = cache.getBirthday(userId);
+                        if (birthday == null) {
+                            continue;
+                        }
+
+                        var slot = BirthdayCacher.slot(birthday.day, birthday.month);
+                        if (slot >= 0 && slots[slot]) {
+                            result.put(userId, slot);
+                        }
+                    } catch (NumberFormatException ignored) { }
+                }
+
+                return result;
+            }
+
+            var allowedIds = new TLongHashSet(allowed.size());
+            for (var id : allowed) {
+                try {
+                    allowedIds.add(Long.parseUnsignedLong(id));
+                } catch (NumberFormatException ignored) { }
+            }
+
+            for (int slot = 0; slot < slots.length; slot++) {
+                if (!slots[slot]) {
+                    continue;
+                }
+
+                for (var userId : cache.getBirthdaysOn(slot % 31 + 1, slot / 31 + 1)) {
+                    if (allowedIds.contains(userId)) {
+                        result.put(userId, slot);
+                    }
+                }
+            }
+
+            return result;
+        }
+    }
+
+    // A guild we're looking up birthday members for.
+    private static class GuildBirthdays {
+        final long guildId;
+        final DBGuild dbGuild;
+        final Role role;
+        final String channelId;
+        // Candidate user id -> date slot of their birthday.
+        final TLongIntHashMap candidates;
+        final List<CompletableFuture<List<Member>>> lookups = new ArrayList<>();
+
+        GuildBirthdays(long guildId, DBGuild dbGuild, Role role, String channelId, TLongIntHashMap candidates) {
+            this.guildId = guildId;
+            this.dbGuild = dbGuild;
+            this.role = role;
+            this.channelId = channelId;
+            this.candidates = candidates;
+        }
+    }
+
     private static class BirthdayGuildInfo {
         public String guildId;
         public String channelId;
@@ -17,15 +17,18 @@
 package net.kodehawa.mantarobot.commands.utils.reminders;
 
 import net.kodehawa.mantarobot.data.MantaroData;
+import net.kodehawa.mantarobot.db.DueTimeScheduler;
 import net.kodehawa.mantarobot.db.ManagedDatabase;
-import org.json.JSONObject;
+import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
 
+import java.util.Map;
 import java.util.UUID;
 
 public class Reminder {
-    private static final String table = "reminder";
-    private static final String ztable = "zreminder";
+    // Where reminders used to be saved, as JSON strings. See ReminderTask#migrateLegacy.
+    static final String LEGACY_TABLE = "reminder";
+    static final String LEGACY_ZTABLE = "zreminder";
     private static final JedisPool pool = MantaroData.getDefaultJedisPool();
     private static final ManagedDatabase db = MantaroData.db();
 
@@ -52,10 +55,13 @@ public class Reminder {
     //Id here contains the full id aka UUID:userId, unlike in the other methods
     public static void cancel(String userId, String fullId, CancelReason reason) {
         try (var redis = pool.getResource()) {
-            var data = redis.hget(table, fullId);
-
-            redis.zrem(ztable, data);
-            redis.hdel(table, fullId);
+            var key = ReminderTask.key(userId);
+            var pipeline = redis.pipelined();
+            pipeline.zrem(key, fullId);
+            // If it's being delivered, it's done.
+            pipeline.zrem(DueTimeScheduler.claimedKey(key), fullId);
+            pipeline.del(hash(fullId));
+            pipeline.sync();
         }
 
         var user = db.getUser(userId);
@@ -70,27 +76,42 @@ public class Reminder {
     }
 
     public void schedule() {
-        var r = new JSONObject()
-                .put("id", id)
-                .put("user", userId)
-                .put("guild", guildId)
-                .put("scheduledAt", scheduledAtMillis)
-                .put("reminder", reminder)
-                .put("at", time);
-
+        var fullId = id + ":" + userId;
         try (var redis = pool.getResource()) {
-            redis.zadd(ztable, time, r.toString());
-            //Needed for removal.
-            redis.hset(table, id + ":" + userId, r.toString());
+            store(redis, fullId, userId, guildId, reminder, scheduledAtMillis, time);
         }
 
+        ReminderTask.wake(time);
+
         var user = db.getUser(userId);
         var data = user.getData();
 
-        data.getReminders().add(id + ":" + userId);
+        data.getReminders().add(fullId);
         user.save();
     }
 
+    /**
+     * @return The key of the hash a reminder is saved on.
+     */
+    public static String hash(String fullId) {
+        return "reminder:" + fullId;
+    }
+
+    // Reminders are saved on a small hash each (which redis keeps packed), and their id is added to the set of their bucket.
+    static void store(Jedis redis, String fullId, String userId, String guildId,
+                      String reminder, long scheduledAt, long time) {
+        var pipeline = redis.pipelined();
+        pipeline.hset(hash(fullId), Map.of(
+                "user", userId,
+                "guild", guildId,
+                "scheduledAt", String.valueOf(scheduledAt),
+                "at", String.valueOf(time),
+                "reminder", reminder
+        ));
+        pipeline.zadd(ReminderTask.key(userId), time, fullId);
+        pipeline.sync();
+    }
+
     public static class Builder {
         private long current;
         private String reminder;
@@ -16,81 +16,243 @@
 
 package net.kodehawa.mantarobot.commands.utils.reminders;
 
+import io.prometheus.client.Counter;
+import io.prometheus.client.Histogram;
 import net.dv8tion.jda.api.entities.User;
 import net.kodehawa.mantarobot.MantaroBot;
 import net.kodehawa.mantarobot.data.MantaroData;
+import net.kodehawa.mantarobot.db.DueTimeScheduler;
 import net.kodehawa.mantarobot.utils.Utils;
 import net.kodehawa.mantarobot.utils.commands.EmoteReference;
 import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.Tuple;
+import redis.clients.jedis.params.ZAddParams;
 
 import java.time.Instant;
 import java.time.OffsetDateTime;
 import java.time.ZoneId;
 import java.time.format.TextStyle;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
-import java.util.Set;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
+/**
+ * Delivers reminders once they're due.
+ * <br>Reminders are kept on a fixed number of sorted sets (picked by the user who asked for them, so it doesn't change
+ * if we re-shard), scored by when they're due. Every node looks at all of them through a {@link DueTimeScheduler}, which
+ * makes sure each reminder is only claimed by one of them.
+ * <br>Claimed reminders stay on the claimed set of their bucket until they're cancelled (which delivering them does),
+ * so if the node that claimed one dies before that, someone else picks it up after {@link #CLAIM_TIMEOUT}.
+ */
 public class ReminderTask {
     private static final Logger log = LoggerFactory.getLogger(ReminderTask.class);
+    private static final String KEY_PREFIX = "zreminders:";
+    // Where reminders were kept when they were split by shard. See #migrateShards.
+    private static final String SHARD_KEY_PREFIX = "zreminder:";
+    // How many sets reminders are split into. Changing this means moving them around, so don't.
+    private static final int BUCKETS = 16;
+    // Reminders are claimed this many at a time.
+    private static final int BATCH = 100;
+    // We look at the sets at least this often, in case something was added without waking us up.
+    private static final long MAX_WAIT = TimeUnit.SECONDS.toMillis(30);
+    // How long a node has to deliver a reminder it claimed before another one tries.
+    private static final long CLAIM_TIMEOUT = TimeUnit.MINUTES.toMillis(10);
+    private static final Counter delivered = Counter.build()
+            .name("reminders_delivered").help("Reminders handled, by result (reminded/error/stale)")
+            .labelNames("result")
+            .register();
+    private static final Histogram lag = Histogram.build()
+            .name("reminder_delivery_lag").help("Time between a reminder being due and it being claimed, in seconds")
+            .buckets(0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 300)
+            .register();
+
+    private static volatile DueTimeScheduler scheduler;
+
+    /**
+     * Starts delivering reminders. Should only be called once.
+     */
+    public static void start() {
+        var keys = IntStream.range(0, BUCKETS).mapToObj(ReminderTask::key).collect(Collectors.toList());
+        scheduler = new DueTimeScheduler("Mantaro Reminder Handler", keys, BATCH, MAX_WAIT, CLAIM_TIMEOUT, ReminderTask::deliver);
+        scheduler.start();
+    }
+
+    /**
+     * Called when a reminder is scheduled, so it gets delivered on time if it's due before the next time we were going to look.
+     */
+    static void wake(long at) {
+        var current = scheduler;
+        if (current != null) {
+            current.wake(at);
+        }
+    }
+
+    static String key(int bucket) {
+        return KEY_PREFIX + bucket;
+    }
+
+    static String key(String userId) {
+        // The low bits of an id barely change, the timestamp ones do.
+        return key((int) ((Long.parseUnsignedLong(userId) >>> 22) % BUCKETS));
+    }
 
-    public static void handle() {
-        log.debug("Checking reminder data...");
-        try (Jedis j = MantaroData.getDefaultJedisPool().getResource()) {
-            Set<String> reminders = j.zrange("zreminder", 0, 14);
-            var bot = MantaroBot.getInstance();
+    private static void deliver(List<DueTimeScheduler.Due> due) {
+        List<Response<Map<String, String>>> data = new ArrayList<>(due.size());
+        try (var jedis = MantaroData.getDefaultJedisPool().getResource()) {
+            var pipeline = jedis.pipelined();
+            for (var reminder : due) {
+                data.add(pipeline.hgetAll(Reminder.hash(reminder.getMember())));
+            }
+
+            pipeline.sync();
+        }
 
-            log.debug("Reminder check - remainder is: {}", reminders.size());
+        for (int i = 0; i < due.size(); i++) {
+            var reminder = due.get(i);
+            lag.observe(reminder.getLag() / 1000D);
+            try {
+                deliver(reminder.getMember(), reminder.getDueAt(), data.get(i).get());
+            } catch (Exception e) {
+                log.error("Error delivering reminder {}", reminder.getMember(), e);
+            }
+        }
+    }
 
-            for (var rem : reminders) {
+    private static void deliver(String fullId, long at, Map<String, String> data) {
+        var userId = fullId.substring(fullId.indexOf(':') + 1);
+        // Cancelled while we claimed it.
+        if (data.isEmpty()) {
+            try (var jedis = MantaroData.getDefaultJedisPool().getResource()) {
+                jedis.zrem(DueTimeScheduler.claimedKey(key(userId)), fullId);
+            }
+
+            return;
+        }
+
+        // 1 day passed already, assuming it's a stale reminder:
+        // Done because ReminderTask wasn't working.
+        // If it was claimed before and not delivered, it was due again when it was put back, so go by the original time.
+        var dueAt = data.containsKey("at") ? Long.parseLong(data.get("at")) : at;
+        if (System.currentTimeMillis() - dueAt > TimeUnit.DAYS.toMillis(1)) {
+            delivered.labels("stale").inc();
+            Reminder.cancel(userId, fullId, Reminder.CancelReason.CANCEL);
+            return;
+        }
+
+        var bot = MantaroBot.getInstance();
+        var reminder = data.get("reminder"); //The actual reminder data
+        var guild = bot.getShardManager().getGuildById(data.get("guild"));
+        var scheduledAt = Long.parseLong(data.get("scheduledAt"));
+        var scheduledTime = OffsetDateTime.ofInstant(Instant.ofEpochMilli(scheduledAt), ZoneId.systemDefault());
+        bot.getShardManager().retrieveUserById(userId)
+                .flatMap(User::openPrivateChannel)
+                .flatMap(privateChannel -> privateChannel
+                        .sendMessageFormat("""
+                                        %s**Reminder!**
+
+                                        You asked me to remind you of: **%s**
+                                        Asked at: %s (%s)%s""",
+                                EmoteReference.POPPER,
+                                reminder, Utils.formatDate(scheduledTime),
+                                ZoneId.systemDefault().getDisplayName(TextStyle.SHORT, Locale.getDefault()),
+                                (guild != null ? "\nAsked on: %s".formatted(guild.getName()) : "")
+                        )
+                ).queue(success -> {
+                    log.debug("Reminded {}. Removing from remind database", fullId);
+                    delivered.labels("reminded").inc();
+                    Reminder.cancel(userId, fullId, Reminder.CancelReason.REMINDED);
+                }, err -> {
+                    delivered.labels("error").inc();
+                    Reminder.cancel(userId, fullId, Reminder.CancelReason.ERROR_DELIVERING);
+                }
+        );
+    }
+
+    /**
+     * Moves reminders saved on the old format (a single sorted set and hash of JSON strings) to the current one.
+     * Only needs to run on one node. Reminders that couldn't be moved are left where they were, so they're tried again
+     * the next time this runs.
+     */
+    public static void migrateLegacy() {
+        try (var jedis = MantaroData.getDefaultJedisPool().getResource()) {
+            var legacy = jedis.hgetAll(Reminder.LEGACY_TABLE);
+            if (legacy.isEmpty()) {
+                return;
+            }
+
+            List<String> migratedIds = new ArrayList<>();
+            // The legacy sorted set was keyed by the same JSON string the hash holds.
+            List<String> migratedData = new ArrayList<>();
+            for (var entry : legacy.entrySet()) {
                 try {
-                    var data = new JSONObject(rem);
-                    var fireAt = data.getLong("at");
-
-                    // If the time has passed...
-                    if (System.currentTimeMillis() >= fireAt) {
-                        log.debug("Reminder date has passed, remind accordingly.");
-                        var userId = data.getString("user");
-                        var fullId = data.getString("id") + ":" + userId;
-                        var guildId = data.getString("guild");
-                        var scheduledAt = data.getLong("scheduledAt");
-
-                        // 1 day passed already, assuming it's a stale reminder:
-                        // Done because ReminderTask wasn't working.
-                        if (System.currentTimeMillis() - fireAt > TimeUnit.DAYS.toMillis(1)) {
-                            Reminder.cancel(userId, fullId, Reminder.CancelReason.CANCEL);
-                            return;
-                        }
-
-                        var reminder = data.getString("reminder"); //The actual reminder data
-                        var guild = bot.getShardManager().getGuildById(guildId);
-                        var scheduledTime = OffsetDateTime.ofInstant(Instant.ofEpochMilli(scheduledAt), ZoneId.systemDefault());
-                        bot.getShardManager().retrieveUserById(userId)
-                                .flatMap(User::openPrivateChannel)
-                                .flatMap(privateChannel -> privateChannel
-                                        .sendMessageFormat("""
-                                                        %s**Reminder!**
-                                                        
-                                                        You asked me to remind you of: **%s**
-                                                        Asked at: %s (%s)%s""",
-                                                EmoteReference.POPPER,
-                                                reminder, Utils.formatDate(scheduledTime),
-                                                ZoneId.systemDefault().getDisplayName(TextStyle.SHORT, Locale.getDefault()),
-                                                (guild != null ? "\nAsked on: %s".formatted(guild.getName()) : "")
-                                        )
-                                ).queue(success -> {
-                                    log.debug("Reminded {}. Removing from remind database", fullId);
-                                    Reminder.cancel(userId, fullId, Reminder.CancelReason.REMINDED);
-                                }, err -> Reminder.cancel(userId, fullId, Reminder.CancelReason.ERROR_DELIVERING)
-                        );
-                    }
+                    var json = new JSONObject(entry.getValue());
+                    Reminder.store(jedis, entry.getKey(), json.getString("user"), json.getString("guild"),
+                            json.getString("reminder"), json.getLong("scheduledAt"), json.getLong("at")
+                    );
+
+                    migratedIds.add(entry.getKey());
+                    migratedData.add(entry.getValue());
                 } catch (Exception e) {
-                    e.printStackTrace();
+                    log.error("Couldn't migrate reminder {}", entry.getKey(), e);
                 }
             }
+
+            if (!migratedIds.isEmpty()) {
+                jedis.hdel(Reminder.LEGACY_TABLE, migratedIds.toArray(String[]::new));
+                jedis.zrem(Reminder.LEGACY_ZTABLE, migratedData.toArray(String[]::new));
+            }
+
+            log.info("Migrated {} of {} reminders to the new format", migratedIds.size(), legacy.size());
+        }
+    }
+
+    /**
+     * Moves reminders from the sets they were kept on when they were split by shard to their bucket.
+     * Only needs to run on one node. Reminders added to the old sets while this runs (by nodes that don't know about
+     * buckets yet) are moved the next time it does.
+     */
+    public static void migrateShards() {
+        try (var jedis = MantaroData.getDefaultJedisPool().getResource()) {
+            List<String> keys = new ArrayList<>();
+            var params = new ScanParams().match(SHARD_KEY_PREFIX + "*").count(100);
+            var cursor = ScanParams.SCAN_POINTER_START;
+            do {
+                var result = jedis.scan(cursor, params);
+                keys.addAll(result.getResult());
+                cursor = result.getCursor();
+            } while (!cursor.equals(ScanParams.SCAN_POINTER_START));
+
+            var moved = 0;
+            for (var key : keys) {
+                cursor = ScanParams.SCAN_POINTER_START;
+                do {
+                    var result = jedis.zscan(key, cursor, new ScanParams().count(BATCH));
+                    var pipeline = jedis.pipelined();
+                    for (Tuple member : result.getResult()) {
+                        var fullId = member.getElement();
+                        var userId = fullId.substring(fullId.indexOf(':') + 1);
+                        pipeline.zadd(key(userId), member.getScore(), fullId, ZAddParams.zAddParams().nx());
+                        pipeline.hdel(Reminder.hash(fullId), "shard");
+                        pipeline.zrem(key, fullId);
+                        moved++;
+                    }
+
+                    pipeline.sync();
+                    cursor = result.getCursor();
+                } while (!cursor.equals(ScanParams.SCAN_POINTER_START));
+            }
+
+            if (moved > 0) {
+                log.info("Moved {} reminders from {} shard sets to their buckets", moved, keys.size());
+            }
         }
     }
 }
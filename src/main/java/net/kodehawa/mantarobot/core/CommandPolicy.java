@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2016-2021 David Rubio Escares / Kodehawa
+ *
+ *  Mantaro is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  Mantaro is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Mantaro. If not, see http://www.gnu.org/licenses/
+ */
+
+package net.kodehawa.mantarobot.core;
+
+import net.dv8tion.jda.api.entities.Member;
+import net.kodehawa.mantarobot.core.CommandRegistry.CommandDisableLevel;
+import net.kodehawa.mantarobot.core.modules.commands.base.CommandCategory;
+import net.kodehawa.mantarobot.core.modules.commands.base.CommandPermission;
+import net.kodehawa.mantarobot.db.entities.helpers.GuildData;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * Immutable, pre-computed view of everything a guild has disabled, used to check whether a command can be ran.
+ * <br>Built once from {@link GuildData} (see {@link net.kodehawa.mantarobot.db.entities.DBGuild#getCommandPolicy()})
+ * instead of going through the lists in the guild data on every command.
+ * Ids are kept as sorted long arrays, so lookups don't need to turn a snowflake into a String.
+ */
+public class CommandPolicy {
+    private final Set<String> disabledCommands;
+    private final LongMap<Set<String>> channelDisabledCommands;
+    private final long[] disabledUsers;
+    private final long[] disabledChannels;
+    private final EnumSet<CommandCategory> disabledCategories;
+    private final LongMap<EnumSet<CommandCategory>> channelDisabledCategories;
+    private final long whitelistedRole;
+    private final long[] disabledRoles;
+    private final LongMap<Set<String>> roleDisabledCommands;
+    private final LongMap<EnumSet<CommandCategory>> roleDisabledCategories;
+
+    public CommandPolicy(@Nonnull GuildData data) {
+        this.disabledCommands = new HashSet<>(data.getDisabledCommands());
+        this.channelDisabledCommands = new LongMap<>(data.getChannelSpecificDisabledCommands(), HashSet::new);
+        this.disabledUsers = ids(data.getDisabledUsers());
+        this.disabledChannels = ids(data.getDisabledChannels());
+        this.disabledCategories = categories(data.getDisabledCategories());
+        this.channelDisabledCategories = new LongMap<>(data.getChannelSpecificDisabledCategories(), CommandPolicy::categories);
+        this.whitelistedRole = id(data.getWhitelistedRole());
+        this.disabledRoles = ids(data.getDisabledRoles());
+        this.roleDisabledCommands = new LongMap<>(data.getRoleSpecificDisabledCommands(), HashSet::new);
+        this.roleDisabledCategories = new LongMap<>(data.getRoleSpecificDisabledCategories(), CommandPolicy::categories);
+    }
+
+    /**
+     * Checks whether a member can run a command on a channel. Checks are done in the same order they always were,
+     * so the reason given is the same one the old check chain would've given.
+     *
+     * @param member The member running the command.
+     * @param channelId The channel the command is being ran on.
+     * @param command The name of the command (the original name, not the alias).
+     * @param category The category of the command. Can be null.
+     * @param isOptions Whether this is the opts command, which can't be disabled by channel or category.
+     * @return Null if the command can be ran. Otherwise, the reason why not.
+     *         {@link CommandDisableLevel#NONE} means the command can't be ran, but we shouldn't say why (whitelisted role).
+     */
+    @Nullable
+    public CommandDisableLevel check(@Nonnull Member member, long channelId, @Nonnull String command,
+                                     @Nullable CommandCategory category, boolean isOptions) {
+        if (disabledCommands.contains(command)) {
+            return CommandDisableLevel.COMMAND;
+        }
+
+        var channelCommands = channelDisabledCommands.get(channelId);
+        if (channelCommands != null && channelCommands.contains(command)) {
+            return CommandDisableLevel.COMMAND_SPECIFIC;
+        }
+
+        // Checking for admin isn't free, so only do it once, and only if something needs it.
+        int admin = -1;
+        if (contains(disabledUsers, member.getIdLong())) {
+            admin = isAdmin(member);
+            if (admin == 0) {
+                return CommandDisableLevel.USER;
+            }
+        }
+
+        if (!isOptions) {
+            if (contains(disabledChannels, channelId)) {
+                return CommandDisableLevel.CHANNEL;
+            }
+
+            if (category != null && disabledCategories.contains(category)) {
+                return CommandDisableLevel.CATEGORY;
+            }
+
+            var channelCategories = channelDisabledCategories.get(channelId);
+            if (category != null && channelCategories != null && channelCategories.contains(category)) {
+                return CommandDisableLevel.SPECIFIC_CATEGORY;
+            }
+        }
+
+        var checkWhitelist = whitelistedRole != 0 && member.getGuild().getRoleById(whitelistedRole) != null;
+        if (!checkWhitelist && disabledRoles.length == 0 && roleDisabledCommands.isEmpty() && roleDisabledCategories.isEmpty()) {
+            return null;
+        }
+
+        // Go through the member roles only once for every role check.
+        boolean whitelisted = false, disabledRole = false, disabledRoleCommand = false, disabledRoleCategory = false;
+        for (var role : member.getRoles()) {
+            var id = role.getIdLong();
+            whitelisted |= id == whitelistedRole;
+            disabledRole |= contains(disabledRoles, id);
+
+            var roleCommands = roleDisabledCommands.get(id);
+            disabledRoleCommand |= roleCommands != null && roleCommands.contains(command);
+
+            var roleCategories = roleDisabledCategories.get(id);
+            disabledRoleCategory |= category != null && roleCategories != null && roleCategories.contains(category);
+        }
+
+        if (!(checkWhitelist && !whitelisted) && !disabledRole && !disabledRoleCommand && !disabledRoleCategory) {
+            return null;
+        }
+
+        // Everything from here on doesn't apply to admins.
+        if (admin == -1) {
+            admin = isAdmin(member);
+        }
+
+        if (admin == 1) {
+            return null;
+        }
+
+        if (checkWhitelist && !whitelisted) {
+            return CommandDisableLevel.NONE;
+        }
+
+        if (disabledRole) {
+            return CommandDisableLevel.ROLE;
+        }
+
+        if (disabledRoleCommand) {
+            return CommandDisableLevel.SPECIFIC_ROLE;
+        }
+
+        return CommandDisableLevel.SPECIFIC_ROLE_CATEGORY;
+    }
+
+    private static int isAdmin(Member member) {
+        return CommandPermission.ADMIN.test(member) ? 1 : 0;
+    }
+
+    private static boolean contains(long[] sorted, long id) {
+        return sorted.length != 0 && Arrays.binarySearch(sorted, id) >= 0;
+    }
+
+    // Invalid ids (they're user input, in the end) are turned into 0, which no snowflake will ever match.
+    private static long id(String id) {
+        if (id == null) {
+            return 0;
+        }
+
+        try {
+            return Long.parseUnsignedLong(id);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static long[] ids(Collection<String> ids) {
+        var array = ids.stream()
+                .mapToLong(CommandPolicy::id)
+                .filter(id -> id != 0)
+                .toArray();
+
+        Arrays.sort(array);
+        return array;
+    }
+
+    private static EnumSet<CommandCategory> categories(Collection<CommandCategory> categories) {
+        var set = EnumSet.noneOf(CommandCategory.class);
+        for (var category : categories) {
+            // Categories that got removed come back as null.
+            if (category != null) {
+                set.add(category);
+            }
+        }
+
+        return set;
+    }
+
+    // Map of snowflake -> value, with the keys sorted for binary search.
+    private static class LongMap<V> {
+        private final long[] keys;
+        private final Object[] values;
+
+        private <T> LongMap(Map<String, T> map, Function<T, V> mapper) {
+            var entries = new TreeMap<Long, V>();
+            for (var entry : map.entrySet()) {
+                var id = id(entry.getKey());
+                if (id != 0 && entry.getValue() != null) {
+                    entries.put(id, mapper.apply(entry.getValue()));
+                }
+            }
+
+            this.keys = new long[entries.size()];
+            this.values = new Object[entries.size()];
+            int i = 0;
+            for (var entry : entries.entrySet()) {
+                keys[i] = entry.getKey();
+                values[i++] = entry.getValue();
+            }
+        }
+
+        @Nullable
+        @SuppressWarnings("unchecked")
+        private V get(long key) {
+            if (keys.length == 0) {
+                return null;
+            }
+
+            var index = Arrays.binarySearch(keys, key);
+            return index < 0 ? null : (V) values[index];
+        }
+
+        private boolean isEmpty() {
+            return keys.length == 0;
+        }
+    }
+}
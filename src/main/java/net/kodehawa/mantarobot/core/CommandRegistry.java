@@ -17,7 +17,6 @@
 package net.kodehawa.mantarobot.core;
 
 import com.google.common.base.Preconditions;
-import net.dv8tion.jda.api.entities.Member;
 import net.dv8tion.jda.api.events.message.guild.GuildMessageReceivedEvent;
 import net.kodehawa.mantarobot.commands.CustomCmds;
 import net.kodehawa.mantarobot.core.command.CommandManager;
@@ -33,7 +32,7 @@ import net.kodehawa.mantarobot.core.modules.commands.help.HelpContent;
 import net.kodehawa.mantarobot.core.modules.commands.i18n.I18nContext;
 import net.kodehawa.mantarobot.data.Config;
 import net.kodehawa.mantarobot.data.MantaroData;
-import net.kodehawa.mantarobot.db.entities.DBGuild;
+import net.kodehawa.mantarobot.db.EntityContext;
 import net.kodehawa.mantarobot.db.entities.helpers.GuildData;
 import net.kodehawa.mantarobot.options.core.Option;
 import net.kodehawa.mantarobot.utils.Utils;
@@ -43,7 +42,7 @@ import net.kodehawa.mantarobot.utils.exporters.Metrics;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.ArrayList;
+import javax.annotation.Nullable;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -71,17 +70,37 @@ public class CommandRegistry {
         return commands;
     }
 
+    /**
+     * @param cmdName What the user typed as the command name, lower-cased.
+     * @return The original name of the command, following aliases. Null if there's no such command.
+     */
+    @Nullable
+    public String resolveName(String cmdName) {
+        var command = commands.get(cmdName);
+        return command == null ? null : name(command, cmdName);
+    }
+
+    /**
+     * @param name The original name of a command, as given by {@link #resolveName(String)}.
+     * @return The category of the command, or null if it doesn't have one.
+     */
+    @Nullable
+    public CommandCategory resolveCategory(String name) {
+        var command = commands.get(name);
+        return command == null ? null : root(command).category();
+    }
+
     public Map<String, Command> getCommandsForCategory(CommandCategory category) {
         return commands.entrySet().stream()
                 .filter(cmd -> cmd.getValue().category() == category)
                 .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
     }
 
-    public void process(GuildMessageReceivedEvent event, DBGuild dbGuild, String cmdName, String content, String prefix, boolean isMention) {
-        final var managedDatabase = MantaroData.db();
+    public void process(GuildMessageReceivedEvent event, EntityContext entities, String cmdName, String content, String prefix, boolean isMention) {
         final var start = System.currentTimeMillis();
 
         var command = commands.get(cmdName.toLowerCase());
+        var dbGuild = entities.getDBGuild();
         var guildData = dbGuild.getData();
 
         if (command == null) {
@@ -95,7 +114,8 @@ public class CommandRegistry {
         // Variable used in lambda expression should be final or effectively final...
         final var cmd = command;
         final var guild = event.getGuild();
-        final var mantaroData = managedDatabase.getMantaroData();
+        // This loads the user, player, MantaroObj and premium keys in one go.
+        final var mantaroData = entities.getMantaroData();
 
         if (mantaroData.getBlackListedGuilds().contains(guild.getId())) {
             log.debug("Got command from blacklisted guild {}, dropping", guild.getId());
@@ -103,66 +123,15 @@ public class CommandRegistry {
         }
 
         // !! Permission check start
-        if (guildData.getDisabledCommands().contains(name(cmd, cmdName))) {
-            sendDisabledNotice(event, guildData, CommandDisableLevel.COMMAND);
-            return;
-        }
-
         final var member = event.getMember();
-        final var roles = member.getRoles();
-        final var channelDisabledCommands = guildData.getChannelSpecificDisabledCommands().get(channel.getId());
-        if (channelDisabledCommands != null && channelDisabledCommands.contains(name(cmd, cmdName))) {
-            sendDisabledNotice(event, guildData, CommandDisableLevel.COMMAND_SPECIFIC);
-            return;
-        }
-
-        if (guildData.getDisabledUsers().contains(author.getId()) && isNotAdmin(member)) {
-            sendDisabledNotice(event, guildData, CommandDisableLevel.USER);
-            return;
-        }
-
-        var isOptions = cmdName.equalsIgnoreCase("opts");
-        if (guildData.getDisabledChannels().contains(channel.getId()) && !isOptions) {
-            sendDisabledNotice(event, guildData, CommandDisableLevel.CHANNEL);
-            return;
-        }
-
-        if (guildData.getDisabledCategories().contains(root(cmd).category()) && !isOptions) {
-            sendDisabledNotice(event, guildData, CommandDisableLevel.CATEGORY);
-            return;
-        }
-
-        if (guildData.getChannelSpecificDisabledCategories().computeIfAbsent(
-                channel.getId(), c -> new ArrayList<>()).contains(root(cmd).category()) && !isOptions) {
-            sendDisabledNotice(event, guildData, CommandDisableLevel.SPECIFIC_CATEGORY);
-            return;
-        }
-
-        if (guildData.getWhitelistedRole() != null && isNotAdmin(member)) {
-            var whitelistedRole = guild.getRoleById(guildData.getWhitelistedRole());
-            if (whitelistedRole != null && roles.stream().noneMatch(r -> whitelistedRole.getId().equals(r.getId()))) {
-                return;
-            }
-            // else continue.
-        }
-
-        if (!guildData.getDisabledRoles().isEmpty() && roles.stream().anyMatch(
-                r -> guildData.getDisabledRoles().contains(r.getId())) && isNotAdmin(member)) {
-            sendDisabledNotice(event, guildData, CommandDisableLevel.ROLE);
-            return;
-        }
-
-        final var roleSpecificDisabledCommands = guildData.getRoleSpecificDisabledCommands();
-        if (roles.stream().anyMatch(r -> roleSpecificDisabledCommands.computeIfAbsent(
-                r.getId(), s -> new ArrayList<>()).contains(name(cmd, cmdName))) && isNotAdmin(member)) {
-            sendDisabledNotice(event, guildData, CommandDisableLevel.SPECIFIC_ROLE);
-            return;
-        }
+        final var isOptions = cmdName.equalsIgnoreCase("opts");
+        final var disableLevel = dbGuild.getCommandPolicy().check(
+                member, channel.getIdLong(), name(cmd, cmdName), root(cmd).category(), isOptions
+        );
 
-        final var roleSpecificDisabledCategories = guildData.getRoleSpecificDisabledCategories();
-        if (roles.stream().anyMatch(r -> roleSpecificDisabledCategories.computeIfAbsent(
-                r.getId(), s -> new ArrayList<>()).contains(root(cmd).category())) && isNotAdmin(member)) {
-            sendDisabledNotice(event, guildData, CommandDisableLevel.SPECIFIC_ROLE_CATEGORY);
+        if (disableLevel != null) {
+            // NONE means we shouldn't say why (whitelisted role), sendDisabledNotice handles that.
+            sendDisabledNotice(event, guildData, disableLevel);
             return;
         }
 
@@ -196,10 +165,10 @@ public class CommandRegistry {
         }
         // !! Permission check end
 
-        final var dbUser = managedDatabase.getUser(author);
+        final var dbUser = entities.getDBUser();
         final var userData = dbUser.getData();
-        final var currentKey = managedDatabase.getPremiumKey(userData.getPremiumKey());
-        final var guildKey = managedDatabase.getPremiumKey(guildData.getPremiumKey());
+        final var currentKey = entities.getUserKey();
+        final var guildKey = entities.getGuildKey();
         if (currentKey != null) {
             // 10 days before expiration or best fit.
             if (currentKey.validFor() <= 10 && currentKey.validFor() > 1) {
@@ -238,7 +207,7 @@ public class CommandRegistry {
         try {
             executedNew = newCommands.execute(new NewContext(event.getMessage(),
                     new I18nContext(guildData, userData),
-                    event.getMessage().getContentRaw().substring(prefix.length()))
+                    event.getMessage().getContentRaw().substring(prefix.length()), entities)
             );
         } catch (ArgumentParseError e) {
             if (e.getMessage() != null) {
@@ -254,7 +223,7 @@ public class CommandRegistry {
         }
 
         if (!executedNew) {
-            cmd.run(new Context(event, new I18nContext(guildData, userData), content, isMention), cmdName, content);
+            cmd.run(new Context(event, new I18nContext(guildData, userData), content, isMention, entities), cmdName, content);
         }
 
         commandLog.debug("Command: {}, User: {} ({}), Guild: {}, Channel: {}, Message: {}" ,
@@ -267,6 +236,7 @@ public class CommandRegistry {
         Metrics.CATEGORY_COUNTER.labels(category).inc();
         Metrics.COMMAND_COUNTER.labels(name(cmd, cmdName)).inc();
         Metrics.COMMAND_LATENCY.observe(end - start);
+        Metrics.COMMAND_DB_CALLS.labels(name(cmd, cmdName)).observe(entities.getDatabaseCalls());
     }
 
     public void register(Class<? extends NewCommand> clazz) {
@@ -296,10 +266,6 @@ public class CommandRegistry {
         register(alias, new AliasCommand(alias, command, parent));
     }
 
-    private boolean isNotAdmin(Member member) {
-        return !CommandPermission.ADMIN.test(member);
-    }
-
     public void sendDisabledNotice(GuildMessageReceivedEvent event, GuildData data, CommandDisableLevel level) {
         if (data.isCommandWarningDisplay() && level != CommandDisableLevel.NONE) {
             event.getChannel().sendMessageFormat("%sThis command is disabled on this server. Reason: %s",
@@ -35,9 +35,11 @@ import net.dv8tion.jda.api.utils.SessionController;
 import net.dv8tion.jda.api.utils.cache.CacheFlag;
 import net.kodehawa.mantarobot.ExtraRuntimeOptions;
 import net.kodehawa.mantarobot.MantaroBot;
+import net.kodehawa.mantarobot.commands.moderation.MuteTask;
 import net.kodehawa.mantarobot.commands.music.listener.VoiceChannelListener;
 import net.kodehawa.mantarobot.core.cache.EvictingCachePolicy;
 import net.kodehawa.mantarobot.core.command.processor.CommandProcessor;
+import net.kodehawa.mantarobot.core.command.processor.CommandScheduler;
 import net.kodehawa.mantarobot.core.listeners.MantaroListener;
 import net.kodehawa.mantarobot.core.listeners.command.CommandListener;
 import net.kodehawa.mantarobot.core.listeners.events.PostLoadEvent;
@@ -72,7 +74,7 @@ import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
 import static net.kodehawa.mantarobot.core.LoadState.*;
-import static net.kodehawa.mantarobot.core.cache.EvictionStrategy.leastRecentlyUsed;
+import static net.kodehawa.mantarobot.core.cache.EvictionStrategy.windowTinyLfu;
 import static net.kodehawa.mantarobot.utils.ShutdownCodes.SHARD_FETCH_FAILURE;
 
 public class MantaroCore {
@@ -81,6 +83,8 @@ public class MantaroCore {
 
     private static LoadState loadState = PRELOAD;
     private final Map<Integer, Shard> shards = new ConcurrentHashMap<>();
+    // Ids of every shard this node runs. Shards on the map above are only created once they start.
+    private volatile List<Integer> shardIds = List.of();
     private final ExecutorService threadPool = Executors.newCachedThreadPool(
             new ThreadFactoryBuilder().setNameFormat("Mantaro Thread-%d").build()
     );
@@ -89,6 +93,7 @@ public class MantaroCore {
     private String commandsPackage;
     private String optsPackage;
     private final CommandProcessor commandProcessor = new CommandProcessor();
+    private final CommandScheduler commandScheduler;
     private EventBus shardEventBus;
     private ShardManager shardManager;
 
@@ -96,6 +101,10 @@ public class MantaroCore {
         this.config = config;
         this.isDebug = isDebug;
         Metrics.THREAD_POOL_COLLECTOR.add("mantaro-executor", threadPool);
+        this.commandScheduler = new CommandScheduler(
+                config.getCommandWorkers(), config.getCommandQueueSize(),
+                config.getCommandQueueSizePerGuild(), config.getCommandQueueSizePerUser()
+        );
     }
 
 
@@ -221,8 +230,8 @@ public class MantaroCore {
                             shardStartListener
                     )
                     .addEventListenerProviders(List.of(
-                            id -> new CommandListener(commandProcessor, threadPool, getShard(id).getMessageCache()),
-                            id -> new MantaroListener(threadPool, getShard(id).getMessageCache()),
+                            id -> new CommandListener(commandProcessor, commandScheduler, getShard(id).getMessageStore()),
+                            id -> new MantaroListener(threadPool, getShard(id).getMessageStore()),
                             id -> getShard(id).getListener()
                     ))
                     .setEventManagerProvider(id -> getShard(id).getManager())
@@ -296,8 +305,12 @@ public class MantaroCore {
                 throw new IllegalStateException("Shard ids list must have the same size as latch count");
             }
 
-            // Use a LRU cache policy.
-            shardManager.setMemberCachePolicy(new EvictingCachePolicy(shardIds, () -> leastRecentlyUsed(config.memberCacheSize)));
+            this.shardIds = List.copyOf(shardIds);
+
+            // Use a W-TinyLFU cache policy. It needs to see messages and leaves to know who's active and who's gone.
+            var memberCachePolicy = new EvictingCachePolicy(shardIds, () -> windowTinyLfu(config.memberCacheSize));
+            shardManager.setMemberCachePolicy(memberCachePolicy)
+                    .addEventListeners(memberCachePolicy);
     
             MantaroCore.setLoadState(LoadState.LOADING_SHARDS);
 
@@ -396,6 +409,10 @@ public class MantaroCore {
         return Collections.unmodifiableCollection(shards.values());
     }
 
+    public List<Integer> getShardIds() {
+        return shardIds;
+    }
+
     private Set<Class<?>> lookForAnnotatedOn(String packageName, Class<? extends Annotation> annotation) {
         return new ClassGraph()
                 .acceptPackages(packageName)
@@ -431,6 +448,9 @@ public class MantaroCore {
         // Start the reconnect queue.
         bot.getCore().markAsReady();
 
+        // Not any earlier: until the shards are ready, every guild looks unavailable.
+        MuteTask.start(getShardIds());
+
         // Get the amount of clusters
         int clusterTotal = 1;
         try(var jedis = MantaroData.getDefaultJedisPool().getResource()) {
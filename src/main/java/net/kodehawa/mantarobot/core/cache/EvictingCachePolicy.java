@@ -16,7 +16,14 @@
 
 package net.kodehawa.mantarobot.core.cache;
 
+import io.prometheus.client.Histogram;
+import net.dv8tion.jda.api.JDA;
 import net.dv8tion.jda.api.entities.Member;
+import net.dv8tion.jda.api.events.GenericEvent;
+import net.dv8tion.jda.api.events.guild.GuildLeaveEvent;
+import net.dv8tion.jda.api.events.guild.member.GuildMemberRemoveEvent;
+import net.dv8tion.jda.api.events.message.guild.GuildMessageReceivedEvent;
+import net.dv8tion.jda.api.hooks.EventListener;
 import net.dv8tion.jda.api.utils.MemberCachePolicy;
 import org.jetbrains.annotations.NotNull;
 import org.slf4j.Logger;
@@ -26,19 +33,34 @@ import java.util.Collections;
 import java.util.List;
 import java.util.function.Supplier;
 
-public class EvictingCachePolicy implements MemberCachePolicy {
+/**
+ * Keeps a limited amount of members cached per shard, deciding who goes with an {@link EvictionStrategy}.
+ * <br>Also needs to be registered as a listener: messages tell the strategy who's active, and members leaving (or us
+ * leaving a guild) let it forget them. We keep track of which guilds we cached every member on, so evicting someone
+ * only looks at those.
+ */
+public class EvictingCachePolicy implements MemberCachePolicy, EventListener {
     private static final Logger log = LoggerFactory.getLogger(EvictingCachePolicy.class);
+    private static final Histogram evictionGuilds = Histogram.build()
+            .name("member_eviction_guilds")
+            .help("Guilds a member had to be unloaded from when evicting it")
+            .buckets(0, 1, 2, 3, 5, 10, 20)
+            .register();
     
     private final EvictionStrategy[] strategies;
+    private final MemberGuildIndex[] indexes;
     
     public EvictingCachePolicy(List<Integer> shardIds, Supplier<EvictionStrategy> strategySupplier) {
         var strategy = new EvictionStrategy[Collections.max(shardIds) + 1];
+        var index = new MemberGuildIndex[strategy.length];
 
         for (var id : shardIds) {
             strategy[id] = strategySupplier.get();
+            index[id] = new MemberGuildIndex();
         }
 
         this.strategies = strategy;
+        this.indexes = index;
     }
     
     @Override
@@ -49,6 +71,7 @@ public class EvictingCachePolicy implements MemberCachePolicy {
         }
 
         long evict;
+        long[] evictFrom = null;
         // This can be called from ws threads or requester threads
         var shard = member.getJDA().getShardInfo().getShardId();
         var strategy = strategies[shard];
@@ -58,27 +81,92 @@ public class EvictingCachePolicy implements MemberCachePolicy {
             return true;
         }
 
+        var index = indexes[shard];
         //noinspection SynchronizationOnLocalVariableOrMethodParameter
         synchronized(strategy) {
+            index.add(member.getIdLong(), member.getGuild().getIdLong());
             evict = strategy.cache(member.getIdLong());
+            if (evict != EvictionStrategy.NO_REMOVAL_NEEDED) {
+                evictFrom = index.remove(evict);
+            }
         }
 
-        // The strategy contains only members that were added to this shard
-        // So removing shouldn't fail
-        if (evict != EvictionStrategy.NO_REMOVAL_NEEDED) {
-            member.getJDA().getGuildCache().forEach(g -> {
-                var evicted = g.getMemberById(evict);
+        // Only the guilds we cached them on, and outside of the lock.
+        if (evictFrom != null) {
+            evictionGuilds.observe(evictFrom.length);
+            for (var guildId : evictFrom) {
+                var guild = member.getJDA().getGuildById(guildId);
+                if (guild == null) {
+                    continue;
+                }
+
+                var evicted = guild.getMemberById(evict);
                 if (evicted == null) {
-                    return;
+                    continue;
                 }
 
                 // Only remove if voice state is null, or channel in the voice state is null.
                 if (evicted.getVoiceState() == null || evicted.getVoiceState().getChannel() == null) {
-                    g.unloadMember(evict);
+                    guild.unloadMember(evict);
                 }
-            });
+            }
         }
 
         return true;
     }
+
+    @Override
+    public void onEvent(@NotNull GenericEvent event) {
+        if (event instanceof GuildMessageReceivedEvent) {
+            var message = (GuildMessageReceivedEvent) event;
+            if (message.isWebhookMessage()) {
+                return;
+            }
+
+            var strategy = strategy(event.getJDA());
+            if (strategy != null) {
+                //noinspection SynchronizationOnLocalVariableOrMethodParameter
+                synchronized(strategy) {
+                    strategy.access(message.getAuthor().getIdLong());
+                }
+            }
+
+            return;
+        }
+
+        if (event instanceof GuildMemberRemoveEvent) {
+            var remove = (GuildMemberRemoveEvent) event;
+            forget(event.getJDA(), remove.getUser().getIdLong(), remove.getGuild().getIdLong());
+            return;
+        }
+
+        if (event instanceof GuildLeaveEvent) {
+            forget(event.getJDA(), EvictionStrategy.NO_REMOVAL_NEEDED, ((GuildLeaveEvent) event).getGuild().getIdLong());
+        }
+    }
+
+    // Forgets a member on a guild, or everyone on it if userId is 0.
+    private void forget(JDA jda, long userId, long guildId) {
+        var strategy = strategy(jda);
+        if (strategy == null) {
+            return;
+        }
+
+        var index = indexes[jda.getShardInfo().getShardId()];
+        //noinspection SynchronizationOnLocalVariableOrMethodParameter
+        synchronized(strategy) {
+            if (userId == EvictionStrategy.NO_REMOVAL_NEEDED) {
+                for (var gone : index.removeGuild(guildId)) {
+                    strategy.remove(gone);
+                }
+            } else if (index.remove(userId, guildId)) {
+                strategy.remove(userId);
+            }
+        }
+    }
+
+    private EvictionStrategy strategy(JDA jda) {
+        var shard = jda.getShardInfo().getShardId();
+        return shard < strategies.length ? strategies[shard] : null;
+    }
 }
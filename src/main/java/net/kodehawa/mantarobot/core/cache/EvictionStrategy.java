@@ -33,6 +33,21 @@ public interface EvictionStrategy {
      */
     @CheckReturnValue
     long cache(long id);
+
+    /**
+     * Tells the strategy a member it might be keeping was active, so it can keep them around for longer.
+     * Strategies that don't care about that can ignore it.
+     *
+     * @param id ID of the member.
+     */
+    default void access(long id) { }
+
+    /**
+     * Tells the strategy a member isn't cached anymore (they left every guild we had them on), so it can forget them.
+     *
+     * @param id ID to forget.
+     */
+    default void remove(long id) { }
     
     @Nonnull
     @CheckReturnValue
@@ -54,6 +69,20 @@ public interface EvictionStrategy {
         };
     }
     
+    /**
+     * W-TinyLFU, see {@link WindowTinyLfu}. Keeps the members we see the most, instead of the ones we saw last.
+     *
+     * @param size How many members to keep.
+     */
+    @Nonnull
+    @CheckReturnValue
+    static EvictionStrategy windowTinyLfu(@Nonnegative int size) {
+        if (size < 1)
+            throw new IllegalArgumentException("Size must be at least 1");
+
+        return new WindowTinyLfu(size);
+    }
+    
     private static int inc(int i, int modulus) {
         if (++i >= modulus) i = 0;
         return i;
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2016-2021 David Rubio Escares / Kodehawa
+ *
+ *  Mantaro is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  Mantaro is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Mantaro. If not, see http://www.gnu.org/licenses/
+ */
+
+package net.kodehawa.mantarobot.core.cache;
+
+/**
+ * Roughly how often we've seen an id lately, in a fixed amount of memory (a count-min sketch of 4 bit counters, the
+ * same one Caffeine uses for TinyLFU).
+ * <br>Every counter is halved once we've counted ten times as many things as the cache holds, so what used to be
+ * popular doesn't stick around forever.
+ */
+final class FrequencySketch {
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+    };
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final long ONE_MASK = 0x1111111111111111L;
+
+    private final long[] table;
+    private final int tableMask;
+    private final int sampleSize;
+    private int additions;
+
+    /**
+     * @param size How many things the cache using this holds.
+     */
+    FrequencySketch(int size) {
+        var length = Math.max(8, Integer.highestOneBit(Math.max(1, size - 1)) << 1);
+        this.table = new long[length];
+        this.tableMask = length - 1;
+        this.sampleSize = Math.max(10, 10 * size);
+    }
+
+    /**
+     * @return How many times we've seen the id lately, up to 15.
+     */
+    int frequency(long id) {
+        var hash = spread(id);
+        var start = (hash & 3) << 2;
+        var frequency = Integer.MAX_VALUE;
+        for (var i = 0; i < 4; i++) {
+            var index = indexOf(hash, i);
+            var count = (int) ((table[index] >>> ((start + i) << 2)) & 0xfL);
+            frequency = Math.min(frequency, count);
+        }
+
+        return frequency;
+    }
+
+    void increment(long id) {
+        var hash = spread(id);
+        var start = (hash & 3) << 2;
+        var added = false;
+        for (var i = 0; i < 4; i++) {
+            added |= incrementAt(indexOf(hash, i), start + i);
+        }
+
+        if (added && ++additions == sampleSize) {
+            reset();
+        }
+    }
+
+    // Bumps one of the 16 counters on a slot, unless it's maxed out already.
+    private boolean incrementAt(int index, int counter) {
+        var offset = counter << 2;
+        var mask = 0xfL << offset;
+        if ((table[index] & mask) != mask) {
+            table[index] += 1L << offset;
+            return true;
+        }
+
+        return false;
+    }
+
+    // Halves every counter.
+    private void reset() {
+        var odd = 0;
+        for (var i = 0; i < table.length; i++) {
+            odd += Long.bitCount(table[i] & ONE_MASK);
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+
+        additions = (additions >>> 1) - (odd >>> 2);
+    }
+
+    private int indexOf(int hash, int i) {
+        var index = (hash + SEEDS[i]) * SEEDS[i];
+        index += index >>> 32;
+        return ((int) index) & tableMask;
+    }
+
+    // Snowflakes are far from random on their lower bits, mix them up first.
+    private static int spread(long id) {
+        id = (id ^ (id >>> 33)) * 0xff51afd7ed558ccdL;
+        id = (id ^ (id >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return (int) (id ^ (id >>> 33));
+    }
+}
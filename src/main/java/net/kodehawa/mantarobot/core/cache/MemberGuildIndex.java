@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2016-2021 David Rubio Escares / Kodehawa
+ *
+ *  Mantaro is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  Mantaro is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Mantaro. If not, see http://www.gnu.org/licenses/
+ */
+
+package net.kodehawa.mantarobot.core.cache;
+
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.map.hash.TLongObjectHashMap;
+
+import javax.annotation.Nonnull;
+import java.util.Arrays;
+
+/**
+ * Which guilds we've cached a member on, so evicting them only has to look at those instead of every guild on the shard.
+ * <br>Most people share a single guild with us on a shard, so guilds are kept on plain arrays. Not thread safe.
+ */
+public class MemberGuildIndex {
+    private static final long[] NONE = new long[0];
+
+    private final TLongObjectHashMap<long[]> guilds = new TLongObjectHashMap<>();
+
+    public void add(long userId, long guildId) {
+        var current = guilds.get(userId);
+        if (current == null) {
+            guilds.put(userId, new long[] { guildId });
+            return;
+        }
+
+        for (var id : current) {
+            if (id == guildId) {
+                return;
+            }
+        }
+
+        var updated = Arrays.copyOf(current, current.length + 1);
+        updated[current.length] = guildId;
+        guilds.put(userId, updated);
+    }
+
+    /**
+     * Forgets a member on a single guild.
+     *
+     * @return Whether we don't have the user on any guild anymore.
+     */
+    public boolean remove(long userId, long guildId) {
+        var current = guilds.get(userId);
+        if (current == null) {
+            return false;
+        }
+
+        for (var i = 0; i < current.length; i++) {
+            if (current[i] != guildId) {
+                continue;
+            }
+
+            if (current.length == 1) {
+                guilds.remove(userId);
+                return true;
+            }
+
+            var updated = new long[current.length - 1];
+            System.arraycopy(current, 0, updated, 0, i);
+            System.arraycopy(current, i + 1, updated, i, updated.length - i);
+            guilds.put(userId, updated);
+            return false;
+        }
+
+        return false;
+    }
+
+    /**
+     * Forgets a user on every guild.
+     *
+     * @return The guilds we had them on.
+     */
+    @Nonnull
+    public long[] remove(long userId) {
+        var removed = guilds.remove(userId);
+        return removed == null ? NONE : removed;
+    }
+
+    /**
+     * Forgets every member of a guild.
+     *
+     * @return The users we don't have on any guild anymore.
+     */
+    @Nonnull
+    public long[] removeGuild(long guildId) {
+        var gone = new TLongArrayList();
+        // Only happens when we leave a guild, so going through everyone is fine.
+        for (var userId : guilds.keys()) {
+            if (remove(userId, guildId)) {
+                gone.add(userId);
+            }
+        }
+
+        return gone.toArray();
+    }
+
+    /**
+     * @return The guilds we have a user on.
+     */
+    @Nonnull
+    public long[] get(long userId) {
+        var current = guilds.get(userId);
+        return current == null ? NONE : current;
+    }
+
+    /**
+     * @return How many users we have on at least one guild.
+     */
+    public int size() {
+        return guilds.size();
+    }
+}
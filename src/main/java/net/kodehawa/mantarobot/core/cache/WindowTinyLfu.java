@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2016-2021 David Rubio Escares / Kodehawa
+ *
+ *  Mantaro is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  Mantaro is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Mantaro. If not, see http://www.gnu.org/licenses/
+ */
+
+package net.kodehawa.mantarobot.core.cache;
+
+import gnu.trove.map.hash.TLongIntHashMap;
+
+/**
+ * W-TinyLFU: new members go to a small LRU window, and once they fall off it they only make it to the main cache if
+ * we've seen them more often than the member they'd push out. Members seen again while on the main cache get
+ * protected, so a raid or a big member list being loaded once can't push out the people that actually talk.
+ * <br>Everything lives on arrays (linked lists by slot), so keeping members around doesn't make garbage.
+ */
+final class WindowTinyLfu implements EvictionStrategy {
+    private static final int NONE = -1;
+    private static final byte WINDOW = 0;
+    private static final byte PROBATION = 1;
+    private static final byte PROTECTED = 2;
+
+    private final FrequencySketch sketch;
+    private final TLongIntHashMap slots;
+    private final long[] ids;
+    private final int[] previous;
+    private final int[] next;
+    private final byte[] queues;
+    // Head (most recent) and tail (least recent) of every queue, and how many members are on them.
+    private final int[] heads = { NONE, NONE, NONE };
+    private final int[] tails = { NONE, NONE, NONE };
+    private final int[] sizes = new int[3];
+    private final int windowMax;
+    private final int mainMax;
+    private final int protectedMax;
+    private int free = NONE;
+    private int used;
+
+    WindowTinyLfu(int size) {
+        // Same split Caffeine starts with: 1% window, 99% main, of which 80% is protected.
+        this.windowMax = Math.max(1, size / 100);
+        this.mainMax = size - windowMax;
+        this.protectedMax = mainMax * 8 / 10;
+        this.sketch = new FrequencySketch(size);
+        this.slots = new TLongIntHashMap(size * 2, 0.5f, NO_REMOVAL_NEEDED, NONE);
+        // One more than we keep, as a new member goes in before someone is pushed out.
+        this.ids = new long[size + 1];
+        this.previous = new int[size + 1];
+        this.next = new int[size + 1];
+        this.queues = new byte[size + 1];
+    }
+
+    @Override
+    public long cache(long id) {
+        if (slots.containsKey(id)) {
+            access(id);
+            return NO_REMOVAL_NEEDED;
+        }
+
+        sketch.increment(id);
+        var slot = allocate(id);
+        push(WINDOW, slot);
+        if (sizes[WINDOW] <= windowMax) {
+            return NO_REMOVAL_NEEDED;
+        }
+
+        // Someone falls off the window, they either make it to the main cache or get pushed out.
+        var candidate = tails[WINDOW];
+        unlink(candidate);
+        if (sizes[PROBATION] + sizes[PROTECTED] < mainMax) {
+            push(PROBATION, candidate);
+            return NO_REMOVAL_NEEDED;
+        }
+
+        // Only empty when there's no main cache at all (tiny sizes).
+        var victim = tails[PROBATION] != NONE ? tails[PROBATION] : tails[PROTECTED];
+        if (victim != NONE && sketch.frequency(ids[candidate]) > sketch.frequency(ids[victim])) {
+            push(PROBATION, candidate);
+            return release(victim);
+        }
+
+        return release(candidate);
+    }
+
+    @Override
+    public void access(long id) {
+        sketch.increment(id);
+        var slot = slots.get(id);
+        if (slot == NONE) {
+            return;
+        }
+
+        var queue = queues[slot];
+        unlink(slot);
+        if (queue == WINDOW) {
+            push(WINDOW, slot);
+            return;
+        }
+
+        push(PROTECTED, slot);
+        // Too many protected members, the least recent one goes back to probation.
+        if (sizes[PROTECTED] > protectedMax) {
+            var demoted = tails[PROTECTED];
+            unlink(demoted);
+            push(PROBATION, demoted);
+        }
+    }
+
+    @Override
+    public void remove(long id) {
+        var slot = slots.get(id);
+        if (slot != NONE) {
+            release(slot);
+        }
+    }
+
+    private int allocate(long id) {
+        int slot;
+        if (free != NONE) {
+            slot = free;
+            free = next[slot];
+        } else {
+            slot = used++;
+        }
+
+        ids[slot] = id;
+        slots.put(id, slot);
+        return slot;
+    }
+
+    // Frees a slot, returning the id that was on it.
+    private long release(int slot) {
+        if (queues[slot] != NONE) {
+            unlink(slot);
+        }
+
+        var id = ids[slot];
+        slots.remove(id);
+        next[slot] = free;
+        free = slot;
+        return id;
+    }
+
+    private void push(byte queue, int slot) {
+        queues[slot] = queue;
+        previous[slot] = NONE;
+        next[slot] = heads[queue];
+        if (heads[queue] != NONE) {
+            previous[heads[queue]] = slot;
+        } else {
+            tails[queue] = slot;
+        }
+
+        heads[queue] = slot;
+        sizes[queue]++;
+    }
+
+    private void unlink(int slot) {
+        var queue = queues[slot];
+        if (previous[slot] != NONE) {
+            next[previous[slot]] = next[slot];
+        } else {
+            heads[queue] = next[slot];
+        }
+
+        if (next[slot] != NONE) {
+            previous[next[slot]] = previous[slot];
+        } else {
+            tails[queue] = previous[slot];
+        }
+
+        queues[slot] = NONE;
+        sizes[queue]--;
+    }
+}
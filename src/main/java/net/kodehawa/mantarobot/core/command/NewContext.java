@@ -29,6 +29,7 @@ import net.kodehawa.mantarobot.core.command.argument.split.StringSplitter;
 import net.kodehawa.mantarobot.core.modules.commands.i18n.I18nContext;
 import net.kodehawa.mantarobot.data.Config;
 import net.kodehawa.mantarobot.data.MantaroData;
+import net.kodehawa.mantarobot.db.EntityContext;
 import net.kodehawa.mantarobot.db.ManagedDatabase;
 import net.kodehawa.mantarobot.db.entities.DBGuild;
 import net.kodehawa.mantarobot.db.entities.DBUser;
@@ -51,15 +52,21 @@ public class NewContext {
     private final Message message;
     private final I18nContext i18n;
     private final Arguments args;
+    private final EntityContext entities;
 
-    private NewContext(@Nonnull Message message, @Nonnull I18nContext i18n, @Nonnull Arguments args) {
+    private NewContext(@Nonnull Message message, @Nonnull I18nContext i18n, @Nonnull Arguments args, @Nullable EntityContext entities) {
         this.message = message;
         this.i18n = i18n;
         this.args = args;
+        this.entities = entities;
     }
 
     public NewContext(@Nonnull Message message, @Nonnull I18nContext i18n, @Nonnull String contentAfterPrefix) {
-        this(message, i18n, new Arguments(SPLITTER.split(contentAfterPrefix), 0));
+        this(message, i18n, contentAfterPrefix, null);
+    }
+
+    public NewContext(@Nonnull Message message, @Nonnull I18nContext i18n, @Nonnull String contentAfterPrefix, @Nullable EntityContext entities) {
+        this(message, i18n, new Arguments(SPLITTER.split(contentAfterPrefix), 0), entities);
     }
 
     public Arguments arguments() {
@@ -67,7 +74,7 @@ public class NewContext {
     }
 
     public NewContext snapshot() {
-        return new NewContext(message, i18n, args.snapshot());
+        return new NewContext(message, i18n, args.snapshot(), entities);
     }
 
     /**
@@ -346,10 +353,18 @@ public class NewContext {
     }
 
     public DBGuild getDBGuild() {
+        if (hasEntities()) {
+            return entities.getDBGuild();
+        }
+
         return managedDatabase.getGuild(getGuild());
     }
 
     public DBUser getDBUser() {
+        if (hasEntities()) {
+            return entities.getDBUser();
+        }
+
         return managedDatabase.getUser(getUser());
     }
 
@@ -366,6 +381,10 @@ public class NewContext {
     }
 
     public Player getPlayer() {
+        if (hasEntities()) {
+            return entities.getPlayer();
+        }
+
         return managedDatabase.getPlayer(getUser());
     }
 
@@ -400,4 +419,9 @@ public class NewContext {
     public User getAuthor() {
         return message.getAuthor();
     }
+
+    // Entities loaded by the command dispatcher, only valid while the command is running.
+    private boolean hasEntities() {
+        return entities != null && entities.isOpen();
+    }
 }
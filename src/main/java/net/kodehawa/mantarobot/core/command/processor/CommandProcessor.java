@@ -19,72 +19,107 @@ package net.kodehawa.mantarobot.core.command.processor;
 import io.prometheus.client.Histogram;
 import net.dv8tion.jda.api.events.message.guild.GuildMessageReceivedEvent;
 import net.kodehawa.mantarobot.core.CommandRegistry;
+import net.kodehawa.mantarobot.core.modules.commands.base.CommandCategory;
 import net.kodehawa.mantarobot.data.MantaroData;
+import net.kodehawa.mantarobot.db.EntityContext;
+
+import javax.annotation.Nullable;
+import java.util.Set;
 
 import static net.kodehawa.mantarobot.utils.StringUtils.splitArgs;
 
 public class CommandProcessor {
     public static final CommandRegistry REGISTRY = new CommandRegistry();
+    public static final UserLocks USER_LOCKS = new UserLocks();
+    // Commands that are heavy and not time-sensitive, queued on the low priority lane.
+    private static final Set<String> LOW_PRIORITY = Set.of("leaderboard");
     private static final Histogram commandTime = Histogram.build()
             .name("command_time").help("Time it takes for a command to be ran.")
             .register();
 
+    // Prefixes every guild has. Used when we don't have the guild at hand.
+    private final PrefixMatcher globalPrefixes = PrefixMatcher.of(MantaroData.config().get(), null);
+
+    /**
+     * Checks whether a message could be a command, without going to the database. Safe to call from the gateway thread.
+     *
+     * @param event The message.
+     * @return Null if the message is surely not a command. Otherwise, the lane the command should be queued on.
+     *         If we'd need to request the guild to know, it's treated as a command.
+     */
+    @Nullable
+    public CommandScheduler.Lane classify(GuildMessageReceivedEvent event) {
+        var content = event.getMessage().getContentRaw();
+        var match = globalPrefixes.match(content);
+        if (match == null) {
+            var dbGuild = MantaroData.db().getCachedGuild(event.getGuild().getId());
+            // If we don't have the guild, we don't know its custom prefix.
+            if (dbGuild == null) {
+                return CommandScheduler.Lane.NORMAL;
+            }
+
+            match = dbGuild.getPrefixMatcher().match(content);
+            if (match == null) {
+                return null;
+            }
+        }
+
+        var name = REGISTRY.resolveName(commandName(content, match.getPrefix().length()));
+        if (name == null) {
+            // Custom commands, or something that isn't a command at all.
+            return CommandScheduler.Lane.NORMAL;
+        }
+
+        if (LOW_PRIORITY.contains(name)) {
+            return CommandScheduler.Lane.LOW;
+        }
+
+        return REGISTRY.resolveCategory(name) == CommandCategory.MUSIC ? CommandScheduler.Lane.HIGH : CommandScheduler.Lane.NORMAL;
+    }
+
+    // The first word after the prefix, lower-cased.
+    private static String commandName(String content, int start) {
+        var end = start;
+        while (end < content.length() && !Character.isWhitespace(content.charAt(end))) {
+            end++;
+        }
+
+        return content.substring(start, end).toLowerCase();
+    }
+
     public boolean run(GuildMessageReceivedEvent event) {
         final long start = System.currentTimeMillis();
-        final var config = MantaroData.config().get();
         // The command executed, in raw form.
         var rawCmd = event.getMessage().getContentRaw();
-        // Lower-case raw cmd check, only used for prefix checking.
-        final var lowerRawCmd = rawCmd.toLowerCase();
-
-        // Mantaro prefixes.
-        String[] prefix = config.prefix;
-        // Guild-specific prefix.
-        final var dbGuild = MantaroData.db().getGuild(event.getGuild());
-        var customPrefix = dbGuild.getData().getGuildCustomPrefix();
-        // Possible mentions
-        boolean isMention = false;
-        String[] mentionPrefixes = {
-                "<@%s> ".formatted(config.getClientId()),
-                "<@!%s> ".formatted(config.getClientId())
-        };
+        // Entities needed to run the command. Nothing is requested from the database until something asks for it.
+        final var entities = EntityContext.of(event);
 
         // What prefix did this person use.
-        String usedPrefix = null;
-        for (String mention : mentionPrefixes) {
-            if (lowerRawCmd.startsWith(mention)) {
-                usedPrefix = mention;
-                isMention = true;
-            }
-        }
-
-        for (String s : prefix) {
-            if (lowerRawCmd.startsWith(s)) {
-                usedPrefix = s;
+        // The guild is only needed (for its custom prefix) if none of the global prefixes matched.
+        var match = globalPrefixes.match(rawCmd);
+        if (match == null) {
+            match = entities.getDBGuild().getPrefixMatcher().match(rawCmd);
+            if (match == null) {
+                return false;
             }
         }
 
         // Remove prefix from arguments.
-        if (usedPrefix != null && lowerRawCmd.startsWith(usedPrefix.toLowerCase())) {
-            rawCmd = rawCmd.substring(usedPrefix.length());
-        } else if (customPrefix != null && lowerRawCmd.startsWith(customPrefix.toLowerCase())) {
-            rawCmd = rawCmd.substring(customPrefix.length());
-            usedPrefix = customPrefix;
-        } else if (usedPrefix == null) {
-            return false;
-        }
-
-        // This could be done using a lock, but that would be a little too blocking. So just set a flag.
-        try (var jedis = MantaroData.getDefaultJedisPool().getResource()) {
-            jedis.set("commands-running-" + event.getAuthor().getId(), String.valueOf(1));
-        }
+        final var usedPrefix = match.getPrefix();
+        final var isMention = match.isMention();
+        rawCmd = rawCmd.substring(usedPrefix.length());
 
         // The command arguments to parse.
         String[] parts = splitArgs(rawCmd, 2);
         String cmdName = parts[0], content = parts[1];
 
         // Run the actual command here.
-        REGISTRY.process(event, dbGuild, cmdName, content, usedPrefix, isMention);
+        // The user lock keeps experience from being given while the command runs, as both could save the player.
+        try (var ignored = USER_LOCKS.command(event.getAuthor().getIdLong())) {
+            REGISTRY.process(event, entities, cmdName, content, usedPrefix, isMention);
+        } finally {
+            entities.close();
+        }
 
         final long end = System.currentTimeMillis();
         commandTime.observe(end - start);
@@ -0,0 +1,510 @@
+/*
+ * Copyright (C) 2016-2021 David Rubio Escares / Kodehawa
+ *
+ *  Mantaro is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  Mantaro is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Mantaro. If not, see http://www.gnu.org/licenses/
+ */
+
+package net.kodehawa.mantarobot.core.command.processor;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import io.prometheus.client.Histogram;
+import net.kodehawa.mantarobot.utils.exporters.Metrics;
+
+import javax.annotation.Nonnull;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs commands on a fixed amount of workers, instead of spawning a thread for every message.
+ * <br>Queued commands are handed out by lane first (see {@link Lane}, busier lanes get more turns but every lane gets some),
+ * then round-robin between the guilds that have something queued, and then round-robin between the users of that guild. A guild (or a user) spamming commands only
+ * makes its own commands wait, not everyone else's.
+ * <br>Once too many commands are queued, new ones are rejected instead of queued (low priority lanes first),
+ * so we don't keep piling up work we won't be able to run in a reasonable time.
+ */
+public class CommandScheduler {
+    private static final Gauge queueDepth = Gauge.build()
+            .name("command_queue_depth").help("Commands waiting for a worker, by lane")
+            .labelNames("lane")
+            .register();
+    private static final Histogram waitTime = Histogram.build()
+            .name("command_queue_wait_time").help("Time commands spent waiting for a worker, in milliseconds, by lane")
+            .labelNames("lane")
+            .buckets(1, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000)
+            .register();
+    private static final Counter rejected = Counter.build()
+            .name("command_queue_rejected").help("Commands rejected because too many were queued, by lane and reason (global/guild/user)")
+            .labelNames("lane", "reason")
+            .register();
+
+    private final ThreadPoolExecutor workers;
+
+    /**
+     * @param workers How many commands can run at the same time.
+     * @param maxQueued How many commands can be waiting for a worker. Lower priority lanes get a fraction of this.
+     * @param maxQueuedPerGuild How many commands of a single guild can be waiting for a worker.
+     * @param maxQueuedPerUser How many commands of a single user can be waiting for a worker.
+     */
+    public CommandScheduler(int workers, int maxQueued, int maxQueuedPerGuild, int maxQueuedPerUser) {
+        this.workers = new ThreadPoolExecutor(
+                workers, workers, 60, TimeUnit.SECONDS,
+                new FairQueue(maxQueued, maxQueuedPerGuild, maxQueuedPerUser),
+                new ThreadFactoryBuilder().setNameFormat("Mantaro Command Thread-%d").build()
+        );
+
+        Metrics.THREAD_POOL_COLLECTOR.add("command-scheduler", this.workers);
+    }
+
+    /**
+     * Queues something to run for a guild and an user.
+     *
+     * @param guildId The guild the message came from.
+     * @param userId The user that sent the message.
+     * @param lane How urgent this is.
+     * @param task What to run.
+     * @return False if it was rejected because too many things are queued already.
+     */
+    public boolean submit(long guildId, long userId, @Nonnull Lane lane, @Nonnull Runnable task) {
+        try {
+            workers.execute(new Task(guildId, userId, lane, task));
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    /**
+     * How urgent a queued command is. When more than one lane has something queued, they take turns by weight
+     * (smooth weighted round-robin): with everything busy, out of every 10 commands 6 are HIGH, 3 are NORMAL and 1 is LOW,
+     * so a flood of commands on a lane slows the lanes below it down, but never stops them.
+     * Lower lanes are also the first ones to be rejected when there's too much queued.
+     */
+    public enum Lane {
+        // Things that need to be quick to feel right, like music controls.
+        HIGH(1, 6),
+        NORMAL(0.75, 3),
+        // Heavy or optional work, like leaderboards or experience.
+        LOW(0.5, 1);
+
+        // Fraction of the max queue size this lane can fill.
+        private final double share;
+        // How many turns this lane gets, compared to the others, when they all have something queued.
+        private final int weight;
+        private final String label = name().toLowerCase();
+
+        Lane(double share, int weight) {
+            this.share = share;
+            this.weight = weight;
+        }
+    }
+
+    private static class Task implements Runnable {
+        private final long guildId;
+        private final long userId;
+        private final Lane lane;
+        private final Runnable task;
+        private final long queuedAt = System.nanoTime();
+
+        private Task(long guildId, long userId, Lane lane, Runnable task) {
+            this.guildId = guildId;
+            this.userId = userId;
+            this.lane = lane;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            task.run();
+        }
+    }
+
+    /**
+     * Work queue of the workers. Only {@link #offer(Runnable)}, {@link #poll(long, TimeUnit)} and {@link #take()}
+     * are used by the executor on the hot path, the rest is there to fulfill the {@link BlockingQueue} contract.
+     * Everything is guarded by a single lock: the amount of commands we get is nowhere near enough for it to matter.
+     */
+    private static class FairQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+        private static final Lane[] LANES = Lane.values();
+
+        private final int maxQueued;
+        private final int maxQueuedPerGuild;
+        private final int maxQueuedPerUser;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition notEmpty = lock.newCondition();
+        // Per lane: guilds that have something queued, in the order they'll be served.
+        private final List<ArrayDeque<GuildQueue>> ready = new ArrayList<>();
+        // Per lane: guild ID -> queue, only for guilds that have something queued.
+        private final List<Map<Long, GuildQueue>> guilds = new ArrayList<>();
+        // Queued commands per guild and per user, across every lane.
+        private final Map<Long, Integer> guildDepth = new HashMap<>();
+        private final Map<Long, Integer> userDepth = new HashMap<>();
+        // Per lane: turns it's owed, for the weighted round-robin between lanes.
+        private final int[] credit = new int[LANES.length];
+        private int size;
+
+        private FairQueue(int maxQueued, int maxQueuedPerGuild, int maxQueuedPerUser) {
+            this.maxQueued = maxQueued;
+            this.maxQueuedPerGuild = maxQueuedPerGuild;
+            this.maxQueuedPerUser = maxQueuedPerUser;
+            for (int i = 0; i < LANES.length; i++) {
+                ready.add(new ArrayDeque<>());
+                guilds.add(new HashMap<>());
+            }
+        }
+
+        @Override
+        public boolean offer(@Nonnull Runnable runnable) {
+            // Only tasks we created get here, but don't break if something else is ever submitted.
+            var task = runnable instanceof Task ? (Task) runnable : new Task(0, 0, Lane.NORMAL, runnable);
+            var lane = task.lane;
+
+            lock.lock();
+            try {
+                String reason = null;
+                if (size >= maxQueued * lane.share) {
+                    reason = "global";
+                } else if (guildDepth.getOrDefault(task.guildId, 0) >= maxQueuedPerGuild) {
+                    reason = "guild";
+                } else if (userDepth.getOrDefault(task.userId, 0) >= maxQueuedPerUser) {
+                    reason = "user";
+                }
+
+                if (reason != null) {
+                    rejected.labels(lane.label, reason).inc();
+                    return false;
+                }
+
+                var guild = guilds.get(lane.ordinal()).get(task.guildId);
+                if (guild == null) {
+                    guild = new GuildQueue(task.guildId);
+                    guilds.get(lane.ordinal()).put(task.guildId, guild);
+                    ready.get(lane.ordinal()).add(guild);
+                }
+
+                guild.add(task);
+                guildDepth.merge(task.guildId, 1, Integer::sum);
+                userDepth.merge(task.userId, 1, Integer::sum);
+                size++;
+                queueDepth.labels(lane.label).inc();
+                notEmpty.signal();
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public Runnable poll() {
+            lock.lock();
+            try {
+                return dequeue();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public Runnable poll(long timeout, @Nonnull TimeUnit unit) throws InterruptedException {
+            var nanos = unit.toNanos(timeout);
+            lock.lockInterruptibly();
+            try {
+                while (size == 0) {
+                    if (nanos <= 0) {
+                        return null;
+                    }
+
+                    nanos = notEmpty.awaitNanos(nanos);
+                }
+
+                return dequeue();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Nonnull
+        @Override
+        public Runnable take() throws InterruptedException {
+            lock.lockInterruptibly();
+            try {
+                while (size == 0) {
+                    notEmpty.await();
+                }
+
+                return dequeue();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // Must hold the lock.
+        private Task dequeue() {
+            var lane = nextLane(true);
+            if (lane == null) {
+                return null;
+            }
+
+            var laneReady = ready.get(lane.ordinal());
+            var guild = laneReady.poll();
+            var task = guild.poll();
+            if (guild.isEmpty()) {
+                guilds.get(lane.ordinal()).remove(guild.guildId);
+            } else {
+                // Back of the line, so every other guild gets a turn first.
+                laneReady.add(guild);
+            }
+
+            dequeued(task);
+            waitTime.labels(lane.label).observe((System.nanoTime() - task.queuedAt) / 1_000_000D);
+            return task;
+        }
+
+        /**
+         * Smooth weighted round-robin between the lanes that have something queued: every one of them earns its weight,
+         * the one that's owed the most goes, and pays back what everyone earned. Lanes with nothing queued don't earn
+         * anything, so they can't save up turns while idle. Must hold the lock.
+         *
+         * @param take False to only look at which lane would go, without changing anything.
+         * @return The lane to take a command from next, or null if nothing is queued.
+         */
+        private Lane nextLane(boolean take) {
+            Lane next = null;
+            var nextCredit = 0;
+            var total = 0;
+            for (var lane : LANES) {
+                if (ready.get(lane.ordinal()).isEmpty()) {
+                    continue;
+                }
+
+                var laneCredit = credit[lane.ordinal()] + lane.weight;
+                total += lane.weight;
+                if (take) {
+                    credit[lane.ordinal()] = laneCredit;
+                }
+
+                if (next == null || laneCredit > nextCredit) {
+                    next = lane;
+                    nextCredit = laneCredit;
+                }
+            }
+
+            if (next != null && take) {
+                credit[next.ordinal()] -= total;
+            }
+
+            return next;
+        }
+
+        // Must hold the lock.
+        private void dequeued(Task task) {
+            guildDepth.merge(task.guildId, -1, CommandScheduler::decrement);
+            userDepth.merge(task.userId, -1, CommandScheduler::decrement);
+            size--;
+            queueDepth.labels(task.lane.label).dec();
+            if (size == 0) {
+                // Nobody is owed anything if there's nothing left to run.
+                Arrays.fill(credit, 0);
+            }
+        }
+
+        @Override
+        public Runnable peek() {
+            lock.lock();
+            try {
+                var lane = nextLane(false);
+                return lane == null ? null : ready.get(lane.ordinal()).peek().peek();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void put(@Nonnull Runnable runnable) {
+            if (!offer(runnable)) {
+                throw new IllegalStateException("Command queue is full");
+            }
+        }
+
+        @Override
+        public boolean offer(Runnable runnable, long timeout, @Nonnull TimeUnit unit) {
+            // Waiting for room would just make the gateway wait too.
+            return offer(runnable);
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            // Used by the executor when a submission races a shutdown, and by ThreadPoolExecutor#remove and #purge.
+            if (!(o instanceof Task)) {
+                return false;
+            }
+
+            var task = (Task) o;
+            lock.lock();
+            try {
+                var laneGuilds = guilds.get(task.lane.ordinal());
+                var guild = laneGuilds.get(task.guildId);
+                if (guild == null || !guild.remove(task)) {
+                    return false;
+                }
+
+                if (guild.isEmpty()) {
+                    laneGuilds.remove(task.guildId);
+                    ready.get(task.lane.ordinal()).remove(guild);
+                }
+
+                dequeued(task);
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public int remainingCapacity() {
+            lock.lock();
+            try {
+                return Math.max(0, maxQueued - size);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public int drainTo(@Nonnull Collection<? super Runnable> c) {
+            return drainTo(c, Integer.MAX_VALUE);
+        }
+
+        @Override
+        public int drainTo(@Nonnull Collection<? super Runnable> c, int maxElements) {
+            lock.lock();
+            try {
+                int drained = 0;
+                Task task;
+                while (drained < maxElements && (task = dequeue()) != null) {
+                    c.add(task);
+                    drained++;
+                }
+
+                return drained;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Nonnull
+        @Override
+        public Iterator<Runnable> iterator() {
+            // A snapshot, in no particular order.
+            lock.lock();
+            try {
+                List<Runnable> snapshot = new ArrayList<>(size);
+                for (var lane : guilds) {
+                    for (var guild : lane.values()) {
+                        guild.addTo(snapshot);
+                    }
+                }
+
+                return Collections.unmodifiableList(snapshot).iterator();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public int size() {
+            lock.lock();
+            try {
+                return size;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // Commands of a guild on a lane, split by user.
+    private static class GuildQueue {
+        private final long guildId;
+        // Users that have something queued, in the order they'll be served.
+        private final ArrayDeque<ArrayDeque<Task>> ready = new ArrayDeque<>();
+        private final Map<Long, ArrayDeque<Task>> users = new HashMap<>();
+
+        private GuildQueue(long guildId) {
+            this.guildId = guildId;
+        }
+
+        private void add(Task task) {
+            var user = users.get(task.userId);
+            if (user == null) {
+                user = new ArrayDeque<>();
+                users.put(task.userId, user);
+                ready.add(user);
+            }
+
+            user.add(task);
+        }
+
+        private Task poll() {
+            var user = ready.poll();
+            var task = user.poll();
+            if (user.isEmpty()) {
+                users.remove(task.userId);
+            } else {
+                ready.add(user);
+            }
+
+            return task;
+        }
+
+        private Task peek() {
+            return ready.peek().peek();
+        }
+
+        private boolean remove(Task task) {
+            var user = users.get(task.userId);
+            // Tasks are only ever equal to themselves, so this is removing that exact one.
+            if (user == null || !user.remove(task)) {
+                return false;
+            }
+
+            if (user.isEmpty()) {
+                users.remove(task.userId);
+                ready.remove(user);
+            }
+
+            return true;
+        }
+
+        private boolean isEmpty() {
+            return ready.isEmpty();
+        }
+
+        private void addTo(List<Runnable> list) {
+            for (var user : ready) {
+                list.addAll(user);
+            }
+        }
+    }
+
+    // Removes the entry once it gets to zero, so the depth maps only hold ids that have something queued.
+    private static Integer decrement(Integer current, Integer delta) {
+        var value = current + delta;
+        return value <= 0 ? null : value;
+    }
+}
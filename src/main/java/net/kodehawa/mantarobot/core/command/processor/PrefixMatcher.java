@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2016-2021 David Rubio Escares / Kodehawa
+ *
+ *  Mantaro is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  Mantaro is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Mantaro. If not, see http://www.gnu.org/licenses/
+ */
+
+package net.kodehawa.mantarobot.core.command.processor;
+
+import net.kodehawa.mantarobot.data.Config;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Case-insensitive trie of the prefixes a command can be ran with: the global prefixes, the two mention forms
+ * and, optionally, the custom prefix of a guild.
+ * <br>Matching goes through the message one character at a time, without copying or lower-casing it,
+ * so messages that don't start with a prefix (which are most of them) are rejected without allocating anything.
+ * If more than one prefix matches, the longest one wins.
+ */
+public class PrefixMatcher {
+    private final Node root;
+
+    private PrefixMatcher(Node root) {
+        this.root = root;
+    }
+
+    /**
+     * @param config The config to take the global prefixes and the client id from.
+     * @param customPrefix The custom prefix of the guild. Can be null.
+     * @return A matcher for every prefix a command can be ran with.
+     */
+    @Nonnull
+    public static PrefixMatcher of(@Nonnull Config config, @Nullable String customPrefix) {
+        var root = new Builder();
+        // Inserted in order of priority: if two of them are the same, the first one stays.
+        for (var prefix : config.getPrefix()) {
+            root.insert(prefix, false);
+        }
+
+        root.insert("<@%s> ".formatted(config.getClientId()), true);
+        root.insert("<@!%s> ".formatted(config.getClientId()), true);
+        if (customPrefix != null) {
+            root.insert(customPrefix, false);
+        }
+
+        return new PrefixMatcher(root.build());
+    }
+
+    /**
+     * @param content The message to check.
+     * @return The longest prefix the message starts with, or null if there's none.
+     */
+    @Nullable
+    public Match match(@Nonnull CharSequence content) {
+        var node = root;
+        var match = root.match;
+        for (int i = 0, length = content.length(); i < length; i++) {
+            node = node.next(Character.toLowerCase(content.charAt(i)));
+            if (node == null) {
+                break;
+            }
+
+            if (node.match != null) {
+                match = node.match;
+            }
+        }
+
+        return match;
+    }
+
+    public static class Match {
+        private final String prefix;
+        private final boolean mention;
+
+        private Match(String prefix, boolean mention) {
+            this.prefix = prefix;
+            this.mention = mention;
+        }
+
+        /**
+         * @return The prefix, as configured. Its length is always the amount of characters it took from the message.
+         */
+        public String getPrefix() {
+            return prefix;
+        }
+
+        public boolean isMention() {
+            return mention;
+        }
+    }
+
+    private static class Node {
+        // Sorted, for binary search.
+        private final char[] chars;
+        private final Node[] children;
+        private final Match match;
+
+        private Node(char[] chars, Node[] children, Match match) {
+            this.chars = chars;
+            this.children = children;
+            this.match = match;
+        }
+
+        private Node next(char c) {
+            var chars = this.chars;
+            // Most nodes only have one child, so don't bother searching.
+            if (chars.length == 1) {
+                return chars[0] == c ? children[0] : null;
+            }
+
+            int low = 0, high = chars.length - 1;
+            while (low <= high) {
+                var middle = (low + high) >>> 1;
+                var current = chars[middle];
+                if (current < c) {
+                    low = middle + 1;
+                } else if (current > c) {
+                    high = middle - 1;
+                } else {
+                    return children[middle];
+                }
+            }
+
+            return null;
+        }
+    }
+
+    private static class Builder {
+        private final Map<Character, Builder> children = new TreeMap<>();
+        private Match match;
+
+        private void insert(String prefix, boolean mention) {
+            var node = this;
+            for (int i = 0; i < prefix.length(); i++) {
+                node = node.children.computeIfAbsent(Character.toLowerCase(prefix.charAt(i)), c -> new Builder());
+            }
+
+            if (node.match == null) {
+                node.match = new Match(prefix, mention);
+            }
+        }
+
+        private Node build() {
+            var chars = new char[children.size()];
+            var nodes = new Node[children.size()];
+            int i = 0;
+            for (var entry : children.entrySet()) {
+                chars[i] = entry.getKey();
+                nodes[i++] = entry.getValue().build();
+            }
+
+            return new Node(chars, nodes, match);
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2016-2021 David Rubio Escares / Kodehawa
+ *
+ *  Mantaro is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  Mantaro is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Mantaro. If not, see http://www.gnu.org/licenses/
+ */
+
+package net.kodehawa.mantarobot.core.command.processor;
+
+import com.google.common.util.concurrent.Striped;
+import gnu.trove.set.hash.TLongHashSet;
+import io.prometheus.client.Counter;
+import net.kodehawa.mantarobot.ExtraRuntimeOptions;
+import net.kodehawa.mantarobot.data.MantaroData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.params.SetParams;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+
+/**
+ * Keeps experience writes from racing the saves of a command ran by the same user.
+ * <br>Commands hold a shared lock on their user while they run (so they don't block each other),
+ * and experience writes take the exclusive one for as long as they're writing: if a command is running, the write waits,
+ * and commands that start while the write is going wait for it to finish, so they read what it wrote.
+ * <br>When running on more than one node, the same player can be loaded on two nodes at the same time, so commands
+ * also take a lease on Redis, which expires by itself if the node dies before releasing it.
+ * On a single node, this never touches the network.
+ */
+public class UserLocks {
+    private static final Logger log = LoggerFactory.getLogger(UserLocks.class);
+    private static final String LEASE_PREFIX = "commands-running-";
+    // Only delete the lease if it's still ours: another command might've taken it after ours expired.
+    private static final String RELEASE_SCRIPT =
+            "if redis.call('get', KEYS[1]) == ARGV[1] then return redis.call('del', KEYS[1]) else return 0 end";
+    private static final Counter acquired = Counter.build()
+            .name("user_lock_acquired").help("User locks acquired, by kind (command)")
+            .labelNames("kind")
+            .register();
+    private static final Counter contended = Counter.build()
+            .name("user_lock_contended").help("User locks that were already held when requested, by kind (command/experience/lease)")
+            .labelNames("kind")
+            .register();
+
+    // Practically one lock per user: experience writes lock a lot of users at once, and hold them for a round trip.
+    // With a few stripes, that'd hold up commands of anyone sharing one of them. Created as needed, and dropped once unused.
+    private final Striped<ReadWriteLock> locks = Striped.lazyWeakReadWriteLock(1 << 20);
+    // Players are only shared between nodes if there's more than one node.
+    private final boolean useLease = ExtraRuntimeOptions.SHARD_SUBSET;
+
+    /**
+     * Marks a command as running for an user. Blocks only while experience is being written for them.
+     *
+     * @param userId The user running the command.
+     * @return The held lock. Must be closed once the command finishes.
+     */
+    public CommandLock command(long userId) {
+        var lock = locks.get(userId).readLock();
+        if (!lock.tryLock()) {
+            contended.labels("command").inc();
+            lock.lock();
+        }
+
+        acquired.labels("command").inc();
+        String lease = null;
+        if (useLease) {
+            lease = UUID.randomUUID().toString();
+            try (var jedis = MantaroData.getDefaultJedisPool().getResource()) {
+                jedis.set(LEASE_PREFIX + userId, lease, SetParams.setParams().ex(MantaroData.config().get().getCommandLeaseTtl()));
+            } catch (Exception e) {
+                // Not being able to take the lease shouldn't stop the command, at worst we'll give some experience we shouldn't.
+                log.warn("Couldn't take command lease for user {}", userId, e);
+                lease = null;
+            }
+        }
+
+        return new CommandLock(userId, lock, lease);
+    }
+
+    /**
+     * Locks users for an experience write, and looks for the ones that have a command running (here or, if applicable,
+     * on another node). Writing experience for those has to wait, as the command would write back the experience it read before.
+     * Never blocks: users whose lock is taken are just reported as running.
+     *
+     * @param userIds The users to look at.
+     * @return The held locks, and the users with a command running. Must be closed once the write is done.
+     */
+    public ExperienceLock experience(long[] userIds) {
+        var running = new TLongHashSet();
+        List<Lock> held = new ArrayList<>(userIds.length);
+        for (var userId : userIds) {
+            // Commands hold the shared lock, so we only get the exclusive one if none is running.
+            // Users can (rarely) share a stripe, and the write lock is reentrant, so the same lock can be here more than once.
+            var lock = locks.get(userId).writeLock();
+            if (lock.tryLock()) {
+                held.add(lock);
+            } else {
+                contended.labels("experience").inc();
+                running.add(userId);
+            }
+        }
+
+        if (useLease && running.size() < userIds.length) {
+            List<Response<Boolean>> leases = new ArrayList<>(userIds.length);
+            try (var jedis = MantaroData.getDefaultJedisPool().getResource()) {
+                var pipeline = jedis.pipelined();
+                for (var userId : userIds) {
+                    leases.add(pipeline.exists(LEASE_PREFIX + userId));
+                }
+
+                pipeline.sync();
+            }
+
+            for (int i = 0; i < userIds.length; i++) {
+                if (leases.get(i).get() && running.add(userIds[i])) {
+                    contended.labels("lease").inc();
+                }
+            }
+        }
+
+        return new ExperienceLock(running, held);
+    }
+
+    public static class ExperienceLock implements AutoCloseable {
+        private final TLongHashSet running;
+        private final List<Lock> held;
+
+        private ExperienceLock(TLongHashSet running, List<Lock> held) {
+            this.running = running;
+            this.held = held;
+        }
+
+        /**
+         * @return The users that have a command running. Their experience can't be written yet. Can be added to.
+         */
+        public TLongHashSet getRunning() {
+            return running;
+        }
+
+        @Override
+        public void close() {
+            for (int i = held.size() - 1; i >= 0; i--) {
+                held.get(i).unlock();
+            }
+        }
+    }
+
+    public static class CommandLock implements AutoCloseable {
+        private final long userId;
+        private final Lock lock;
+        private final String lease;
+
+        private CommandLock(long userId, Lock lock, String lease) {
+            this.userId = userId;
+            this.lock = lock;
+            this.lease = lease;
+        }
+
+        @Override
+        public void close() {
+            lock.unlock();
+            if (lease == null) {
+                return;
+            }
+
+            try (var jedis = MantaroData.getDefaultJedisPool().getResource()) {
+                jedis.eval(RELEASE_SCRIPT, List.of(LEASE_PREFIX + userId), List.of(lease));
+            } catch (Exception e) {
+                // It'll expire by itself.
+                log.warn("Couldn't release command lease for user {}", userId, e);
+            }
+        }
+    }
+}
@@ -16,8 +16,6 @@
 
 package net.kodehawa.mantarobot.core.listeners;
 
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheLoader;
 import net.dv8tion.jda.api.EmbedBuilder;
 import net.dv8tion.jda.api.JDA;
 import net.dv8tion.jda.api.MessageBuilder;
@@ -43,9 +41,10 @@ import net.kodehawa.mantarobot.commands.BirthdayCmd;
 import net.kodehawa.mantarobot.commands.currency.TextChannelGround;
 import net.kodehawa.mantarobot.commands.custom.EmbedJSON;
 import net.kodehawa.mantarobot.commands.custom.legacy.DynamicModifiers;
+import net.kodehawa.mantarobot.commands.moderation.MuteTask;
 import net.kodehawa.mantarobot.core.MantaroCore;
 import net.kodehawa.mantarobot.core.MantaroEventManager;
-import net.kodehawa.mantarobot.core.listeners.entities.CachedMessage;
+import net.kodehawa.mantarobot.core.shard.MessageStore;
 import net.kodehawa.mantarobot.data.Config;
 import net.kodehawa.mantarobot.data.MantaroData;
 import net.kodehawa.mantarobot.db.ManagedDatabase;
@@ -66,8 +65,8 @@ import java.time.OffsetDateTime;
 import java.util.Arrays;
 import java.util.EnumSet;
 import java.util.List;
-import java.util.Optional;
 import java.util.concurrent.ExecutorService;
+import java.util.stream.Collectors;
 import java.util.regex.Pattern;
 
 public class MantaroListener implements EventListener {
@@ -80,12 +79,12 @@ public class MantaroListener implements EventListener {
     private static final List<String> CHANNEL_NAMES = List.of("general", "general-chat", "chat", "lounge", "main-chat", "main");
 
     private final ExecutorService threadPool;
-    private final Cache<Long, Optional<CachedMessage>> messageCache;
+    private final MessageStore messageStore;
     private final MantaroBot bot;
 
-    public MantaroListener(ExecutorService threadPool, Cache<Long, Optional<CachedMessage>> messageCache) {
+    public MantaroListener(ExecutorService threadPool, MessageStore messageStore) {
         this.threadPool = threadPool;
-        this.messageCache = messageCache;
+        this.messageStore = messageStore;
         bot = MantaroBot.getInstance();
     }
 
@@ -93,6 +92,7 @@ public class MantaroListener implements EventListener {
     public void onEvent(@NotNull GenericEvent event) {
         if (event instanceof ReadyEvent) {
             threadPool.execute(() -> this.updateStats(event.getJDA()));
+            threadPool.execute(() -> this.trackLoggedGuilds(event.getJDA()));
             return;
         }
 
@@ -258,6 +258,7 @@ public class MantaroListener implements EventListener {
             final var dbGuild = MantaroData.db().getGuild(event.getGuild());
             final var data = dbGuild.getData();
             final var logChannel = data.getGuildLogChannel();
+            messageStore.setTracking(event.getGuild().getIdLong(), logChannel != null);
 
             if (logChannel != null) {
                 final var hour = Utils.formatHours(OffsetDateTime.now(), data.getLogTimezone(), data.getLang());
@@ -266,7 +267,7 @@ public class MantaroListener implements EventListener {
                     return;
                 }
 
-                final var deletedMessage = messageCache.get(event.getMessageIdLong(), Optional::empty).orElse(null);
+                final var deletedMessage = messageStore.get(event.getGuild().getIdLong(), event.getMessageIdLong());
                 if (deletedMessage == null) {
                     return;
                 }
@@ -318,7 +319,7 @@ public class MantaroListener implements EventListener {
                 tc.sendMessage(message).queue();
             }
         } catch (NullPointerException | IllegalArgumentException |
-                CacheLoader.InvalidCacheLoadException | PermissionException | ErrorResponseException ignored) {
+                PermissionException | ErrorResponseException ignored) {
             // ignore
         } catch (Exception e) {
             LOG.warn("Unexpected error while logging a deleted message.", e);
@@ -329,6 +330,7 @@ public class MantaroListener implements EventListener {
         try {
             final var guildData = MantaroData.db().getGuild(event.getGuild()).getData();
             final var logChannel = guildData.getGuildLogChannel();
+            messageStore.setTracking(event.getGuild().getIdLong(), logChannel != null);
 
             if (logChannel != null) {
                 final var hour = Utils.formatHours(OffsetDateTime.now(), guildData.getLogTimezone(), guildData.getLang());
@@ -338,7 +340,7 @@ public class MantaroListener implements EventListener {
                 }
 
                 final var originalMessage = event.getMessage();
-                final var editedMessage = messageCache.get(originalMessage.getIdLong(), Optional::empty).orElse(null);
+                final var editedMessage = messageStore.get(event.getGuild().getIdLong(), originalMessage.getIdLong());
                 if (editedMessage == null) {
                     return;
                 }
@@ -352,8 +354,9 @@ public class MantaroListener implements EventListener {
                 }
 
                 // Update message in cache in any case.
-                messageCache.put(originalMessage.getIdLong(), Optional.of(
-                        new CachedMessage(event.getGuild().getIdLong(), event.getAuthor().getIdLong(), originalMessage.getContentDisplay()))
+                messageStore.put(
+                        event.getGuild().getIdLong(), originalMessage.getIdLong(),
+                        event.getAuthor().getIdLong(), originalMessage.getContentDisplay()
                 );
 
                 if (guildData.getLogExcludedChannels().contains(channel.getId())) {
@@ -401,7 +404,7 @@ public class MantaroListener implements EventListener {
                 tc.sendMessage(message).queue();
             }
         } catch (NullPointerException | IllegalArgumentException |
-                CacheLoader.InvalidCacheLoadException | PermissionException | ErrorResponseException ignored) {
+                PermissionException | ErrorResponseException ignored) {
             // ignore
         } catch (Exception e) {
             LOG.warn("Unexpected error while logging a edit.", e);
@@ -532,6 +535,10 @@ public class MantaroListener implements EventListener {
                 bot.getAudioManager().getMusicManagers().remove(guild.getId());
             }
 
+            bot.getAudioManager().getQueueSnapshots().delete(guild.getId());
+            messageStore.setTracking(guild.getIdLong(), false);
+            MuteTask.cancelAll(guild);
+
             // Post bot statistics to the main API.
             this.updateStats(jda);
             Metrics.GUILD_ACTIONS.labels("leave").inc();
@@ -667,7 +674,7 @@ public class MantaroListener implements EventListener {
             }
 
             if (message.contains("$(")) {
-                message = new DynamicModifiers()
+                message = new DynamicModifiers(DynamicModifiers.variablesIn(message))
                         .mapFromJoinLeave("event", tc, user, guild)
                         .resolve(message);
             }
@@ -731,6 +738,19 @@ public class MantaroListener implements EventListener {
         }
     }
 
+    // The command listener only looks at guilds we already have, so without this we'd miss the first messages of
+    // guilds with logs enabled until something else loads them. Done on a single query for the whole shard.
+    private void trackLoggedGuilds(JDA jda) {
+        try {
+            var guildIds = jda.getGuildCache().stream().map(Guild::getId).collect(Collectors.toList());
+            for (var guildId : MantaroData.db().getGuildsWithLogs(guildIds)) {
+                messageStore.setTracking(Long.parseLong(guildId), true);
+            }
+        } catch (Exception e) {
+            LOG.warn("Couldn't look up the guilds with logs enabled on shard {}", jda.getShardInfo().getShardId(), e);
+        }
+    }
+
     private void updateStats(JDA jda) {
         // This screws up with our shard stats, so we just need to ignore it.
         if (jda.getStatus() == JDA.Status.INITIALIZED) {
@@ -16,7 +16,6 @@
 
 package net.kodehawa.mantarobot.core.listeners.command;
 
-import com.google.common.cache.Cache;
 import com.rethinkdb.gen.exc.ReqlError;
 import net.dv8tion.jda.api.Permission;
 import net.dv8tion.jda.api.events.GenericEvent;
@@ -26,8 +25,10 @@ import net.dv8tion.jda.api.hooks.EventListener;
 import net.kodehawa.mantarobot.commands.currency.profile.Badge;
 import net.kodehawa.mantarobot.commands.game.core.GameLobby;
 import net.kodehawa.mantarobot.core.command.processor.CommandProcessor;
-import net.kodehawa.mantarobot.core.listeners.entities.CachedMessage;
+import net.kodehawa.mantarobot.core.command.processor.CommandScheduler;
 import net.kodehawa.mantarobot.core.listeners.operations.InteractiveOperations;
+import net.kodehawa.mantarobot.core.modules.commands.i18n.I18nContext;
+import net.kodehawa.mantarobot.core.shard.MessageStore;
 import net.kodehawa.mantarobot.data.I18n;
 import net.kodehawa.mantarobot.data.MantaroData;
 import net.kodehawa.mantarobot.utils.LanguageKeyNotFoundException;
@@ -39,25 +40,25 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.IllegalFormatException;
-import java.util.Optional;
 import java.util.Random;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
 
 public class CommandListener implements EventListener {
     private static final RateLimiter experienceRatelimiter = new RateLimiter(TimeUnit.SECONDS, 18);
+    // So we don't make things worse by replying to every single rejected command while we're overloaded.
+    private static final RateLimiter busyRatelimiter = new RateLimiter(TimeUnit.SECONDS, 30);
     private static final Logger log = LoggerFactory.getLogger(CommandListener.class);
     // Commands ran this session.
     private static int commandTotal = 0;
     private final Random random = new Random();
     private final CommandProcessor commandProcessor;
-    private final ExecutorService threadPool;
-    private final Cache<Long, Optional<CachedMessage>> messageCache;
+    private final CommandScheduler scheduler;
+    private final MessageStore messageStore;
 
-    public CommandListener(CommandProcessor processor, ExecutorService threadPool, Cache<Long, Optional<CachedMessage>> messageCache) {
+    public CommandListener(CommandProcessor processor, CommandScheduler scheduler, MessageStore messageStore) {
         this.commandProcessor = processor;
-        this.threadPool = threadPool;
-        this.messageCache = messageCache;
+        this.scheduler = scheduler;
+        this.messageStore = messageStore;
     }
 
     public static int getCommandTotal() {
@@ -75,10 +76,17 @@ public class CommandListener implements EventListener {
                 return;
             }
 
-            // Inserts a cached message into the cache. This only holds the id and the content, and is way lighter than saving the entire jda object.
-            messageCache.put(msg.getMessage().getIdLong(), Optional.of(
-                    new CachedMessage(msg.getGuild().getIdLong(), msg.getAuthor().getIdLong(), msg.getMessage().getContentDisplay()))
-            );
+            // Only guilds with logs enabled keep their messages around, to log edits and deletes.
+            // We're on the gateway thread: only look at the guild if we already have it, otherwise stick to what we decided last time.
+            var guildId = msg.getGuild().getIdLong();
+            var cachedGuild = MantaroData.db().getCachedGuild(msg.getGuild().getId());
+            if (cachedGuild != null) {
+                messageStore.setTracking(guildId, cachedGuild.getData().getGuildLogChannel() != null);
+            }
+
+            if (messageStore.isTracking(guildId)) {
+                messageStore.put(guildId, msg.getMessage().getIdLong(), msg.getAuthor().getIdLong(), msg.getMessage().getContentDisplay());
+            }
 
             // We can't talk here, so we don't need to run anything.
             // Run this check before executing on the pool to avoid wasting a thread.
@@ -86,33 +94,44 @@ public class CommandListener implements EventListener {
                 return;
             }
 
-            threadPool.execute(() -> onCommand(msg));
+            // Most messages aren't commands, and most of those won't give experience either:
+            // don't hand those to the scheduler at all.
+            var rollExperience = random.nextInt(15) > 7;
+            var lane = commandProcessor.classify(msg);
+            if (lane == null && !rollExperience) {
+                return;
+            }
+
+            var submitted = scheduler.submit(
+                    msg.getGuild().getIdLong(), msg.getAuthor().getIdLong(),
+                    lane == null ? CommandScheduler.Lane.LOW : lane,
+                    () -> onCommand(msg, rollExperience)
+            );
+
+            // Experience can be dropped silently, but people should know why their command didn't run.
+            if (!submitted && lane != null && busyRatelimiter.process(msg.getChannel().getIdLong())) {
+                sendBusy(msg);
+            }
         }
     }
 
-    private void onCommand(GuildMessageReceivedEvent event) {
+    private void sendBusy(GuildMessageReceivedEvent event) {
+        // We're on the gateway thread: only use the guild language if we already have the guild.
+        var dbGuild = MantaroData.db().getCachedGuild(event.getGuild().getId());
+        var context = dbGuild == null ? new I18nContext() : new I18nContext(dbGuild.getData(), null);
+        event.getChannel().sendMessage(context.get("general.busy").formatted(EmoteReference.STOPWATCH)).queue();
+    }
+
+    private void onCommand(GuildMessageReceivedEvent event, boolean rollExperience) {
         try {
             if (commandProcessor.run(event)) {
-                // Remove running flag
-                try (var jedis = MantaroData.getDefaultJedisPool().getResource()) {
-                    jedis.del("commands-running-" + event.getAuthor().getId());
-                }
-
                 commandTotal++;
             } else {
                 try {
                     // Only run experience if no command has been executed, avoids weird race conditions when saving player status.
                     // Only run experience if the user is not rate limited (clears every 30 seconds) and if the member is not null.
                     // This will never get here if it's a bot or a webhook message due to the check we do on line 78.
-                    if (random.nextInt(15) > 7 && event.getMember() != null && experienceRatelimiter.process(event.getAuthor())) {
-                        // If a command is running on another node, don't handle (this is an issue due to multiple different Player objects)
-                        try (var jedis = MantaroData.getDefaultJedisPool().getResource()) {
-                            var running = jedis.get("commands-running-" + event.getAuthor().getId());
-                            if (running != null) {
-                                return;
-                            }
-                        }
-
+                    if (rollExperience && event.getMember() != null && experienceRatelimiter.process(event.getAuthor())) {
                         // Don't run the experience handler on this channel if there's an InteractiveOperation running as there might be issues with
                         // some nasty race conditions involving player save.
                         if (InteractiveOperations.get(event.getChannel()).size() > 0) {
@@ -124,25 +143,9 @@ public class CommandListener implements EventListener {
                             return;
                         }
 
-                        var player = MantaroData.db().getPlayer(event.getAuthor());
-                        var data = player.getData();
-                        if (player.isLocked()) {
-                            return;
-                        }
-
-                        // Set level to 1 if level is zero.
-                        if (player.getLevel() == 0) {
-                            player.setLevel(1);
-                        }
-
                         // Increment player experience by a random number between 1 and 5.
-                        data.setExperience(data.getExperience() + random.nextInt(5));
-                        var level = player.getLevel();
-                        if (data.getExperience() > (level * Math.log10(player.getLevel()) * 1000) + (50 * level / 2D)) {
-                            player.setLevel(level + 1);
-                        }
-
-                        player.saveUpdating();
+                        // This is written in batches, and levels are worked out then. See ExperienceAccumulator.
+                        MantaroData.db().grantExperience(event.getAuthor().getIdLong(), random.nextInt(5));
                     }
                 } catch (Exception ignored) { }
             }
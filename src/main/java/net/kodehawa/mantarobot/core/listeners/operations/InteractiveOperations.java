@@ -16,46 +16,35 @@
 
 package net.kodehawa.mantarobot.core.listeners.operations;
 
+import gnu.trove.map.hash.TLongObjectHashMap;
 import net.dv8tion.jda.api.entities.MessageChannel;
 import net.dv8tion.jda.api.events.GenericEvent;
 import net.dv8tion.jda.api.events.message.guild.GuildMessageReceivedEvent;
 import net.dv8tion.jda.api.hooks.EventListener;
 import net.kodehawa.mantarobot.core.listeners.operations.core.InteractiveOperation;
 import net.kodehawa.mantarobot.core.listeners.operations.core.Operation;
-import net.kodehawa.mantarobot.utils.exporters.Metrics;
 
 import javax.annotation.Nonnull;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Utility class to create, get or use a {@link InteractiveOperation}.
  * An InteractiveOperation is an Operation that listens for upcoming messages.
  * It can be used for all kind of stuff, like listening for user input, etc.
+ * <br>Operations are ran on the {@link OperationExecutor}, one at a time per channel, and expired by the {@link TimeoutWheel}.
  */
 public class InteractiveOperations {
     //The listener used to check interactive operations.
     private static final EventListener LISTENER = new InteractiveListener();
 
-    private static final ConcurrentHashMap<Long, List<RunningOperation>> OPS = new ConcurrentHashMap<>();
-
-    static {
-        ScheduledExecutorService s = Executors.newScheduledThreadPool(10, r -> {
-            Thread t = new Thread(r);
-            t.setDaemon(true);
-            t.setName("InteractiveOperations-Timeout-Processor");
-            return t;
-        });
-
-        Metrics.THREAD_POOL_COLLECTOR.add("interactive-operations-timeout", s);
-
-        s.scheduleAtFixedRate(() -> OPS.values().removeIf(list -> {
-            list.removeIf(RunningOperation::isTimedOut);
-            return list.isEmpty();
-        }), 1, 1, TimeUnit.SECONDS);
-    }
+    // Channel ID -> User ID -> Operation. Guarded by itself.
+    private static final TLongObjectHashMap<TLongObjectHashMap<RunningOperation>> OPS = new TLongObjectHashMap<>();
 
     /**
      * Returns a Future<Void> representing the current RunningOperation instance on the specified channel.
@@ -74,9 +63,16 @@ public class InteractiveOperations {
      * @return Future<Void> or null if there's none.
      */
     public static List<Future<Void>> get(long channelId) {
-        List<RunningOperation> l = OPS.get(channelId);
+        synchronized (OPS) {
+            var channel = OPS.get(channelId);
+            if (channel == null) {
+                return Collections.emptyList();
+            }
 
-        return l == null ? Collections.emptyList() : l.stream().map(o -> o.future).collect(Collectors.toList());
+            List<Future<Void>> futures = new ArrayList<>(channel.size());
+            channel.forEachValue(o -> futures.add(o.future));
+            return futures;
+        }
     }
 
     /**
@@ -95,8 +91,8 @@ public class InteractiveOperations {
 
     /**
      * Creates a new {@link InteractiveOperation} on the specified {@link net.dv8tion.jda.api.entities.TextChannel} id provided.
-     * This method will not make a new {@link InteractiveOperation} if there's already another one running.
-     * You can check the return type to give a response to the user.
+     * If the user already has an operation running on the channel, it's replaced: it gets cancelled
+     * (so its {@link InteractiveOperation#onCancel()} is called), and the new one takes its place.
      *
      * @param channelId      The id of the {@link net.dv8tion.jda.api.entities.TextChannel} we want this Operation to run on.
      * @param timeoutSeconds How much seconds until it stops listening to us.
@@ -110,19 +106,25 @@ public class InteractiveOperations {
         if (operation == null)
             throw new IllegalArgumentException("Operation cannot be null");
 
-        List<RunningOperation> l = OPS.computeIfAbsent(channelId, ignored -> new CopyOnWriteArrayList<>());
+        RunningOperation o = new RunningOperation(operation, userId, channelId, timeoutSeconds);
+        RunningOperation current;
+        synchronized (OPS) {
+            var channel = OPS.get(channelId);
+            if (channel == null) {
+                channel = new TLongObjectHashMap<>();
+                OPS.put(channelId, channel);
+            }
+
+            current = channel.put(userId, o);
+        }
 
-        RunningOperation current = l.stream().filter(op -> op.userId == userId).findFirst().orElse(null);
+        //Always override old player operation.
+        //Same as cancelling it: onCancel() is called, unless it finished in the meantime.
         if (current != null) {
-            //Always override old player operation.
             current.future.cancel(true);
-            l.remove(current);
         }
 
-        RunningOperation o = new RunningOperation(operation, userId, channelId, timeoutSeconds * 1000);
-        l.add(o);
-        OPS.put(channelId, l);
-
+        TimeoutWheel.SHARED.schedule(o);
         return o.future;
     }
 
@@ -133,8 +135,26 @@ public class InteractiveOperations {
         return LISTENER;
     }
 
+    // Removes an operation, if it's still the one running for its user. Returns whether it was.
+    private static boolean remove(RunningOperation o) {
+        synchronized (OPS) {
+            var channel = OPS.get(o.channelId);
+            if (channel == null || channel.get(o.userId) != o) {
+                return false;
+            }
+
+            channel.remove(o.userId);
+            if (channel.isEmpty()) {
+                OPS.remove(o.channelId);
+            }
+
+            return true;
+        }
+    }
+
     /**
      * This class listens for all RunningOperation instances. Basically handles the operation run and termination procedures.
+     * <br>Only checks whether there's something to run here: the operations themselves don't run on the gateway thread.
      */
     public static class InteractiveListener implements EventListener {
         @Override
@@ -149,74 +169,104 @@ public class InteractiveOperations {
                 return;
 
             long channelId = event.getChannel().getIdLong();
-            List<RunningOperation> l = OPS.get(channelId);
+            synchronized (OPS) {
+                if (!OPS.containsKey(channelId)) {
+                    return;
+                }
+            }
 
-            if (l == null || l.isEmpty()) {
-                return;
+            OperationExecutor.SHARED.execute(channelId, () -> run(channelId, event));
+        }
+
+        private static void run(long channelId, GuildMessageReceivedEvent event) {
+            List<RunningOperation> running;
+            synchronized (OPS) {
+                var channel = OPS.get(channelId);
+                if (channel == null) {
+                    return;
+                }
+
+                running = new ArrayList<>(channel.valueCollection());
             }
 
-            l.removeIf (o -> {
+            for (var o : running) {
+                // Might have been finished by another operation, expired or cancelled since we took the list.
+                if (o.isFinished()) {
+                    continue;
+                }
+
                 try {
                     int i = o.operation.run(event);
                     if (i == Operation.COMPLETED) {
-                        o.future.complete(null);
-                        return true;
-                    }
-                    if (i == Operation.RESET_TIMEOUT) {
+                        if (o.finish()) {
+                            o.cancelTimeout();
+                            o.future.complete(null);
+                        }
+                    } else if (i == Operation.RESET_TIMEOUT) {
                         o.resetTimeout();
                     }
-                    return false;
                 } catch (Exception ex) {
                     ex.printStackTrace();
-                    return false;
                 }
-            });
+            }
         }
     }
 
     // Represents an eventually-running Operation.
-    private static final class RunningOperation {
+    private static final class RunningOperation extends TimeoutWheel.Timeout {
         final OperationFuture future;
         final InteractiveOperation operation;
-        final long timeout;
-        long timeoutTime;
         final long userId;
+        final long channelId;
+        private final AtomicBoolean finished = new AtomicBoolean();
 
-        // timeout (argument) is in millis, field is in nanos
-        RunningOperation(InteractiveOperation operation, long userId, long channelId, long timeout) {
+        RunningOperation(InteractiveOperation operation, long userId, long channelId, long timeoutSeconds) {
+            super(timeoutSeconds, TimeUnit.SECONDS);
             this.operation = operation;
-            this.future = new OperationFuture(channelId, this);
-            this.timeout = timeout * 1_000_000;
+            this.future = new OperationFuture(this);
             this.userId = userId;
-            resetTimeout();
+            this.channelId = channelId;
         }
 
-        boolean isTimedOut() {
-            return timeoutTime - System.nanoTime() < 0;
+        boolean isFinished() {
+            return finished.get();
         }
 
-        void resetTimeout() {
-            timeoutTime = System.nanoTime() + timeout;
+        // Only one of complete, cancel or expire can happen. Returns whether we're the one that gets to.
+        boolean finish() {
+            if (!finished.compareAndSet(false, true)) {
+                return false;
+            }
+
+            remove(this);
+            return true;
+        }
+
+        @Override
+        void expire() {
+            // Ran on the channel lane, so it can't happen while the operation is handling a message.
+            OperationExecutor.SHARED.execute(channelId, () -> {
+                if (finish()) {
+                    operation.onExpire();
+                }
+            });
         }
     }
 
     private static final class OperationFuture extends CompletableFuture<Void> {
-        private final long id;
         private final RunningOperation operation;
 
-        OperationFuture(long id, RunningOperation operation) {
-            this.id = id;
+        OperationFuture(RunningOperation operation) {
             this.operation = operation;
         }
 
         @Override
         public boolean cancel(boolean mayInterruptIfRunning) {
-            List<RunningOperation> l = OPS.get(id);
-
-            if (l == null || !l.remove(operation)) {
+            if (!operation.finish()) {
                 return false;
             }
 
+            operation.cancelTimeout();
             operation.operation.onCancel();
             return true;
         }
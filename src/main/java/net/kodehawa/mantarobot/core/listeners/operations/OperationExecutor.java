@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2016-2021 David Rubio Escares / Kodehawa
+ *
+ *  Mantaro is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  Mantaro is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Mantaro. If not, see http://www.gnu.org/licenses/
+ */
+
+package net.kodehawa.mantarobot.core.listeners.operations;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import net.kodehawa.mantarobot.utils.exporters.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs operations off the gateway thread, one at a time per key (the channel, or the message for reaction operations).
+ * <br>Everything for a key runs in the order it was submitted, and never at the same time, so operations don't need
+ * to be thread-safe against themselves. Keys are spread over a fixed amount of sequential lanes, so two keys
+ * might share one, but a slow operation can only hold back the few keys on its lane, not the whole shard.
+ */
+final class OperationExecutor {
+    static final OperationExecutor SHARED = new OperationExecutor(32, 1024);
+    private static final Logger log = LoggerFactory.getLogger(OperationExecutor.class);
+
+    private final Executor[] lanes;
+
+    private OperationExecutor(int threads, int lanes) {
+        var pool = new ThreadPoolExecutor(
+                threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                new ThreadFactoryBuilder().setNameFormat("Mantaro Operations-%d").setDaemon(true).build()
+        );
+
+        pool.allowCoreThreadTimeOut(true);
+        Metrics.THREAD_POOL_COLLECTOR.add("operations", pool);
+
+        this.lanes = new Executor[lanes];
+        for (int i = 0; i < lanes; i++) {
+            this.lanes[i] = MoreExecutors.newSequentialExecutor(pool);
+        }
+    }
+
+    void execute(long key, Runnable task) {
+        // Snowflakes have their low bits mostly taken by the sequence number, so mix the whole thing.
+        var hash = Long.hashCode(key * 0x9E3779B97F4A7C15L);
+        lanes[Math.floorMod(hash, lanes.length)].execute(() -> {
+            try {
+                task.run();
+            } catch (Exception e) {
+                log.error("Error while running operation", e);
+            }
+        });
+    }
+}
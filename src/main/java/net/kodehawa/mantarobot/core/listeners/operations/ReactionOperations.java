@@ -16,13 +16,13 @@
 
 package net.kodehawa.mantarobot.core.listeners.operations;
 
+import gnu.trove.map.hash.TLongObjectHashMap;
 import net.dv8tion.jda.api.entities.Message;
 import net.dv8tion.jda.api.events.GenericEvent;
 import net.dv8tion.jda.api.events.message.react.MessageReactionAddEvent;
 import net.dv8tion.jda.api.events.message.react.MessageReactionRemoveAllEvent;
 import net.dv8tion.jda.api.events.message.react.MessageReactionRemoveEvent;
 import net.dv8tion.jda.api.hooks.EventListener;
-import net.jodah.expiringmap.ExpiringMap;
 import net.kodehawa.mantarobot.core.listeners.operations.core.Operation;
 import net.kodehawa.mantarobot.core.listeners.operations.core.ReactionOperation;
 
@@ -30,18 +30,22 @@ import javax.annotation.Nonnull;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
 
+/**
+ * Utility class to create, get or use a {@link ReactionOperation}, which listens for reactions on a message sent by us.
+ * <br>Operations are ran on the {@link OperationExecutor}, one at a time per message, and expired by the {@link TimeoutWheel}.
+ */
 public final class ReactionOperations {
     //The listener used to check reactions
     private static final EventListener LISTENER = new ReactionListener();
 
-    private static final ExpiringMap<Long, RunningOperation> OPERATIONS = ExpiringMap.builder()
-            .asyncExpirationListener((key, value) -> ((RunningOperation) value).operation.onExpire())
-            .variableExpiration()
-            .build();
+    // Message ID -> Operation. Guarded by itself.
+    private static final TLongObjectHashMap<RunningOperation> OPERATIONS = new TLongObjectHashMap<>();
 
     public static Future<Void> get(Message message) {
         if (!message.getAuthor().equals(message.getJDA().getSelfUser())) {
@@ -52,7 +56,10 @@ public final class ReactionOperations {
     }
 
     public static Future<Void> get(long messageId) {
-        RunningOperation o = OPERATIONS.get(messageId);
+        RunningOperation o;
+        synchronized (OPERATIONS) {
+            o = OPERATIONS.get(messageId);
+        }
 
         return o == null ? null : o.future;
     }
@@ -81,16 +88,20 @@ public final class ReactionOperations {
             throw new IllegalArgumentException("Operation cannot be null!");
         }
 
-        RunningOperation o = OPERATIONS.get(messageId);
+        RunningOperation o;
+        synchronized (OPERATIONS) {
+            o = OPERATIONS.get(messageId);
 
-        //If we find an already-running one, return the running operation.
-        if (o != null) {
-            return o.future;
-        }
+            //If we find an already-running one, return the running operation.
+            if (o != null) {
+                return o.future;
+            }
 
-        o = new RunningOperation(operation, new OperationFuture(messageId));
-        OPERATIONS.put(messageId, o, timeoutSeconds, TimeUnit.SECONDS);
+            o = new RunningOperation(operation, messageId, timeoutSeconds);
+            OPERATIONS.put(messageId, o);
+        }
 
+        TimeoutWheel.SHARED.schedule(o);
         return o.future;
     }
 
@@ -118,15 +129,17 @@ public final class ReactionOperations {
         if (operation == null)
             throw new IllegalArgumentException("Operation cannot be null!");
 
-        RunningOperation o = OPERATIONS.get(messageId);
-
-        //Already running?
-        if (o != null)
-            return null;
+        RunningOperation o;
+        synchronized (OPERATIONS) {
+            //Already running?
+            if (OPERATIONS.containsKey(messageId))
+                return null;
 
-        o = new RunningOperation(operation, new OperationFuture(messageId));
-        OPERATIONS.put(messageId, o, timeoutSeconds, TimeUnit.SECONDS);
+            o = new RunningOperation(operation, messageId, timeoutSeconds);
+            OPERATIONS.put(messageId, o);
+        }
 
+        TimeoutWheel.SHARED.schedule(o);
         return o.future;
     }
 
@@ -142,34 +155,19 @@ public final class ReactionOperations {
         return r;
     }
 
+    /**
+     * Only checks whether there's something to run here: the operations themselves don't run on the gateway thread.
+     */
     public static class ReactionListener implements EventListener {
         @Override
         public void onEvent(@Nonnull GenericEvent e) {
-
             if (e instanceof MessageReactionAddEvent) {
                 MessageReactionAddEvent event = (MessageReactionAddEvent) e;
                 if (event.getReaction().isSelf())
                     return;
 
-                long messageId = event.getMessageIdLong();
-                RunningOperation o = OPERATIONS.get(messageId);
-
-                if (o == null) {
-                    return;
-                }
-
                 //Forward this event to the anonymous class.
-                int i = o.operation.add(event);
-
-                if (i == Operation.COMPLETED) {
-                    //Operation has been completed. We can remove this from the running operations list and go on.
-                    OPERATIONS.remove(messageId);
-                    o.future.complete(null);
-                } else if (i == Operation.RESET_TIMEOUT) {
-                    //Reset the expiration of this specific operation.
-                    OPERATIONS.resetExpiration(messageId);
-                }
-
+                dispatch(event.getMessageIdLong(), o -> o.add(event));
                 return;
             }
 
@@ -178,48 +176,49 @@ public final class ReactionOperations {
                 if (event.getReaction().isSelf())
                     return;
 
-                long messageId = event.getMessageIdLong();
-                RunningOperation o = OPERATIONS.get(messageId);
-
-                if (o == null) {
-                    return;
-                }
-
                 //Forward this event to the anonymous class.
-                int i = o.operation.remove(event);
-
-                if (i == Operation.COMPLETED) {
-                    //Operation has been completed. We can remove this from the running operations list and go on.
-                    OPERATIONS.remove(messageId);
-                    o.future.complete(null);
-                } else if (i == Operation.RESET_TIMEOUT) {
-                    //Reset the expiration of this specific operation.
-                    OPERATIONS.resetExpiration(messageId);
-                }
-
+                dispatch(event.getMessageIdLong(), o -> o.remove(event));
                 return;
             }
 
             if (e instanceof MessageReactionRemoveAllEvent) {
                 MessageReactionRemoveAllEvent event = (MessageReactionRemoveAllEvent) e;
-                long messageId = event.getMessageIdLong();
-                RunningOperation o = OPERATIONS.get(messageId);
-                if (o == null) {
+
+                //Forward this event to the anonymous class.
+                dispatch(event.getMessageIdLong(), o -> o.removeAll(event));
+            }
+        }
+
+        private static void dispatch(long messageId, ToIntFunction<ReactionOperation> handler) {
+            synchronized (OPERATIONS) {
+                if (!OPERATIONS.containsKey(messageId)) {
                     return;
                 }
+            }
 
-                //Forward this event to the anonymous class.
-                int i = o.operation.removeAll(event);
+            OperationExecutor.SHARED.execute(messageId, () -> {
+                RunningOperation o;
+                synchronized (OPERATIONS) {
+                    o = OPERATIONS.get(messageId);
+                }
+
+                // Might have been completed, expired or cancelled since the event came in.
+                if (o == null || o.isFinished()) {
+                    return;
+                }
 
+                int i = handler.applyAsInt(o.operation);
                 if (i == Operation.COMPLETED) {
                     //Operation has been completed. We can remove this from the running operations list and go on.
-                    OPERATIONS.remove(messageId);
-                    o.future.complete(null);
+                    if (o.finish()) {
+                        o.cancelTimeout();
+                        o.future.complete(null);
+                    }
                 } else if (i == Operation.RESET_TIMEOUT) {
                     //Reset the expiration of this specific operation.
-                    OPERATIONS.resetExpiration(messageId);
+                    o.resetTimeout();
                 }
-            }
+            });
         }
     }
 
@@ -243,33 +242,65 @@ public final class ReactionOperations {
         message.addReaction(reaction(defaultReactions[0])).queue(c.get(), ignore);
     }
 
-    private static class RunningOperation {
+    private static class RunningOperation extends TimeoutWheel.Timeout {
         final OperationFuture future;
         final ReactionOperation operation;
+        final long messageId;
+        private final AtomicBoolean finished = new AtomicBoolean();
 
-        RunningOperation(ReactionOperation operation, OperationFuture future) {
+        RunningOperation(ReactionOperation operation, long messageId, long timeoutSeconds) {
+            super(timeoutSeconds, TimeUnit.SECONDS);
             this.operation = operation;
-            this.future = future;
+            this.messageId = messageId;
+            this.future = new OperationFuture(this);
+        }
+
+        boolean isFinished() {
+            return finished.get();
+        }
+
+        // Only one of complete, cancel or expire can happen. Returns whether we're the one that gets to.
+        boolean finish() {
+            if (!finished.compareAndSet(false, true)) {
+                return false;
+            }
+
+            synchronized (OPERATIONS) {
+                if (OPERATIONS.get(messageId) == this) {
+                    OPERATIONS.remove(messageId);
+                }
+            }
+
+            return true;
+        }
+
+        @Override
+        void expire() {
+            // Ran on the message lane, so it can't happen while the operation is handling a reaction.
+            OperationExecutor.SHARED.execute(messageId, () -> {
+                if (finish()) {
+                    operation.onExpire();
+                }
+            });
         }
     }
 
     private static class OperationFuture extends CompletableFuture<Void> {
-        private final long id;
+        private final RunningOperation operation;
 
-        OperationFuture(long id) {
-            this.id = id;
+        OperationFuture(RunningOperation operation) {
+            this.operation = operation;
         }
 
         @Override
         public boolean cancel(boolean mayInterruptIfRunning) {
             super.cancel(mayInterruptIfRunning);
-            RunningOperation o = OPERATIONS.remove(id);
-
-            if (o == null) {
+            if (!operation.finish()) {
                 return false;
             }
 
-            o.operation.onCancel();
+            operation.cancelTimeout();
+            operation.operation.onCancel();
             return true;
         }
     }
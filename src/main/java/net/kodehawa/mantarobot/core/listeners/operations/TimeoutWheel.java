@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2016-2021 David Rubio Escares / Kodehawa
+ *
+ *  Mantaro is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  Mantaro is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Mantaro. If not, see http://www.gnu.org/licenses/
+ */
+
+package net.kodehawa.mantarobot.core.listeners.operations;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hashed timing wheel used to expire operations.
+ * <br>Timeouts are put on the bucket of the tick they expire on, so every tick only looks at the timeouts that
+ * (might) expire on it, instead of going through every running operation. Timeouts further away than a full turn
+ * of the wheel just wait for as many turns as needed.
+ * <br>Resetting a timeout only moves its deadline: when its bucket comes up, it's moved further away instead of expired.
+ * Cancelling it just marks it, and it's dropped once its bucket comes up.
+ */
+final class TimeoutWheel {
+    // 100ms ticks * 512 buckets = a turn every ~51 seconds, which is about as long as most operations last.
+    static final TimeoutWheel SHARED = new TimeoutWheel(100, TimeUnit.MILLISECONDS, 512);
+    private static final Logger log = LoggerFactory.getLogger(TimeoutWheel.class);
+
+    private final long tickNanos;
+    private final long mask;
+    private final List<ArrayDeque<Timeout>> buckets;
+    // Timeouts added since the last tick. Only the wheel thread touches the buckets.
+    private final ConcurrentLinkedQueue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private final long start = System.nanoTime();
+    private long tick;
+
+    private TimeoutWheel(long tickDuration, TimeUnit unit, int size) {
+        if (Integer.bitCount(size) != 1) {
+            throw new IllegalArgumentException("Wheel size must be a power of two");
+        }
+
+        this.tickNanos = unit.toNanos(tickDuration);
+        this.mask = size - 1;
+        this.buckets = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            buckets.add(new ArrayDeque<>());
+        }
+
+        var thread = new Thread(this::run, "Mantaro Operation Timeout Wheel");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Starts tracking a timeout. It'll expire once its deadline passes, unless it's cancelled or reset before that.
+     */
+    void schedule(Timeout timeout) {
+        added.add(timeout);
+    }
+
+    private void run() {
+        //noinspection InfiniteLoopStatement
+        while (true) {
+            var deadline = start + (tick + 1) * tickNanos;
+            long now;
+            while ((now = System.nanoTime()) < deadline) {
+                LockSupport.parkNanos(deadline - now);
+            }
+
+            try {
+                Timeout timeout;
+                while ((timeout = added.poll()) != null) {
+                    place(timeout, tick);
+                }
+
+                expire(buckets.get((int) (tick & mask)), now);
+            } catch (Exception e) {
+                log.error("Error while processing timeouts", e);
+            }
+
+            tick++;
+        }
+    }
+
+    private void expire(ArrayDeque<Timeout> bucket, long now) {
+        List<Timeout> moved = null;
+        var iterator = bucket.iterator();
+        while (iterator.hasNext()) {
+            var timeout = iterator.next();
+            if (timeout.cancelled) {
+                iterator.remove();
+                continue;
+            }
+
+            if (timeout.rounds > 0) {
+                timeout.rounds--;
+                continue;
+            }
+
+            iterator.remove();
+            if (timeout.deadline - now > 0) {
+                // It got reset since it was placed here.
+                if (moved == null) {
+                    moved = new ArrayList<>();
+                }
+
+                moved.add(timeout);
+                continue;
+            }
+
+            try {
+                timeout.expire();
+            } catch (Exception e) {
+                log.error("Error while expiring a timeout", e);
+            }
+        }
+
+        // Placed after going through the bucket, as they could land on the same one.
+        if (moved != null) {
+            for (var timeout : moved) {
+                place(timeout, tick + 1);
+            }
+        }
+    }
+
+    // The first tick that will look at the timeout is the one given.
+    private void place(Timeout timeout, long firstTick) {
+        // Tick the deadline falls in (ticks are processed once they end), never before the first one we'll look at.
+        var target = Math.max(firstTick, Math.floorDiv(timeout.deadline - start, tickNanos));
+        timeout.rounds = (target - firstTick) / buckets.size();
+        buckets.get((int) (target & mask)).add(timeout);
+    }
+
+    /**
+     * Something that expires. {@link #expire()} runs on the wheel thread, so it should only hand the work to someone else.
+     */
+    abstract static class Timeout {
+        private final long timeoutNanos;
+        private volatile long deadline;
+        private volatile boolean cancelled;
+        // Full turns of the wheel left until the deadline. Only touched by the wheel thread.
+        private long rounds;
+
+        Timeout(long timeout, TimeUnit unit) {
+            this.timeoutNanos = unit.toNanos(timeout);
+            this.deadline = System.nanoTime() + timeoutNanos;
+        }
+
+        /**
+         * Pushes the deadline back to a full timeout from now.
+         */
+        void resetTimeout() {
+            deadline = System.nanoTime() + timeoutNanos;
+        }
+
+        /**
+         * Stops this from expiring.
+         */
+        void cancelTimeout() {
+            cancelled = true;
+        }
+
+        abstract void expire();
+    }
+}
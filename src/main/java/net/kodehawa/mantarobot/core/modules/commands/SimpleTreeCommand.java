@@ -65,7 +65,7 @@ public abstract class SimpleTreeCommand extends AbstractCommand implements ITree
             return;
         }
 
-        command.run(new Context(context.getEvent(), context.getLanguageContext(), args[1], context.isMentionPrefix()), commandName + " " + args[0], args[1]);
+        command.run(new Context(context.getEvent(), context.getLanguageContext(), args[1], context.isMentionPrefix(), context.getEntities()), commandName + " " + args[0], args[1]);
     }
 
     public void setPredicate(Predicate<Context> predicate) {
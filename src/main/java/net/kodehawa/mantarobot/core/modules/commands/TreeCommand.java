@@ -62,7 +62,7 @@ public abstract class TreeCommand extends AbstractCommand implements ITreeComman
 
         if (!predicate.test(context)) return;
 
-        command.run(new Context(context.getEvent(), context.getLanguageContext(), ct, context.isMentionPrefix()),
+        command.run(new Context(context.getEvent(), context.getLanguageContext(), ct, context.isMentionPrefix(), context.getEntities()),
                 commandName + (isDefault ? "" : " " + args[0]), ct
         );
     }
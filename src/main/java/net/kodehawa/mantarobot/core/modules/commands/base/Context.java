@@ -28,6 +28,7 @@ import net.kodehawa.mantarobot.commands.music.MantaroAudioManager;
 import net.kodehawa.mantarobot.core.modules.commands.i18n.I18nContext;
 import net.kodehawa.mantarobot.data.Config;
 import net.kodehawa.mantarobot.data.MantaroData;
+import net.kodehawa.mantarobot.db.EntityContext;
 import net.kodehawa.mantarobot.db.ManagedDatabase;
 import net.kodehawa.mantarobot.db.entities.*;
 import net.kodehawa.mantarobot.db.entities.helpers.UserData;
@@ -50,13 +51,19 @@ public class Context {
     private final GuildMessageReceivedEvent event;
     private final String content;
     private final boolean isMentionPrefix;
+    private final EntityContext entities;
     private I18nContext languageContext;
 
     public Context(GuildMessageReceivedEvent event, I18nContext languageContext, String content, boolean isMentionPrefix) {
+        this(event, languageContext, content, isMentionPrefix, null);
+    }
+
+    public Context(GuildMessageReceivedEvent event, I18nContext languageContext, String content, boolean isMentionPrefix, EntityContext entities) {
         this.event = event;
         this.languageContext = languageContext;
         this.content = content;
         this.isMentionPrefix = isMentionPrefix;
+        this.entities = entities;
     }
 
     public MantaroBot getBot() {
@@ -148,10 +155,18 @@ public class Context {
     }
 
     public DBGuild getDBGuild() {
+        if (hasEntities()) {
+            return entities.getDBGuild();
+        }
+
         return managedDatabase.getGuild(getGuild());
     }
 
     public DBUser getDBUser() {
+        if (hasEntities()) {
+            return entities.getDBUser();
+        }
+
         return managedDatabase.getUser(getUser());
     }
 
@@ -168,6 +183,10 @@ public class Context {
     }
 
     public Player getPlayer() {
+        if (hasEntities()) {
+            return entities.getPlayer();
+        }
+
         return managedDatabase.getPlayer(getUser());
     }
 
@@ -212,9 +231,22 @@ public class Context {
     }
 
     public MantaroObj getMantaroData() {
+        if (hasEntities()) {
+            return entities.getMantaroData();
+        }
+
         return managedDatabase.getMantaroData();
     }
 
+    public EntityContext getEntities() {
+        return entities;
+    }
+
+    // Entities loaded by the command dispatcher, only valid while the command is running.
+    private boolean hasEntities() {
+        return entities != null && entities.isOpen();
+    }
+
     public boolean isSeasonal() {
         Map<String, String> optionalArguments = getOptionalArguments();
         return optionalArguments.containsKey("season") || optionalArguments.containsKey("s");
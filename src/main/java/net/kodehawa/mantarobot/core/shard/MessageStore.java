@@ -0,0 +1,352 @@
+/*
+ * Copyright (C) 2016-2021 David Rubio Escares / Kodehawa
+ *
+ *  Mantaro is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  Mantaro is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Mantaro. If not, see http://www.gnu.org/licenses/
+ */
+
+package net.kodehawa.mantarobot.core.shard;
+
+import gnu.trove.map.hash.TLongIntHashMap;
+import gnu.trove.map.hash.TLongObjectHashMap;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import net.kodehawa.mantarobot.core.listeners.entities.CachedMessage;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps recent messages around so edits and deletes can be logged, but only for guilds that have logs enabled.
+ * <br>Every guild gets its own arena (a direct buffer, so it stays off the heap), which grows up to a quota and then
+ * works as a ring: new messages push out the oldest ones of the same guild, so a busy guild can't push out the history
+ * of a quiet one. Messages are kept as their id, author and UTF-8 content, and only turned into a {@link CachedMessage}
+ * when someone asks for them.
+ * <br>Arenas only grow while there's room left on the whole store, after that guilds make do with what they have. Every
+ * guild gets its first few kilobytes either way, so a full store still keeps the last few messages of new guilds.
+ */
+public class MessageStore {
+    private static final Counter lookups = Counter.build()
+            .name("message_store_lookups").help("Message store lookups, by result (hit/miss)")
+            .labelNames("result")
+            .register();
+    private static final Gauge allocated = Gauge.build()
+            .name("message_store_bytes").help("Bytes allocated by message stores, across every shard")
+            .register();
+
+    // length (int), message id (long), author id (long), then the content.
+    private static final int HEADER = 4 + 8 + 8;
+    // Marks the end of the records before the arena wraps around.
+    private static final int WRAP = -1;
+    private static final int INITIAL_CAPACITY = 4096;
+
+    private final int guildQuota;
+    private final long maxBytes;
+    private final AtomicLong size = new AtomicLong();
+    private final TLongObjectHashMap<Arena> arenas = new TLongObjectHashMap<>();
+
+    /**
+     * @param guildQuota How many bytes a single guild can take, at most.
+     * @param maxBytes How many bytes every guild can take together. Guilds stop growing once we get here.
+     */
+    public MessageStore(int guildQuota, long maxBytes) {
+        this.guildQuota = guildQuota;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Starts or stops keeping messages for a guild. Messages of guilds we're not keeping are ignored.
+     */
+    public void setTracking(long guildId, boolean track) {
+        synchronized (arenas) {
+            if (track) {
+                if (!arenas.containsKey(guildId)) {
+                    arenas.put(guildId, new Arena());
+                }
+            } else {
+                var arena = arenas.remove(guildId);
+                if (arena != null) {
+                    arena.release();
+                }
+            }
+        }
+    }
+
+    public boolean isTracking(long guildId) {
+        synchronized (arenas) {
+            return arenas.containsKey(guildId);
+        }
+    }
+
+    /**
+     * Keeps a message, replacing the one with the same id if there's one. Does nothing if we're not keeping messages
+     * for the guild.
+     */
+    public void put(long guildId, long messageId, long authorId, @Nonnull String content) {
+        var arena = arena(guildId);
+        if (arena != null) {
+            arena.put(messageId, authorId, content.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    @Nullable
+    public CachedMessage get(long guildId, long messageId) {
+        var arena = arena(guildId);
+        var message = arena == null ? null : arena.get(guildId, messageId);
+        lookups.labels(message == null ? "miss" : "hit").inc();
+        return message;
+    }
+
+    /**
+     * @return How many bytes the arenas of every guild take.
+     */
+    public long getSize() {
+        return size.get();
+    }
+
+    /**
+     * @return How many messages we're keeping, across every guild.
+     */
+    public int getCount() {
+        synchronized (arenas) {
+            var count = 0;
+            for (var arena : arenas.valueCollection()) {
+                count += arena.count();
+            }
+
+            return count;
+        }
+    }
+
+    private Arena arena(long guildId) {
+        synchronized (arenas) {
+            return arenas.get(guildId);
+        }
+    }
+
+    // Takes bytes from the store, if there's enough left.
+    private boolean reserve(int bytes) {
+        while (true) {
+            var current = size.get();
+            if (current + bytes > maxBytes) {
+                return false;
+            }
+
+            if (size.compareAndSet(current, current + bytes)) {
+                allocated.inc(bytes);
+                return true;
+            }
+        }
+    }
+
+    // Takes bytes from the store, whether there's enough left or not.
+    private void take(int bytes) {
+        size.addAndGet(bytes);
+        allocated.inc(bytes);
+    }
+
+    private void free(int bytes) {
+        size.addAndGet(-bytes);
+        allocated.dec(bytes);
+    }
+
+    /**
+     * The messages of a single guild, as records one after the other on a ring. Records never go across the end of the
+     * buffer: when one doesn't fit, the space left is skipped and we start again from the beginning.
+     * <br>Edited messages are written again, and the old record is just left there until it's pushed out.
+     */
+    private class Arena {
+        // Message id -> Where its latest record starts.
+        private final TLongIntHashMap index = new TLongIntHashMap(16, 0.5f, 0, -1);
+        private ByteBuffer buffer;
+        // Where the oldest record starts, where the next one goes, and how many bytes (skipped ones included) are in use.
+        private int head;
+        private int tail;
+        private int used;
+        // Set once the guild is dropped, so a put that raced with it doesn't allocate again.
+        private boolean released;
+
+        private synchronized void put(long messageId, long authorId, byte[] content) {
+            var length = HEADER + content.length;
+            if (length > guildQuota) {
+                // Never going to fit, but don't leave the old version of it around either.
+                index.remove(messageId);
+                return;
+            }
+
+            var offset = reserve(length);
+            if (offset == -1) {
+                index.remove(messageId);
+                return;
+            }
+
+            buffer.putInt(offset, length);
+            buffer.putLong(offset + 4, messageId);
+            buffer.putLong(offset + 12, authorId);
+            // Absolute bulk put/get are Java 16+, so go through a duplicate to not move the buffer's own position.
+            buffer.duplicate().position(offset + HEADER).put(content);
+            tail = offset + length;
+            used += length;
+            index.put(messageId, offset);
+        }
+
+        private synchronized CachedMessage get(long guildId, long messageId) {
+            var offset = index.get(messageId);
+            if (offset == -1) {
+                return null;
+            }
+
+            var content = new byte[buffer.getInt(offset) - HEADER];
+            buffer.duplicate().position(offset + HEADER).get(content);
+            return new CachedMessage(guildId, buffer.getLong(offset + 12), new String(content, StandardCharsets.UTF_8));
+        }
+
+        private synchronized int count() {
+            return index.size();
+        }
+
+        private synchronized void release() {
+            released = true;
+            if (buffer != null) {
+                free(buffer.capacity());
+                buffer = null;
+            }
+
+            index.clear();
+        }
+
+        // Finds room for a record, growing the buffer or pushing out old records. Returns where it goes, or -1.
+        private int reserve(int length) {
+            if (released) {
+                return -1;
+            }
+
+            if (buffer == null) {
+                // Everyone gets to start, even if the store is full. Otherwise new guilds would get nothing at all.
+                var capacity = Math.min(guildQuota, INITIAL_CAPACITY);
+                MessageStore.this.take(capacity);
+                buffer = ByteBuffer.allocateDirect(capacity);
+            }
+
+            while (true) {
+                var offset = findSpace(length);
+                if (offset != -1) {
+                    return offset;
+                }
+
+                if (!grow() && !evictOldest()) {
+                    return -1;
+                }
+            }
+        }
+
+        private int findSpace(int length) {
+            var capacity = buffer.capacity();
+            if (used == 0) {
+                head = tail = 0;
+                return length <= capacity ? 0 : -1;
+            }
+
+            if (tail > head) {
+                if (capacity - tail >= length) {
+                    return tail;
+                }
+
+                if (head >= length) {
+                    // Skip what's left at the end and go back to the start.
+                    if (capacity - tail >= 4) {
+                        buffer.putInt(tail, WRAP);
+                    }
+
+                    used += capacity - tail;
+                    return 0;
+                }
+
+                return -1;
+            }
+
+            // We've wrapped around already: the only room is between the newest and the oldest record.
+            return head - tail >= length ? tail : -1;
+        }
+
+        // Doubles the buffer (up to the quota, and if the store has room), keeping only the latest version of every message.
+        private boolean grow() {
+            var capacity = buffer.capacity();
+            var newCapacity = (int) Math.min(guildQuota, capacity * 2L);
+            if (newCapacity <= capacity || !MessageStore.this.reserve(newCapacity - capacity)) {
+                return false;
+            }
+
+            var grown = ByteBuffer.allocateDirect(newCapacity);
+            var written = 0;
+            var offset = head;
+            var remaining = used;
+            while (remaining > 0) {
+                if (isWrap(offset)) {
+                    remaining -= capacity - offset;
+                    offset = 0;
+                    continue;
+                }
+
+                var recordLength = buffer.getInt(offset);
+                var messageId = buffer.getLong(offset + 4);
+                if (index.get(messageId) == offset) {
+                    grown.position(written);
+                    grown.put(buffer.duplicate().limit(offset + recordLength).position(offset));
+                    index.put(messageId, written);
+                    written += recordLength;
+                }
+
+                remaining -= recordLength;
+                offset += recordLength;
+            }
+
+            buffer = grown;
+            head = 0;
+            tail = written;
+            used = written;
+            return true;
+        }
+
+        private boolean evictOldest() {
+            if (used == 0) {
+                return false;
+            }
+
+            var capacity = buffer.capacity();
+            if (isWrap(head)) {
+                used -= capacity - head;
+                head = 0;
+                return true;
+            }
+
+            var recordLength = buffer.getInt(head);
+            var messageId = buffer.getLong(head + 4);
+            // It might have been edited (or pushed out) since.
+            if (index.get(messageId) == head) {
+                index.remove(messageId);
+            }
+
+            head += recordLength;
+            used -= recordLength;
+            return true;
+        }
+
+        // Whether there's no record starting here, because we wrapped around before it.
+        private boolean isWrap(int offset) {
+            return buffer.capacity() - offset < HEADER || buffer.getInt(offset) == WRAP;
+        }
+    }
+}
@@ -16,15 +16,12 @@
 
 package net.kodehawa.mantarobot.core.shard;
 
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
 import net.dv8tion.jda.api.JDA;
 import net.dv8tion.jda.api.entities.Activity;
 import net.dv8tion.jda.api.events.ReadyEvent;
 import net.dv8tion.jda.api.hooks.EventListener;
 import net.kodehawa.mantarobot.MantaroBot;
 import net.kodehawa.mantarobot.core.MantaroEventManager;
-import net.kodehawa.mantarobot.core.listeners.entities.CachedMessage;
 import net.kodehawa.mantarobot.utils.APIUtils;
 import org.json.JSONObject;
 import org.json.JSONTokener;
@@ -37,7 +34,6 @@ import javax.annotation.Nullable;
 import java.time.Month;
 import java.time.OffsetDateTime;
 import java.util.Objects;
-import java.util.Optional;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -46,8 +42,8 @@ import static net.kodehawa.mantarobot.data.MantaroData.config;
 
 public class Shard {
     private static final Logger log = LoggerFactory.getLogger(Shard.class);
-    private final Cache<Long, Optional<CachedMessage>> messageCache =
-            CacheBuilder.newBuilder().concurrencyLevel(5).maximumSize(2500).build();
+    private final MessageStore messageStore =
+            new MessageStore(config().get().getMessageStoreGuildQuota(), config().get().getMessageStoreSize());
 
     private final MantaroEventManager manager = new MantaroEventManager();
     private final int id;
@@ -80,8 +76,8 @@ public class Shard {
 
     @Nonnull
     @CheckReturnValue
-    public Cache<Long, Optional<CachedMessage>> getMessageCache() {
-        return messageCache;
+    public MessageStore getMessageStore() {
+        return messageStore;
     }
 
     @Nonnull
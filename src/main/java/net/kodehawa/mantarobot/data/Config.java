@@ -61,6 +61,48 @@ public class Config {
     public boolean isSelfHost = false;
     public int memberCacheSize = 10_000;
     public boolean handleRatelimits = true;
+    // How often to write buffered saves, in milliseconds. 0 to write them straight away.
+    public long saveQueueInterval = 1000;
+    // How many buffered saves we can hold before writing them early.
+    public int saveQueueMaxSize = 500;
+    // Max weight (roughly, entries in guild data) of the guild cache. 0 to disable it.
+    public long guildCacheSize = 100_000;
+    // For how long to keep guilds cached, in seconds.
+    public long guildCacheTtl = 600;
+    // How many custom commands to keep cached. 0 to disable the custom command cache.
+    public long customCommandCacheSize = 10_000;
+    // How many custom command names (across every guild) to keep cached.
+    public long customCommandIndexSize = 200_000;
+    // For how long to keep custom commands and their names cached, in seconds.
+    public long customCommandCacheTtl = 600;
+    // Database connections used for point lookups and writes.
+    public int dbPoolSize = 4;
+    // Database connections used for table scans (leaderboards, birthdays, etc).
+    public int dbScanPoolSize = 2;
+    // How many queries can run at the same time on a single database connection.
+    public int dbMaxInFlight = 16;
+    // For how long a command holds the cross-node lease on its user, in seconds. Only used when running on more than one node.
+    public int commandLeaseTtl = 60;
+    // How many commands can run at the same time.
+    public int commandWorkers = 64;
+    // How many commands can be waiting to run. Once there's more, new ones get rejected.
+    public int commandQueueSize = 2000;
+    // How many commands of a single guild can be waiting to run.
+    public int commandQueueSizePerGuild = 50;
+    // How many commands of a single user can be waiting to run.
+    public int commandQueueSizePerUser = 5;
+    // How often to rebuild the leaderboards from the database, in hours. 0 to never rebuild them.
+    public long leaderboardReconcileInterval = 6;
+    // How often to write passive experience, in milliseconds.
+    public long experienceFlushInterval = 10_000;
+    // How many bytes of encoded tracks to keep from track loads and searches. 0 to only collapse concurrent loads.
+    public long trackCacheSize = 64 * 1024 * 1024;
+    // For how long to keep track loads and searches cached, in seconds.
+    public long trackCacheTtl = 600;
+    // How many bytes of messages to keep per guild with logs enabled, to log edits and deletes.
+    public int messageStoreGuildQuota = 64 * 1024;
+    // How many bytes of messages to keep per shard, across every guild with logs enabled.
+    public long messageStoreSize = 8 * 1024 * 1024;
 
     public Config() { }
 
@@ -227,4 +269,88 @@ public class Config {
     public boolean isHandleRatelimits() {
         return handleRatelimits;
     }
+
+    public long getSaveQueueInterval() {
+        return saveQueueInterval;
+    }
+
+    public int getSaveQueueMaxSize() {
+        return saveQueueMaxSize;
+    }
+
+    public long getGuildCacheSize() {
+        return guildCacheSize;
+    }
+
+    public long getGuildCacheTtl() {
+        return guildCacheTtl;
+    }
+
+    public int getDbPoolSize() {
+        return dbPoolSize;
+    }
+
+    public int getDbScanPoolSize() {
+        return dbScanPoolSize;
+    }
+
+    public int getDbMaxInFlight() {
+        return dbMaxInFlight;
+    }
+
+    public int getCommandLeaseTtl() {
+        return commandLeaseTtl;
+    }
+
+    public long getCustomCommandCacheSize() {
+        return customCommandCacheSize;
+    }
+
+    public long getCustomCommandIndexSize() {
+        return customCommandIndexSize;
+    }
+
+    public long getCustomCommandCacheTtl() {
+        return customCommandCacheTtl;
+    }
+
+    public int getCommandWorkers() {
+        return commandWorkers;
+    }
+
+    public int getCommandQueueSize() {
+        return commandQueueSize;
+    }
+
+    public int getCommandQueueSizePerGuild() {
+        return commandQueueSizePerGuild;
+    }
+
+    public int getCommandQueueSizePerUser() {
+        return commandQueueSizePerUser;
+    }
+
+    public long getLeaderboardReconcileInterval() {
+        return leaderboardReconcileInterval;
+    }
+
+    public long getExperienceFlushInterval() {
+        return experienceFlushInterval;
+    }
+
+    public long getTrackCacheSize() {
+        return trackCacheSize;
+    }
+
+    public long getTrackCacheTtl() {
+        return trackCacheTtl;
+    }
+
+    public int getMessageStoreGuildQuota() {
+        return messageStoreGuildQuota;
+    }
+
+    public long getMessageStoreSize() {
+        return messageStoreSize;
+    }
 }
@@ -59,7 +59,7 @@ public class I18n {
                 Map<String, ?> map = (Map<String, ?>) mapper.readValue(is, Map.class);
 
                 var name = lang.replace(".json", "");
-                m.put(name, new I18n(map, lang));
+                m.put(name, new I18n(compile(map)));
 
                 log.debug("Initialized I18n for: {}", name);
             } catch (Exception e) {
@@ -67,15 +67,53 @@ public class I18n {
             }
         }
 
+        // Resolve the en_US fallback now, so a missing key doesn't need a second lookup later.
+        var fallback = m.get("en_US");
+        if (fallback != null) {
+            for (var i18n : m.values()) {
+                if (i18n != fallback) {
+                    fallback.keys.forEach(i18n.keys::putIfAbsent);
+                }
+            }
+        }
+
         LANGUAGE_MAP = Collections.unmodifiableMap(m);
     }
 
-    private final Map<String, ?> map;
-    private final String language;
+    // Full dotted key -> every variant of it, already post-processed.
+    private final Map<String, String[]> keys;
 
-    private I18n(Map<String, ?> map, String language) {
-        this.map = map;
-        this.language = language;
+    private I18n(Map<String, String[]> keys) {
+        this.keys = keys;
+    }
+
+    /**
+     * Flattens a language file into a table of full key -> variants, so a lookup is a single hash probe
+     * instead of walking every level of the file. Anything that isn't a string or a list of them isn't a valid key.
+     */
+    private static Map<String, String[]> compile(Map<String, ?> map) {
+        Map<String, String[]> keys = new HashMap<>();
+        compile(keys, null, map);
+        return keys;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void compile(Map<String, String[]> keys, String prefix, Map<String, ?> map) {
+        for (var entry : map.entrySet()) {
+            var key = prefix == null ? entry.getKey() : prefix + "." + entry.getKey();
+            var value = entry.getValue();
+
+            if (value instanceof Map) {
+                compile(keys, key, (Map<String, ?>) value);
+            } else if (value instanceof String) {
+                keys.put(key, new String[] { Utils.fixInlineCodeblockDirection((String) value) });
+            } else if (value instanceof Collection && !((Collection<?>) value).isEmpty()) {
+                keys.put(key, ((Collection<?>) value).stream()
+                        .map(variant -> Utils.fixInlineCodeblockDirection(String.valueOf(variant)))
+                        .toArray(String[]::new)
+                );
+            }
+        }
     }
 
     public static I18n of(String guildId) {
@@ -117,54 +155,17 @@ public class I18n {
         ROOT.set(newRoot);
     }
 
-    @SuppressWarnings("unchecked")
-    private String get(Map<String, ?> map, String[] parts, boolean recursion) {
-        var index = 0;
-        while (index != parts.length - 1) {
-            Object maybeMap = map.get(parts[index]);
-            if (maybeMap instanceof Map) {
-                map = (Map<String, ?>) maybeMap;
-                index++;
-            } else {
-                if (language.equals("en_US") || recursion) {
-                    throw new LanguageKeyNotFoundException("Missing i18n key " + String.join(".", parts));
-                }
-
-                return get(LANGUAGE_MAP.get("en_US").map, parts, true);
-            }
-        }
-
-        Object maybeString = map.get(parts[index]);
-        if (maybeString instanceof String) {
-            return (String) maybeString;
-        }
-
-        if (maybeString instanceof Collection) {
-            Collection<String> c = ((Collection<String>) maybeString);
-            return c.stream()
-                    .skip(ThreadLocalRandom.current().nextInt(c.size()))
-                    .findFirst()
-                    .orElseThrow(AssertionError::new);
-        }
-
-        if (language.equals("en_US") || recursion) {
-            throw new LanguageKeyNotFoundException("Missing i18n key " + String.join(".", parts));
-        }
-
-        return get(LANGUAGE_MAP.get("en_US").map, parts, true);
-    }
-
     public String get(String query) {
         var root = ROOT.get();
-        String actualQuery;
+        var actualQuery = root == null ? query : root + "." + query;
 
-        if (root == null) {
-            actualQuery = query;
-        } else {
-            actualQuery = root + "." + query;
+        // The en_US fallback is already part of the table, so if it isn't here, it isn't anywhere.
+        var variants = keys.get(actualQuery);
+        if (variants == null) {
+            throw new LanguageKeyNotFoundException("Missing i18n key " + actualQuery);
         }
 
-        return Utils.fixInlineCodeblockDirection(get(map, actualQuery.split("\\."), false));
+        return variants.length == 1 ? variants[0] : variants[ThreadLocalRandom.current().nextInt(variants.length)];
     }
 
     public String withRoot(String root, String query) {
@@ -17,7 +17,7 @@
 package net.kodehawa.mantarobot.data;
 
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
-import com.rethinkdb.net.Connection;
+import net.kodehawa.mantarobot.db.ConnectionPool;
 import net.kodehawa.mantarobot.db.ManagedDatabase;
 import net.kodehawa.mantarobot.utils.data.JsonDataManager;
 import net.kodehawa.mantarobot.utils.exporters.Metrics;
@@ -29,8 +29,6 @@ import java.util.concurrent.Callable;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 
-import static com.rethinkdb.RethinkDB.r;
-
 public class MantaroData {
     private static final Logger log = LoggerFactory.getLogger(MantaroData.class);
     private static final ScheduledExecutorService exec = Executors.newScheduledThreadPool(
@@ -38,7 +36,7 @@ public class MantaroData {
     );
 
     private static JsonDataManager<Config> config;
-    private static Connection connection;
+    private static volatile ConnectionPool pool;
     private static ManagedDatabase db;
 
     private static final JedisPool defaultJedisPool = new JedisPool(config().get().jedisPoolAddress, config().get().jedisPoolPort);
@@ -55,33 +53,27 @@ public class MantaroData {
         return config;
     }
 
-    public static Connection conn() {
-        var config = config().get();
-        if (connection == null) {
+    public static ConnectionPool pool() {
+        if (pool == null) {
             synchronized (MantaroData.class) {
-                if (connection != null) {
-                    return connection;
+                if (pool != null) {
+                    return pool;
                 }
 
-                connection = r.connection()
-                        .hostname(config.getDbHost())
-                        .port(config.getDbPort())
-                        .db(config.getDbDb())
-                        .user(config.getDbUser(), config.getDbPassword())
-                        .connect();
-
-                log.info("Established first database connection to {}:{} ({})",
+                var config = config().get();
+                pool = new ConnectionPool(config.getDbPoolSize(), config.getDbScanPoolSize(), config.getDbMaxInFlight());
+                log.info("Established database connections to {}:{} ({})",
                         config.getDbHost(), config.getDbPort(), config.getDbUser()
                 );
             }
         }
 
-        return connection;
+        return pool;
     }
 
     public static ManagedDatabase db() {
         if (db == null) {
-            db = new ManagedDatabase(conn());
+            db = new ManagedDatabase(pool());
         }
 
         return db;
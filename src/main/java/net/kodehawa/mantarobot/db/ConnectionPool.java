@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2016-2021 David Rubio Escares / Kodehawa
+ *
+ *  Mantaro is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  Mantaro is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Mantaro. If not, see http://www.gnu.org/licenses/
+ */
+
+package net.kodehawa.mantarobot.db;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.rethinkdb.net.Connection;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import io.prometheus.client.Histogram;
+import net.kodehawa.mantarobot.utils.Utils;
+import net.kodehawa.mantarobot.utils.exporters.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import static com.rethinkdb.RethinkDB.r;
+
+/**
+ * A set of rethink connections, split in two lanes: one for point lookups and writes, and one for table scans.
+ * <br>Long scans (leaderboards, the birthday cacher, getting all players) run on their own connections,
+ * so they can't hold off the latency-sensitive lookups commands do.
+ * <br>A connection can have more than one query running at the same time (the driver pipelines them),
+ * up to the configured in-flight limit. Connections are health-checked periodically and re-created if they die.
+ */
+public class ConnectionPool {
+    private static final Logger log = LoggerFactory.getLogger(ConnectionPool.class);
+    private static final Histogram waitTime = Histogram.build()
+            .name("db_pool_wait_time").help("Time spent waiting for a database connection, in milliseconds")
+            .labelNames("lane")
+            .buckets(0.1, 0.5, 1, 5, 10, 25, 50, 100, 250, 500, 1000)
+            .register();
+    private static final Gauge inFlight = Gauge.build()
+            .name("db_pool_in_flight").help("Database queries currently running")
+            .labelNames("lane")
+            .register();
+    private static final Gauge capacity = Gauge.build()
+            .name("db_pool_capacity").help("How many queries can run at the same time")
+            .labelNames("lane")
+            .register();
+    private static final Counter reconnects = Counter.build()
+            .name("db_pool_reconnects").help("Database connections re-created after failing a health check")
+            .labelNames("lane")
+            .register();
+
+    private final Lane point;
+    private final Lane scan;
+    private final ScheduledExecutorService healthCheck = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("Mantaro DB Health Check").setDaemon(true).build()
+    );
+
+    /**
+     * @param pointConnections Connections used for point lookups and writes.
+     * @param scanConnections Connections used for table scans.
+     * @param maxInFlight How many queries can run at the same time on a single connection.
+     */
+    public ConnectionPool(int pointConnections, int scanConnections, int maxInFlight) {
+        this.point = new Lane("point", pointConnections, maxInFlight);
+        this.scan = new Lane("scan", scanConnections, maxInFlight);
+
+        Metrics.THREAD_POOL_COLLECTOR.add("db-health-check", healthCheck);
+        healthCheck.scheduleWithFixedDelay(() -> {
+            point.checkHealth();
+            scan.checkHealth();
+        }, 30, 30, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Runs a point lookup or a write. Blocks until a connection is available.
+     *
+     * @param query The query to run. Results should be fully consumed inside of it.
+     * @return What the query returned.
+     */
+    public <T> T point(@Nonnull Function<Connection, T> query) {
+        return point.run(query);
+    }
+
+    /**
+     * Sends a write we don't wait a reply for, on the point lane.
+     *
+     * @param query The query to send.
+     */
+    public void noReply(@Nonnull Consumer<Connection> query) {
+        point.run(conn -> {
+            query.accept(conn);
+            return null;
+        });
+    }
+
+    /**
+     * Runs a table scan, or anything else that might take a while. Blocks until a connection is available.
+     *
+     * @param query The query to run. Results should be fully consumed inside of it, as the connection
+     *              is handed to someone else once this returns.
+     * @return What the query returned.
+     */
+    public <T> T scan(@Nonnull Function<Connection, T> query) {
+        return scan.run(query);
+    }
+
+    private static class Lane {
+        private final String name;
+        private final PooledConnection[] connections;
+        // Sum of the permits of every connection. Lets us wait without spinning over the connections.
+        private final Semaphore permits;
+        private final AtomicInteger next = new AtomicInteger();
+
+        private Lane(String name, int size, int maxInFlight) {
+            this.name = name;
+            this.connections = new PooledConnection[size];
+            this.permits = new Semaphore(size * maxInFlight, true);
+            for (int i = 0; i < size; i++) {
+                connections[i] = new PooledConnection(maxInFlight);
+            }
+
+            capacity.labels(name).set(size * maxInFlight);
+            log.info("Established {} database connections for the {} lane", size, name);
+        }
+
+        private <T> T run(Function<Connection, T> query) {
+            var start = System.nanoTime();
+            permits.acquireUninterruptibly();
+            var pooled = acquire();
+            waitTime.labels(name).observe((System.nanoTime() - start) / 1_000_000D);
+
+            inFlight.labels(name).inc();
+            try {
+                return query.apply(pooled.get(this));
+            } finally {
+                inFlight.labels(name).dec();
+                pooled.permits.release();
+                permits.release();
+            }
+        }
+
+        // Holding a lane permit means at least one connection has a free slot, so this doesn't spin for long.
+        private PooledConnection acquire() {
+            //noinspection InfiniteLoopStatement
+            while (true) {
+                var offset = Math.floorMod(next.getAndIncrement(), connections.length);
+                for (int i = 0; i < connections.length; i++) {
+                    var pooled = connections[(offset + i) % connections.length];
+                    if (pooled.permits.tryAcquire()) {
+                        return pooled;
+                    }
+                }
+
+                Thread.onSpinWait();
+            }
+        }
+
+        private void checkHealth() {
+            for (var pooled : connections) {
+                try {
+                    r.expr(1).run(pooled.get(this));
+                } catch (Exception e) {
+                    log.warn("Database connection on the {} lane failed a health check, reconnecting", name, e);
+                    pooled.reconnect(this);
+                }
+            }
+        }
+    }
+
+    private static class PooledConnection {
+        private final Semaphore permits;
+        private volatile Connection connection;
+
+        private PooledConnection(int maxInFlight) {
+            this.permits = new Semaphore(maxInFlight);
+            this.connection = Utils.newDbConnection();
+        }
+
+        private Connection get(Lane lane) {
+            var current = connection;
+            if (!current.isOpen()) {
+                return reconnect(lane);
+            }
+
+            return current;
+        }
+
+        private synchronized Connection reconnect(Lane lane) {
+            // Someone else might have reconnected while we waited.
+            if (connection.isOpen() && !isBroken()) {
+                return connection;
+            }
+
+            try {
+                connection.close();
+            } catch (Exception ignored) { }
+
+            connection = Utils.newDbConnection();
+            reconnects.labels(lane.name).inc();
+            return connection;
+        }
+
+        // The health check can fail on a connection that still reports as open (ie, the socket is half-closed).
+        private boolean isBroken() {
+            try {
+                r.expr(1).run(connection);
+                return false;
+            } catch (Exception e) {
+                return true;
+            }
+        }
+    }
+}
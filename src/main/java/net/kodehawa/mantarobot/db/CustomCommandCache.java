@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2016-2021 David Rubio Escares / Kodehawa
+ *
+ *  Mantaro is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  Mantaro is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Mantaro. If not, see http://www.gnu.org/licenses/
+ */
+
+package net.kodehawa.mantarobot.db;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import io.prometheus.client.Counter;
+import net.kodehawa.mantarobot.db.entities.CustomCommand;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-process cache of custom commands.
+ * <br>Keeps the names of the custom commands of every guild we've looked up, so anything that isn't a custom command
+ * (typos, messages meant for other bots with the same prefix) can be answered without going to rethink.
+ * The commands themselves are kept on a separate, smaller cache.
+ * <br>Whenever a custom command is saved or deleted on any node, its id gets published on a Redis channel,
+ * and every other node drops both the command and the name set of its guild.
+ * <br>Same as {@link GuildCache}, the cached commands are our own copies and never change: {@link #get(String)} hands
+ * out a new copy every time, so edits are only seen by others once they're saved.
+ */
+public class CustomCommandCache {
+    private static final String CHANNEL = "mantaro-custom-command-invalidation";
+    private static final Counter requests = Counter.build()
+            .name("custom_command_cache_requests").help("Custom command cache lookups, by result (hit/miss/negative)")
+            .labelNames("result")
+            .register();
+    private static final Counter evictions = Counter.build()
+            .name("custom_command_cache_evictions").help("Entries removed from the custom command cache, by cache (names/commands) and cause")
+            .labelNames("cache", "cause")
+            .register();
+
+    // Guild ID -> Names of every custom command on that guild.
+    private final Cache<String, Set<String>> names;
+    // Guild ID:Name -> Custom command.
+    private final Cache<String, CustomCommand> commands;
+    // By guild ID (names) and by command ID (commands).
+    private final Generations generations = new Generations();
+    private final InvalidationChannel invalidations;
+
+    /**
+     * @param maxCommands How many custom commands to keep.
+     * @param maxNames How many names (across every guild) to keep.
+     * @param ttlSeconds For how long to keep anything, in seconds.
+     */
+    public CustomCommandCache(long maxCommands, long maxNames, long ttlSeconds) {
+        this.names = CacheBuilder.newBuilder()
+                .maximumWeight(maxNames)
+                .<String, Set<String>>weigher((guildId, set) -> 1 + set.size())
+                .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                .removalListener(notification -> countEviction("names", notification.getCause()))
+                .build();
+        this.commands = CacheBuilder.newBuilder()
+                .maximumSize(maxCommands)
+                .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                .removalListener(notification -> countEviction("commands", notification.getCause()))
+                .build();
+
+        this.invalidations = new InvalidationChannel(CHANNEL, this::invalidate, () -> {
+            generations.invalidateAll();
+            names.invalidateAll();
+            commands.invalidateAll();
+        });
+    }
+
+    /**
+     * @return The names of the custom commands of a guild, or null if we don't know them.
+     */
+    @Nullable
+    public Set<String> getNames(@Nonnull String guildId) {
+        return names.getIfPresent(guildId);
+    }
+
+    /**
+     * @return What to pass to {@link #putNames(String, Collection, long)} or {@link #put(CustomCommand, long)} once
+     * the names of the guild (guild ID) or the command (command ID) are loaded. Must be taken before loading them.
+     */
+    public long getGeneration(@Nonnull String key) {
+        return generations.get(key);
+    }
+
+    /**
+     * Stores the names of the custom commands of a guild, as loaded from rethink. They aren't stored if the guild
+     * changed since the generation was taken, as they might be from before the change.
+     *
+     * @return The loaded names.
+     */
+    @Nonnull
+    public Set<String> putNames(@Nonnull String guildId, @Nonnull Collection<String> loaded, long generation) {
+        Set<String> set = ConcurrentHashMap.newKeySet(loaded.size());
+        set.addAll(loaded);
+        if (generations.isCurrent(guildId, generation)) {
+            names.put(guildId, set);
+            if (!generations.isCurrent(guildId, generation)) {
+                names.invalidate(guildId);
+            }
+        }
+
+        return set;
+    }
+
+    /**
+     * @return A copy of the cached command, that the caller can change and save.
+     */
+    @Nullable
+    public CustomCommand get(@Nonnull String id) {
+        var command = commands.getIfPresent(id);
+        return command == null ? null : command.copy();
+    }
+
+    /**
+     * Caches a copy of a command loaded from rethink, unless it changed since the generation was taken.
+     */
+    public void put(@Nonnull CustomCommand command, long generation) {
+        if (generations.isCurrent(command.getId(), generation)) {
+            commands.put(command.getId(), command.copy());
+            if (!generations.isCurrent(command.getId(), generation)) {
+                commands.invalidate(command.getId());
+            }
+        }
+    }
+
+    /**
+     * Counts a lookup, by result: hit (from the cache), miss (from rethink) or negative (not a custom command).
+     */
+    public void record(@Nonnull String result) {
+        requests.labels(result).inc();
+    }
+
+    /**
+     * Called when a custom command is saved. Keeps our own copy, but doesn't tell anyone else (see {@link #written(CustomCommand)}).
+     */
+    public void saved(@Nonnull CustomCommand command) {
+        // Loads that started before this can't know about it.
+        generations.invalidate(command.getId());
+        generations.invalidate(command.getGuildId());
+        commands.put(command.getId(), command.copy());
+
+        // If we don't know the names of this guild, they'll be loaded the next time they're needed.
+        var set = names.getIfPresent(command.getGuildId());
+        if (set != null) {
+            set.add(command.getName());
+        }
+    }
+
+    /**
+     * Called when a custom command has been written. Keeps our own copy and tells every other node to drop theirs.
+     */
+    public void written(@Nonnull CustomCommand command) {
+        saved(command);
+        invalidations.publish(command.getId());
+    }
+
+    /**
+     * Called when a custom command has been deleted. Drops our copy and tells every other node to drop theirs.
+     */
+    public void deleted(@Nonnull CustomCommand command) {
+        generations.invalidate(command.getId());
+        generations.invalidate(command.getGuildId());
+        commands.invalidate(command.getId());
+
+        var set = names.getIfPresent(command.getGuildId());
+        if (set != null) {
+            set.remove(command.getName());
+        }
+
+        invalidations.publish(command.getId());
+    }
+
+    // Someone else changed this command. We don't know whether it was added or removed, so drop the whole guild.
+    private void invalidate(String id) {
+        var guildId = id.split(":", 2)[0];
+        generations.invalidate(id);
+        generations.invalidate(guildId);
+        commands.invalidate(id);
+        names.invalidate(guildId);
+    }
+
+    private static void countEviction(String cache, RemovalCause cause) {
+        // Explicit removals and replacements are just us keeping the cache up to date.
+        if (cause != RemovalCause.EXPLICIT && cause != RemovalCause.REPLACED) {
+            evictions.labels(cache, cause.name().toLowerCase()).inc();
+        }
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2016-2021 David Rubio Escares / Kodehawa
+ *
+ *  Mantaro is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  Mantaro is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Mantaro. If not, see http://www.gnu.org/licenses/
+ */
+
+package net.kodehawa.mantarobot.db;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+
+import javax.annotation.Nonnull;
+import java.util.Map;
+
+import static com.rethinkdb.RethinkDB.getResultMapper;
+
+/**
+ * Turns objects into the documents rethink would store for them and back, with the same mapper the driver uses.
+ * <br>Anything we keep around for more than one reader (pending saves, cached guilds) is kept as a document or a
+ * private copy, and every reader gets its own object, so nobody sees changes somebody else didn't save.
+ */
+public final class Documents {
+    private static final TypeReference<Map<String, Object>> DOCUMENT = new TypeReference<>() { };
+
+    private Documents() { }
+
+    /**
+     * @return What rethink would store for the object. Nothing on it is shared with the object.
+     */
+    @Nonnull
+    public static Map<String, Object> toDocument(@Nonnull Object object) {
+        return getResultMapper().convertValue(object, DOCUMENT);
+    }
+
+    /**
+     * @return A new object read from the document, the same way it'd be read from rethink.
+     */
+    @Nonnull
+    public static <T> T fromDocument(@Nonnull Map<String, Object> document, @Nonnull Class<T> clazz) {
+        return getResultMapper().convertValue(document, clazz);
+    }
+
+    /**
+     * @return A deep copy of the object, that can be changed without affecting the original.
+     */
+    @Nonnull
+    public static <T> T copy(@Nonnull T object, @Nonnull Class<T> clazz) {
+        return fromDocument(toDocument(object), clazz);
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2016-2021 David Rubio Escares / Kodehawa
+ *
+ *  Mantaro is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  Mantaro is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Mantaro. If not, see http://www.gnu.org/licenses/
+ */
+
+package net.kodehawa.mantarobot.db;
+
+import net.kodehawa.mantarobot.data.MantaroData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import redis.clients.jedis.Jedis;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Hands out members of Redis sorted sets once they're due. Sets are scored by when their members are due, in epoch millis.
+ * <br>Instead of polling, the scheduler sleeps until the next member is due (or until {@link #wake(long)} is called with
+ * something due sooner), and then claims every due member at once with a script, so a member can only be claimed once,
+ * even if two nodes were to look at the same set. Claimed members are gone from the set, whether handling them works or not.
+ * <br>With a claim timeout, claimed members are kept on a second set (the key plus ":claimed") until the handler is done
+ * with them and removes them from it (see {@link #claimedKey(String)}). If it doesn't within the timeout (say, the node
+ * died halfway through), they're due again.
+ */
+public class DueTimeScheduler {
+    private static final Logger log = LoggerFactory.getLogger(DueTimeScheduler.class);
+    // Pops every member of KEYS[1] due at or before ARGV[1], up to ARGV[2] of them. Returns them with their scores.
+    // If ARGV[3] (the claim timeout) isn't 0, they're also added to KEYS[2] until then, and members of KEYS[2] that
+    // weren't handled in time go back to KEYS[1] first.
+    private static final String CLAIM = """
+            local timeout = tonumber(ARGV[3])
+            if timeout > 0 then
+                local expired = redis.call('ZRANGEBYSCORE', KEYS[2], '-inf', ARGV[1], 'LIMIT', 0, ARGV[2])
+                for _, member in ipairs(expired) do
+                    redis.call('ZREM', KEYS[2], member)
+                    redis.call('ZADD', KEYS[1], ARGV[1], member)
+                end
+            end
+            local due = redis.call('ZRANGEBYSCORE', KEYS[1], '-inf', ARGV[1], 'WITHSCORES', 'LIMIT', 0, ARGV[2])
+            for i = 1, #due, 2 do
+                redis.call('ZREM', KEYS[1], due[i])
+                if timeout > 0 then
+                    redis.call('ZADD', KEYS[2], tonumber(ARGV[1]) + timeout, due[i])
+                end
+            end
+            return due
+            """;
+
+    private final String name;
+    private final List<String> keys;
+    private final int batchSize;
+    private final long maxWait;
+    private final long claimTimeout;
+    private final Consumer<List<Due>> handler;
+    private final Object lock = new Object();
+    // When we're going to look at the sets next. Guarded by lock.
+    private long wakeAt = Long.MAX_VALUE;
+
+    /**
+     * @param name Name of the scheduler thread.
+     * @param keys The sorted sets to look at.
+     * @param batchSize How many members to claim at once. The handler gets at most this many at a time.
+     * @param maxWait How long to wait at most between looks at the sets, in milliseconds, in case something was added
+     *                without calling {@link #wake(long)}.
+     * @param handler What to do with claimed members. Called from the scheduler thread, so it shouldn't block for long.
+     */
+    public DueTimeScheduler(String name, Collection<String> keys, int batchSize, long maxWait, Consumer<List<Due>> handler) {
+        this(name, keys, batchSize, maxWait, 0, handler);
+    }
+
+    /**
+     * Same as {@link #DueTimeScheduler(String, Collection, int, long, Consumer)}, but claimed members are kept around
+     * until the handler removes them from {@link #claimedKey(String)}, and are due again if it doesn't do so in time.
+     *
+     * @param claimTimeout How long the handler has to be done with a member, in milliseconds. 0 to not keep them.
+     */
+    public DueTimeScheduler(String name, Collection<String> keys, int batchSize, long maxWait, long claimTimeout, Consumer<List<Due>> handler) {
+        this.name = name;
+        this.keys = List.copyOf(keys);
+        this.batchSize = batchSize;
+        this.maxWait = maxWait;
+        this.claimTimeout = claimTimeout;
+        this.handler = handler;
+    }
+
+    /**
+     * @return Where claimed members of a set are kept until they're handled, with a claim timeout.
+     */
+    public static String claimedKey(String key) {
+        return key + ":claimed";
+    }
+
+    public void start() {
+        var thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Makes sure we look at the sets again at the given time (in epoch millis). Call it after adding something.
+     */
+    public void wake(long at) {
+        synchronized (lock) {
+            if (at < wakeAt) {
+                wakeAt = at;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    private void run() {
+        //noinspection InfiniteLoopStatement
+        while (true) {
+            var next = System.currentTimeMillis() + maxWait;
+            try (var jedis = MantaroData.getDefaultJedisPool().getResource()) {
+                for (var key : keys) {
+                    next = Math.min(next, claimDue(jedis, key));
+                }
+            } catch (Exception e) {
+                log.error("Error while checking due entries on {}", name, e);
+            }
+
+            synchronized (lock) {
+                // Something might have woken us up while we were handling things, so don't go later than that.
+                wakeAt = Math.min(wakeAt, next);
+                long now;
+                while ((now = System.currentTimeMillis()) < wakeAt) {
+                    try {
+                        lock.wait(wakeAt - now);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+
+                wakeAt = Long.MAX_VALUE;
+            }
+        }
+    }
+
+    // Handles everything that's due on a set. Returns when the next member of it is due.
+    @SuppressWarnings("unchecked")
+    private long claimDue(Jedis jedis, String key) {
+        List<String> claimed;
+        do {
+            var now = System.currentTimeMillis();
+            claimed = (List<String>) jedis.eval(CLAIM, List.of(key, claimedKey(key)), List.of(
+                    String.valueOf(now), String.valueOf(batchSize), String.valueOf(claimTimeout)
+            ));
+            if (claimed.isEmpty()) {
+                break;
+            }
+
+            List<Due> due = new ArrayList<>(claimed.size() / 2);
+            for (int i = 0; i < claimed.size(); i += 2) {
+                due.add(new Due(claimed.get(i), (long) Double.parseDouble(claimed.get(i + 1)), now));
+            }
+
+            try {
+                handler.accept(due);
+            } catch (Exception e) {
+                log.error("Error while handling due entries on {}", key, e);
+            }
+        } while (claimed.size() / 2 == batchSize);
+
+        var next = jedis.zrangeWithScores(key, 0, 0);
+        return next.isEmpty() ? Long.MAX_VALUE : (long) next.iterator().next().getScore();
+    }
+
+    public static class Due {
+        private final String member;
+        private final long dueAt;
+        private final long claimedAt;
+
+        private Due(String member, long dueAt, long claimedAt) {
+            this.member = member;
+            this.dueAt = dueAt;
+            this.claimedAt = claimedAt;
+        }
+
+        public String getMember() {
+            return member;
+        }
+
+        /**
+         * @return When this was due, in epoch millis.
+         */
+        public long getDueAt() {
+            return dueAt;
+        }
+
+        /**
+         * @return How late this was claimed, in milliseconds.
+         */
+        public long getLag() {
+            return Math.max(0, claimedAt - dueAt);
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2016-2021 David Rubio Escares / Kodehawa
+ *
+ *  Mantaro is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  Mantaro is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Mantaro. If not, see http://www.gnu.org/licenses/
+ */
+
+package net.kodehawa.mantarobot.db;
+
+import net.dv8tion.jda.api.events.message.guild.GuildMessageReceivedEvent;
+import net.kodehawa.mantarobot.data.MantaroData;
+import net.kodehawa.mantarobot.db.entities.*;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Holds the database entities needed to dispatch a single command.
+ * <br>The guild is loaded on its own (we need it to check the custom prefix), and everything else
+ * (user, player, MantaroObj and both premium keys) is loaded in a single query the first time any of them is requested.
+ * <br>The loaded objects are only handed out while the context is open, that is, while the command is being ran
+ * on the dispatch thread. Anything that runs after that (operations, callbacks) will fall back to the database.
+ */
+public class EntityContext {
+    private final ManagedDatabase db;
+    private final String guildId;
+    private final String userId;
+    private final long startCalls;
+
+    private DBGuild dbGuild;
+    private DBUser dbUser;
+    private Player player;
+    private MantaroObj mantaroData;
+    private PremiumKey userKey;
+    private PremiumKey guildKey;
+    private boolean loaded;
+    private volatile boolean closed;
+
+    public EntityContext(@Nonnull ManagedDatabase db, @Nonnull String guildId, @Nonnull String userId) {
+        this.db = db;
+        this.guildId = guildId;
+        this.userId = userId;
+        this.startCalls = ManagedDatabase.getCallCount();
+    }
+
+    public static EntityContext of(@Nonnull GuildMessageReceivedEvent event) {
+        return new EntityContext(MantaroData.db(), event.getGuild().getId(), event.getAuthor().getId());
+    }
+
+    @Nonnull
+    public synchronized DBGuild getDBGuild() {
+        if (dbGuild == null) {
+            dbGuild = db.getGuild(guildId);
+        }
+
+        return dbGuild;
+    }
+
+    @Nonnull
+    public synchronized DBUser getDBUser() {
+        load();
+        return dbUser;
+    }
+
+    @Nonnull
+    public synchronized Player getPlayer() {
+        load();
+        return player;
+    }
+
+    @Nonnull
+    public synchronized MantaroObj getMantaroData() {
+        load();
+        return mantaroData;
+    }
+
+    @Nullable
+    public synchronized PremiumKey getUserKey() {
+        load();
+        return userKey;
+    }
+
+    @Nullable
+    public synchronized PremiumKey getGuildKey() {
+        load();
+        return guildKey;
+    }
+
+    @Nonnull
+    public String getGuildId() {
+        return guildId;
+    }
+
+    @Nonnull
+    public String getUserId() {
+        return userId;
+    }
+
+    /**
+     * @return The amount of database calls done on the current thread since this context was created.
+     */
+    public long getDatabaseCalls() {
+        return ManagedDatabase.getCallCount() - startCalls;
+    }
+
+    /**
+     * Whether the loaded entities can still be handed out.
+     * Once the command finishes running, callers should go to the database instead of relying on what we loaded.
+     */
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    public void close() {
+        closed = true;
+    }
+
+    private void load() {
+        if (loaded) {
+            return;
+        }
+
+        var entities = db.getEntities(guildId, dbGuild, userId);
+        if (dbGuild == null) {
+            dbGuild = entities.guild == null ? DBGuild.of(guildId) : entities.guild;
+        }
+
+        dbUser = entities.user == null ? DBUser.of(userId) : entities.user;
+        player = entities.player == null ? Player.of(userId) : entities.player;
+        mantaroData = entities.mantaro == null ? MantaroObj.create() : entities.mantaro;
+        userKey = entities.userKey;
+        guildKey = entities.guildKey;
+        loaded = true;
+    }
+}
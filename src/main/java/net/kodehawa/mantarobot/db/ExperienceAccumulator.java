@@ -0,0 +1,315 @@
+/*
+ * Copyright (C) 2016-2021 David Rubio Escares / Kodehawa
+ *
+ *  Mantaro is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  Mantaro is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Mantaro. If not, see http://www.gnu.org/licenses/
+ */
+
+package net.kodehawa.mantarobot.db;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import gnu.trove.map.hash.TLongIntHashMap;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Histogram;
+import net.kodehawa.mantarobot.core.command.processor.UserLocks;
+import net.kodehawa.mantarobot.db.entities.Player;
+import net.kodehawa.mantarobot.utils.exporters.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import static com.rethinkdb.RethinkDB.r;
+
+/**
+ * Buffers the passive experience users get by talking, and writes it in batches.
+ * <br>Instead of reading and saving the whole player for every grant, grants of the same user are added up in memory,
+ * and every flush sends them all on a single update that adds them to the experience rethink has, so it never
+ * overwrites anything else on the player. Level ups are worked out from the experience and level read back
+ * right after it, and only applied if the level is still the one we saw.
+ * <br>Users with a command running, or with a buffered save of their player, are left for the next flush:
+ * the command (or the save) would write back the experience it read before our increment. Everyone else is locked
+ * until the write is done, so no command can read their player halfway through it.
+ */
+public class ExperienceAccumulator {
+    private static final Logger log = LoggerFactory.getLogger(ExperienceAccumulator.class);
+    private static final Histogram flushSize = Histogram.build()
+            .name("experience_flush_size").help("Users whose experience was written on a flush")
+            .buckets(1, 10, 50, 100, 250, 500, 1000, 2500, 5000)
+            .register();
+    private static final Histogram flushLag = Histogram.build()
+            .name("experience_flush_lag").help("Time between the oldest grant of a flush and it being written, in seconds")
+            .buckets(0.5, 1, 2.5, 5, 10, 15, 30, 60, 120)
+            .register();
+    private static final Counter flushed = Counter.build()
+            .name("experience_flushed").help("Experience grants handled on flush, by result (written/created/locked/deferred/level_up)")
+            .labelNames("result")
+            .register();
+
+    private final ConnectionPool pool;
+    // Given the users about to be written, locks them and returns the ones that have to wait for the next flush.
+    private final Function<long[], UserLocks.ExperienceLock> lock;
+    // Called with the players we had to create.
+    private final Consumer<ManagedObject> onCreated;
+    private final Leaderboards leaderboards;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("Mantaro Experience Flusher").setDaemon(true).build()
+    );
+    // User ID -> Experience not written yet. Guarded by this.
+    private TLongIntHashMap pending = new TLongIntHashMap();
+    // When the oldest grant on pending was done. Guarded by this.
+    private long oldestGrant = 0;
+
+    /**
+     * @param pool The connections to write with.
+     * @param interval How often to flush, in milliseconds.
+     * @param lock Given the users about to be written, locks them until the write is done, and returns (on getRunning)
+     *             the ones that have to wait for the next flush.
+     * @param onCreated Called with the players we had to create, once they're written.
+     * @param leaderboards Where to update the level leaderboard on.
+     */
+    public ExperienceAccumulator(@Nonnull ConnectionPool pool, long interval, @Nonnull Function<long[], UserLocks.ExperienceLock> lock,
+                                 @Nonnull Consumer<ManagedObject> onCreated, @Nonnull Leaderboards leaderboards) {
+        this.pool = pool;
+        this.lock = lock;
+        this.onCreated = onCreated;
+        this.leaderboards = leaderboards;
+
+        Metrics.THREAD_POOL_COLLECTOR.add("experience-flusher", executor);
+        executor.scheduleWithFixedDelay(this::flush, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Adds experience to the (global) player of an user. It'll be written on the next flush.
+     */
+    public synchronized void grant(long userId, int amount) {
+        if (amount <= 0) {
+            return;
+        }
+
+        if (pending.isEmpty()) {
+            oldestGrant = System.currentTimeMillis();
+        }
+
+        pending.adjustOrPutValue(userId, amount, amount);
+    }
+
+    /**
+     * @return The experience needed to go past the given level.
+     */
+    public static double experienceFor(long level) {
+        return (level * Math.log10(level) * 1000) + (50 * level / 2D);
+    }
+
+    /**
+     * Writes every pending grant. Blocks until they're written.
+     */
+    public void flush() {
+        TLongIntHashMap taken;
+        long since;
+        synchronized (this) {
+            if (pending.isEmpty()) {
+                return;
+            }
+
+            taken = pending;
+            since = oldestGrant;
+            pending = new TLongIntHashMap();
+        }
+
+        try (var held = lock.apply(taken.keys())) {
+            var deferred = held.getRunning();
+            Map<String, Integer> increments = new HashMap<>(taken.size());
+            taken.forEachEntry((userId, amount) -> {
+                if (deferred.contains(userId)) {
+                    requeue(userId, amount, since);
+                } else {
+                    increments.put(userId + ":g", amount);
+                }
+
+                return true;
+            });
+
+            flushed.labels("deferred").inc(deferred.size());
+            if (increments.isEmpty()) {
+                return;
+            }
+
+            write(increments, since);
+            flushSize.observe(increments.size());
+            flushLag.observe((System.currentTimeMillis() - since) / 1000D);
+        } catch (Exception e) {
+            // Passive experience isn't worth retrying: if we can't write it, it's gone.
+            log.error("Couldn't flush experience of {} users", taken.size(), e);
+        }
+    }
+
+    /**
+     * Stops the periodic flush and writes everything that's still pending.
+     */
+    public void shutdown() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        flush();
+    }
+
+    private synchronized void requeue(long userId, int amount, long since) {
+        if (pending.isEmpty() || since < oldestGrant) {
+            oldestGrant = since;
+        }
+
+        pending.adjustOrPutValue(userId, amount, amount);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void write(Map<String, Integer> increments, long since) {
+        var now = System.currentTimeMillis();
+        var ids = new ArrayList<>(increments.keySet());
+        var expr = r.expr(increments);
+        // Locked players (doing something that saves them later) don't get anything, same as before.
+        pool.point(conn -> r.table(Player.DB_TABLE)
+                .getAll(r.args(ids))
+                .update(player -> r.branch(
+                        player.g("data").g("lockedUntil").default_(0).gt(now),
+                        r.hashMap(),
+                        r.hashMap("data", r.hashMap("experience",
+                                player.g("data").g("experience").default_(0).add(expr.g(player.g("id")))
+                        ))
+                ))
+                .runAtom(conn, Map.class)
+        );
+
+        // Only what's needed to work out level ups. Asking the update for its changes would send back both versions
+        // of every player.
+        List<Map<String, Object>> players = pool.point(conn -> r.table(Player.DB_TABLE)
+                .getAll(r.args(ids))
+                .pluck("id", "level", r.hashMap("data", r.array("experience", "lockedUntil")))
+                .coerceTo("array")
+                .runAtom(conn, List.class)
+        );
+
+        var missing = new HashMap<>(increments);
+        List<Object> levelUps = new ArrayList<>();
+        Map<String, Long> scores = new HashMap<>();
+        for (var player : players) {
+            var id = (String) player.get("id");
+            missing.remove(id);
+            // Skipped by the update.
+            if (lockedUntil(player) > now) {
+                flushed.labels("locked").inc();
+                continue;
+            }
+
+            var experience = experience(player);
+
+            flushed.labels("written").inc();
+            var level = toLong(player.get("level"));
+            var newLevel = Math.max(level, 1);
+            while (experience > experienceFor(newLevel)) {
+                newLevel++;
+            }
+
+            if (newLevel != level) {
+                levelUps.add(r.hashMap("id", id).with("from", level).with("to", newLevel));
+                flushed.labels("level_up").inc();
+            }
+
+            scores.put(id.split(":")[0], Leaderboards.levelScore(newLevel, experience));
+        }
+
+        if (!levelUps.isEmpty()) {
+            // Only if nothing changed the level since we looked. If something did, it'll be looked at again next time.
+            pool.noReply(conn -> r.expr(levelUps)
+                    .forEach(levelUp -> r.table(Player.DB_TABLE).get(levelUp.g("id")).update(player -> r.branch(
+                            player.g("level").default_(0).eq(levelUp.g("from")),
+                            r.hashMap("level", levelUp.g("to")),
+                            r.hashMap()
+                    )))
+                    .runNoReply(conn)
+            );
+        }
+
+        leaderboards.updateScores(Leaderboards.Board.LEVEL, null, scores);
+        if (!missing.isEmpty()) {
+            create(missing, since);
+        }
+    }
+
+    // Users that never had a player. Rare enough that we don't mind creating them the usual way.
+    @SuppressWarnings("unchecked")
+    private void create(Map<String, Integer> increments, long since) {
+        List<Player> players = new ArrayList<>(increments.size());
+        for (var entry : increments.entrySet()) {
+            var player = Player.of(entry.getKey().split(":")[0]);
+            player.setLevel(1L);
+            player.getData().setExperience(entry.getValue());
+            players.add(player);
+        }
+
+        // If someone else created them in the meantime, theirs wins: this doesn't replace anything.
+        Map<String, Object> result = pool.point(conn -> r.table(Player.DB_TABLE)
+                .insert(players)
+                .optArg("return_changes", true)
+                .runAtom(conn, Map.class)
+        );
+
+        var changes = (List<Map<String, Map<String, Object>>>) result.get("changes");
+        var inserted = new HashSet<String>();
+        for (var change : changes) {
+            var player = change.get("new_val");
+            if (player != null) {
+                inserted.add((String) player.get("id"));
+            }
+        }
+
+        flushed.labels("created").inc(inserted.size());
+        for (var player : players) {
+            if (inserted.contains(player.getId())) {
+                onCreated.accept(player);
+            } else {
+                // Somebody else created it first. It exists now, so the increment will work next time.
+                requeue(Long.parseLong(player.getUserId()), increments.get(player.getId()), since);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static long experience(Map<String, Object> player) {
+        var data = player == null ? null : (Map<String, Object>) player.get("data");
+        return data == null ? 0 : toLong(data.get("experience"));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static long lockedUntil(Map<String, Object> player) {
+        var data = (Map<String, Object>) player.get("data");
+        return data == null ? 0 : toLong(data.get("lockedUntil"));
+    }
+
+    private static long toLong(Object value) {
+        return value instanceof Number ? ((Number) value).longValue() : 0;
+    }
+}
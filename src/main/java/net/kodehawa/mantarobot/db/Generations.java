@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2016-2021 David Rubio Escares / Kodehawa
+ *
+ *  Mantaro is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  Mantaro is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Mantaro. If not, see http://www.gnu.org/licenses/
+ */
+
+package net.kodehawa.mantarobot.db;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts invalidations by key, so a cache can tell whether a value it loaded is still current: read the generation
+ * of the key before loading, and only keep the value if it didn't change by the time it's cached.
+ * <br>Invalidations must bump the generation before dropping the cached value, and caches must check it again after
+ * storing, dropping what they stored if it changed. Either the invalidation drops it, or the check sees it.
+ * <br>Keys share a fixed amount of counters, so an invalidation can make the load of an unrelated key skip the cache,
+ * which only costs a miss later on.
+ */
+class Generations {
+    private static final int COUNTERS = 4096;
+    private final AtomicLongArray counters = new AtomicLongArray(COUNTERS);
+
+    long get(String key) {
+        return counters.get(index(key));
+    }
+
+    boolean isCurrent(String key, long generation) {
+        return counters.get(index(key)) == generation;
+    }
+
+    void invalidate(String key) {
+        counters.incrementAndGet(index(key));
+    }
+
+    void invalidateAll() {
+        for (var i = 0; i < COUNTERS; i++) {
+            counters.incrementAndGet(i);
+        }
+    }
+
+    private static int index(String key) {
+        var hash = key.hashCode();
+        return (hash ^ (hash >>> 16)) & (COUNTERS - 1);
+    }
+}
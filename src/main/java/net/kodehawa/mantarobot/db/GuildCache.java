@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2016-2021 David Rubio Escares / Kodehawa
+ *
+ *  Mantaro is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  Mantaro is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Mantaro. If not, see http://www.gnu.org/licenses/
+ */
+
+package net.kodehawa.mantarobot.db;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import io.prometheus.client.Counter;
+import net.kodehawa.mantarobot.db.entities.DBGuild;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-process cache of {@link DBGuild}s, so we don't have to request the guild from rethink on every message.
+ * <br>Whenever a guild is saved or deleted on any node, its id gets published on a Redis channel, and every other node
+ * drops its copy. Guilds are weighted by how big their data is, so a few huge guilds can't take over the cache.
+ * <br>The cache keeps its own copy of every guild and never changes it. {@link #get(String)} hands out a new copy
+ * every time, so changes made by a command are only seen by others once they're saved.
+ * <br>Guilds loaded from rethink are only cached if the guild wasn't invalidated while they were loading, so a load
+ * that raced a save on another node can't leave the old guild around until it expires.
+ */
+public class GuildCache {
+    private static final String CHANNEL = "mantaro-guild-invalidation";
+    private static final Counter requests = Counter.build()
+            .name("guild_cache_requests").help("Guild cache lookups, by result (hit/miss)")
+            .labelNames("result")
+            .register();
+    private static final Counter evictions = Counter.build()
+            .name("guild_cache_evictions").help("Guilds removed from the guild cache, by cause")
+            .labelNames("cause")
+            .register();
+
+    private final Cache<String, DBGuild> cache;
+    private final Generations generations = new Generations();
+    private final InvalidationChannel invalidations;
+
+    public GuildCache(long maxWeight, long ttlSeconds) {
+        this.cache = CacheBuilder.newBuilder()
+                .maximumWeight(maxWeight)
+                .weigher(GuildCache::weigh)
+                .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                .removalListener(notification -> {
+                    // Explicit removals and replacements are just us keeping the cache up to date.
+                    if (notification.getCause() != RemovalCause.EXPLICIT && notification.getCause() != RemovalCause.REPLACED) {
+                        evictions.labels(notification.getCause().name().toLowerCase()).inc();
+                    }
+                })
+                .build();
+
+        this.invalidations = new InvalidationChannel(CHANNEL, this::invalidate, () -> {
+            generations.invalidateAll();
+            cache.invalidateAll();
+        });
+    }
+
+    /**
+     * The copy is a deep one, made by turning the guild into a document and back (so about as much work as reading it
+     * from rethink, minus the round trip). Paths that only read the guild and run on every message should use
+     * {@link #peek(String)} instead.
+     *
+     * @return A copy of the cached guild, that the caller can change and save.
+     */
+    @Nullable
+    public DBGuild get(@Nonnull String guildId) {
+        var guild = cache.getIfPresent(guildId);
+        requests.labels(guild == null ? "miss" : "hit").inc();
+        return guild == null ? null : guild.copy();
+    }
+
+    /**
+     * Same as {@link #get(String)}, but isn't counted as a lookup and doesn't copy the guild. Used by checks that fall
+     * back to {@link #get(String)}.
+     *
+     * @return The cached guild itself, shared with everyone else. It must not be changed or saved.
+     */
+    @Nullable
+    public DBGuild peek(@Nonnull String guildId) {
+        return cache.getIfPresent(guildId);
+    }
+
+    /**
+     * @return What to pass to {@link #put(DBGuild, long)} once the guild is loaded. Must be taken before loading it.
+     */
+    public long getGeneration(@Nonnull String guildId) {
+        return generations.get(guildId);
+    }
+
+    /**
+     * Caches a copy of a guild loaded from rethink, so changes made to it later (and not saved) aren't seen by anyone
+     * else. Nothing is cached if the guild was invalidated since the generation was taken, as it might be older than that.
+     */
+    public void put(@Nonnull DBGuild guild, long generation) {
+        var guildId = guild.getId();
+        if (generations.isCurrent(guildId, generation)) {
+            cache.put(guildId, guild.copy());
+            if (!generations.isCurrent(guildId, generation)) {
+                cache.invalidate(guildId);
+            }
+        }
+    }
+
+    /**
+     * Called when a guild has been written. Keeps our own copy and tells every other node to drop theirs.
+     */
+    public void saved(@Nonnull DBGuild guild) {
+        // Loads that started before this can't know about it.
+        generations.invalidate(guild.getId());
+        cache.put(guild.getId(), guild.copy());
+        invalidations.publish(guild.getId());
+    }
+
+    /**
+     * Called when a guild has been deleted. Drops our copy and tells every other node to drop theirs.
+     */
+    public void deleted(@Nonnull String guildId) {
+        invalidate(guildId);
+        invalidations.publish(guildId);
+    }
+
+    private void invalidate(String guildId) {
+        generations.invalidate(guildId);
+        cache.invalidate(guildId);
+    }
+
+    // Rough estimate of how big a guild is, in entries. The guilds with huge lists are the ones that take the most memory.
+    private static int weigh(String id, DBGuild guild) {
+        var data = guild.getData();
+        return 1 + data.getAllowedBirthdays().size()
+                + data.getLocalPlayerExperience().size()
+                + data.getDisabledCommands().size()
+                + data.getDisabledChannels().size()
+                + data.getDisabledUsers().size()
+                + data.getChannelSpecificDisabledCommands().size()
+                + data.getRoleSpecificDisabledCommands().size()
+                + data.getAutoroles().size()
+                + data.getMutedTimelyUsers().size()
+                + data.getWarnCount().size();
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2016-2021 David Rubio Escares / Kodehawa
+ *
+ *  Mantaro is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  Mantaro is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Mantaro. If not, see http://www.gnu.org/licenses/
+ */
+
+package net.kodehawa.mantarobot.db;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import net.kodehawa.mantarobot.data.MantaroData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import redis.clients.jedis.JedisPubSub;
+
+import javax.annotation.Nonnull;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+/**
+ * Redis channel used to tell every other node that something they might have cached has changed.
+ * <br>Messages sent by this node are ignored by it. If the subscription is lost, we might have missed messages,
+ * so {@code onReset} is called and everything cached should be dropped.
+ */
+public class InvalidationChannel {
+    private static final Logger log = LoggerFactory.getLogger(InvalidationChannel.class);
+
+    // Used to ignore our own messages.
+    private final String nodeId = UUID.randomUUID().toString();
+    private final String channel;
+    private final Consumer<String> onMessage;
+    private final Runnable onReset;
+
+    /**
+     * @param channel The Redis channel to use.
+     * @param onMessage Called with every message sent by another node.
+     * @param onReset Called whenever the subscription is lost.
+     */
+    public InvalidationChannel(@Nonnull String channel, @Nonnull Consumer<String> onMessage, @Nonnull Runnable onReset) {
+        this.channel = channel;
+        this.onMessage = onMessage;
+        this.onReset = onReset;
+
+        var thread = new ThreadFactoryBuilder()
+                .setNameFormat("Mantaro Invalidation Subscriber (" + channel + ")")
+                .setDaemon(true)
+                .build()
+                .newThread(this::subscribe);
+        thread.start();
+    }
+
+    public void publish(@Nonnull String message) {
+        try (var jedis = MantaroData.getDefaultJedisPool().getResource()) {
+            jedis.publish(channel, nodeId + ":" + message);
+        } catch (Exception e) {
+            log.warn("Couldn't publish {} on {}", message, channel, e);
+        }
+    }
+
+    private void subscribe() {
+        var pubSub = new JedisPubSub() {
+            @Override
+            public void onMessage(String channel, String message) {
+                var split = message.split(":", 2);
+                if (split.length == 2 && !split[0].equals(nodeId)) {
+                    onMessage.accept(split[1]);
+                }
+            }
+        };
+
+        //noinspection InfiniteLoopStatement
+        while (true) {
+            // A subscribed connection can't be used for anything else, so this holds on to one of the pool's connections
+            // until the subscription is lost. Taken from the pool so it's set up the same way as every other one.
+            try (var jedis = MantaroData.getDefaultJedisPool().getResource()) {
+                jedis.subscribe(pubSub, channel);
+            } catch (Exception e) {
+                log.warn("Lost subscription to {}, retrying in 5 seconds", channel, e);
+            }
+
+            // We might have missed messages while we weren't subscribed, so nothing we have can be trusted.
+            onReset.run();
+
+            try {
+                Thread.sleep(5000);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,469 @@
+/*
+ * Copyright (C) 2016-2021 David Rubio Escares / Kodehawa
+ *
+ *  Mantaro is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  Mantaro is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Mantaro. If not, see http://www.gnu.org/licenses/
+ */
+
+package net.kodehawa.mantarobot.db;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.rethinkdb.model.OptArgs;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Histogram;
+import net.kodehawa.mantarobot.commands.currency.seasons.Season;
+import net.kodehawa.mantarobot.commands.currency.seasons.SeasonPlayer;
+import net.kodehawa.mantarobot.data.MantaroData;
+import net.kodehawa.mantarobot.db.entities.DBUser;
+import net.kodehawa.mantarobot.db.entities.Player;
+import net.kodehawa.mantarobot.db.entities.PlayerStats;
+import net.kodehawa.mantarobot.utils.exporters.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.params.SetParams;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToLongFunction;
+
+import static com.rethinkdb.RethinkDB.r;
+
+/**
+ * Leaderboards, kept as Redis sorted sets of user id -> score.
+ * <br>Sets are updated whenever a player, their stats, their seasonal player or their user is written, so reading a
+ * leaderboard (or someone's position on it) never goes to rethink. Only users with a score above zero are kept.
+ * <br>Every once in a while, one of the nodes rebuilds every set from rethink, to fix anything we might have missed
+ * (writes done outside of the bot, failed updates, etc). Sets that don't exist yet are built on startup.
+ * While a set is being rebuilt, users updated on it are kept track of, and the rebuilt set takes their live score
+ * when it's swapped in, so nothing that happened during the (long) scan is lost.
+ */
+public class Leaderboards {
+    private static final Logger log = LoggerFactory.getLogger(Leaderboards.class);
+    private static final String KEY_PREFIX = "leaderboard:";
+    private static final String RECONCILE_LOCK = "leaderboard-reconcile";
+    // Held while a table is being rebuilt, so two nodes never rebuild the same one at once.
+    private static final String REBUILD_LOCK = "leaderboard-rebuild:";
+    // How long a rebuild can take at most, before we stop keeping track of the users updated during it.
+    private static final long MAX_REBUILD_SECONDS = TimeUnit.HOURS.toSeconds(6);
+    // Sets (or removes, if ARGV[2] is empty) the score of ARGV[1] on KEYS[1]. If KEYS[2] exists, the set is being
+    // rebuilt, so ARGV[1] is added to it, to take their score from KEYS[1] once the rebuild is done.
+    private static final String SET = """
+            if redis.call('EXISTS', KEYS[2]) == 1 then
+                redis.call('SADD', KEYS[2], ARGV[1])
+            end
+            if ARGV[2] == '' then
+                return redis.call('ZREM', KEYS[1], ARGV[1])
+            end
+            return redis.call('ZADD', KEYS[1], ARGV[2], ARGV[1])
+            """;
+    // Swaps the rebuilt set KEYS[2] in for KEYS[1], keeping the live score of everyone on KEYS[3] (the users updated
+    // during the rebuild). The empty member on KEYS[3] is only there so it exists from the start.
+    private static final String SWAP = """
+            local touched = redis.call('SMEMBERS', KEYS[3])
+            for _, user in ipairs(touched) do
+                if user ~= '' then
+                    local score = redis.call('ZSCORE', KEYS[1], user)
+                    if score then
+                        redis.call('ZADD', KEYS[2], score, user)
+                    else
+                        redis.call('ZREM', KEYS[2], user)
+                    end
+                end
+            end
+            redis.call('DEL', KEYS[3])
+            if redis.call('EXISTS', KEYS[2]) == 1 then
+                redis.call('RENAME', KEYS[2], KEYS[1])
+            else
+                redis.call('DEL', KEYS[1])
+            end
+            return math.max(#touched - 1, 0)
+            """;
+    // Level leaderboards break ties with experience: level goes on the high bits, experience on the low ones.
+    private static final long EXPERIENCE_BITS = 31;
+    private static final long MAX_EXPERIENCE = (1L << EXPERIENCE_BITS) - 1;
+    private static final Counter updates = Counter.build()
+            .name("leaderboard_updates").help("Incremental leaderboard updates, by table")
+            .labelNames("table")
+            .register();
+    private static final Histogram reconcileTime = Histogram.build()
+            .name("leaderboard_reconcile_time").help("Time it takes to rebuild the leaderboards of a table, in seconds")
+            .labelNames("table")
+            .buckets(1, 5, 10, 30, 60, 120, 300, 600, 1800)
+            .register();
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("Mantaro Leaderboard Reconciler").setDaemon(true).build()
+    );
+
+    /**
+     * @param reconcileHours How often to rebuild the leaderboards from rethink. 0 to never do it (sets that don't exist
+     *                       are still built on startup).
+     */
+    public Leaderboards(long reconcileHours) {
+        Metrics.THREAD_POOL_COLLECTOR.add("leaderboard-reconciler", executor);
+        // Otherwise nobody would be on them until the first rebuild, or until they save something.
+        executor.execute(this::populate);
+        if (reconcileHours > 0) {
+            // Wait a bit before the first one, so we don't do it while starting up.
+            executor.scheduleWithFixedDelay(() -> reconcile(reconcileHours), 30, reconcileHours * 60, TimeUnit.MINUTES);
+        }
+    }
+
+    /**
+     * Updates every leaderboard an object is part of. Does nothing if it isn't part of any.
+     */
+    public void update(@Nonnull ManagedObject object) {
+        var boards = Board.forTable(object.getTableName());
+        if (boards.isEmpty() || !isRanked(object)) {
+            return;
+        }
+
+        try (var jedis = MantaroData.getDefaultJedisPool().getResource()) {
+            var pipeline = jedis.pipelined();
+            var userId = userId(object);
+            for (var board : boards) {
+                set(pipeline, board.key(season(object)), userId, board.score(object));
+            }
+
+            pipeline.sync();
+            updates.labels(object.getTableName()).inc();
+        } catch (Exception e) {
+            // The next save or the next reconciliation will fix it.
+            log.warn("Couldn't update leaderboards for {}:{}", object.getTableName(), object.getId(), e);
+        }
+    }
+
+    /**
+     * Removes an object from every leaderboard it's part of.
+     */
+    public void remove(@Nonnull ManagedObject object) {
+        var boards = Board.forTable(object.getTableName());
+        if (boards.isEmpty() || !isRanked(object)) {
+            return;
+        }
+
+        try (var jedis = MantaroData.getDefaultJedisPool().getResource()) {
+            var pipeline = jedis.pipelined();
+            var userId = userId(object);
+            for (var board : boards) {
+                set(pipeline, board.key(season(object)), userId, 0);
+            }
+
+            pipeline.sync();
+        } catch (Exception e) {
+            log.warn("Couldn't remove {}:{} from leaderboards", object.getTableName(), object.getId(), e);
+        }
+    }
+
+    /**
+     * Sets the score of a bunch of users on a leaderboard, for when something changed them without saving the whole object.
+     *
+     * @param board The leaderboard to update.
+     * @param season The season to update it for. Only used by seasonal leaderboards.
+     * @param scores User ID -> Score.
+     */
+    public void updateScores(@Nonnull Board board, @Nullable Season season, @Nonnull Map<String, Long> scores) {
+        if (scores.isEmpty()) {
+            return;
+        }
+
+        try (var jedis = MantaroData.getDefaultJedisPool().getResource()) {
+            var pipeline = jedis.pipelined();
+            var key = board.key(season);
+            for (var entry : scores.entrySet()) {
+                set(pipeline, key, entry.getKey(), entry.getValue());
+            }
+
+            pipeline.sync();
+            updates.labels(board.table).inc(scores.size());
+        } catch (Exception e) {
+            log.warn("Couldn't update {} scores on leaderboard {}", scores.size(), board, e);
+        }
+    }
+
+    /**
+     * @param board The leaderboard to get.
+     * @param season The season to get it for. Only used by seasonal leaderboards.
+     * @param count How many entries to get.
+     * @return The top entries of a leaderboard, highest first.
+     */
+    @Nonnull
+    public List<Entry> top(@Nonnull Board board, @Nullable Season season, int count) {
+        try (var jedis = MantaroData.getDefaultJedisPool().getResource()) {
+            var tuples = jedis.zrevrangeWithScores(board.key(season), 0, count - 1);
+            List<Entry> entries = new ArrayList<>(tuples.size());
+            for (var tuple : tuples) {
+                entries.add(new Entry(tuple.getElement(), (long) tuple.getScore()));
+            }
+
+            return entries;
+        }
+    }
+
+    /**
+     * @return The position of an user on a leaderboard, starting from 1, or 0 if they aren't on it.
+     */
+    public long rank(@Nonnull Board board, @Nullable Season season, @Nonnull String userId) {
+        try (var jedis = MantaroData.getDefaultJedisPool().getResource()) {
+            var rank = jedis.zrevrank(board.key(season), userId);
+            return rank == null ? 0 : rank + 1;
+        }
+    }
+
+    // Builds the leaderboards of every table that has one missing.
+    private void populate() {
+        var season = MantaroData.config().get().getCurrentSeason();
+        populate(Player.DB_TABLE, Player.class, null);
+        populate(PlayerStats.DB_TABLE, PlayerStats.class, null);
+        populate(DBUser.DB_TABLE, DBUser.class, null);
+        populate(SeasonPlayer.DB_TABLE, SeasonPlayer.class, season);
+    }
+
+    private <T extends ManagedObject> void populate(String table, Class<T> clazz, Season season) {
+        try (var jedis = MantaroData.getDefaultJedisPool().getResource()) {
+            var missing = Board.forTable(table).stream().anyMatch(board -> !jedis.exists(board.key(season)));
+            if (!missing) {
+                return;
+            }
+        } catch (Exception e) {
+            log.error("Couldn't check the leaderboards of table {}", table, e);
+            return;
+        }
+
+        reconcile(table, clazz, season);
+    }
+
+    private void reconcile(long intervalHours) {
+        // Only one node needs to do this. The lock expires by itself before the next run.
+        try (var jedis = MantaroData.getDefaultJedisPool().getResource()) {
+            var locked = jedis.set(RECONCILE_LOCK, "1", SetParams.setParams().nx().ex(TimeUnit.HOURS.toSeconds(intervalHours) - 60));
+            if (locked == null) {
+                return;
+            }
+        }
+
+        var season = MantaroData.config().get().getCurrentSeason();
+        reconcile(Player.DB_TABLE, Player.class, null);
+        reconcile(PlayerStats.DB_TABLE, PlayerStats.class, null);
+        reconcile(DBUser.DB_TABLE, DBUser.class, null);
+        reconcile(SeasonPlayer.DB_TABLE, SeasonPlayer.class, season);
+    }
+
+    // Rebuilds the leaderboards of a table, unless another node is already doing it.
+    private <T extends ManagedObject> void reconcile(String table, Class<T> clazz, Season season) {
+        try (var jedis = MantaroData.getDefaultJedisPool().getResource()) {
+            var locked = jedis.set(REBUILD_LOCK + table, "1", SetParams.setParams().nx().ex(MAX_REBUILD_SECONDS));
+            if (locked == null) {
+                log.info("Not rebuilding the leaderboards of table {}, another node is already doing it", table);
+                return;
+            }
+        } catch (Exception e) {
+            log.error("Couldn't lock the leaderboards of table {}", table, e);
+            return;
+        }
+
+        try {
+            rebuild(table, clazz, season);
+        } finally {
+            try (var jedis = MantaroData.getDefaultJedisPool().getResource()) {
+                jedis.del(REBUILD_LOCK + table);
+            } catch (Exception e) {
+                // It expires by itself.
+                log.warn("Couldn't unlock the leaderboards of table {}", table, e);
+            }
+        }
+    }
+
+    // Rebuilds the leaderboards of a table on a temporary key, and swaps them in once done. Must hold the table lock.
+    private <T extends ManagedObject> void rebuild(String table, Class<T> clazz, Season season) {
+        var boards = Board.forTable(table);
+        var start = System.currentTimeMillis();
+        var count = 0;
+        var kept = 0L;
+        try (var jedis = MantaroData.getDefaultJedisPool().getResource()) {
+            for (var board : boards) {
+                var key = board.key(season);
+                jedis.del(key + ":rebuild", touchedKey(key));
+                // Before the scan starts, so every update done while it runs is kept track of.
+                jedis.sadd(touchedKey(key), "");
+                jedis.expire(touchedKey(key), (int) MAX_REBUILD_SECONDS);
+            }
+
+            var pipeline = jedis.pipelined();
+            count = MantaroData.pool().scan(conn -> {
+                var query = season == null ?
+                        r.table(table) :
+                        r.table(table).filter(player -> player.g("season").eq(season.name()));
+
+                var written = 0;
+                // Streamed, so we never hold the whole table in memory.
+                var result = query.run(conn, OptArgs.of("read_mode", "outdated"), clazz);
+                for (var object : result) {
+                    if (!isRanked(object)) {
+                        continue;
+                    }
+
+                    for (var board : boards) {
+                        var score = board.score(object);
+                        if (score > 0) {
+                            pipeline.zadd(board.key(season) + ":rebuild", score, userId(object));
+                        }
+                    }
+
+                    if (++written % 1000 == 0) {
+                        pipeline.sync();
+                    }
+                }
+
+                return written;
+            });
+
+            pipeline.sync();
+            for (var board : boards) {
+                var key = board.key(season);
+                kept += (Long) jedis.eval(SWAP, List.of(key, key + ":rebuild", touchedKey(key)), List.of());
+            }
+        } catch (Exception e) {
+            log.error("Couldn't rebuild the leaderboards of table {}", table, e);
+            // Leave the live sets as they are, and stop keeping track of updates.
+            try (var jedis = MantaroData.getDefaultJedisPool().getResource()) {
+                for (var board : boards) {
+                    jedis.del(board.key(season) + ":rebuild", touchedKey(board.key(season)));
+                }
+            } catch (Exception ignored) {
+                // They expire by themselves.
+            }
+
+            return;
+        } finally {
+            reconcileTime.labels(table).observe((System.currentTimeMillis() - start) / 1000D);
+        }
+
+        log.info("Rebuilt the leaderboards of table {} from {} documents, kept {} scores updated during it", table, count, kept);
+    }
+
+    private static void set(Pipeline pipeline, String key, String userId, long score) {
+        pipeline.eval(SET, List.of(key, touchedKey(key)), List.of(userId, score > 0 ? Long.toString(score) : ""));
+    }
+
+    // Users updated on a leaderboard while it's being rebuilt. Only exists during a rebuild.
+    private static String touchedKey(String key) {
+        return key + ":touched";
+    }
+
+    // Only global players are ranked. Everything else is one per user anyway.
+    private static boolean isRanked(ManagedObject object) {
+        return !(object instanceof Player) || ((Player) object).isGlobal();
+    }
+
+    private static String userId(ManagedObject object) {
+        if (object instanceof Player) {
+            return ((Player) object).getUserId();
+        }
+
+        if (object instanceof SeasonPlayer) {
+            return ((SeasonPlayer) object).getUserId();
+        }
+
+        return object.getId();
+    }
+
+    private static Season season(ManagedObject object) {
+        return object instanceof SeasonPlayer ? ((SeasonPlayer) object).getSeason() : null;
+    }
+
+    // Old documents might not have some of these set.
+    private static long orZero(Long value) {
+        return value == null ? 0 : value;
+    }
+
+    public static long levelScore(long level, long experience) {
+        return (level << EXPERIENCE_BITS) | Math.min(Math.max(experience, 0), MAX_EXPERIENCE);
+    }
+
+    public static long levelFromScore(long score) {
+        return score >>> EXPERIENCE_BITS;
+    }
+
+    public static long experienceFromScore(long score) {
+        return score & MAX_EXPERIENCE;
+    }
+
+    public enum Board {
+        MONEY("money", Player.DB_TABLE, Player.class, p -> p.getData().getNewMoney()),
+        OLD_MONEY("oldmoney", Player.DB_TABLE, Player.class, p -> orZero(p.getOldMoney())),
+        LEVEL("level", Player.DB_TABLE, Player.class, p -> levelScore(orZero(p.getLevel()), p.getData().getExperience())),
+        REPUTATION("reputation", Player.DB_TABLE, Player.class, p -> orZero(p.getReputation())),
+        STREAK("streak", Player.DB_TABLE, Player.class, p -> p.getData().getDailyStreak()),
+        GAMES("games", Player.DB_TABLE, Player.class, p -> p.getData().getGamesWon()),
+        GAMBLE("gamble", PlayerStats.DB_TABLE, PlayerStats.class, PlayerStats::getGambleWins),
+        SLOTS("slots", PlayerStats.DB_TABLE, PlayerStats.class, PlayerStats::getSlotsWins),
+        CLAIM("claim", DBUser.DB_TABLE, DBUser.class, u -> u.getData().getTimesClaimed()),
+        SEASONAL_MONEY("seasonal-money", SeasonPlayer.DB_TABLE, SeasonPlayer.class, p -> orZero(p.getMoney())),
+        SEASONAL_REPUTATION("seasonal-reputation", SeasonPlayer.DB_TABLE, SeasonPlayer.class, p -> orZero(p.getReputation())),
+        SEASONAL_GAMES("seasonal-games", SeasonPlayer.DB_TABLE, SeasonPlayer.class, p -> p.getData().getGamesWon());
+
+        private final String name;
+        private final String table;
+        private final ToLongFunction<ManagedObject> score;
+
+        <T extends ManagedObject> Board(String name, String table, Class<T> clazz, ToLongFunction<T> score) {
+            this.name = name;
+            this.table = table;
+            this.score = object -> score.applyAsLong(clazz.cast(object));
+        }
+
+        private static List<Board> forTable(String table) {
+            List<Board> boards = new ArrayList<>();
+            for (var board : values()) {
+                if (board.table.equals(table)) {
+                    boards.add(board);
+                }
+            }
+
+            return boards;
+        }
+
+        private String key(Season season) {
+            return season == null ? KEY_PREFIX + name : KEY_PREFIX + name + ":" + season;
+        }
+
+        private long score(ManagedObject object) {
+            return score.applyAsLong(object);
+        }
+    }
+
+    public static class Entry {
+        private final String userId;
+        private final long score;
+
+        private Entry(String userId, long score) {
+            this.userId = userId;
+            this.score = score;
+        }
+
+        public String getUserId() {
+            return userId;
+        }
+
+        public long getScore() {
+            return score;
+        }
+    }
+}
@@ -16,9 +16,10 @@
 
 package net.kodehawa.mantarobot.db;
 
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.rethinkdb.gen.ast.ReqlExpr;
+import com.rethinkdb.model.MapObject;
 import com.rethinkdb.model.OptArgs;
-import com.rethinkdb.net.Connection;
-import com.rethinkdb.net.Result;
 import net.dv8tion.jda.api.entities.Guild;
 import net.dv8tion.jda.api.entities.Member;
 import net.dv8tion.jda.api.entities.User;
@@ -26,6 +27,9 @@ import net.dv8tion.jda.api.events.message.guild.GuildMessageReceivedEvent;
 import net.kodehawa.mantarobot.ExtraRuntimeOptions;
 import net.kodehawa.mantarobot.commands.currency.seasons.Season;
 import net.kodehawa.mantarobot.commands.currency.seasons.SeasonPlayer;
+import net.kodehawa.mantarobot.core.command.processor.CommandProcessor;
+import net.kodehawa.mantarobot.core.command.processor.UserLocks;
+import net.kodehawa.mantarobot.data.MantaroData;
 import net.kodehawa.mantarobot.db.entities.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -34,24 +38,68 @@ import javax.annotation.CheckReturnValue;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.util.List;
+import java.util.stream.Collectors;
 
 import static com.rethinkdb.RethinkDB.r;
 
 public class ManagedDatabase {
     private static final Logger log = LoggerFactory.getLogger(ManagedDatabase.class);
-    private final Connection conn;
+    // Database calls done by each thread. Used to keep track of how many round-trips a command needs.
+    private static final ThreadLocal<long[]> calls = ThreadLocal.withInitial(() -> new long[1]);
+    private final ConnectionPool pool;
+    // Null if saves are written straight away.
+    private final WriteBehindQueue saveQueue;
+    // Null if guilds aren't cached.
+    private final GuildCache guildCache;
+    // Null if custom commands aren't cached.
+    private final CustomCommandCache customCommandCache;
+    private final Leaderboards leaderboards;
+    private final ExperienceAccumulator experience;
+
+    public ManagedDatabase(@Nonnull ConnectionPool pool) {
+        this.pool = pool;
+
+        var config = MantaroData.config().get();
+        if (config.getGuildCacheSize() > 0) {
+            this.guildCache = new GuildCache(config.getGuildCacheSize(), config.getGuildCacheTtl());
+        } else {
+            this.guildCache = null;
+        }
+
+        if (config.getCustomCommandCacheSize() > 0) {
+            this.customCommandCache = new CustomCommandCache(
+                    config.getCustomCommandCacheSize(), config.getCustomCommandIndexSize(), config.getCustomCommandCacheTtl()
+            );
+        } else {
+            this.customCommandCache = null;
+        }
+
+        this.leaderboards = new Leaderboards(config.getLeaderboardReconcileInterval());
+        if (config.getSaveQueueInterval() > 0) {
+            this.saveQueue = new WriteBehindQueue(pool, config.getSaveQueueInterval(), config.getSaveQueueMaxSize(), this::written);
+        } else {
+            this.saveQueue = null;
+        }
+
+        this.experience = new ExperienceAccumulator(pool, config.getExperienceFlushInterval(), this::lockForExperience, this::written, leaderboards);
+    }
 
-    public ManagedDatabase(@Nonnull Connection conn) {
-        this.conn = conn;
+    /**
+     * @return The amount of database calls done by the current thread, ever. Only useful to compare against a previous value.
+     */
+    public static long getCallCount() {
+        return calls.get()[0];
     }
 
     private static void log(String message, Object... fmtArgs) {
+        calls.get()[0]++;
         if (ExtraRuntimeOptions.LOG_DB_ACCESS) {
             log.info(message, fmtArgs);
         }
     }
 
     private static void log(String message) {
+        calls.get()[0]++;
         if (ExtraRuntimeOptions.LOG_DB_ACCESS) {
             log.info(message);
         }
@@ -60,8 +108,44 @@ public class ManagedDatabase {
     @Nullable
     @CheckReturnValue
     public CustomCommand getCustomCommand(@Nonnull String guildId, @Nonnull String name) {
+        var id = guildId + ":" + name;
+        var pending = pending(CustomCommand.DB_TABLE, id, CustomCommand.class);
+        if (pending != null) {
+            return pending;
+        }
+
+        if (customCommandCache == null) {
+            log("Requesting custom command {}:{} from rethink", guildId, name);
+            return pool.point(conn -> r.table(CustomCommand.DB_TABLE).get(id).runAtom(conn, CustomCommand.class));
+        }
+
+        var cached = customCommandCache.get(id);
+        if (cached != null) {
+            customCommandCache.record("hit");
+            return cached;
+        }
+
+        // Most lookups are for things that aren't custom commands at all, so check the names first.
+        var names = customCommandCache.getNames(guildId);
+        if (names == null) {
+            var generation = customCommandCache.getGeneration(guildId);
+            names = customCommandCache.putNames(guildId, getCustomCommandNames(guildId), generation);
+        }
+
+        if (!names.contains(name)) {
+            customCommandCache.record("negative");
+            return null;
+        }
+
+        customCommandCache.record("miss");
         log("Requesting custom command {}:{} from rethink", guildId, name);
-        return r.table(CustomCommand.DB_TABLE).get(guildId + ":" + name).runAtom(conn, CustomCommand.class);
+        var generation = customCommandCache.getGeneration(id);
+        var command = pool.point(conn -> r.table(CustomCommand.DB_TABLE).get(id).runAtom(conn, CustomCommand.class));
+        if (command != null) {
+            customCommandCache.put(command, generation);
+        }
+
+        return command;
     }
 
     @Nullable
@@ -86,19 +170,19 @@ public class ManagedDatabase {
     @CheckReturnValue
     public List<CustomCommand> getCustomCommands() {
         log("Requesting all custom commands from rethink");
-        Result<CustomCommand> c = r.table(CustomCommand.DB_TABLE).run(conn, CustomCommand.class);
-        return c.toList();
+        return pool.scan(conn -> r.table(CustomCommand.DB_TABLE).run(conn, CustomCommand.class).toList());
     }
 
     @Nonnull
     @CheckReturnValue
     public List<CustomCommand> getCustomCommands(@Nonnull String guildId) {
         log("Requesting all custom commands from guild {} from rethink", guildId);
-        Result<CustomCommand> c = r.table(CustomCommand.DB_TABLE)
+        return pool.point(conn -> r.table(CustomCommand.DB_TABLE)
                 .getAll(guildId)
                 .optArg("index", "guild")
-                .run(conn, CustomCommand.class);
-        return c.toList();
+                .run(conn, CustomCommand.class)
+                .toList()
+        );
     }
 
     @Nonnull
@@ -113,21 +197,92 @@ public class ManagedDatabase {
         return getCustomCommands(guild.getId());
     }
 
+    /**
+     * @return The names of every custom command of a guild. Only the ids are sent, not the whole commands.
+     */
+    @Nonnull
+    @CheckReturnValue
+    public List<String> getCustomCommandNames(@Nonnull String guildId) {
+        log("Requesting custom command names from guild {} from rethink", guildId);
+        var prefix = guildId.length() + 1;
+        return pool.point(conn -> r.table(CustomCommand.DB_TABLE)
+                .getAll(guildId)
+                .optArg("index", "guild")
+                .g("id")
+                .run(conn, String.class)
+                .toList()
+        ).stream().map(id -> id.substring(prefix)).collect(Collectors.toList());
+    }
+
+    /**
+     * @return Out of the given guilds, the IDs of the ones with a log channel set.
+     */
+    @Nonnull
+    @CheckReturnValue
+    public List<String> getGuildsWithLogs(@Nonnull List<String> guildIds) {
+        log("Requesting the log channels of {} guilds from rethink", guildIds.size());
+        return pool.scan(conn -> r.table(DBGuild.DB_TABLE)
+                .getAll(r.args(guildIds))
+                .filter(guild -> guild.g("data").g("guildLogChannel").default_(null).ne(null))
+                .g("id")
+                .run(conn, String.class)
+                .toList()
+        );
+    }
+
     @Nonnull
     @CheckReturnValue
     public List<CustomCommand> getCustomCommandsByName(@Nonnull String name) {
         log("Requesting all custom commands named {} from rethink", name);
         String pattern = ':' + name + '$';
-        Result<CustomCommand> c = r.table(CustomCommand.DB_TABLE).filter(quote -> quote.g("id").match(pattern)).run(conn, CustomCommand.class);
-        return c.toList();
+        return pool.scan(conn -> r.table(CustomCommand.DB_TABLE).filter(quote -> quote.g("id").match(pattern)).run(conn, CustomCommand.class).toList());
+    }
+
+    /**
+     * Looks up a guild only if we already have it: pending to be saved or cached. Never goes to rethink.
+     * <br>The guild might be the cached copy, which is shared: only read it, never change or save it.
+     * Use {@link #getGuild(String)} for that.
+     *
+     * @return The guild, or null if we'd need to request it.
+     */
+    @Nullable
+    @CheckReturnValue
+    public DBGuild getCachedGuild(@Nonnull String guildId) {
+        var pending = pending(DBGuild.DB_TABLE, guildId, DBGuild.class);
+        if (pending != null) {
+            return pending;
+        }
+
+        return guildCache == null ? null : guildCache.peek(guildId);
     }
 
     @Nonnull
     @CheckReturnValue
     public DBGuild getGuild(@Nonnull String guildId) {
+        var pending = pending(DBGuild.DB_TABLE, guildId, DBGuild.class);
+        if (pending != null) {
+            return pending;
+        }
+
+        if (guildCache != null) {
+            var cached = guildCache.get(guildId);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
         log("Requesting guild {} from rethink", guildId);
-        DBGuild guild = r.table(DBGuild.DB_TABLE).get(guildId).runAtom(conn, DBGuild.class);
-        return guild == null ? DBGuild.of(guildId) : guild;
+        var generation = guildCache == null ? 0 : guildCache.getGeneration(guildId);
+        DBGuild guild = pool.point(conn -> r.table(DBGuild.DB_TABLE).get(guildId).runAtom(conn, DBGuild.class));
+        if (guild == null) {
+            guild = DBGuild.of(guildId);
+        }
+
+        if (guildCache != null) {
+            guildCache.put(guild, generation);
+        }
+
+        return guild;
     }
 
     @Nonnull
@@ -148,19 +303,87 @@ public class ManagedDatabase {
         return getGuild(event.getGuild());
     }
 
+    /**
+     * Loads everything a command dispatch needs in a single query, including the premium keys referenced by the user and guild.
+     *
+     * @param guildId The guild the command was ran on.
+     * @param knownGuild The guild object, if we already loaded it. The guild won't be requested again if this is not null.
+     * @param userId The user who ran the command.
+     * @return The loaded entities. Anything that doesn't exist in the database will be null.
+     */
+    @Nonnull
+    @CheckReturnValue
+    Entities getEntities(@Nonnull String guildId, @Nullable DBGuild knownGuild, @Nonnull String userId) {
+        if (knownGuild == null) {
+            knownGuild = pending(DBGuild.DB_TABLE, guildId, DBGuild.class);
+        }
+
+        if (knownGuild == null && guildCache != null) {
+            knownGuild = guildCache.get(guildId);
+        }
+
+        log("Requesting entities for user {} on guild {} from rethink", userId, guildId);
+        var user = r.table(DBUser.DB_TABLE).get(userId);
+        MapObject<Object, Object> query = r.hashMap("user", user)
+                .with("player", r.table(Player.DB_TABLE).get(userId + ":g"))
+                .with("mantaro", r.table(MantaroObj.DB_TABLE).get("mantaro"))
+                .with("userKey", premiumKeyOf(user));
+
+        if (knownGuild == null) {
+            var guild = r.table(DBGuild.DB_TABLE).get(guildId);
+            query.with("guild", guild).with("guildKey", premiumKeyOf(guild));
+        } else {
+            var guildKey = knownGuild.getData().getPremiumKey();
+            query.with("guildKey", guildKey == null ? null : r.table(PremiumKey.DB_TABLE).get(guildKey));
+        }
+
+        var generation = guildCache == null ? 0 : guildCache.getGeneration(guildId);
+        var entities = pool.point(conn -> r.expr(query).runAtom(conn, Entities.class));
+        // Saves that haven't been written yet are newer than what we just got.
+        entities.user = pendingOr(DBUser.DB_TABLE, userId, DBUser.class, entities.user);
+        entities.player = pendingOr(Player.DB_TABLE, userId + ":g", Player.class, entities.player);
+        entities.mantaro = pendingOr(MantaroObj.DB_TABLE, "mantaro", MantaroObj.class, entities.mantaro);
+        if (knownGuild == null) {
+            entities.guild = pendingOr(DBGuild.DB_TABLE, guildId, DBGuild.class, entities.guild);
+            if (entities.guild != null && guildCache != null) {
+                guildCache.put(entities.guild, generation);
+            }
+        } else {
+            entities.guild = knownGuild;
+        }
+
+        return entities;
+    }
+
+    // Looks up the premium key referenced by a user or guild document, on the server side.
+    private static ReqlExpr premiumKeyOf(ReqlExpr document) {
+        var keyId = document.g("data").g("premiumKey").default_((Object) null);
+        return r.branch(keyId.eq(null), null, r.table(PremiumKey.DB_TABLE).get(keyId));
+    }
+
     @Nonnull
     @CheckReturnValue
     public MantaroObj getMantaroData() {
+        var pending = pending(MantaroObj.DB_TABLE, "mantaro", MantaroObj.class);
+        if (pending != null) {
+            return pending;
+        }
+
         log("Requesting MantaroObj from rethink");
-        MantaroObj obj = r.table(MantaroObj.DB_TABLE).get("mantaro").runAtom(conn, MantaroObj.class);
+        MantaroObj obj = pool.point(conn -> r.table(MantaroObj.DB_TABLE).get("mantaro").runAtom(conn, MantaroObj.class));
         return obj == null ? MantaroObj.create() : obj;
     }
 
     @Nonnull
     @CheckReturnValue
     public Player getPlayer(@Nonnull String userId) {
+        var pending = pending(Player.DB_TABLE, userId + ":g", Player.class);
+        if (pending != null) {
+            return pending;
+        }
+
         log("Requesting player {} from rethink", userId);
-        Player player = r.table(Player.DB_TABLE).get(userId + ":g").runAtom(conn, Player.class);
+        Player player = pool.point(conn -> r.table(Player.DB_TABLE).get(userId + ":g").runAtom(conn, Player.class));
         return player == null ? Player.of(userId) : player;
     }
 
@@ -179,8 +402,13 @@ public class ManagedDatabase {
     @Nonnull
     @CheckReturnValue
     public SeasonPlayer getPlayerForSeason(@Nonnull String userId, Season season) {
+        var pending = pending(SeasonPlayer.DB_TABLE, userId + ":" + season, SeasonPlayer.class);
+        if (pending != null) {
+            return pending;
+        }
+
         log("Requesting player {} (season {}) from rethink", userId, season);
-        SeasonPlayer player = r.table(SeasonPlayer.DB_TABLE).get(userId + ":" + season).runAtom(conn, SeasonPlayer.class);
+        SeasonPlayer player = pool.point(conn -> r.table(SeasonPlayer.DB_TABLE).get(userId + ":" + season).runAtom(conn, SeasonPlayer.class));
         return player == null ? SeasonPlayer.of(userId, season) : player;
     }
 
@@ -198,14 +426,19 @@ public class ManagedDatabase {
 
     @CheckReturnValue
     public long getAmountSeasonalPlayers() {
-        return r.table(SeasonPlayer.DB_TABLE).count().runAtom(conn, OptArgs.of("read_mode", "outdated"), Long.class);
+        return pool.scan(conn -> r.table(SeasonPlayer.DB_TABLE).count().runAtom(conn, OptArgs.of("read_mode", "outdated"), Long.class));
     }
 
     @Nonnull
     @CheckReturnValue
     public PlayerStats getPlayerStats(@Nonnull String userId) {
+        var pending = pending(PlayerStats.DB_TABLE, userId, PlayerStats.class);
+        if (pending != null) {
+            return pending;
+        }
+
         log("Requesting player STATS {} from rethink", userId);
-        PlayerStats playerStats = r.table(PlayerStats.DB_TABLE).get(userId).runAtom(conn, PlayerStats.class);
+        PlayerStats playerStats = pool.point(conn -> r.table(PlayerStats.DB_TABLE).get(userId).runAtom(conn, PlayerStats.class));
         return playerStats == null ? PlayerStats.of(userId) : playerStats;
     }
 
@@ -226,8 +459,7 @@ public class ManagedDatabase {
     public List<Player> getPlayers() {
         log("Requesting all players from rethink");
         String pattern = ":g$";
-        Result<Player> c = r.table(Player.DB_TABLE).filter(quote -> quote.g("id").match(pattern)).run(conn, Player.class);
-        return c.toList();
+        return pool.scan(conn -> r.table(Player.DB_TABLE).filter(quote -> quote.g("id").match(pattern)).run(conn, Player.class).toList());
     }
 
     //Can be null and it's perfectly valid.
@@ -236,40 +468,53 @@ public class ManagedDatabase {
             return null;
         }
 
+        var pending = pending(Marriage.DB_TABLE, marriageId, Marriage.class);
+        if (pending != null) {
+            return pending;
+        }
+
         log("Requesting marriage {} from rethink", marriageId);
-        return r.table(Marriage.DB_TABLE).get(marriageId).runAtom(conn, Marriage.class);
+        return pool.point(conn -> r.table(Marriage.DB_TABLE).get(marriageId).runAtom(conn, Marriage.class));
     }
 
     @Nonnull
     @CheckReturnValue
     public List<Marriage> getMarriages() {
         log("Requesting all marriages from rethink");
-        Result<Marriage> c = r.table(Marriage.DB_TABLE).run(conn, Marriage.class);
-        return c.toList();
+        return pool.scan(conn -> r.table(Marriage.DB_TABLE).run(conn, Marriage.class).toList());
     }
 
     @Nonnull
     @CheckReturnValue
     public List<PremiumKey> getPremiumKeys() {
         log("Requesting all premium keys from rethink");
-        Result<PremiumKey> c = r.table(PremiumKey.DB_TABLE).run(conn, PremiumKey.class);
-        return c.toList();
+        return pool.scan(conn -> r.table(PremiumKey.DB_TABLE).run(conn, PremiumKey.class).toList());
     }
 
     //Also tests if the key is valid or not!
     @Nullable
     @CheckReturnValue
     public PremiumKey getPremiumKey(@Nullable String id) {
-        log("Requesting premium key {} from rethink", id);
         if (id == null) return null;
-        return r.table(PremiumKey.DB_TABLE).get(id).runAtom(conn, PremiumKey.class);
+        var pending = pending(PremiumKey.DB_TABLE, id, PremiumKey.class);
+        if (pending != null) {
+            return pending;
+        }
+
+        log("Requesting premium key {} from rethink", id);
+        return pool.point(conn -> r.table(PremiumKey.DB_TABLE).get(id).runAtom(conn, PremiumKey.class));
     }
 
     @Nonnull
     @CheckReturnValue
     public DBUser getUser(@Nonnull String userId) {
+        var pending = pending(DBUser.DB_TABLE, userId, DBUser.class);
+        if (pending != null) {
+            return pending;
+        }
+
         log("Requesting user {} from rethink", userId);
-        DBUser user = r.table(DBUser.DB_TABLE).get(userId).runAtom(conn, DBUser.class);
+        DBUser user = pool.point(conn -> r.table(DBUser.DB_TABLE).get(userId).runAtom(conn, DBUser.class));
         return user == null ? DBUser.of(userId) : user;
     }
 
@@ -286,29 +531,140 @@ public class ManagedDatabase {
     }
 
     public void save(@Nonnull ManagedObject object) {
+        if (saveQueue != null) {
+            saveQueue.save(object, true);
+            // Pending saves can be read already, but the custom command names can't know about them.
+            if (customCommandCache != null && object instanceof CustomCommand) {
+                customCommandCache.saved((CustomCommand) object);
+            }
+
+            return;
+        }
+
         log("Saving {} {}:{} to rethink (replacing)", object.getClass().getSimpleName(), object.getTableName(), object.getDatabaseId());
 
-        r.table(object.getTableName())
+        pool.noReply(conn -> r.table(object.getTableName())
                 .insert(object)
                 .optArg("conflict", "replace")
-                .runNoReply(conn);
+                .runNoReply(conn)
+        );
+        written(object);
     }
 
     public void saveUpdating(@Nonnull ManagedObject object) {
+        if (saveQueue != null) {
+            saveQueue.save(object, false);
+            // Pending saves can be read already, but the custom command names can't know about them.
+            if (customCommandCache != null && object instanceof CustomCommand) {
+                customCommandCache.saved((CustomCommand) object);
+            }
+
+            return;
+        }
+
         log("Saving {} {}:{} to rethink (updating)", object.getClass().getSimpleName(), object.getTableName(), object.getDatabaseId());
 
-        r.table(object.getTableName())
+        pool.noReply(conn -> r.table(object.getTableName())
                 .insert(object)
                 .optArg("conflict", "update")
-                .runNoReply(conn);
+                .runNoReply(conn)
+        );
+        written(object);
     }
 
     public void delete(@Nonnull ManagedObject object) {
         log("Deleting {} {}:{} from rethink", object.getClass().getSimpleName(), object.getTableName(), object.getDatabaseId());
+        if (saveQueue != null) {
+            saveQueue.delete(object.getTableName(), object.getId());
+        } else {
+            pool.noReply(conn -> r.table(object.getTableName())
+                    .get(object.getId())
+                    .delete()
+                    .runNoReply(conn)
+            );
+        }
+
+        if (guildCache != null && object instanceof DBGuild) {
+            guildCache.deleted(object.getId());
+        }
+
+        if (customCommandCache != null && object instanceof CustomCommand) {
+            customCommandCache.deleted((CustomCommand) object);
+        }
+
+        leaderboards.remove(object);
+    }
+
+    @Nonnull
+    public Leaderboards getLeaderboards() {
+        return leaderboards;
+    }
+
+    /**
+     * Writes all saves that are still pending, if saves are being buffered. Blocks until they're written.
+     * This needs to be called before shutting down, or we'll lose whatever was saved in the last flush interval.
+     */
+    public void flush() {
+        experience.shutdown();
+        if (saveQueue != null) {
+            saveQueue.shutdown();
+        }
+    }
+
+    /**
+     * Gives passive experience to an user. It's written in batches, see {@link ExperienceAccumulator}.
+     */
+    public void grantExperience(long userId, int amount) {
+        experience.grant(userId, amount);
+    }
+
+    // Locks users for an experience write. The ones that can't get it written yet (they have a command running,
+    // or a save of their player pending) are on getRunning.
+    private UserLocks.ExperienceLock lockForExperience(long[] userIds) {
+        var lock = CommandProcessor.USER_LOCKS.experience(userIds);
+        // Checked while holding the locks, so no command can queue another save in the meantime.
+        if (saveQueue != null) {
+            var deferred = lock.getRunning();
+            for (var userId : userIds) {
+                if (saveQueue.isPending(Player.DB_TABLE, userId + ":g")) {
+                    deferred.add(userId);
+                }
+            }
+        }
+
+        return lock;
+    }
+
+    // Called once an object has been written to rethink.
+    private void written(ManagedObject object) {
+        if (guildCache != null && object instanceof DBGuild) {
+            guildCache.saved((DBGuild) object);
+        }
+
+        if (customCommandCache != null && object instanceof CustomCommand) {
+            customCommandCache.written((CustomCommand) object);
+        }
+
+        leaderboards.update(object);
+    }
+
+    @Nullable
+    private <T> T pending(String table, String id, Class<T> clazz) {
+        return saveQueue == null ? null : saveQueue.getPending(table, id, clazz);
+    }
+
+    private <T> T pendingOr(String table, String id, Class<T> clazz, T loaded) {
+        var pending = pending(table, id, clazz);
+        return pending == null ? loaded : pending;
+    }
 
-        r.table(object.getTableName())
-                .get(object.getId())
-                .delete()
-                .runNoReply(conn);
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    static class Entities {
+        public DBGuild guild;
+        public DBUser user;
+        public Player player;
+        public MantaroObj mantaro;
+        public PremiumKey userKey;
+        public PremiumKey guildKey;
     }
 }
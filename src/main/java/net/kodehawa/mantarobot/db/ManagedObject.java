@@ -43,6 +43,7 @@ public interface ManagedObject {
      * Saves an object to the database.
      * This will save the object by REPLACING it, instead of updating.
      * Useful sometimes.
+     * The write might be buffered for a bit, see {@link net.kodehawa.mantarobot.db.WriteBehindQueue}.
      */
     default void save() {
         MantaroData.db().save(this);
@@ -52,6 +53,7 @@ public interface ManagedObject {
      * Saves an object to the database.
      * This will save the object by updating it.
      * Useful sometimes.
+     * The write might be buffered for a bit, see {@link net.kodehawa.mantarobot.db.WriteBehindQueue}.
      */
     default void saveUpdating() {
         MantaroData.db().saveUpdating(this);
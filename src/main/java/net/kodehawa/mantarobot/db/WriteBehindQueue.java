@@ -0,0 +1,385 @@
+/*
+ * Copyright (C) 2016-2021 David Rubio Escares / Kodehawa
+ *
+ *  Mantaro is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  Mantaro is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Mantaro. If not, see http://www.gnu.org/licenses/
+ */
+
+package net.kodehawa.mantarobot.db;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.rethinkdb.gen.exc.ReqlAvailabilityError;
+import com.rethinkdb.gen.exc.ReqlDriverError;
+import com.rethinkdb.gen.exc.ReqlError;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Histogram;
+import net.kodehawa.mantarobot.utils.exporters.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import static com.rethinkdb.RethinkDB.r;
+
+/**
+ * Buffers saves of {@link ManagedObject}s and writes them in batches.
+ * <br>Saves of the same document (same table and id) that happen before a flush are merged into one,
+ * so an object that gets saved a bunch of times in a short period only gets written once.
+ * <br>Pending objects can be looked up with {@link #getPending(String, String, Class)}, so reads done on this node
+ * see their own writes even if they haven't been flushed yet. What's kept is the document as it was when saved, and
+ * every lookup gets its own copy of it, so changes nobody saved don't show up anywhere else.
+ * <br>If rethink can't be reached, the table is retried later, backing off. If it's the documents that are failing,
+ * they're written one by one so they can't hold off the rest, and given up on after a few tries.
+ */
+public class WriteBehindQueue {
+    private static final Logger log = LoggerFactory.getLogger(WriteBehindQueue.class);
+    private static final Histogram flushLatency = Histogram.build()
+            .name("db_flush_latency").help("Time it takes to flush the pending saves of a table, in milliseconds.")
+            .labelNames("table")
+            .buckets(1, 5, 10, 25, 50, 100, 250, 500, 1000, 2500)
+            .register();
+    private static final Counter mergedSaves = Counter.build()
+            .name("db_merged_saves").help("Saves that were merged into an already pending save of the same document.")
+            .labelNames("table")
+            .register();
+    private static final Counter flushedSaves = Counter.build()
+            .name("db_flushed_saves").help("Documents written by the write-behind queue.")
+            .labelNames("table")
+            .register();
+    private static final Counter droppedSaves = Counter.build()
+            .name("db_dropped_saves").help("Saves given up on after failing to be written too many times.")
+            .labelNames("table")
+            .register();
+    // How many times a document can fail to be written before we give up on it.
+    private static final int MAX_ATTEMPTS = 5;
+    // Longest we wait before trying a table that couldn't be written again, in milliseconds.
+    private static final long MAX_BACKOFF = 60_000;
+
+    private final ConnectionPool pool;
+    private final long interval;
+    private final int maxPending;
+    // Called with every object once it's been written.
+    private final Consumer<ManagedObject> onWritten;
+    // Table -> Document ID -> Pending save.
+    private final Map<String, Map<String, PendingSave>> pending = new ConcurrentHashMap<>();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    // Table -> Flushes that failed in a row, and when we can try again. Only used while flushing.
+    private final Map<String, Integer> failedFlushes = new HashMap<>();
+    private final Map<String, Long> retryAt = new HashMap<>();
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("Mantaro WriteBehind Thread-%d").setDaemon(true).build()
+    );
+
+    /**
+     * @param pool The connections to write with.
+     * @param interval How often to flush, in milliseconds.
+     * @param maxPending How many pending documents we can hold before flushing early.
+     * @param onWritten Called with every object once it's been written.
+     */
+    public WriteBehindQueue(@Nonnull ConnectionPool pool, long interval, int maxPending, @Nonnull Consumer<ManagedObject> onWritten) {
+        this.pool = pool;
+        this.interval = interval;
+        this.maxPending = maxPending;
+        this.onWritten = onWritten;
+
+        Metrics.THREAD_POOL_COLLECTOR.add("write-behind", executor);
+        executor.scheduleWithFixedDelay(this::flush, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Queues an object to be saved.
+     *
+     * @param object The object to save.
+     * @param replace Whether to replace the document (true) or update it (false).
+     *                If a pending save of the same document was replacing, the merged save will replace too.
+     */
+    public void save(@Nonnull ManagedObject object, boolean replace) {
+        var table = object.getTableName();
+        // Taken right now: whatever is done to the object after this needs another save to be written.
+        var document = Documents.toDocument(object);
+        var type = object.getClass();
+        var documents = pending.computeIfAbsent(table, t -> new ConcurrentHashMap<>());
+        var merged = new AtomicBoolean();
+
+        documents.compute(object.getId(), (id, previous) -> {
+            if (previous == null) {
+                return new PendingSave(id, type, document, replace, 0);
+            }
+
+            merged.set(true);
+            // Keeps the failed attempts, so saving a document that can't be written over and over doesn't keep it around forever.
+            return new PendingSave(id, type, document, replace || previous.replace, previous.attempts);
+        });
+
+        if (merged.get()) {
+            mergedSaves.labels(table).inc();
+        } else if (pendingCount.incrementAndGet() >= maxPending && flushScheduled.compareAndSet(false, true)) {
+            executor.execute(this::flush);
+        }
+    }
+
+    /**
+     * Deletes a document, along with its pending save if any.
+     * <br>Waits for a flush that's running to be done first, as it could be writing an older save of the document,
+     * which would bring it back if it landed after the delete.
+     */
+    public synchronized void delete(@Nonnull String table, @Nonnull String id) {
+        var documents = pending.get(table);
+        if (documents != null && documents.remove(id) != null) {
+            pendingCount.decrementAndGet();
+        }
+
+        pool.noReply(conn -> r.table(table)
+                .get(id)
+                .delete()
+                .runNoReply(conn)
+        );
+    }
+
+    /**
+     * Looks up an object that has been saved but not written yet.
+     *
+     * @return A new copy of the pending object, or null if there's none or it's not of the expected type.
+     */
+    @Nullable
+    public <T> T getPending(@Nonnull String table, @Nonnull String id, @Nonnull Class<T> clazz) {
+        var save = pendingSave(table, id);
+        if (save == null || !clazz.isAssignableFrom(save.type)) {
+            return null;
+        }
+
+        return Documents.fromDocument(save.document, clazz);
+    }
+
+    /**
+     * @return Whether a document has a save that hasn't been written yet. Cheaper than {@link #getPending(String, String, Class)}.
+     */
+    public boolean isPending(@Nonnull String table, @Nonnull String id) {
+        return pendingSave(table, id) != null;
+    }
+
+    public int getPendingCount() {
+        return pendingCount.get();
+    }
+
+    /**
+     * Writes all pending saves, one insert per table and conflict mode.
+     * Blocks until everything is written. Tables that failed recently are skipped until their backoff is over.
+     */
+    public void flush() {
+        flush(false);
+    }
+
+    private synchronized void flush(boolean force) {
+        flushScheduled.set(false);
+        var now = System.currentTimeMillis();
+
+        for (var entry : pending.entrySet()) {
+            var table = entry.getKey();
+            var documents = entry.getValue();
+            if (documents.isEmpty() || (!force && retryAt.getOrDefault(table, 0L) > now)) {
+                continue;
+            }
+
+            List<PendingSave> replacing = new ArrayList<>();
+            List<PendingSave> updating = new ArrayList<>();
+            for (var save : documents.values()) {
+                (save.replace ? replacing : updating).add(save);
+            }
+
+            List<PendingSave> written = new ArrayList<>();
+            var start = System.currentTimeMillis();
+            try {
+                var reachable = write(table, replacing, "replace", written) && write(table, updating, "update", written);
+                if (reachable) {
+                    failedFlushes.remove(table);
+                    retryAt.remove(table);
+                } else {
+                    // Everything that's left stays pending, and we'll try again once the backoff is over.
+                    var failures = failedFlushes.merge(table, 1, Integer::sum);
+                    var backoff = Math.min(MAX_BACKOFF, interval << Math.min(failures, 16));
+                    retryAt.put(table, now + backoff);
+                    log.warn("Couldn't reach rethink to flush table {}, retrying in {}ms", table, backoff);
+                }
+            } finally {
+                flushLatency.labels(table).observe(System.currentTimeMillis() - start);
+            }
+
+            flushedSaves.labels(table).inc(written.size());
+            // Only remove them once they're written, so reads keep seeing them until then.
+            // If the document was saved again while we were writing, keep the newer save around.
+            for (var save : written) {
+                if (documents.remove(save.id, save)) {
+                    pendingCount.decrementAndGet();
+                }
+
+                onWritten.accept(Documents.fromDocument(save.document, save.type));
+            }
+        }
+    }
+
+    /**
+     * Stops the periodic flush and writes everything that's still pending.
+     */
+    public void shutdown() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        flush(true);
+        log.info("Flushed pending saves on shutdown");
+    }
+
+    @Nullable
+    private PendingSave pendingSave(String table, String id) {
+        var documents = pending.get(table);
+        return documents == null ? null : documents.get(id);
+    }
+
+    /**
+     * Writes a batch of saves, adding the ones that got written to {@code written}.
+     *
+     * @return False if rethink couldn't be reached, true otherwise (even if some documents failed).
+     */
+    private boolean write(String table, List<PendingSave> saves, String conflict, List<PendingSave> written) {
+        if (saves.isEmpty()) {
+            return true;
+        }
+
+        try {
+            var error = insert(table, saves, conflict);
+            if (error == null) {
+                written.addAll(saves);
+                return true;
+            }
+
+            log.warn("Rethink rejected some of the {} documents on table {} ({}), writing them one by one", saves.size(), table, error);
+        } catch (Exception e) {
+            if (isUnreachable(e)) {
+                return false;
+            }
+
+            log.warn("Couldn't write {} documents on table {}, writing them one by one", saves.size(), table, e);
+        }
+
+        // Something on the batch is failing, find out what. Documents that failed before go last.
+        saves.sort(Comparator.comparingInt(save -> save.attempts));
+        for (var save : saves) {
+            try {
+                var error = insert(table, List.of(save), conflict);
+                if (error == null) {
+                    written.add(save);
+                } else {
+                    failed(table, save, error, null);
+                }
+            } catch (Exception e) {
+                if (isUnreachable(e)) {
+                    return false;
+                }
+
+                failed(table, save, e.getMessage(), e);
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Rethink doesn't throw when it turns down documents of an insert, it only counts them on the result.
+     *
+     * @return Null if every document was written, the first error rethink ran into otherwise.
+     */
+    @Nullable
+    @SuppressWarnings("unchecked")
+    private String insert(String table, List<PendingSave> saves, String conflict) {
+        List<Map<String, Object>> documents = new ArrayList<>(saves.size());
+        for (var save : saves) {
+            documents.add(save.document);
+        }
+
+        Map<String, Object> result = pool.point(conn -> r.table(table)
+                .insert(documents)
+                .optArg("conflict", conflict)
+                .runAtom(conn, Map.class)
+        );
+
+        var errors = (Number) result.get("errors");
+        if (errors == null || errors.longValue() == 0) {
+            return null;
+        }
+
+        return String.valueOf(result.get("first_error"));
+    }
+
+    // A document failed to be written while rethink was up: try again next flush, unless it's failed too many times already.
+    private void failed(String table, PendingSave save, String error, @Nullable Exception e) {
+        var documents = pending.get(table);
+        if (save.attempts + 1 < MAX_ATTEMPTS) {
+            log.warn("Couldn't write document {}:{} (attempt {} of {}): {}", table, save.id, save.attempts + 1, MAX_ATTEMPTS, error, e);
+            // Only if it wasn't saved again meanwhile, the newer save gets its own tries.
+            documents.replace(save.id, save, save.failed());
+            return;
+        }
+
+        if (documents.remove(save.id, save)) {
+            pendingCount.decrementAndGet();
+        }
+
+        // Logged whole, so it can be recovered by hand.
+        droppedSaves.labels(table).inc();
+        log.error("Giving up on writing document {}:{} after {} attempts ({}), dropping it: {}", table, save.id, MAX_ATTEMPTS, error, save.document, e);
+    }
+
+    // Whether it's rethink that's failing (and everything would fail), rather than the documents we sent.
+    private static boolean isUnreachable(Exception e) {
+        return !(e instanceof ReqlError) || e instanceof ReqlDriverError || e instanceof ReqlAvailabilityError;
+    }
+
+    private static class PendingSave {
+        private final String id;
+        private final Class<? extends ManagedObject> type;
+        // What rethink will store. Never changed, nor handed out.
+        private final Map<String, Object> document;
+        private final boolean replace;
+        // How many times writing it failed while rethink was up.
+        private final int attempts;
+
+        private PendingSave(String id, Class<? extends ManagedObject> type, Map<String, Object> document, boolean replace, int attempts) {
+            this.id = id;
+            this.type = type;
+            this.document = document;
+            this.replace = replace;
+            this.attempts = attempts;
+        }
+
+        private PendingSave failed() {
+            return new PendingSave(id, type, document, replace, attempts + 1);
+        }
+    }
+}
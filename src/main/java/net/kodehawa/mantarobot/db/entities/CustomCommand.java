@@ -20,6 +20,8 @@ import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.annotation.JsonProperty;
+import net.kodehawa.mantarobot.commands.custom.v3.CompiledScript;
+import net.kodehawa.mantarobot.db.Documents;
 import net.kodehawa.mantarobot.db.ManagedObject;
 import net.kodehawa.mantarobot.db.entities.helpers.CustomCommandData;
 import net.kodehawa.mantarobot.utils.URLEncoding;
@@ -27,6 +29,8 @@ import net.kodehawa.mantarobot.utils.URLEncoding;
 import javax.annotation.Nonnull;
 import java.beans.ConstructorProperties;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 @JsonIgnoreProperties(ignoreUnknown = true)
@@ -36,6 +40,10 @@ public class CustomCommand implements ManagedObject {
     private final List<String> values;
     //Setting a default to avoid backwards compat issues.
     private CustomCommandData data = new CustomCommandData();
+    // Parsed v3 scripts, by source. Values can be edited in place, so anything that's not a current value gets dropped.
+    // Shared with copies: it's keyed by source, so whatever is on it is right for them too.
+    @JsonIgnore
+    private Map<String, CompiledScript> compiledScripts = new ConcurrentHashMap<>();
 
     @ConstructorProperties({"id", "values"})
     @JsonCreator
@@ -90,4 +98,36 @@ public class CustomCommand implements ManagedObject {
     public CustomCommandData getData() {
         return this.data;
     }
+
+    /**
+     * @return A deep copy of this command, that can be changed without affecting this one.
+     */
+    @Nonnull
+    public CustomCommand copy() {
+        var copy = Documents.copy(this, CustomCommand.class);
+        copy.compiledScripts = compiledScripts;
+        return copy;
+    }
+
+    /**
+     * Gets the parsed form of a v3 script of this command, parsing it only the first time it's ran.
+     *
+     * @param source The script, without the v3: prefix.
+     * @throws net.kodehawa.mantarobot.commands.custom.v3.SyntaxException If the script is invalid.
+     */
+    @JsonIgnore
+    public CompiledScript getCompiledScript(String source) {
+        var script = compiledScripts.get(source);
+        if (script != null) {
+            return script;
+        }
+
+        if (compiledScripts.size() >= values.size()) {
+            compiledScripts.keySet().removeIf(cached -> !values.contains("v3:" + cached));
+        }
+
+        script = CompiledScript.compile(source);
+        compiledScripts.put(source, script);
+        return script;
+    }
 }
@@ -22,8 +22,11 @@ import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import net.dv8tion.jda.api.JDA;
 import net.dv8tion.jda.api.entities.Guild;
+import net.kodehawa.mantarobot.core.CommandPolicy;
+import net.kodehawa.mantarobot.core.command.processor.PrefixMatcher;
 import net.kodehawa.mantarobot.data.Config;
 import net.kodehawa.mantarobot.data.MantaroData;
+import net.kodehawa.mantarobot.db.Documents;
 import net.kodehawa.mantarobot.db.ManagedObject;
 import net.kodehawa.mantarobot.db.entities.helpers.GuildData;
 import net.kodehawa.mantarobot.db.entities.helpers.PremiumKeyData;
@@ -50,6 +53,11 @@ public class DBGuild implements ManagedObject {
 
     @JsonIgnore
     private final Config config = MantaroData.config().get();
+    // Built from the guild data when first needed, and thrown away whenever the guild gets saved.
+    @JsonIgnore
+    private volatile CommandPolicy commandPolicy;
+    @JsonIgnore
+    private volatile PrefixMatcher prefixMatcher;
 
     @JsonCreator
     @ConstructorProperties({"id", "premiumUntil", "data"})
@@ -167,6 +175,64 @@ public class DBGuild implements ManagedObject {
         return this.data;
     }
 
+    /**
+     * @return A pre-computed view of what's disabled on this guild, used to check whether a command can be ran.
+     * Changes to the guild data will only be seen here once the guild is saved.
+     */
+    @JsonIgnore
+    @Nonnull
+    public CommandPolicy getCommandPolicy() {
+        var policy = commandPolicy;
+        if (policy == null) {
+            policy = new CommandPolicy(data);
+            commandPolicy = policy;
+        }
+
+        return policy;
+    }
+
+    /**
+     * @return A matcher for every prefix a command can be ran with on this guild, custom prefix included.
+     * Changes to the custom prefix will only be seen here once the guild is saved.
+     */
+    @JsonIgnore
+    @Nonnull
+    public PrefixMatcher getPrefixMatcher() {
+        var matcher = prefixMatcher;
+        if (matcher == null) {
+            matcher = PrefixMatcher.of(config, data.getGuildCustomPrefix());
+            prefixMatcher = matcher;
+        }
+
+        return matcher;
+    }
+
+    /**
+     * @return A deep copy of this guild, that can be changed without affecting this one.
+     */
+    @Nonnull
+    public DBGuild copy() {
+        var copy = Documents.copy(this, DBGuild.class);
+        // Built from the same data, so they're the same until the copy gets saved.
+        copy.commandPolicy = commandPolicy;
+        copy.prefixMatcher = prefixMatcher;
+        return copy;
+    }
+
+    @Override
+    public void save() {
+        commandPolicy = null;
+        prefixMatcher = null;
+        ManagedObject.super.save();
+    }
+
+    @Override
+    public void saveUpdating() {
+        commandPolicy = null;
+        prefixMatcher = null;
+        ManagedObject.super.saveUpdating();
+    }
+
     @Nonnull
     public String getId() {
         return this.id;
@@ -16,9 +16,13 @@
 
 package net.kodehawa.mantarobot.utils.commands.ratelimit;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import net.dv8tion.jda.api.entities.User;
 import net.kodehawa.mantarobot.data.MantaroData;
 import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
 import redis.clients.jedis.exceptions.JedisNoScriptException;
@@ -29,10 +33,26 @@ import java.time.Instant;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
-
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Rate limiter whose cooldown increases the more someone tries to go past it.
+ * <br>By default the state lives on Redis, and every call runs a Lua script there.
+ * With {@link Builder#local(boolean)}, the state is kept in memory instead, and calls are let through or turned down
+ * without going through the network.
+ * <br>Other nodes can't see what we keep in memory, so unless {@link Builder#redisSync(boolean)} is turned off, the first
+ * call we see for a key is decided by Redis (it might've been used on another node, or before a restart), and what it
+ * returns is what we keep. After that, every call still runs the script, but in the background, and we keep whichever
+ * of both buckets is newest: calls we let through always do, calls we turn down at most one at a time per key, so
+ * spam can't pile them up. Calls made on two nodes before they catch up with each other can both go through.
+ * Without Redis sync, every node has its own limit: only use that for single-node limits.
+ */
 public class IncreasingRateLimiter {
+    private static final Logger log = LoggerFactory.getLogger(IncreasingRateLimiter.class);
     private static final String SCRIPT;
 
     static {
@@ -57,10 +77,14 @@ public class IncreasingRateLimiter {
     private final boolean randomIncrement;
     private final boolean premiumAware;
     private final int incrementDivider;
+    private final boolean redisSync;
+    // Only used in local mode.
+    private final Cache<String, LocalKey> buckets;
 
     private IncreasingRateLimiter(JedisPool pool, String prefix, int limit, int cooldown,
                                   int spamBeforeCooldownIncrease, int cooldownIncrease, int maxCooldown,
-                                  boolean randomIncrement, boolean premiumAware, int incrementDivider) {
+                                  boolean randomIncrement, boolean premiumAware, int incrementDivider,
+                                  boolean local, boolean redisSync) {
         this.pool = pool;
         this.prefix = prefix;
         this.limit = limit;
@@ -71,51 +95,149 @@ public class IncreasingRateLimiter {
         this.randomIncrement = randomIncrement;
         this.premiumAware = premiumAware;
         this.incrementDivider = incrementDivider;
+        this.redisSync = redisSync;
+        this.buckets = local ? CacheBuilder.newBuilder()
+                // Nothing is left to remember about a key once its cooldown is over.
+                .expireAfterAccess(Math.max(cooldown, maxCooldown) + TimeUnit.MINUTES.toMillis(1), TimeUnit.MILLISECONDS)
+                .build() : null;
+    }
+
+    private int cooldownFor(boolean premium) {
+        int cd = cooldown + (randomIncrement && !premium ? ThreadLocalRandom.current().nextInt(cooldown / incrementDivider) : 0);
+        return premium ? cd - ThreadLocalRandom.current().nextInt(cooldown / 4) : cd;
+    }
+
+    private boolean isPremium(String userId) {
+        return premiumAware && RatelimitUtils.isPremium(userId);
     }
 
+    private RateLimit limit0(String key, boolean premium) {
+        long start = Instant.now().toEpochMilli();
+        return rateLimit(start, runScript(key, start, cooldownFor(premium)));
+    }
+
+    // Runs ratelimiter.lua, returning the count, reset and spam it saw before this call.
     @SuppressWarnings("unchecked")
-    private RateLimit limit0(String key) {
+    private List<Long> runScript(String key, long start, int initialCooldown) {
         try (Jedis j = pool.getResource()) {
             if (scriptSha == null) {
                 scriptSha = j.scriptLoad(SCRIPT);
             }
 
-            long start = Instant.now().toEpochMilli();
-            List<Long> result;
-            boolean premiumAwareness = premiumAware && MantaroData.db().getUser(key).isPremium();
+            List<String> args = Arrays.asList(
+                    String.valueOf(limit),
+                    String.valueOf(start),
+                    String.valueOf(initialCooldown),
+                    String.valueOf(spamBeforeCooldownIncrease),
+                    String.valueOf(cooldownIncrease),
+                    String.valueOf(maxCooldown)
+            );
+
             try {
-                int cd = cooldown + (randomIncrement && !premiumAwareness ? ThreadLocalRandom.current().nextInt(cooldown / incrementDivider) : 0);
-                result = (List<Long>) j.evalsha(scriptSha,
-                        Collections.singletonList(key),
-                        Arrays.asList(
-                                String.valueOf(limit),
-                                String.valueOf(start),
-                                String.valueOf(premiumAwareness ? cd - ThreadLocalRandom.current().nextInt(cooldown / 4) : cd),
-                                String.valueOf(spamBeforeCooldownIncrease),
-                                String.valueOf(cooldownIncrease),
-                                String.valueOf(maxCooldown)
-                        )
-                );
+                return (List<Long>) j.evalsha(scriptSha, Collections.singletonList(key), args);
             } catch (JedisNoScriptException e) {
                 //script not in cache. force load it and try again.
                 scriptSha = j.scriptLoad(SCRIPT);
-                return limit0(key);
+                return (List<Long>) j.evalsha(scriptSha, Collections.singletonList(key), args);
             }
+        }
+    }
 
-            return new RateLimit(
-                    start,
-                    (int) (limit - result.get(0)),
-                    result.get(1) - start,
-                    result.get(2).intValue()
-            );
+    private RateLimit rateLimit(long start, List<Long> result) {
+        return new RateLimit(
+                start,
+                (int) (limit - result.get(0)),
+                result.get(1) - start,
+                result.get(2).intValue()
+        );
+    }
+
+    // What the script left on Redis, given what it returned.
+    private Bucket bucketAfter(List<Long> result) {
+        long count = result.get(0), reset = result.get(1), spam = result.get(2);
+        return count >= limit ? new Bucket(count, reset, spam + 1) : new Bucket(count + 1, reset, 0);
+    }
+
+    // Same as ratelimiter.lua, but on a bucket we hold in memory.
+    private RateLimit limitLocal(String key, boolean premium) {
+        LocalKey ref;
+        try {
+            ref = buckets.get(key, LocalKey::new);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+
+        final var start = System.currentTimeMillis();
+        final var initialCooldown = cooldownFor(premium);
+        final var increase = Math.max(0, cooldownIncrease);
+        final var max = Math.max(initialCooldown, maxCooldown);
+
+        Bucket current, next;
+        long count, reset, spam;
+        do {
+            current = ref.get();
+            count = current.count;
+            reset = current.reset;
+            spam = 0;
+
+            if (reset < start) {
+                reset = start + initialCooldown;
+                if (count == limit) {
+                    count = 0;
+                }
+            }
+
+            if (count >= limit) {
+                spam = current.spam;
+                if (spam + 1 > spamBeforeCooldownIncrease) {
+                    reset = Math.min(reset + (increase * (spam - spamBeforeCooldownIncrease)), start + max);
+                }
+
+                next = new Bucket(count, reset, spam + 1);
+            } else if (redisSync && !ref.loaded) {
+                // We know nothing about this key, but other nodes (or us, before a restart) might. Redis decides this one.
+                var result = runScript(key, start, initialCooldown);
+                ref.set(bucketAfter(result));
+                ref.loaded = true;
+                return rateLimit(start, result);
+            } else {
+                next = new Bucket(count + 1, reset, 0);
+            }
+        } while (!ref.compareAndSet(current, next));
+
+        // Decided already, but it still has to count on Redis, and Redis might know about calls other nodes let through.
+        // Calls we let through are few (at most the limit per cooldown), so they always sync. Only one sync of a call
+        // we turned down is queued per key at a time, so spam can't pile them up.
+        final var allowed = count < limit;
+        if (redisSync && (allowed || ref.syncing.compareAndSet(false, true))) {
+            MantaroData.queue(() -> {
+                if (!allowed) {
+                    ref.syncing.set(false);
+                }
+
+                try {
+                    var synced = bucketAfter(runScript(key, start, initialCooldown));
+                    ref.getAndUpdate(local -> Bucket.newest(local, synced));
+                } catch (Exception e) {
+                    log.warn("Couldn't sync ratelimit bucket {} with redis", key, e);
+                }
+            });
         }
+
+        return new RateLimit(start, (int) (limit - count), reset - start, (int) spam);
     }
 
     public RateLimit limit(String key) {
-        return limit0(prefix + key);
+        var premium = isPremium(key);
+        return buckets == null ? limit0(prefix + key, premium) : limitLocal(prefix + key, premium);
     }
 
     public long getRemaniningCooldown(User user) {
+        if (buckets != null && !redisSync) {
+            var bucket = buckets.getIfPresent(prefix + user.getId());
+            return bucket == null ? 0 : Math.max(0, bucket.get().reset - System.currentTimeMillis());
+        }
+
         try (Jedis j = pool.getResource()) {
             String resetAt = j.hget(prefix + user.getId(), "reset");
             if (resetAt == null) {
@@ -137,6 +259,8 @@ public class IncreasingRateLimiter {
         private boolean randomIncrement = true;
         private boolean premiumAware = false;
         private int incrementDivider = 4;
+        private boolean local = false;
+        private boolean redisSync = true;
 
         public Builder pool(JedisPool pool) {
             this.pool = pool;
@@ -148,6 +272,24 @@ public class IncreasingRateLimiter {
             return this;
         }
 
+        /**
+         * Keep the ratelimit state in memory instead of running a script on Redis on every call.
+         */
+        public Builder local(boolean local) {
+            this.local = local;
+            return this;
+        }
+
+        /**
+         * Only used with {@link #local(boolean)}. Whether calls are synced with Redis in the background, so the limit
+         * is shared by every node (once they catch up) and kept across restarts. Defaults to true.
+         * Turning this off keeps a separate limit on every node: only do it for limits that don't need to be shared.
+         */
+        public Builder redisSync(boolean sync) {
+            this.redisSync = sync;
+            return this;
+        }
+
         public Builder randomIncrement(boolean incr) {
             this.randomIncrement = incr;
             return this;
@@ -231,8 +373,42 @@ public class IncreasingRateLimiter {
             return new IncreasingRateLimiter(
                     pool, prefix, limit, cooldown, spamTolerance,
                     cooldownPenaltyIncrease, maxCooldown,
-                    randomIncrement, premiumAware, incrementDivider
+                    randomIncrement, premiumAware, incrementDivider,
+                    local, redisSync
             );
         }
     }
+
+    // The bucket of a key, whether a sync with Redis is queued for it, and whether we got what Redis had for it yet.
+    private static class LocalKey extends AtomicReference<Bucket> {
+        private final AtomicBoolean syncing = new AtomicBoolean();
+        private volatile boolean loaded;
+
+        private LocalKey() {
+            super(Bucket.EMPTY);
+        }
+    }
+
+    private static class Bucket {
+        private static final Bucket EMPTY = new Bucket(0, 0, 0);
+
+        private final long count;
+        private final long reset;
+        private final long spam;
+
+        private Bucket(long count, long reset, long spam) {
+            this.count = count;
+            this.reset = reset;
+            this.spam = spam;
+        }
+
+        // The one with the latest reset is either on a newer window or has more spam counted. Same reset, same window.
+        private static Bucket newest(Bucket a, Bucket b) {
+            if (a.reset != b.reset) {
+                return a.reset > b.reset ? a : b;
+            }
+
+            return new Bucket(Math.max(a.count, b.count), a.reset, Math.max(a.spam, b.spam));
+        }
+    }
 }
@@ -16,16 +16,17 @@
 
 package net.kodehawa.mantarobot.utils.commands.ratelimit;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import net.dv8tion.jda.api.entities.Member;
 import net.dv8tion.jda.api.entities.User;
-import net.kodehawa.mantarobot.data.MantaroData;
 import net.kodehawa.mantarobot.utils.exporters.Metrics;
 
-import java.util.concurrent.ConcurrentHashMap;
+import java.lang.ref.WeakReference;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * This class defines the x ratelimit that will be taken into account when x user inputs a command.
@@ -35,20 +36,28 @@ import java.util.concurrent.atomic.AtomicInteger;
  * <p>
  * This class normally does the work of making abusable commands not-so abusable, like ~>loot. Also sorts daily or timely timeouts for other commands like daily and rep.
  * <p>
+ * Every key gets {@code max} slots, each one holding the time it frees up at, so nothing has to be scheduled to lift a ratelimit:
+ * we just compare against the current time. Keys are kept as primitive longs in a few open-addressing tables,
+ * and keys that have nothing left to limit are dropped the next time their table gets swept, so memory stays bounded
+ * by how many keys were used in the last couple timeouts. Sweeping is done on a shared background thread, never by callers.
+ * <p>
  * Made by natanbc, modified by Kodehawa.
  *
  * @since 01-06-2017
  */
 public class RateLimiter {
-    private static final ScheduledExecutorService ses = Executors.newScheduledThreadPool(1);
+    private static final int SEGMENTS = 16;
+    // Drops the idle keys of every ratelimiter.
+    private static final ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("Mantaro RateLimiter Sweeper").setDaemon(true).build()
+    );
 
     static {
-        Metrics.THREAD_POOL_COLLECTOR.add("rate-limiter", ses);
+        Metrics.THREAD_POOL_COLLECTOR.add("ratelimiter-sweeper", sweeper);
     }
 
-    private final long max;
     private final long timeout;
-    private final ConcurrentHashMap<String, Pair<AtomicInteger, Long>> usersRateLimited = new ConcurrentHashMap<>();
+    private final Segment[] segments = new Segment[SEGMENTS];
     private boolean isPremiumAware = false;
 
     /**
@@ -57,8 +66,7 @@ public class RateLimiter {
      * @param timeout How much time until the ratelimit gets lifted
      */
     public RateLimiter(TimeUnit timeUnit, int timeout) {
-        this.max = 1;
-        this.timeout = timeUnit.toMillis(timeout);
+        this(timeUnit, 1, timeout);
     }
 
     /**
@@ -68,9 +76,8 @@ public class RateLimiter {
      * @param timeout How much time until the ratelimit gets lifted
      */
     public RateLimiter(TimeUnit timeUnit, int timeout, boolean isPremiumAware) {
-        this.max = 1;
+        this(timeUnit, 1, timeout);
         this.isPremiumAware = isPremiumAware;
-        this.timeout = timeUnit.toMillis(timeout);
     }
 
     /**
@@ -79,68 +86,262 @@ public class RateLimiter {
      * @param timeout  How much time until the ratelimit gets lifted.
      */
     public RateLimiter(TimeUnit timeUnit, int max, int timeout) {
-        this.max = max;
+        if (max < 1) {
+            throw new IllegalArgumentException("Max must be at least 1");
+        }
+
         this.timeout = timeUnit.toMillis(timeout);
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(max);
+        }
+
+        scheduleSweep(this, Math.max(this.timeout, 1000));
+    }
+
+    // Only holds on to the ratelimiter weakly, so the sweep stops once nobody uses it anymore.
+    private static void scheduleSweep(RateLimiter rateLimiter, long interval) {
+        var reference = new WeakReference<>(rateLimiter);
+        var task = new AtomicReference<ScheduledFuture<?>>();
+        task.set(sweeper.scheduleWithFixedDelay(() -> {
+            var limiter = reference.get();
+            if (limiter == null) {
+                task.get().cancel(false);
+                return;
+            }
+
+            var now = System.currentTimeMillis();
+            for (var segment : limiter.segments) {
+                segment.sweep(now);
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS));
     }
 
     //Basically where you get b1nzy'd.
-    public boolean process(String key) {
-        boolean isPremium = isPremiumAware && MantaroData.db().getUser(key).isPremium();
-        Pair<AtomicInteger, Long> p = usersRateLimited.get(key);
+    public boolean process(long key) {
+        return process(key, false);
+    }
 
-        // Put the user on the RL map if they aren't here already, but we already let them pass.
-        if (p == null) {
-            usersRateLimited.put(key, p = new Pair<>());
-            p.first = new AtomicInteger();
-        }
+    public boolean process(String key) {
+        return process(key(key), false);
+    }
 
-        AtomicInteger a = p.first;
-        long i = a.get();
-        if (i >= max) return false;
+    // Only users can be premium, so only process(User) (and process(Member)) look it up. Other keys might not even be ids.
+    public boolean process(User user) {
+        var isPremium = isPremiumAware && RatelimitUtils.isPremium(user.getId());
+        return process(user.getIdLong(), isPremium);
+    }
 
-        a.incrementAndGet();
-        long now = System.currentTimeMillis();
+    private boolean process(long key, boolean isPremium) {
+        var keyTimeout = isPremium ? (long) (timeout * 0.75) : timeout;
+        return segment(key).process(key, System.currentTimeMillis(), keyTimeout);
+    }
 
-        Long tryAgain = p.second;
-        if (tryAgain == null || tryAgain < now) {
-            p.second = now + (isPremium ? (long) (timeout * 0.75) : timeout);
-        }
+    public boolean process(Member member) {
+        return process(member.getUser());
+    }
 
-        ses.schedule(a::decrementAndGet, isPremium ? (long) (timeout * 0.75) : timeout, TimeUnit.MILLISECONDS);
-        return true;
+    public long tryAgainIn(long key) {
+        return segment(key).tryAgainIn(key, System.currentTimeMillis());
     }
 
     //Method overload.
     public long tryAgainIn(String key) {
-        Pair<AtomicInteger, Long> p = usersRateLimited.get(key);
-        if (p == null || p.second == null)
-            return 0;
-
-        return Math.max(p.second - System.currentTimeMillis(), 0);
+        return tryAgainIn(key(key));
     }
 
     public long tryAgainIn(Member key) {
-        return tryAgainIn(key.getUser().getId());
+        return tryAgainIn(key.getUser());
     }
 
     public long tryAgainIn(User key) {
-        return tryAgainIn(key.getId());
+        return tryAgainIn(key.getIdLong());
     }
 
-    public boolean process(User user) {
-        return process(user.getId());
+    /**
+     * @return How many keys are being tracked right now. Keys that are idle but haven't been swept yet are counted.
+     */
+    public int size() {
+        int size = 0;
+        for (var segment : segments) {
+            size += segment.size();
+        }
+
+        return size;
     }
 
-    public boolean process(Member member) {
-        return process(member.getUser());
+    private Segment segment(long key) {
+        return segments[(int) (mix(key) >>> 60) & (SEGMENTS - 1)];
+    }
+
+    // Snowflakes (and numeric keys in general) are used as-is. Anything else (ie, a user id pair) is hashed.
+    private static long key(String key) {
+        var length = key.length();
+        if (length > 0 && length < 20) {
+            var numeric = true;
+            for (int i = 0; i < length && numeric; i++) {
+                var c = key.charAt(i);
+                numeric = c >= '0' && c <= '9';
+            }
+
+            if (numeric) {
+                return Long.parseUnsignedLong(key);
+            }
+        }
+
+        // 64-bit FNV-1a. Collisions just mean two keys share a ratelimit, which is rare enough to not matter.
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < length; i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+
+        return hash;
     }
 
-    public ConcurrentHashMap<String, Pair<AtomicInteger, Long>> getUsersRateLimited() {
-        return this.usersRateLimited;
+    private static long mix(long key) {
+        var h = key * 0x9E3779B97F4A7C15L;
+        return h ^ (h >>> 32);
     }
 
-    private static class Pair<F, S> {
-        F first;
-        S second;
+    /**
+     * Open-addressing table of key -> slots. A key with a reset time of 0 is an empty entry.
+     */
+    private static class Segment {
+        private final int max;
+
+        private long[] keys;
+        // When the ratelimit of the key is lifted, as shown to the user.
+        private long[] resets;
+        // When each of the permits of the key frees up. Key i has the permits [i * max, (i + 1) * max).
+        private long[] permits;
+        private int size;
+
+        private Segment(int max) {
+            this.max = max;
+            allocate(16);
+        }
+
+        private synchronized boolean process(long key, long now, long timeout) {
+            var index = find(key);
+            if (index < 0) {
+                if ((size + 1) * 2 > keys.length) {
+                    // Drop what we can, and only keep the size if that frees a good part of the table.
+                    // Otherwise we'd be back here (and going through the whole table again) a few keys later.
+                    var active = countActive(now);
+                    rebuild(active * 4 < keys.length ? keys.length : keys.length * 2, now);
+                }
+
+                index = insert(key);
+            }
+
+            var base = index * max;
+            for (int i = base; i < base + max; i++) {
+                if (permits[i] <= now) {
+                    permits[i] = now + timeout;
+                    if (resets[index] < now) {
+                        resets[index] = now + timeout;
+                    }
+
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        private synchronized long tryAgainIn(long key, long now) {
+            var index = find(key);
+            return index < 0 ? 0 : Math.max(resets[index] - now, 0);
+        }
+
+        private synchronized int size() {
+            return size;
+        }
+
+        private int find(long key) {
+            var mask = keys.length - 1;
+            for (int i = (int) mix(key) & mask; resets[i] != 0; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    return i;
+                }
+            }
+
+            return -1;
+        }
+
+        private int insert(long key) {
+            var mask = keys.length - 1;
+            var i = (int) mix(key) & mask;
+            while (resets[i] != 0) {
+                i = (i + 1) & mask;
+            }
+
+            keys[i] = key;
+            // Will be set to the real reset time when a permit is given. Until then, it just marks the entry as used.
+            resets[i] = 1;
+            size++;
+            return i;
+        }
+
+        // Drops idle keys, and shrinks the table if most of it is empty now.
+        private synchronized void sweep(long now) {
+            var active = countActive(now);
+            var capacity = keys.length;
+            while (capacity > 16 && active * 8 < capacity) {
+                capacity /= 2;
+            }
+
+            rebuild(capacity, now);
+        }
+
+        private int countActive(long now) {
+            var active = 0;
+            for (int i = 0; i < keys.length; i++) {
+                if (resets[i] != 0 && isActive(resets[i], permits, i * max, now)) {
+                    active++;
+                }
+            }
+
+            return active;
+        }
+
+        // Re-inserts every key that still has something to limit into a table of the given capacity.
+        private void rebuild(int capacity, long now) {
+            var oldKeys = keys;
+            var oldResets = resets;
+            var oldPermits = permits;
+            allocate(capacity);
+
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldResets[i] == 0 || !isActive(oldResets[i], oldPermits, i * max, now)) {
+                    continue;
+                }
+
+                var index = insert(oldKeys[i]);
+                resets[index] = oldResets[i];
+                System.arraycopy(oldPermits, i * max, permits, index * max, max);
+            }
+        }
+
+        private boolean isActive(long reset, long[] permits, int base, long now) {
+            if (reset >= now) {
+                return true;
+            }
+
+            for (int i = base; i < base + max; i++) {
+                if (permits[i] > now) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        private void allocate(int capacity) {
+            keys = new long[capacity];
+            resets = new long[capacity];
+            permits = new long[capacity * max];
+            size = 0;
+        }
     }
 }
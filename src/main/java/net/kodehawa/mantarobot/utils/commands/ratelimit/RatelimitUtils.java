@@ -16,6 +16,8 @@
 
 package net.kodehawa.mantarobot.utils.commands.ratelimit;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import net.dv8tion.jda.api.entities.User;
 import net.dv8tion.jda.api.events.message.guild.GuildMessageReceivedEvent;
 import net.kodehawa.mantarobot.core.modules.commands.base.Context;
@@ -31,6 +33,8 @@ import org.slf4j.LoggerFactory;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class RatelimitUtils {
@@ -40,6 +44,22 @@ public class RatelimitUtils {
     private static final Set<String> loggedSpambotUsers = ConcurrentHashMap.newKeySet();
     private static final Set<String> loggedAttemptUsers = ConcurrentHashMap.newKeySet();
     private static final Config config = MantaroData.config().get();
+    // Whether an user is premium. Checking it means going to the database, and it doesn't change often.
+    private static final Cache<String, Boolean> premiumCache = CacheBuilder.newBuilder()
+            .maximumSize(100_000)
+            .expireAfterWrite(5, TimeUnit.MINUTES)
+            .build();
+
+    /**
+     * Whether an user is premium, for premium-aware ratelimiters. Cached for a few minutes.
+     */
+    static boolean isPremium(String userId) {
+        try {
+            return premiumCache.get(userId, () -> MantaroData.db().getUser(userId).isPremium());
+        } catch (ExecutionException e) {
+            return false;
+        }
+    }
 
     private static boolean ratelimit(IncreasingRateLimiter rateLimiter, String u, GuildMessageReceivedEvent event,
                                      I18nContext i18nContext, String extraMessage, boolean spamAware) {
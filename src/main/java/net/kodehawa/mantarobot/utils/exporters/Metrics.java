@@ -27,6 +27,11 @@ public class Metrics {
             .help("Music Track Events (failed/loaded/searched)")
             .labelNames("type")
             .register();
+    public static final Counter TRACK_LOAD_CACHE = Counter.build()
+            .name("track_load_cache")
+            .help("Track loads, by how they were served (hit/miss/coalesced)")
+            .labelNames("result")
+            .register();
     public static final Counter BIRTHDAY_COUNTER = Counter.build()
             .name("birthdays_logged")
             .help("Logged birthdays")
@@ -35,6 +40,12 @@ public class Metrics {
             .name("command_latency")
             .help("Time it takes for a command to process.")
             .register();
+    public static final Histogram COMMAND_DB_CALLS = Histogram.build()
+            .name("command_db_calls")
+            .help("Amount of database calls a command does")
+            .labelNames("name")
+            .buckets(0, 1, 2, 3, 4, 5, 7, 10, 15, 20, 30, 50)
+            .register();
     public static final Counter COMMAND_COUNTER = Counter.build()
             .name("commands")
             .help("Amounts of commands ran by name")
@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2016-2021 David Rubio Escares / Kodehawa
+ *
+ *  Mantaro is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  Mantaro is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Mantaro. If not, see http://www.gnu.org/licenses/
+ */
+
+import net.kodehawa.mantarobot.core.cache.EvictionStrategy;
+import net.kodehawa.mantarobot.core.cache.MemberGuildIndex;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Replays synthetic member activity on a single shard against the eviction strategies, the same way
+ * EvictingCachePolicy drives them, and reports hit ratio and how many guilds evictions had to look at.
+ * <br>Traces: guilds are picked by how chatty they are (zipf), people in them by how much they talk (zipf), and every
+ * so often a big guild gets a bunch of members loaded once (joins, a raid, a member list being looked at).
+ */
+public class MemberCacheSimulatorTest {
+    private static final int GUILDS = 400;
+    private static final int USERS = 60_000;
+    private static final int CACHE_SIZE = 5_000;
+    private static final int EVENTS = 400_000;
+    // Every this many events, SCAN_SIZE members of a big guild are loaded once.
+    private static final int SCAN_EVERY = 20_000;
+    private static final int SCAN_SIZE = 3_000;
+
+    @Test
+    public void testSimulation() {
+        for (var seed : new long[] { 1, 2, 3 }) {
+            var trace = Trace.generate(new Random(seed));
+            var fifo = simulate(EvictionStrategy.leastRecentlyUsed(CACHE_SIZE), trace);
+            var tinyLfu = simulate(EvictionStrategy.windowTinyLfu(CACHE_SIZE), trace);
+
+            var results = "seed %d, ring buffer: %s, W-TinyLFU: %s".formatted(seed, fifo, tinyLfu);
+
+            Assertions.assertTrue(tinyLfu.hitRatio() > fifo.hitRatio(), "W-TinyLFU should keep the active members around (" + results + ")");
+            // What the old eviction did was look at every guild on the shard, every time.
+            Assertions.assertTrue(tinyLfu.guildsPerEviction() < 2, "Evictions should only look at the guilds the member was on (" + results + ")");
+            Assertions.assertTrue(tinyLfu.maxTracked <= CACHE_SIZE, "Can't keep more members than the cache size (" + results + ")");
+        }
+    }
+
+    @Test
+    public void testActiveMembersSurviveScans() {
+        var strategy = EvictionStrategy.windowTinyLfu(100);
+        for (var round = 0; round < 10; round++) {
+            for (long id = 1; id <= 50; id++) {
+                Assertions.assertEquals(EvictionStrategy.NO_REMOVAL_NEEDED, strategy.cache(id));
+                strategy.access(id);
+            }
+        }
+
+        // A thousand people we only see once.
+        var evicted = new HashSet<Long>();
+        for (long id = 1000; id < 2000; id++) {
+            evicted.add(strategy.cache(id));
+        }
+
+        for (long id = 1; id <= 50; id++) {
+            Assertions.assertFalse(evicted.contains(id), "Active member " + id + " was evicted");
+        }
+
+        // Forgotten members free their spot, so nobody has to go for the next one.
+        for (long id = 1; id <= 50; id++) {
+            strategy.remove(id);
+        }
+
+        Assertions.assertEquals(EvictionStrategy.NO_REMOVAL_NEEDED, strategy.cache(5000));
+    }
+
+    @Test
+    public void testIndex() {
+        var index = new MemberGuildIndex();
+        index.add(1, 10);
+        index.add(1, 11);
+        index.add(1, 10);
+        index.add(2, 10);
+        Assertions.assertArrayEquals(new long[] { 10, 11 }, index.get(1));
+
+        Assertions.assertFalse(index.remove(1, 10));
+        Assertions.assertArrayEquals(new long[] { 11 }, index.get(1));
+        Assertions.assertFalse(index.remove(1, 12));
+
+        var gone = index.removeGuild(10);
+        Assertions.assertArrayEquals(new long[] { 2 }, gone);
+        Assertions.assertEquals(1, index.size());
+
+        Assertions.assertArrayEquals(new long[] { 11 }, index.remove(1));
+        Assertions.assertEquals(0, index.remove(1).length);
+        Assertions.assertEquals(0, index.size());
+    }
+
+    // What EvictingCachePolicy does with the strategy and the index, with a set standing in for the JDA member cache.
+    private static Result simulate(EvictionStrategy strategy, Trace trace) {
+        var index = new MemberGuildIndex();
+        Set<Long> cached = new HashSet<>();
+        var result = new Result();
+
+        for (var i = 0; i < trace.users.length; i++) {
+            var user = trace.users[i];
+            var guild = trace.guilds[i];
+            var key = user << 16 | guild;
+            if (cached.contains(key)) {
+                result.hits++;
+            } else {
+                result.misses++;
+                cached.add(key);
+                index.add(user, guild);
+
+                var evict = strategy.cache(user);
+                if (evict != EvictionStrategy.NO_REMOVAL_NEEDED) {
+                    var evictFrom = index.remove(evict);
+                    result.evictions++;
+                    result.guildsLookedAt += evictFrom.length;
+                    for (var evictedGuild : evictFrom) {
+                        cached.remove(evict << 16 | evictedGuild);
+                    }
+                }
+
+                result.maxTracked = Math.max(result.maxTracked, index.size());
+            }
+
+            if (trace.messages[i]) {
+                strategy.access(user);
+            }
+        }
+
+        return result;
+    }
+
+    private static class Result {
+        private long hits;
+        private long misses;
+        private long evictions;
+        private long guildsLookedAt;
+        private int maxTracked;
+
+        private double hitRatio() {
+            return (double) hits / (hits + misses);
+        }
+
+        private double guildsPerEviction() {
+            return evictions == 0 ? 0 : (double) guildsLookedAt / evictions;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                    "hit ratio %.2f%%, %d evictions, %.2f guilds looked at per eviction (every guild: %d)",
+                    hitRatio() * 100, evictions, guildsPerEviction(), GUILDS
+            );
+        }
+    }
+
+    private static class Trace {
+        private final long[] users = new long[EVENTS];
+        private final long[] guilds = new long[EVENTS];
+        private final boolean[] messages = new boolean[EVENTS];
+
+        private static Trace generate(Random random) {
+            // Bigger guilds first. Ids start at 1, as 0 means nothing to evict.
+            var members = new long[GUILDS][];
+            for (var guild = 0; guild < GUILDS; guild++) {
+                var size = Math.max(30, (int) (20_000 / Math.pow(guild + 1, 0.9)));
+                members[guild] = random.longs(size, 1, USERS + 1).toArray();
+            }
+
+            var pickGuild = new Zipf(GUILDS, 1.0, random);
+            var speakersByGuild = new Zipf[GUILDS];
+
+            var trace = new Trace();
+            var event = 0;
+            while (event < EVENTS) {
+                if (event > 0 && event % SCAN_EVERY == 0) {
+                    // One-off loads of a big guild's members, in no particular order.
+                    var guild = random.nextInt(10);
+                    var guildMembers = members[guild].clone();
+                    shuffle(guildMembers, random);
+                    for (var i = 0; i < Math.min(SCAN_SIZE, guildMembers.length) && event < EVENTS; i++, event++) {
+                        trace.users[event] = guildMembers[i];
+                        trace.guilds[event] = guild + 1;
+                    }
+
+                    continue;
+                }
+
+                var guild = pickGuild.next();
+                if (speakersByGuild[guild] == null) {
+                    speakersByGuild[guild] = new Zipf(members[guild].length, 1.1, random);
+                }
+
+                trace.users[event] = members[guild][speakersByGuild[guild].next()];
+                trace.guilds[event] = guild + 1;
+                trace.messages[event] = true;
+                event++;
+            }
+
+            return trace;
+        }
+
+        private static void shuffle(long[] array, Random random) {
+            for (var i = array.length - 1; i > 0; i--) {
+                var j = random.nextInt(i + 1);
+                var temp = array[i];
+                array[i] = array[j];
+                array[j] = temp;
+            }
+        }
+    }
+
+    // Picks 0 (most of the time) to size - 1 (hardly ever).
+    private static class Zipf {
+        private final double[] cumulative;
+        private final Random random;
+
+        private Zipf(int size, double skew, Random random) {
+            this.cumulative = new double[size];
+            this.random = random;
+            var total = 0D;
+            for (var i = 0; i < size; i++) {
+                total += 1 / Math.pow(i + 1, skew);
+                cumulative[i] = total;
+            }
+
+            for (var i = 0; i < size; i++) {
+                cumulative[i] /= total;
+            }
+        }
+
+        private int next() {
+            var index = Arrays.binarySearch(cumulative, random.nextDouble());
+            return Math.min(cumulative.length - 1, index < 0 ? -index - 1 : index);
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2016-2021 David Rubio Escares / Kodehawa
+ *
+ *  Mantaro is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  Mantaro is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Mantaro. If not, see http://www.gnu.org/licenses/
+ */
+
+import net.kodehawa.mantarobot.core.shard.MessageStore;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Every message here is 80 bytes of content, so with the header every record takes 100 bytes:
+ * a 4096 byte arena holds 40 of them, and a 8192 byte one holds 81.
+ */
+public class MessageStoreTest {
+    private static final int RECORD = 100;
+    private static final long GUILD = 1;
+    private static final long OTHER_GUILD = 2;
+
+    @Test
+    public void testWrapAround() {
+        // Can't grow past the first 4096 bytes.
+        var store = new MessageStore(4096, Long.MAX_VALUE);
+        store.setTracking(GUILD, true);
+        for (long id = 1; id <= 100; id++) {
+            store.put(GUILD, id, id, content(id, 0));
+        }
+
+        // Went around the ring a couple times, only the newest ones are left.
+        Assertions.assertEquals(4096 / RECORD, store.getCount());
+        for (long id = 1; id <= 100; id++) {
+            var message = store.get(GUILD, id);
+            if (id > 100 - 4096 / RECORD) {
+                Assertions.assertNotNull(message, "Message " + id + " should still be there");
+                Assertions.assertEquals(content(id, 0), message.getContent());
+            } else {
+                Assertions.assertNull(message, "Message " + id + " should have been pushed out");
+            }
+        }
+    }
+
+    @Test
+    public void testEditsLeaveStaleRecords() {
+        var store = new MessageStore(4096, Long.MAX_VALUE);
+        store.setTracking(GUILD, true);
+        store.put(GUILD, 1, 1, content(1, 0));
+        for (long id = 2; id <= 20; id++) {
+            store.put(GUILD, id, id, content(id, 0));
+        }
+
+        // The edit goes after everything else, the first record is left there.
+        store.put(GUILD, 1, 1, content(1, 1));
+        Assertions.assertEquals(content(1, 1), store.get(GUILD, 1).getContent());
+
+        // Enough to push out the stale record and the one after it, but not the edit.
+        for (long id = 21; id <= 41; id++) {
+            store.put(GUILD, id, id, content(id, 0));
+        }
+
+        Assertions.assertNull(store.get(GUILD, 2), "Oldest message should have been pushed out");
+        Assertions.assertNotNull(store.get(GUILD, 1), "Pushing out the stale record shouldn't forget the edit");
+        Assertions.assertEquals(content(1, 1), store.get(GUILD, 1).getContent());
+    }
+
+    @Test
+    public void testGrowCompacts() {
+        var store = new MessageStore(16384, Long.MAX_VALUE);
+        store.setTracking(GUILD, true);
+        // 30 messages, edited twice: 90 records, but only 30 of them are still the latest.
+        for (var edit = 0; edit < 3; edit++) {
+            for (long id = 1; id <= 30; id++) {
+                store.put(GUILD, id, id, content(id, edit));
+            }
+        }
+
+        // Growing only keeps the latest records. Had it copied the stale ones too, we'd need 16384 bytes.
+        Assertions.assertEquals(8192, store.getSize());
+        Assertions.assertEquals(30, store.getCount());
+        for (long id = 1; id <= 30; id++) {
+            Assertions.assertEquals(content(id, 2), store.get(GUILD, id).getContent());
+        }
+    }
+
+    @Test
+    public void testGuildQuota() {
+        var store = new MessageStore(8192, Long.MAX_VALUE);
+        store.setTracking(GUILD, true);
+        store.setTracking(OTHER_GUILD, true);
+        store.put(OTHER_GUILD, 1, 1, content(1, 0));
+
+        for (long id = 1; id <= 1000; id++) {
+            store.put(GUILD, id, id, content(id, 0));
+        }
+
+        // A busy guild stops at its quota, and only pushes out its own messages.
+        Assertions.assertEquals(4096 + 8192, store.getSize());
+        Assertions.assertEquals(content(1, 0), store.get(OTHER_GUILD, 1).getContent());
+        Assertions.assertEquals(content(1000, 0), store.get(GUILD, 1000).getContent());
+
+        // Messages that could never fit are ignored, and don't leave an older version of them around.
+        store.put(GUILD, 1000, 1000, "a".repeat(8192));
+        Assertions.assertNull(store.get(GUILD, 1000));
+
+        // Messages of guilds we're not keeping are ignored.
+        store.put(3, 1, 1, content(1, 0));
+        Assertions.assertNull(store.get(3, 1));
+    }
+
+    @Test
+    public void testFullStore() {
+        var store = new MessageStore(8192, 8192);
+        store.setTracking(GUILD, true);
+        for (long id = 1; id <= 100; id++) {
+            store.put(GUILD, id, id, content(id, 0));
+        }
+
+        // The first guild took the whole store.
+        Assertions.assertEquals(8192, store.getSize());
+
+        // New guilds still get their first buffer, but can't grow past it: they push out their own oldest messages.
+        store.setTracking(OTHER_GUILD, true);
+        for (long id = 1; id <= 100; id++) {
+            store.put(OTHER_GUILD, id, id, content(id, 1));
+        }
+
+        Assertions.assertEquals(8192 + 4096, store.getSize());
+        Assertions.assertNull(store.get(OTHER_GUILD, 1));
+        Assertions.assertEquals(content(100, 1), store.get(OTHER_GUILD, 100).getContent());
+        Assertions.assertEquals(content(100, 0), store.get(GUILD, 100).getContent());
+
+        // Dropping a guild gives its bytes back.
+        store.setTracking(GUILD, false);
+        Assertions.assertEquals(4096, store.getSize());
+        Assertions.assertNull(store.get(GUILD, 100));
+    }
+
+    // 80 bytes, and different for every message and edit.
+    private static String content(long id, int edit) {
+        var prefix = "message " + id + " edit " + edit + " ";
+        return prefix + "x".repeat(80 - prefix.length());
+    }
+}
@@ -0,0 +1,326 @@
+/*
+ * Copyright (C) 2016-2021 David Rubio Escares / Kodehawa
+ *
+ *  Mantaro is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  Mantaro is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Mantaro. If not, see http://www.gnu.org/licenses/
+ */
+
+import com.sedmelluq.discord.lavaplayer.player.DefaultAudioPlayerManager;
+import com.sedmelluq.discord.lavaplayer.source.bandcamp.BandcampAudioSourceManager;
+import com.sedmelluq.discord.lavaplayer.source.bandcamp.BandcampAudioTrack;
+import com.sedmelluq.discord.lavaplayer.source.youtube.YoutubeAudioSourceManager;
+import com.sedmelluq.discord.lavaplayer.source.youtube.YoutubeAudioTrack;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrackInfo;
+import net.kodehawa.mantarobot.commands.music.requester.QueueSnapshots;
+import net.kodehawa.mantarobot.commands.music.requester.TrackQueue;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import redis.clients.jedis.Jedis;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+public class TrackQueueTest {
+    private static final DefaultAudioPlayerManager manager = new DefaultAudioPlayerManager();
+    private static final YoutubeAudioSourceManager youtubeSource = new YoutubeAudioSourceManager(true);
+    private static final BandcampAudioSourceManager bandcampSource = new BandcampAudioSourceManager();
+
+    @BeforeAll
+    public static void registerSources() {
+        manager.registerSourceManager(youtubeSource);
+        manager.registerSourceManager(bandcampSource);
+    }
+
+    @Test
+    public void testRoundTrip() {
+        var queue = new TrackQueue(manager);
+        var tracks = List.of(
+                youtube("dQw4w9WgXcQ", "Never Gonna Give You Up", 213_000, "155149181050830848"),
+                bandcamp("https://artist.bandcamp.com/track/song", "Song", 184_000, "267207628965281792"),
+                youtube("5qap5aO4i9A", "Lofi stream ♫ こんにちは", Long.MAX_VALUE, null)
+        );
+        tracks.forEach(queue::addLast);
+
+        var decoded = queue.toList();
+        Assertions.assertEquals(tracks.size(), decoded.size());
+        for (int i = 0; i < tracks.size(); i++) {
+            assertSameTrack(tracks.get(i), decoded.get(i));
+        }
+    }
+
+    @Test
+    public void testPositionalAccess() {
+        var queue = new TrackQueue(manager);
+        List<AudioTrack> expected = new ArrayList<>();
+        // Enough to wrap around and grow the buffer a few times.
+        for (int i = 0; i < 100; i++) {
+            var track = numbered(i);
+            if (i % 3 == 0) {
+                queue.addFirst(track);
+                expected.add(0, track);
+            } else {
+                queue.addLast(track);
+                expected.add(track);
+            }
+
+            if (i % 7 == 0) {
+                assertSameTrack(expected.remove(0), queue.poll());
+            }
+        }
+
+        Assertions.assertEquals(expected.size(), queue.size());
+        assertSameTrack(expected.get(0), queue.peek());
+        for (int i = 0; i < expected.size(); i++) {
+            assertSameTrack(expected.get(i), queue.get(i));
+        }
+
+        Assertions.assertThrows(IndexOutOfBoundsException.class, () -> queue.get(expected.size()));
+        assertSameTracks(expected, queue.toList());
+    }
+
+    @Test
+    public void testRemove() {
+        var queue = new TrackQueue(manager);
+        List<AudioTrack> expected = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            var track = numbered(i);
+            queue.addLast(track);
+            expected.add(track);
+        }
+
+        assertSameTrack(expected.remove(5), queue.remove(5));
+
+        // Positions are the ones before removing anything. Out of range ones are ignored.
+        var removed = queue.removeAll(Set.of(0, 3, 4, 18, 40, -1));
+        Assertions.assertEquals(4, removed);
+        expected.remove(18);
+        expected.remove(4);
+        expected.remove(3);
+        expected.remove(0);
+
+        assertSameTracks(expected, queue.toList());
+        Assertions.assertEquals(0, queue.removeAll(List.of()));
+    }
+
+    @Test
+    public void testShuffle() {
+        var queue = new TrackQueue(manager);
+        List<AudioTrack> expected = new ArrayList<>();
+        // Start somewhere other than the start of the buffer.
+        for (int i = 0; i < 10; i++) {
+            queue.addLast(numbered(-1));
+            queue.poll();
+        }
+
+        for (int i = 0; i < 30; i++) {
+            var track = numbered(i);
+            queue.addLast(track);
+            expected.add(track);
+        }
+
+        // Same algorithm as Collections#shuffle on a list, so with the same seed we should get the same order.
+        queue.shuffle(new Random(42));
+        Collections.shuffle(expected, new Random(42));
+        assertSameTracks(expected, queue.toList());
+    }
+
+    @Test
+    public void testSummaries() {
+        var queue = new TrackQueue(manager);
+        queue.addLast(youtube("a", "A", 1000, null));
+        queue.addLast(youtube("b", "B", 2000, null));
+        queue.addLast(youtube("a", "A again", 3000, null));
+        queue.addLast(youtube("stream", "Stream", Long.MAX_VALUE, null));
+
+        Assertions.assertEquals(6000, queue.getTotalLength());
+        Assertions.assertEquals(2, queue.count("https://www.youtube.com/watch?v=a"));
+        Assertions.assertEquals(0, queue.count("https://www.youtube.com/watch?v=c"));
+    }
+
+    @Test
+    public void testSnapshot() throws Exception {
+        var queue = new TrackQueue(manager);
+        List<AudioTrack> expected = new ArrayList<>();
+        for (int i = 0; i < 25; i++) {
+            var track = numbered(i);
+            queue.addLast(track);
+            expected.add(track);
+        }
+
+        var current = youtube("current", "Now playing", 300_000, "155149181050830848");
+        current.setPosition(123_456);
+
+        var restored = new TrackQueue(manager);
+        var restoredCurrent = restored.restore(queue.snapshot(current));
+        assertSameTracks(expected, restored.toList());
+        assertSameTrack(current, restoredCurrent);
+        Assertions.assertEquals(123_456, restoredCurrent.getPosition());
+
+        Assertions.assertNull(restored.restore(new TrackQueue(manager).snapshot(null)));
+        Assertions.assertTrue(restored.isEmpty());
+        Assertions.assertThrows(Exception.class, () -> restored.restore(new byte[] { 42 }));
+    }
+
+    @Test
+    public void testSnapshotSizesAreChecked() throws Exception {
+        var queue = new TrackQueue(manager);
+        queue.addLast(numbered(1));
+
+        // Far more tracks than there's room for.
+        var tooMany = new ByteArrayOutputStream();
+        try (var out = new DataOutputStream(tooMany)) {
+            out.writeByte(1);
+            out.writeBoolean(false);
+            out.writeInt(Integer.MAX_VALUE);
+        }
+
+        // A track far longer than what's left.
+        var tooLong = new ByteArrayOutputStream();
+        try (var out = new DataOutputStream(tooLong)) {
+            out.writeByte(1);
+            out.writeBoolean(false);
+            out.writeInt(1);
+            out.writeLong(0);
+            out.writeLong(0);
+            out.writeInt(0);
+            out.writeInt(Integer.MAX_VALUE);
+        }
+
+        Assertions.assertThrows(IOException.class, () -> queue.restore(tooMany.toByteArray()));
+        Assertions.assertThrows(IOException.class, () -> queue.restore(tooLong.toByteArray()));
+        // A snapshot we couldn't read doesn't change the queue.
+        Assertions.assertEquals(1, queue.size());
+    }
+
+    @Test
+    public void testSnapshotsAreDebounced() {
+        var redis = new InMemoryRedis();
+        var executor = Executors.newSingleThreadScheduledExecutor();
+        try {
+            // Long enough to never run by itself during the test.
+            var snapshots = new QueueSnapshots(() -> redis, executor, 3_600_000, 60);
+            var queue = new TrackQueue(manager);
+            queue.setOnChange(() -> snapshots.changed("1", () -> queue.isEmpty() ? null : queue.snapshot(null)));
+            for (int i = 0; i < 50; i++) {
+                queue.addLast(numbered(i));
+            }
+
+            Assertions.assertNull(snapshots.load("1"));
+            snapshots.flush();
+            Assertions.assertEquals(1, redis.writes.get());
+
+            var restored = new TrackQueue(manager);
+            restored.restore(snapshots.load("1"));
+            assertSameTracks(queue.toList(), restored.toList());
+
+            // Nothing changed, nothing to write.
+            snapshots.flush();
+            Assertions.assertEquals(1, redis.writes.get());
+
+            // An empty queue isn't kept.
+            queue.clear();
+            snapshots.flush();
+            Assertions.assertNull(snapshots.load("1"));
+
+            // Deleting drops pending writes.
+            queue.addLast(numbered(1));
+            snapshots.delete("1");
+            snapshots.flush();
+            Assertions.assertNull(snapshots.load("1"));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static AudioTrack numbered(int number) {
+        return youtube("id" + number, "Track " + number, 1000L * number, String.valueOf(100 + number));
+    }
+
+    private static AudioTrack youtube(String id, String title, long length, String requester) {
+        var track = new YoutubeAudioTrack(
+                new AudioTrackInfo(title, "Author", length, id, length == Long.MAX_VALUE, "https://www.youtube.com/watch?v=" + id),
+                youtubeSource
+        );
+        track.setUserData(requester);
+        return track;
+    }
+
+    private static AudioTrack bandcamp(String url, String title, long length, String requester) {
+        var track = new BandcampAudioTrack(new AudioTrackInfo(title, "Artist", length, url, false, url), bandcampSource);
+        track.setUserData(requester);
+        return track;
+    }
+
+    private static void assertSameTrack(AudioTrack expected, AudioTrack actual) {
+        Assertions.assertNotNull(actual);
+        Assertions.assertEquals(expected.getClass(), actual.getClass());
+        Assertions.assertEquals(expected.getSourceManager().getSourceName(), actual.getSourceManager().getSourceName());
+        Assertions.assertEquals(expected.getInfo().title, actual.getInfo().title);
+        Assertions.assertEquals(expected.getInfo().author, actual.getInfo().author);
+        Assertions.assertEquals(expected.getInfo().length, actual.getInfo().length);
+        Assertions.assertEquals(expected.getInfo().identifier, actual.getInfo().identifier);
+        Assertions.assertEquals(expected.getInfo().isStream, actual.getInfo().isStream);
+        Assertions.assertEquals(expected.getInfo().uri, actual.getInfo().uri);
+        Assertions.assertEquals(expected.getUserData(), actual.getUserData());
+    }
+
+    private static void assertSameTracks(List<AudioTrack> expected, List<AudioTrack> actual) {
+        Assertions.assertEquals(
+                expected.stream().map(t -> t.getInfo().identifier).collect(Collectors.toList()),
+                actual.stream().map(t -> t.getInfo().identifier).collect(Collectors.toList())
+        );
+
+        for (int i = 0; i < expected.size(); i++) {
+            assertSameTrack(expected.get(i), actual.get(i));
+        }
+    }
+
+    // Just enough of Redis for QueueSnapshots. Never connects to anything.
+    private static class InMemoryRedis extends Jedis {
+        private final Map<String, byte[]> data = new ConcurrentHashMap<>();
+        private final AtomicInteger writes = new AtomicInteger();
+
+        @Override
+        public byte[] get(byte[] key) {
+            return data.get(new String(key, StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public String setex(byte[] key, int seconds, byte[] value) {
+            writes.incrementAndGet();
+            data.put(new String(key, StandardCharsets.UTF_8), value);
+            return "OK";
+        }
+
+        @Override
+        public Long del(byte[] key) {
+            return data.remove(new String(key, StandardCharsets.UTF_8)) == null ? 0L : 1L;
+        }
+
+        @Override
+        public void close() { }
+    }
+}